@@ -0,0 +1,61 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash;
+
+import java.util.Arrays;
+
+/**
+ * byte[] wrapper with value semantics for use as a map key; the hash code is
+ * computed once. The array is not copied, so it must not change while the
+ * key is in use.
+ */
+public final class ByteArrayKey {
+    private final byte[] bytes;
+
+    private final int hashCode;
+
+    public ByteArrayKey(byte[] bytes) {
+        this(bytes, Arrays.hashCode(bytes));
+    }
+
+    private ByteArrayKey(byte[] bytes, int hashCode) {
+        this.bytes = bytes;
+        this.hashCode = hashCode;
+    }
+
+    /** returns the wrapped array (not a copy) */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /** returns a key over a copy of the array, for keys that are retained */
+    public ByteArrayKey copy() {
+        return new ByteArrayKey(bytes.clone(), hashCode);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return (obj instanceof ByteArrayKey)
+                && Arrays.equals(bytes, ((ByteArrayKey) obj).bytes);
+    }
+}
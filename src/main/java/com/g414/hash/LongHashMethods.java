@@ -35,6 +35,20 @@ public class LongHashMethods {
         return (val >> bits) | (val << (32 - bits));
     }
 
+    /**
+     * finalization mix (from MurmurHash3) to spread the entropy of a hash code
+     * across all 64 bits
+     */
+    public static final long mix64(long val) {
+        val ^= val >>> 33;
+        val *= 0xff51afd7ed558ccdL;
+        val ^= val >>> 33;
+        val *= 0xc4ceb9fe1a85ec53L;
+        val ^= val >>> 33;
+
+        return val;
+    }
+
     /** take a bunch of random bytes and turn them into a single long */
     public static final long condenseBytesIntoLong(byte[] representation) {
         long seed = 0L;
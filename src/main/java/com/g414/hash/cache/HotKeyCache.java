@@ -0,0 +1,299 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.g414.hash.ByteArrayKey;
+import com.g414.hash.file.HashFile;
+import com.g414.hash.file2.HashFile2;
+
+/**
+ * Bounded, thread-safe value cache in front of a HashFile or HashFile2, for
+ * skewed (e.g. Zipfian) lookup traffic. Since hash files are immutable,
+ * entries never need invalidating.
+ * <p>
+ * The cache is split into independently locked segments by key hash; each
+ * segment is a segmented LRU: new entries go to a probationary LRU, and are
+ * promoted to a protected LRU (80% of the segment) on their second hit, so a
+ * scan of one-off keys cannot flush the hot set. Misses are cached as
+ * negative entries unless disabled. Sizes are bounded in (estimated) bytes.
+ * <p>
+ * Cached values are shared between callers and must not be modified.
+ */
+public class HotKeyCache {
+    /** estimated per-entry overhead in bytes, on top of key and value */
+    public static final int ENTRY_OVERHEAD = 96;
+
+    /** log base 2 of the number of independently locked segments */
+    private static final int SEGMENTS_POWER_OF_2 = 4;
+
+    private final ValueLoader loader;
+
+    private final boolean cacheNegatives;
+
+    private final Segment[] segments;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong negativeHitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public HotKeyCache(ValueLoader loader, long maxBytes) {
+        this(loader, maxBytes, true);
+    }
+
+    public HotKeyCache(ValueLoader loader, long maxBytes,
+            boolean cacheNegatives) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must be >= 0");
+        }
+
+        this.loader = loader;
+        this.cacheNegatives = cacheNegatives;
+        this.segments = new Segment[1 << SEGMENTS_POWER_OF_2];
+
+        for (int i = 0; i < segments.length; i++) {
+            this.segments[i] = new Segment(maxBytes >> SEGMENTS_POWER_OF_2);
+        }
+    }
+
+    /** creates a cache in front of the given HashFile2 */
+    public static HotKeyCache of(final HashFile2 hashFile, long maxBytes) {
+        return new HotKeyCache(new ValueLoader() {
+            @Override
+            public byte[] load(byte[] key) {
+                return hashFile.get(key);
+            }
+        }, maxBytes);
+    }
+
+    /** creates a cache in front of the given HashFile */
+    public static HotKeyCache of(final HashFile hashFile, long maxBytes) {
+        return new HotKeyCache(new ValueLoader() {
+            @Override
+            public byte[] load(byte[] key) {
+                return hashFile.get(key);
+            }
+        }, maxBytes);
+    }
+
+    /**
+     * Returns the value stored under the given key, from the cache if
+     * possible.
+     * 
+     * @return the value, or <code>null</code> if there is none
+     */
+    public byte[] get(byte[] key) {
+        ByteArrayKey theKey = new ByteArrayKey(key);
+        int hashCode = theKey.hashCode();
+        Segment segment = segments[(hashCode ^ (hashCode >>> 16))
+                & (segments.length - 1)];
+
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.get(theKey);
+        }
+
+        if (entry != null) {
+            if (entry.value == null) {
+                negativeHitCount.incrementAndGet();
+            } else {
+                hitCount.incrementAndGet();
+            }
+
+            return entry.value;
+        }
+
+        missCount.incrementAndGet();
+
+        // load outside the lock; concurrent misses on one key may both load
+        byte[] value = loader.load(key);
+
+        if (value != null || cacheNegatives) {
+            Entry added = new Entry(theKey.copy(), value, key.length
+                    + (value == null ? 0 : value.length) + ENTRY_OVERHEAD);
+            long evicted;
+
+            synchronized (segment) {
+                evicted = segment.admit(added);
+            }
+
+            if (evicted > 0) {
+                evictionCount.addAndGet(evicted);
+            }
+        }
+
+        return value;
+    }
+
+    /** returns the number of lookups answered with a cached value */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /** returns the number of lookups answered with a cached negative entry */
+    public long getNegativeHitCount() {
+        return negativeHitCount.get();
+    }
+
+    /** returns the number of lookups that went to the underlying file */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /** returns the number of entries evicted so far */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /** returns the number of cached entries, including negative ones */
+    public long getEntryCount() {
+        long total = 0L;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                total += segment.probation.size() + segment.protect.size();
+            }
+        }
+
+        return total;
+    }
+
+    /** returns the estimated size of the cached entries in bytes */
+    public long getWeightedSize() {
+        long total = 0L;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                total += segment.probationBytes + segment.protectedBytes;
+            }
+        }
+
+        return total;
+    }
+
+    /** one independently locked segmented LRU; callers hold its monitor */
+    private static final class Segment {
+        private final long maxBytes;
+
+        private final long maxProtectedBytes;
+
+        /** entries seen once, in LRU order */
+        private final LinkedHashMap<ByteArrayKey, Entry> probation = new LinkedHashMap<ByteArrayKey, Entry>(
+                16, 0.75f, true);
+
+        /** entries seen more than once, in LRU order */
+        private final LinkedHashMap<ByteArrayKey, Entry> protect = new LinkedHashMap<ByteArrayKey, Entry>(
+                16, 0.75f, true);
+
+        private long probationBytes = 0L;
+
+        private long protectedBytes = 0L;
+
+        public Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+            this.maxProtectedBytes = maxBytes * 4 / 5;
+        }
+
+        public Entry get(ByteArrayKey key) {
+            Entry entry = protect.get(key);
+            if (entry != null) {
+                return entry;
+            }
+
+            entry = probation.remove(key);
+            if (entry == null) {
+                return null;
+            }
+
+            probationBytes -= entry.weight;
+            protect.put(entry.key, entry);
+            protectedBytes += entry.weight;
+
+            // demote the protected LRU back to probation
+            Iterator<Map.Entry<ByteArrayKey, Entry>> iter = protect.entrySet()
+                    .iterator();
+            while (protectedBytes > maxProtectedBytes && iter.hasNext()) {
+                Map.Entry<ByteArrayKey, Entry> eldest = iter.next();
+                if (eldest.getValue() == entry) {
+                    break;
+                }
+
+                iter.remove();
+                protectedBytes -= eldest.getValue().weight;
+                probation.put(eldest.getKey(), eldest.getValue());
+                probationBytes += eldest.getValue().weight;
+            }
+
+            return entry;
+        }
+
+        /** adds a new entry, returning the number of entries evicted */
+        public long admit(Entry entry) {
+            if (entry.weight > maxBytes || probation.containsKey(entry.key)
+                    || protect.containsKey(entry.key)) {
+                return 0L;
+            }
+
+            probation.put(entry.key, entry);
+            probationBytes += entry.weight;
+
+            long evicted = 0L;
+            while (probationBytes + protectedBytes > maxBytes) {
+                LinkedHashMap<ByteArrayKey, Entry> victims = probation
+                        .isEmpty() ? protect : probation;
+
+                Iterator<Map.Entry<ByteArrayKey, Entry>> iter = victims
+                        .entrySet().iterator();
+                Map.Entry<ByteArrayKey, Entry> eldest = iter.next();
+                iter.remove();
+
+                if (victims == probation) {
+                    probationBytes -= eldest.getValue().weight;
+                } else {
+                    protectedBytes -= eldest.getValue().weight;
+                }
+
+                evicted += 1;
+            }
+
+            return evicted;
+        }
+    }
+
+    private static final class Entry {
+        /** the cached key, owned by the cache */
+        private final ByteArrayKey key;
+
+        /** the cached value, or null for a negative entry */
+        private final byte[] value;
+
+        private final int weight;
+
+        public Entry(ByteArrayKey key, byte[] value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
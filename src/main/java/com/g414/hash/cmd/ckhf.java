@@ -18,8 +18,10 @@
 package com.g414.hash.cmd;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Scanner;
 import java.util.logging.Logger;
 
@@ -38,11 +40,15 @@ public class ckhf {
         boolean lower = Boolean.valueOf(System.getProperty("lower", "false"));
         String delim = System.getProperty("delim", "\t");
 
+        int batchSize = Integer.parseInt(System.getProperty("batch", "10000"));
+
         long j = 0;
         for (String file : theArgs) {
             log.info("processing: " + file);
 
             Scanner x = new Scanner(new File(file));
+            List<String> lines = new ArrayList<String>(batchSize);
+            List<byte[]> keys = new ArrayList<byte[]>(batchSize);
             long i = 0;
             while (x.hasNextLine()) {
                 String m = x.nextLine();
@@ -50,9 +56,20 @@ public class ckhf {
                     m = m.toLowerCase();
                 }
 
-                Iterable<byte[]> values = hf.getMulti(m.getBytes("UTF-8"));
-                for (byte[] value : values) {
-                    System.out.println(m + delim + new String(value, "UTF-8"));
+                lines.add(m);
+                keys.add(m.getBytes("UTF-8"));
+
+                if (lines.size() >= batchSize || !x.hasNextLine()) {
+                    List<List<byte[]>> values = hf.getAll(keys);
+                    for (int k = 0; k < lines.size(); k++) {
+                        for (byte[] value : values.get(k)) {
+                            System.out.println(lines.get(k) + delim
+                                    + new String(value, "UTF-8"));
+                        }
+                    }
+
+                    lines.clear();
+                    keys.clear();
                 }
 
                 if (i % 100000 == 0) {
@@ -17,40 +17,81 @@
  */
 package com.g414.hash.cmd;
 
-import java.io.PrintWriter;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.logging.Logger;
 
-import com.g414.hash.file2.HashEntry;
+import com.g414.hash.file2.EntryVisitor;
 import com.g414.hash.file2.HashFile2;
+import com.g414.hash.file2.ReadMode;
 
 public class dumphf {
     private static final Logger log = Logger.getLogger(dumphf.class.getName());
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     public static void main(String[] args) throws Exception {
         LinkedList<String> theArgs = new LinkedList<String>();
         theArgs.addAll(Arrays.asList(args));
 
-        String inFile = theArgs.removeFirst();
+        final String inFile = theArgs.removeFirst();
         String outFile = theArgs.removeFirst();
 
-        String delim = System.getProperty("delim", "\t");
+        final String delim = System.getProperty("delim", "\t");
+        final byte[] delimBytes = delim.getBytes("UTF-8");
+        final byte[] newline = System.getProperty("line.separator").getBytes(
+                "UTF-8");
+
+        final OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(outFile), 1024 * 1024);
+
+        HashFile2 hf = new HashFile2(inFile, false, ReadMode.POSITIONAL);
+
+        // keys and values are copied straight through, without decoding
+        hf.scan(new EntryVisitor() {
+            byte[] scratch = new byte[4096];
 
-        PrintWriter out = new PrintWriter(outFile);
+            long i = 0L;
 
-        long i = 0;
-        for (HashEntry entry : HashFile2.elements(inFile)) {
-            String n = new String(entry.getKey(), "UTF-8") + delim
-                    + new String(entry.getValue(), "UTF-8");
+            @Override
+            public boolean visit(ByteBuffer key, ByteBuffer value) {
+                if (i % 100000 == 0) {
+                    log.info(inFile + " : " + i + " "
+                            + UTF_8.decode(key.duplicate()) + delim
+                            + UTF_8.decode(value.duplicate()));
+                }
+                i += 1;
+
+                try {
+                    write(key);
+                    out.write(delimBytes);
+                    write(value);
+                    out.write(newline);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+
+                return true;
+            }
 
-            out.println(n);
+            private void write(ByteBuffer data) throws IOException {
+                int length = data.remaining();
+                if (length > scratch.length) {
+                    scratch = new byte[Math.max(length, scratch.length * 2)];
+                }
 
-            if (i % 100000 == 0) {
-                log.info(inFile + " : " + i + " " + n);
+                data.get(scratch, 0, length);
+                out.write(scratch, 0, length);
             }
-        }
+        });
 
+        hf.close();
         out.close();
         log.info("done.");
     }
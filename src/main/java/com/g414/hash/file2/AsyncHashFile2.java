@@ -0,0 +1,227 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import com.g414.hash.file2.impl.Calculations2;
+
+/**
+ * Non-blocking lookup facade over a HashFile2. Lookups are queued per bucket
+ * and run on the given executor, so concurrent requests for the same bucket
+ * share a single hash table read (see HashFile2.getAll()), and at most
+ * maxInFlight lookup tasks run at once; callers never block.
+ * <p>
+ * Open the HashFile2 with ReadMode.POSITIONAL or ReadMode.MAPPED so the
+ * tasks actually run in parallel.
+ */
+public class AsyncHashFile2 {
+    /** default limit on concurrently executing lookup tasks */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    private final HashFile2 hashFile;
+
+    private final Executor executor;
+
+    private final int maxInFlight;
+
+    /** batches that have not started yet, by bucket */
+    private final Map<Integer, Batch> pending = new HashMap<Integer, Batch>();
+
+    /** batches that have not started yet, in arrival order */
+    private final ArrayDeque<Batch> ready = new ArrayDeque<Batch>();
+
+    /** number of lookup tasks submitted and not yet finished */
+    private int inFlight = 0;
+
+    public AsyncHashFile2(HashFile2 hashFile, Executor executor) {
+        this(hashFile, executor, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public AsyncHashFile2(HashFile2 hashFile, Executor executor,
+            int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be >= 1");
+        }
+
+        this.hashFile = hashFile;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Finds the first value stored under the given key.
+     *
+     * @return a future of the value, or of <code>null</code> if the key could
+     *         not be found
+     */
+    public CompletableFuture<byte[]> getAsync(byte[] key) {
+        if (hashFile.isAssociative()) {
+            throw new UnsupportedOperationException(
+                    "get() not allowed for associative hash files, use getMulti() instead");
+        }
+
+        return getMultiAsync(key).thenApply(
+                new Function<List<byte[]>, byte[]>() {
+                    @Override
+                    public byte[] apply(List<byte[]> values) {
+                        return values.isEmpty() ? null : values.get(0);
+                    }
+                });
+    }
+
+    /**
+     * Finds all values stored under the given key.
+     *
+     * @return a future of the values, in getMulti() order
+     */
+    public CompletableFuture<List<byte[]>> getMultiAsync(byte[] key) {
+        CompletableFuture<List<byte[]>> result = new CompletableFuture<List<byte[]>>();
+
+        long hashCode = Calculations2.computeHash(key, hashFile.isLongHash());
+        int bucket = hashFile.getBucket(hashCode);
+        if (bucket < 0) {
+            result.complete(Collections.<byte[]> emptyList());
+
+            return result;
+        }
+
+        synchronized (this) {
+            Batch batch = pending.get(bucket);
+            if (batch == null) {
+                batch = new Batch(bucket);
+                pending.put(bucket, batch);
+                ready.add(batch);
+            }
+
+            batch.add(key, hashCode, result);
+        }
+
+        this.dispatch();
+
+        return result;
+    }
+
+    /** returns the number of lookup tasks currently executing */
+    public synchronized int getInFlight() {
+        return this.inFlight;
+    }
+
+    /** starts waiting batches, up to the in-flight limit */
+    private void dispatch() {
+        while (true) {
+            final Batch batch;
+
+            synchronized (this) {
+                if (inFlight >= maxInFlight || ready.isEmpty()) {
+                    return;
+                }
+
+                batch = ready.poll();
+                pending.remove(batch.bucket);
+                inFlight += 1;
+            }
+
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            batch.run();
+                        } finally {
+                            finished();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    inFlight -= 1;
+                }
+
+                batch.fail(e);
+            }
+        }
+    }
+
+    private void finished() {
+        synchronized (this) {
+            inFlight -= 1;
+        }
+
+        this.dispatch();
+    }
+
+    /** the queued lookups for one bucket */
+    private class Batch {
+        private final int bucket;
+
+        private final List<byte[]> keys = new ArrayList<byte[]>();
+
+        /** the keys' hash codes, computed when they were submitted */
+        private long[] hashCodes = new long[4];
+
+        private final List<CompletableFuture<List<byte[]>>> results = new ArrayList<CompletableFuture<List<byte[]>>>();
+
+        public Batch(int bucket) {
+            this.bucket = bucket;
+        }
+
+        public void add(byte[] key, long hashCode,
+                CompletableFuture<List<byte[]>> result) {
+            if (keys.size() == hashCodes.length) {
+                hashCodes = Arrays.copyOf(hashCodes, hashCodes.length * 2);
+            }
+
+            hashCodes[keys.size()] = hashCode;
+            keys.add(key);
+            results.add(result);
+        }
+
+        public void run() {
+            List<List<byte[]>> values;
+            try {
+                values = hashFile.getAll(keys, Arrays.copyOf(hashCodes, keys
+                        .size()));
+            } catch (Throwable t) {
+                // even an Error must not leave the futures pending
+                this.fail(t);
+                return;
+            }
+
+            for (int i = 0; i < results.size(); i++) {
+                results.get(i).complete(values.get(i));
+            }
+        }
+
+        public void fail(Throwable t) {
+            for (CompletableFuture<List<byte[]>> result : results) {
+                result.completeExceptionally(t);
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.IOException;
+
+/**
+ * Compresses the blocks of records in the data segment of a compressed
+ * HashFile (see HashFile2Builder.enableCompression()). Codecs are stored in
+ * the file by name, and looked up again with BlockCodecs.forName() when it is
+ * opened; implementations must be safe for concurrent use.
+ */
+public interface BlockCodec {
+    /** returns the name stored in compressed files */
+    String getName();
+
+    /**
+     * returns the most bytes compress() can produce for <code>length</code>
+     * bytes of input
+     */
+    int maxCompressedLength(int length);
+
+    /**
+     * Compresses <code>length</code> bytes of <code>src</code>, starting at
+     * <code>offset</code>, into <code>dst</code>.
+     * 
+     * @return the compressed length
+     */
+    int compress(byte[] src, int offset, int length, byte[] dst)
+            throws IOException;
+
+    /**
+     * Decompresses <code>length</code> bytes of <code>src</code>, starting
+     * at <code>offset</code>, filling all of <code>dst</code>.
+     */
+    void decompress(byte[] src, int offset, int length, byte[] dst)
+            throws IOException;
+}
@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the BlockCodecs compressed HashFiles can be opened with, by
+ * name. Deflate is built in; other codecs (e.g. an LZ4 binding, for faster
+ * decompression at a lower ratio) must be registered before files using them
+ * are opened.
+ */
+public final class BlockCodecs {
+    /** the built-in codec, at the default compression level */
+    public static final BlockCodec DEFLATE = new DeflateBlockCodec();
+
+    private static final ConcurrentMap<String, BlockCodec> codecs = new ConcurrentHashMap<String, BlockCodec>();
+
+    static {
+        register(DEFLATE);
+    }
+
+    private BlockCodecs() {
+    }
+
+    /** registers a codec under its name, replacing any previous one */
+    public static void register(BlockCodec codec) {
+        codecs.put(codec.getName(), codec);
+    }
+
+    /** returns the codec registered under the given name */
+    public static BlockCodec forName(String name) {
+        BlockCodec codec = codecs.get(name);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown BlockCodec: " + name);
+        }
+
+        return codec;
+    }
+}
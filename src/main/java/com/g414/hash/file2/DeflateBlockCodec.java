@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * BlockCodec using java.util.zip (raw deflate, without the zlib wrapper).
+ * Deflaters and inflaters are reused per thread.
+ */
+public class DeflateBlockCodec implements BlockCodec {
+    /** name stored in compressed files */
+    public static final String NAME = "deflate";
+
+    private final int level;
+
+    private final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(level, true);
+        }
+    };
+
+    private final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    public DeflateBlockCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a codec compressing at the given level; the level does not
+     * matter for decompression.
+     * 
+     * @param level
+     *            Deflater compression level, 1 (fastest) to 9 (smallest)
+     */
+    public DeflateBlockCodec(int level) {
+        if ((level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+                && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: "
+                    + level);
+        }
+
+        this.level = level;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int maxCompressedLength(int length) {
+        // stored blocks cost 5 bytes per 16KB, plus some slack
+        return length + (length >> 12) + (length >> 14) + 64;
+    }
+
+    @Override
+    public int compress(byte[] src, int offset, int length, byte[] dst)
+            throws IOException {
+        Deflater theDeflater = this.deflater.get();
+        theDeflater.reset();
+        theDeflater.setInput(src, offset, length);
+        theDeflater.finish();
+
+        int compressed = 0;
+        while (!theDeflater.finished()) {
+            if (compressed == dst.length) {
+                throw new IOException("Compressed block exceeds buffer");
+            }
+
+            compressed += theDeflater.deflate(dst, compressed, dst.length
+                    - compressed);
+        }
+
+        return compressed;
+    }
+
+    @Override
+    public void decompress(byte[] src, int offset, int length, byte[] dst)
+            throws IOException {
+        Inflater theInflater = this.inflater.get();
+        theInflater.reset();
+        theInflater.setInput(src, offset, length);
+
+        try {
+            int decompressed = 0;
+            while (decompressed < dst.length) {
+                int read = theInflater.inflate(dst, decompressed, dst.length
+                        - decompressed);
+                if (read == 0 && (theInflater.finished()
+                        || theInflater.needsInput())) {
+                    throw new IOException("Truncated compressed block");
+                }
+
+                decompressed += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed block: "
+                    + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Callback for HashFile2.scan(). The key and value are read-only views whose
+ * bytes lie between position() and limit(); the same buffers are reused for
+ * every entry, so they are only valid during the call.
+ */
+public interface EntryVisitor {
+    /**
+     * Called for each entry in file order.
+     * 
+     * @param key
+     *            the entry's key (empty for associative files)
+     * @param value
+     *            the entry's value, or <code>null</code> in keys-only scans
+     * @return false to stop the scan
+     */
+    public boolean visit(ByteBuffer key, ByteBuffer value);
+}
@@ -21,10 +21,26 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import com.g414.hash.file2.impl.BatchLookup2;
+import com.g414.hash.file2.impl.BlockCache2;
+import com.g414.hash.file2.impl.BlockFormat2;
+import com.g414.hash.file2.impl.BloomFilter2;
+import com.g414.hash.file2.impl.Calculations2;
+import com.g414.hash.file2.impl.CopiedFileAccess2;
+import com.g414.hash.file2.impl.DataSpliterator2;
+import com.g414.hash.file2.impl.FileAccess2;
 import com.g414.hash.file2.impl.FileOperations2;
 import com.g414.hash.file2.impl.Header2;
 import com.g414.hash.file2.impl.Iterators2;
+import com.g414.hash.file2.impl.PositionalFileAccess2;
+import com.g414.hash.file2.impl.RecordReader2;
+import com.g414.hash.file2.impl.Sections2;
+import com.g414.hash.file2.impl.WarmUp2;
 
 /**
  * HashFile: inspired by DJB's CDB, we upgrade to 64-bit hash values and file
@@ -47,6 +63,21 @@ public class HashFile2 {
     /** FileOperations2 instance encapsulating file access */
     private final FileOperations2 fileOps;
 
+    /** Read access used for lookups (null once closed) */
+    private FileAccess2 access = null;
+
+    /** How lookups read the file */
+    private final ReadMode readMode;
+
+    /** Lock-free read access used for scans in SEEK mode */
+    private final FileAccess2 scanAccess;
+
+    /** Where lookups read the index from */
+    private final IndexStorage indexStorage;
+
+    /** Bloom filter over all keys, or null if the file does not have one */
+    private final BloomFilter2 filter;
+
     /**
      * Creates an instance of HashFile and loads the given file path.
      * 
@@ -70,18 +101,197 @@ public class HashFile2 {
      *                if the HashFile could not be opened.
      */
     public HashFile2(String hashFileName, boolean eager) throws IOException {
+        this(hashFileName, eager, ReadMode.SEEK);
+    }
+
+    /**
+     * Creates an instance of HashFile and loads the given file path.
+     * 
+     * @param hashFileName
+     *            The path to the HashFile to open.
+     * @param eager
+     *            whether to read bucket table eagerly
+     * @param readMode
+     *            how lookups read the file
+     * @exception IOException
+     *                if the HashFile could not be opened.
+     */
+    public HashFile2(String hashFileName, boolean eager, ReadMode readMode)
+            throws IOException {
+        this(hashFileName, eager, readMode, IndexStorage.FILE);
+    }
+
+    /**
+     * Creates an instance of HashFile and loads the given file path.
+     * 
+     * @param hashFileName
+     *            The path to the HashFile to open.
+     * @param eager
+     *            whether to warm up the bucket table before returning
+     * @param readMode
+     *            how lookups read the file
+     * @param indexStorage
+     *            where lookups read the bucket table and hash tables from
+     * @exception IOException
+     *                if the HashFile could not be opened.
+     */
+    public HashFile2(String hashFileName, boolean eager, ReadMode readMode,
+            IndexStorage indexStorage) throws IOException {
         hashFile = new RandomAccessFile(hashFileName, "r");
+        this.readMode = readMode;
 
         this.header = Header2.readHeader(hashFile);
         this.fileOps = FileOperations2.fromHeader(header);
 
-        this.hashTableOffsets = hashFile.getChannel().map(MapMode.READ_ONLY,
-                Header2.getBucketTableOffset(), header.getBucketTableLength())
-                .asReadOnlyBuffer();
+        ByteBuffer bucketTable = hashFile.getChannel().map(MapMode.READ_ONLY,
+                Header2.getBucketTableOffset(), header.getBucketTableLength());
+
+        if (indexStorage != IndexStorage.FILE) {
+            ByteBuffer copy = indexStorage == IndexStorage.DIRECT ? ByteBuffer
+                    .allocateDirect(bucketTable.capacity()) : ByteBuffer
+                    .allocate(bucketTable.capacity());
+            copy.put(bucketTable);
+            copy.rewind();
+            bucketTable = copy;
+        }
+
+        this.hashTableOffsets = bucketTable.asReadOnlyBuffer();
+
+        BloomFilter2 theFilter = null;
+        Sections2 sections = null;
+        if (header.hasSections()) {
+            sections = Sections2.read(hashFile);
+
+            if (sections.has(Sections2.BLOOM_FILTER)) {
+                theFilter = BloomFilter2.fromBuffer(hashFile.getChannel().map(
+                        MapMode.READ_ONLY,
+                        sections.getOffset(Sections2.BLOOM_FILTER),
+                        sections.getLength(Sections2.BLOOM_FILTER)), header
+                        .getBucketPower());
+            }
+
+            if (sections.has(Sections2.MAX_DISPLACEMENT)) {
+                hashFile.seek(sections.getOffset(Sections2.MAX_DISPLACEMENT));
+                this.fileOps.setMaxDisplacement(hashFile.readInt());
+            }
+        }
+        this.filter = theFilter;
+
+        BlockFormat2 format = BlockFormat2.read(hashFile, header, sections);
+        if (format != null) {
+            this.fileOps.setBlockFormat(format);
+            this.fileOps.setBlockCache(new BlockCache2(format,
+                    BlockCache2.DEFAULT_CACHE_SIZE));
+        }
+
+        FileAccess2 theAccess = FileAccess2.open(hashFile, readMode);
+        if (indexStorage != IndexStorage.FILE) {
+            theAccess = new CopiedFileAccess2(theAccess, fileOps
+                    .getStartOfHashTables(hashTableOffsets), fileOps
+                    .getEndOfHashTables(hashTableOffsets),
+                    indexStorage == IndexStorage.DIRECT);
+        }
+        this.access = theAccess;
+        this.indexStorage = indexStorage;
+
+        if (header.isPerfectHash()) {
+            this.fileOps.loadPerfectHash(theAccess, hashTableOffsets);
+        }
+        this.scanAccess = new PositionalFileAccess2(hashFile.getChannel());
 
         if (eager) {
-            this.fileOps.readBucketEntries(hashTableOffsets);
+            this.warmUp(WarmUpPolicy.BUCKET_TABLE, 1);
+        }
+    }
+
+    /**
+     * Pulls the parts of the file selected by the policy into memory, by
+     * sweeping them sequentially with the given number of threads.
+     * 
+     * @return the number of bytes swept and the throughput
+     */
+    public WarmUpResult warmUp(WarmUpPolicy policy, int threads)
+            throws IOException {
+        if (this.access == null) {
+            throw new IllegalStateException(
+                    "warmUp() not allowed when HashFile is closed()");
+        }
+
+        // like scans, so SEEK mode sweeps in parallel without blocking lookups
+        FileAccess2 theAccess = this.getScanAccess();
+
+        long start = System.nanoTime();
+        long bytes = 0L;
+
+        switch (policy) {
+        case NONE:
+            break;
+        case ALL:
+            bytes += WarmUp2.sweep(theAccess, 0L, theAccess.length(), threads);
+            break;
+        case INDEX:
+            if (this.indexStorage == IndexStorage.FILE) {
+                bytes += WarmUp2.sweep(theAccess, fileOps
+                        .getStartOfHashTables(hashTableOffsets), fileOps
+                        .getEndOfHashTables(hashTableOffsets), threads);
+            }
+            // fall through: the index includes the bucket table
+        case BUCKET_TABLE:
+            if (this.indexStorage == IndexStorage.FILE) {
+                bytes += WarmUp2.sweep(theAccess, Header2
+                        .getBucketTableOffset(), Header2
+                        .getBucketTableOffset()
+                        + header.getBucketTableLength(), threads);
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown WarmUpPolicy: "
+                    + policy);
+        }
+
+        return new WarmUpResult(policy, bytes, System.nanoTime() - start);
+    }
+
+    /** returns where lookups read the index from */
+    public IndexStorage getIndexStorage() {
+        return this.indexStorage;
+    }
+
+    /** returns how this HashFile maps keys to records */
+    public IndexType getIndexType() {
+        return this.header.getIndexType();
+    }
+
+    /**
+     * Starts recording lookup metrics (counters for get(), getView(),
+     * valueLength(), contains() and getAll(), and latencies for all but
+     * getAll()); getMulti() is not recorded. Does nothing if metrics are
+     * already enabled.
+     *
+     * @return the metrics being recorded
+     */
+    public synchronized LookupMetrics enableMetrics() {
+        LookupMetrics metrics = this.fileOps.getMetrics();
+        if (metrics == null) {
+            metrics = new LookupMetrics();
+            this.fileOps.setMetrics(metrics);
         }
+
+        return metrics;
+    }
+
+    /** stops recording lookup metrics, unregistering them from JMX */
+    public synchronized void disableMetrics() {
+        LookupMetrics metrics = this.fileOps.getMetrics();
+        if (metrics != null) {
+            this.fileOps.setMetrics(null);
+            metrics.unregisterMBean();
+        }
+    }
+
+    /** returns the lookup metrics, or null if they are not enabled */
+    public LookupMetrics getMetrics() {
+        return this.fileOps.getMetrics();
     }
 
     /** returns the number of entries in this HashFile */
@@ -89,14 +299,102 @@ public class HashFile2 {
         return this.header.getElementCount();
     }
 
+    /**
+     * returns the bucket a key with the given hash code would be stored in, or
+     * -1 if the key is certainly absent
+     */
+    int getBucket(long hashCode) {
+        if (this.filter != null && !this.filter.mightContain(hashCode)) {
+            return -1;
+        }
+
+        return Calculations2.getBucket(hashCode, header.getBucketPower());
+    }
+
+    /** get() for a key whose hash code is already known */
+    byte[] get(byte[] key, long hashCode) {
+        return this.fileOps.getFirst(this.access, this.hashTableOffsets,
+                this.filter, key, hashCode);
+    }
+
+    /** getMulti() for a key whose hash code is already known */
+    Iterable<byte[]> getMulti(byte[] key, long hashCode) {
+        return this.fileOps.getMulti(this.access, this.hashTableOffsets,
+                this.filter, key, hashCode);
+    }
+
+    /** getAll() for keys whose hash codes are already known */
+    List<List<byte[]>> getAll(List<byte[]> keys, long[] hashCodes) {
+        return new BatchLookup2(this.fileOps, this.access,
+                this.hashTableOffsets, this.filter).getAll(keys, hashCodes);
+    }
+
+    /** returns true if this HashFile uses 64-bit hash codes */
+    boolean isLongHash() {
+        return this.header.isLongHash();
+    }
+
+    /** returns true if this HashFile stores values without keys */
+    boolean isAssociative() {
+        return this.header.isAssociative();
+    }
+
+    /** returns the ReadMode used for lookups */
+    public ReadMode getReadMode() {
+        return this.readMode;
+    }
+
+    /** returns true if records are stored in compressed blocks */
+    public boolean isCompressed() {
+        return this.header.isCompressed();
+    }
+
+    /** returns true if repeated values may be stored once */
+    public boolean isDeduplicated() {
+        return this.header.isDeduplicated();
+    }
+
+    /**
+     * Sets how many bytes of decompressed blocks lookups in a compressed
+     * HashFile keep cached (32MB by default), discarding the cached blocks.
+     * Does nothing for uncompressed files.
+     * 
+     * @param bytes
+     *            cache size in bytes
+     */
+    public void setBlockCacheSize(long bytes) {
+        BlockFormat2 format = this.fileOps.getBlockFormat();
+        if (format != null) {
+            this.fileOps.setBlockCache(new BlockCache2(format, bytes));
+        }
+    }
+
+    /** returns true if this HashFile has an embedded bloom filter */
+    public boolean hasBloomFilter() {
+        return this.filter != null;
+    }
+
     /**
      * closes the HashFile.
      */
     public synchronized final void close() {
         try {
-            hashFile.close();
+            if (access != null) {
+                access.close();
+            }
+            if (hashFile != null) {
+                hashFile.close();
+            }
         } catch (IOException ignored) {
         }
+
+        // metrics stay readable, but no longer show up in JMX
+        LookupMetrics metrics = this.fileOps.getMetrics();
+        if (metrics != null) {
+            metrics.unregisterMBean();
+        }
+
+        access = null;
         hashFile = null;
     }
 
@@ -109,7 +407,71 @@ public class HashFile2 {
      *         with that key could be found.
      */
     public byte[] get(byte[] key) {
-        return this.fileOps.getFirst(this.hashFile, this.hashTableOffsets, key);
+        return this.fileOps.getFirst(this.access, this.hashTableOffsets,
+                this.filter, key);
+    }
+
+    /**
+     * Checks whether any value is stored under the given key. Only record
+     * headers and keys are read, never values.
+     * 
+     * @param key
+     *            The key to search for.
+     * @return true if the key could be found
+     */
+    public boolean contains(byte[] key) {
+        return this.valueLength(key) >= 0;
+    }
+
+    /**
+     * Finds the length of the first value stored under the given key. Only
+     * record headers and keys are read, never values.
+     * 
+     * @param key
+     *            The key to search for.
+     * @return The length of the value, or -1 if no value with that key could
+     *         be found.
+     */
+    public int valueLength(byte[] key) {
+        return this.fileOps.getFirstValueLength(this.access,
+                this.hashTableOffsets, this.filter, key);
+    }
+
+    /**
+     * Finds the first value stored under the given key, without copying it.
+     * With ReadMode.MAPPED the result is a slice of the mapped file and the
+     * key is compared in place, so the lookup does not allocate value or key
+     * arrays; other modes return a view of a private copy.
+     * 
+     * @param key
+     *            The key to search for.
+     * @return A read-only view of the value, or <code>null</code> if no value
+     *         with that key could be found.
+     */
+    public ByteBuffer getView(byte[] key) {
+        return this.fileOps.getFirstView(this.access, this.hashTableOffsets,
+                this.filter, key);
+    }
+
+    /**
+     * Finds the first value stored under the given key and passes a
+     * read-only view of it to the consumer (see getView()).
+     * 
+     * @param key
+     *            The key to search for.
+     * @param consumer
+     *            The consumer to call if the key is found.
+     * @return true if the key was found
+     */
+    public boolean get(byte[] key, ValueConsumer consumer) {
+        ByteBuffer value = this.getView(key);
+        if (value == null) {
+            return false;
+        }
+
+        consumer.accept(value);
+
+        return true;
     }
 
     /**
@@ -121,12 +483,121 @@ public class HashFile2 {
      *         with that key could be found.
      */
     public Iterable<byte[]> getMulti(byte[] key) {
-        return this.fileOps.getMulti(this.hashFile, this.hashTableOffsets, key);
+        return this.fileOps.getMulti(this.access, this.hashTableOffsets,
+                this.filter, key);
+    }
+
+    /**
+     * Looks up a batch of keys: each bucket's hash table is read once, and
+     * records are then fetched in file order, so a cold-cache batch does
+     * near-sequential I/O.
+     * 
+     * @param keys
+     *            The keys to search for.
+     * @return The values for each key, in input order (an empty list for
+     *         keys that could not be found).
+     */
+    public List<List<byte[]>> getAll(List<byte[]> keys) {
+        return new BatchLookup2(this.fileOps, this.access,
+                this.hashTableOffsets, this.filter).getAll(keys);
+    }
+
+    /**
+     * Streaming version of getAll(): keys are looked up lazily, batchSize at
+     * a time.
+     * 
+     * @param keys
+     *            The keys to search for.
+     * @param batchSize
+     *            The number of keys to look up at once.
+     * @return An Iterable of the values for each key, in input order.
+     */
+    public Iterable<List<byte[]>> getAll(Iterable<byte[]> keys, int batchSize) {
+        return Iterators2.getBatchedIterable(new BatchLookup2(this.fileOps,
+                this.access, this.hashTableOffsets, this.filter), keys,
+                batchSize);
+    }
+
+    /**
+     * Visits all entries in file order, passing reusable views of each key
+     * and value, so the scan allocates nothing per entry.
+     * 
+     * @return the number of entries visited
+     */
+    public long scan(EntryVisitor visitor) {
+        return this.scan(visitor, false);
+    }
+
+    /**
+     * Visits all entries in file order, passing reusable views of each key
+     * and (unless keysOnly) value. Keys-only scans do not read values into
+     * memory, and skip over large ones.
+     * 
+     * @return the number of entries visited
+     */
+    public long scan(EntryVisitor visitor, boolean keysOnly) {
+        FileAccess2 theAccess = this.getScanAccess();
+
+        RecordReader2 reader = new RecordReader2(header, fileOps
+                .getBlockFormat(), theAccess, header.getTotalHeaderLength(),
+                fileOps.getStartOfHashTables(hashTableOffsets));
+        reader.setReadValues(!keysOnly);
+
+        long count = 0L;
+        try {
+            while (reader.next()) {
+                count += 1;
+
+                if (!visitor.visit(reader.getKeyView(), keysOnly ? null
+                        : reader.getValueView())) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error while scanning hashfile: "
+                    + e.getMessage(), e);
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns a Spliterator over all entries, in file order. It splits the
+     * data segment into byte ranges at record positions sampled from the
+     * hash tables, so it parallelizes well; with ReadMode.SEEK, splits read
+     * with positional reads rather than contending for the shared file.
+     */
+    public Spliterator<HashEntry> spliterator() {
+        return DataSpliterator2.create(this.fileOps, this.getScanAccess(),
+                this.hashTableOffsets);
+    }
+
+    /** returns the FileAccess2 to use for sequential scans */
+    private FileAccess2 getScanAccess() {
+        FileAccess2 theAccess = this.access;
+        if (theAccess == null) {
+            throw new IllegalStateException(
+                    "scans not allowed when HashFile is closed()");
+        }
+
+        return this.readMode == ReadMode.SEEK ? this.scanAccess : theAccess;
+    }
+
+    /** returns a sequential Stream of all entries, in file order */
+    public Stream<HashEntry> stream() {
+        return StreamSupport.stream(this.spliterator(), false);
+    }
+
+    /** returns a parallel Stream of all entries */
+    public Stream<HashEntry> parallelStream() {
+        return StreamSupport.stream(this.spliterator(), true);
     }
 
     /**
      * Returns an Iterable containing a HashEntry for each entry in the
-     * HashFile.
+     * HashFile. For a compressed or deduplicated file, each iterator holds the
+     * file open until it is exhausted; it implements Closeable, so it can be
+     * closed to stop early.
      * 
      * @param hashFilePath
      *            The HashFile to read.
@@ -17,15 +17,30 @@
  */
 package com.g414.hash.file2;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.File;
+import java.io.EOFException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 
+import com.g414.hash.file2.impl.BlockFormat2;
+import com.g414.hash.file2.impl.BlockWriter2;
 import com.g414.hash.file2.impl.Calculations2;
+import com.g414.hash.file2.impl.ConcurrentWriter2;
 import com.g414.hash.file2.impl.FileOperations2;
 import com.g414.hash.file2.impl.Header2;
+import com.g414.hash.file2.impl.PerfectHash2;
+import com.g414.hash.file2.impl.PositionalFileAccess2;
+import com.g414.hash.file2.impl.RadixStore2;
+import com.g414.hash.file2.impl.RecordReader2;
+import com.g414.hash.file2.impl.ValueDeduplicator2;
 
 /**
  * Creates a HashFile, version 2. Inspired by DJB's CDB file format, we just
@@ -34,19 +49,25 @@ import com.g414.hash.file2.impl.Header2;
  */
 public final class HashFile2Builder {
     /** size of write buffer for main data file */
-    private static final int MAIN_WRITE_BUFFER_SIZE = 16 * 1024 * 1024; // 16MB
+    static final int MAIN_WRITE_BUFFER_SIZE = 16 * 1024 * 1024; // 16MB
 
-    /** size of write buffer for each of the radix files */
-    private static final int HASH_WRITE_BUFFER_SIZE = 512 * 1024; // 512K
+    /** default size of the compressed blocks, before compression */
+    public static final int DEFAULT_COMPRESSION_BLOCK_SIZE = 64 * 1024; // 64KB
+
+    /** size of read buffer for the hash tables of appended HashFiles */
+    private static final int HASH_TABLE_READ_BUFFER_SIZE = 1024 * 1024; // 1MB
 
     /** path to the main data file */
     private final String dataFilePath;
 
-    /** filename prefix for each of the radix files */
-    private final String radixFilePrefix;
+    /** radix entries, in memory or (beyond the budget) in temp files */
+    private final RadixStore2 radixes;
 
     /** The RandomAccessFile for the hash file contents */
-    private final DataOutputStream dataFile;
+    private DataOutputStream dataFile;
+
+    /** the unbuffered stream beneath dataFile, for copying segments */
+    private final FileOutputStream dataFileStream;
 
     /** The RandomAccessFile for the hash file pointers */
     private final DataOutputStream[] hashCodeList;
@@ -59,6 +80,23 @@ public final class HashFile2Builder {
 
     private final FileOperations2 fileOps;
 
+    private final Header2 header;
+
+    /** writer used by add() in concurrent mode, or null */
+    private volatile ConcurrentWriter2 concurrentWriter;
+
+    /** writer used by add() if the file is compressed, or null */
+    private BlockWriter2 blockWriter;
+
+    /** distinct values written so far, if values are deduplicated */
+    private ValueDeduplicator2 deduplicator;
+
+    /** bits per key of the embedded bloom filter (zero for none) */
+    private int bloomFilterBitsPerKey = 0;
+
+    /** bits per key of the perfect hash fingerprints (zero for none) */
+    private int fingerprintBits = PerfectHash2.DEFAULT_FINGERPRINT_BITS;
+
     /**
      * Constructs a HashFileBuilder object and prepares it for the creation of a
      * HashFile, version 2.
@@ -77,32 +115,68 @@ public final class HashFile2Builder {
             long expectedElements, ByteSize keySize, ByteSize valueSize,
             boolean isLongHash, boolean isLargeCapacity, boolean isLargeFile)
             throws IOException {
+        this(isAssociative, filepath, expectedElements, keySize, valueSize,
+                isLongHash, isLargeCapacity, isLargeFile, IndexType.HASH_TABLE);
+    }
+
+    /**
+     * Constructs a HashFileBuilder object and prepares it for the creation of a
+     * HashFile, version 2, with the given type of index. A PERFECT_HASH index
+     * needs long hashes and keys (it cannot be associative); it stores about
+     * 5 bits of index plus the fingerprint and the position per key, and has
+     * one partition per radix, so the bucket table is tiny.
+     */
+    public HashFile2Builder(boolean isAssociative, String filepath,
+            long expectedElements, ByteSize keySize, ByteSize valueSize,
+            boolean isLongHash, boolean isLargeCapacity, boolean isLargeFile,
+            IndexType indexType) throws IOException {
+        this(isAssociative, filepath, expectedElements, keySize, valueSize,
+                isLongHash, isLargeCapacity, isLargeFile, indexType,
+                MAIN_WRITE_BUFFER_SIZE, RadixStore2.SPILL_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructs a HashFileBuilder as above, with the given sizes of the
+     * data file's write buffer and of each spilled radix file's write
+     * buffer (see HashFileSetBuilder, which has many builders open at once).
+     */
+    HashFile2Builder(boolean isAssociative, String filepath,
+            long expectedElements, ByteSize keySize, ByteSize valueSize,
+            boolean isLongHash, boolean isLargeCapacity, boolean isLargeFile,
+            IndexType indexType, int writeBufferSize, int spillBufferSize)
+            throws IOException {
         if (isAssociative && !isLongHash) {
             throw new IllegalArgumentException(
                     "Associative HashFiles must use long hash to reduce collisions!");
         }
 
+        if (indexType == IndexType.PERFECT_HASH && isAssociative) {
+            throw new IllegalArgumentException(
+                    "Associative HashFiles cannot use a perfect hash index");
+        }
+
         int bucketPower = Calculations2.getBucketPower(expectedElements);
+        if (indexType == IndexType.PERFECT_HASH) {
+            bucketPower = Calculations2.RADIX_FILE_COUNT_POWER_OF_2;
+        }
+
         Header2 header = new Header2((byte) bucketPower, keySize, valueSize,
-                isLongHash, isLargeCapacity, isLargeFile);
+                isLongHash, isLargeCapacity, isLargeFile, indexType);
 
+        this.header = header;
         this.fileOps = FileOperations2.fromHeader(header);
         this.bucketCounts = new long[header.getBuckets()];
 
         this.dataFilePath = filepath;
-        this.radixFilePrefix = filepath + ".list.";
 
+        this.dataFileStream = new FileOutputStream(filepath);
         this.dataFile = new DataOutputStream(new BufferedOutputStream(
-                new FileOutputStream(filepath), MAIN_WRITE_BUFFER_SIZE));
+                this.dataFileStream, writeBufferSize));
 
-        this.hashCodeList = new DataOutputStream[header.getRadixFileCount()];
-        for (int i = 0; i < header.getRadixFileCount(); i++) {
-            String filename = String.format("%s%02X", radixFilePrefix, i);
-            File hashFile = new File(filename);
-            hashCodeList[i] = new DataOutputStream(new BufferedOutputStream(
-                    new FileOutputStream(hashFile), HASH_WRITE_BUFFER_SIZE));
-            hashFile.deleteOnExit();
-        }
+        this.radixes = new RadixStore2(filepath + ".list.", header
+                .getRadixFileCount(), RadixStore2.DEFAULT_MEMORY_BUDGET,
+                spillBufferSize);
+        this.hashCodeList = this.radixes.getStreams();
 
         this.dataFilePosition = header.getTotalHeaderLength();
         this.dataFile.write(new byte[(int) dataFilePosition]);
@@ -118,20 +192,318 @@ public final class HashFile2Builder {
      * @exception java.io.IOException
      *                If an error occurs adding the key to the HashFile.
      */
-    public synchronized void add(byte[] key, byte[] data) throws IOException {
-        long oldPos = this.dataFilePosition;
+    public void add(byte[] key, byte[] data) throws IOException {
+        this.add(key, data, Calculations2.computeHash(key, this.header
+                .isLongHash()));
+    }
+
+    /** add() for a key whose hash code is already known */
+    void add(byte[] key, byte[] data, long hashCode) throws IOException {
+        ConcurrentWriter2 writer = this.concurrentWriter;
+        if (writer != null) {
+            writer.add(key, data, hashCode);
+            return;
+        }
+
+        synchronized (this) {
+            if (this.blockWriter != null) {
+                this.fileOps.writeHashEntry(hashCodeList, bucketCounts,
+                        this.blockWriter.add(this.dataFile, key, data,
+                                this.deduplicator), hashCode);
+                return;
+            }
+
+            long oldPos = this.dataFilePosition;
+            long earlier = this.deduplicator == null ? -1L
+                    : this.deduplicator.find(data);
+
+            if (earlier >= 0) {
+                this.dataFilePosition = this.fileOps.writeReference(
+                        this.dataFile, oldPos, key, data.length, oldPos
+                                - earlier);
+            } else {
+                this.dataFilePosition = this.fileOps.writeKeyVaue(
+                        this.dataFile, oldPos, key, data);
+
+                if (this.deduplicator != null) {
+                    this.deduplicator.add(data, oldPos
+                            + this.fileOps.getValueOffset(key));
+                }
+            }
+
+            this.fileOps.writeHashEntry(hashCodeList, bucketCounts, oldPos,
+                    hashCode);
+        }
+    }
+
+    /**
+     * Appends all records of a finished HashFile whose records have the same
+     * format (key size, value size and hash width), as HashFile2Merger
+     * does: its data segment is copied as is, and its records are indexed
+     * from its hash tables, rebased to their new positions, so values are
+     * never read and keys are never hashed again. Files with a perfect hash
+     * index keep no hash codes, so their keys (only) are read and hashed.
+     * Compressed files can only be appended to a file compressed the same
+     * way, and vice versa; likewise for deduplicated files (whose values are
+     * not deduplicated against those already added).
+     * 
+     * @return the number of records appended
+     */
+    synchronized long appendHashFile(String path) throws IOException {
+        if (this.header.isFinished()) {
+            throw new IllegalStateException(
+                    "cannot add() to a finished hashFile");
+        }
+
+        if (this.concurrentWriter != null) {
+            throw new IllegalStateException(
+                    "cannot append HashFiles in concurrent mode");
+        }
+
+        RandomAccessFile in = new RandomAccessFile(path, "r");
+        try {
+            Header2 inHeader = Header2.readHeader(in);
+            if (!inHeader.getKeySize().equals(header.getKeySize())
+                    || !inHeader.getValueSize().equals(header.getValueSize())
+                    || inHeader.isLongHash() != header.isLongHash()
+                    || inHeader.isDeduplicated() != header.isDeduplicated()) {
+                throw new IllegalArgumentException(
+                        "HashFile has incompatible record format: " + path);
+            }
+
+            BlockFormat2 format = this.fileOps.getBlockFormat();
+            BlockFormat2 inFormat = BlockFormat2.read(in, inHeader);
+            if (format == null ? inFormat != null : !format
+                    .isCompatible(inFormat)) {
+                throw new IllegalArgumentException(
+                        "HashFile has incompatible compression: " + path);
+            }
+
+            FileOperations2 inOps = FileOperations2.fromHeader(inHeader);
+            ByteBuffer hashTableOffsets = in.getChannel().map(
+                    MapMode.READ_ONLY, Header2.getBucketTableOffset(),
+                    inHeader.getBucketTableLength());
+
+            long dataStart = inHeader.getTotalHeaderLength();
+            long dataEnd = inOps.getStartOfHashTables(hashTableOffsets);
+
+            // compressed blocks are copied after the current one
+            if (this.blockWriter != null) {
+                this.dataFilePosition = this.blockWriter.flush(this.dataFile);
+            }
+            long shift = this.dataFilePosition - dataStart;
+
+            if (!header.isLargeFile()
+                    && this.dataFilePosition + (dataEnd - dataStart) > Integer.MAX_VALUE) {
+                throw new IOException("HashFile is too big.");
+            }
+
+            // copy the data segment
+            this.dataFile.flush();
+            FileChannel out = this.dataFileStream.getChannel();
+            long copied = 0L;
+            while (copied < dataEnd - dataStart) {
+                long count = in.getChannel().transferTo(dataStart + copied,
+                        dataEnd - dataStart - copied, out);
+                if (count == 0L
+                        && dataStart + copied >= in.getChannel().size()) {
+                    throw new EOFException("HashFile is truncated: " + path);
+                }
+                copied += count;
+            }
+
+            // index the copied records at their new positions
+            if (inHeader.isPerfectHash()) {
+                RecordReader2 reader = new RecordReader2(inHeader, inFormat,
+                        new PositionalFileAccess2(in.getChannel()),
+                        dataStart, dataEnd);
+                reader.setReadValues(false);
+
+                while (reader.next()) {
+                    this.fileOps.writeHashEntry(hashCodeList, bucketCounts,
+                            rebase(format, reader.getPosition(), shift),
+                            Calculations2.computeHash(reader.getKey(), header
+                                    .isLongHash()));
+                }
+            } else {
+                long hashTablesStart = inOps
+                        .getStartOfHashTables(hashTableOffsets);
+                long entries = (inOps.getEndOfHashTables(hashTableOffsets) - hashTablesStart)
+                        / inHeader.getHashTableEntrySize();
+
+                in.seek(hashTablesStart);
+                DataInputStream hashTables = new DataInputStream(
+                        new BufferedInputStream(Channels.newInputStream(in
+                                .getChannel()), HASH_TABLE_READ_BUFFER_SIZE));
+
+                for (long i = 0; i < entries; i++) {
+                    long hashCode = inHeader.isLongHash() ? hashTables
+                            .readLong() : hashTables.readInt();
+                    long position = (inHeader.isLargeFile() ? hashTables
+                            .readLong() : hashTables.readInt()) << FileOperations2.ALIGNMENT;
+
+                    if (position != 0) {
+                        this.fileOps.writeHashEntry(hashCodeList,
+                                bucketCounts, rebase(format, position, shift),
+                                hashCode);
+                    }
+                }
+            }
 
-        this.dataFilePosition = this.fileOps.writeKeyVaue(this.dataFile,
-                this.dataFilePosition, key, data);
+            this.header.addElementCount(inHeader.getElementCount());
+            this.dataFilePosition += dataEnd - dataStart;
+            if (this.blockWriter != null) {
+                this.blockWriter.skip(dataEnd - dataStart);
+            }
 
-        this.fileOps.writeHashEntry(hashCodeList, bucketCounts, oldPos, key);
+            return inHeader.getElementCount();
+        } finally {
+            in.close();
+        }
+    }
+
+    /** returns a record position after its data has moved by shift bytes */
+    private static long rebase(BlockFormat2 format, long position, long shift) {
+        return format == null ? position + shift : format.rebase(position,
+                shift);
     }
 
     /**
-     * Bulk-adds HashEntry instances from one hash file to another. In the
-     * future, this operation may be optimized by concatenating data segments
-     * and hash table segments. (Hash codes stay the same, offsets would just
-     * need to be incremented by the existing data size)
+     * Stores records in compressed blocks of 64KB (before compression) using
+     * deflate; see enableCompression(BlockCodec, int).
+     */
+    public void enableCompression() throws IOException {
+        this.enableCompression(BlockCodecs.DEFLATE,
+                DEFAULT_COMPRESSION_BLOCK_SIZE);
+    }
+
+    /**
+     * Stores records in compressed blocks: records are packed into blocks of
+     * up to blockSize bytes, each compressed with the codec, and the index
+     * holds (block, offset in block) positions. Readers cache decompressed
+     * blocks (see HashFile2.setBlockCacheSize()), so larger blocks compress
+     * better but make random lookups decompress more. Files are opened with
+     * the codec registered under the same name in BlockCodecs. Requires
+     * large file positions, and must be called before the first add().
+     * 
+     * @param codec
+     *            the codec to compress blocks with
+     * @param blockSize
+     *            block size before compression, a power of 2 from 4KB to
+     *            16MB
+     */
+    public synchronized void enableCompression(BlockCodec codec,
+            int blockSize) throws IOException {
+        if (this.header.isFinished()) {
+            throw new IllegalStateException(
+                    "cannot configure a finished hashFile");
+        }
+
+        if (this.header.getElementCount() > 0) {
+            throw new IllegalStateException(
+                    "enableCompression() must be called before add()");
+        }
+
+        if (!this.header.isLargeFile()) {
+            throw new IllegalArgumentException(
+                    "Compressed HashFiles require large file positions");
+        }
+
+        BlockFormat2 format = new BlockFormat2(codec, blockSize);
+
+        this.fileOps.setBlockFormat(format);
+        this.blockWriter = new BlockWriter2(this.fileOps, format,
+                this.dataFilePosition);
+    }
+
+    /**
+     * Stores each distinct value once, remembering up to 64MB of values; see
+     * enableValueDeduplication(long).
+     */
+    public void enableValueDeduplication() {
+        this.enableValueDeduplication(ValueDeduplicator2.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Stores each distinct value once: values are fingerprinted with a
+     * 64-bit hash and, if an identical value (compared byte for byte) was
+     * added before, the record holds a reference to it instead. This is
+     * transparent to readers, but takes one more read per lookup or scanned
+     * record with a referenced value. Distinct values are remembered in
+     * memory up to the budget, and values no longer than a file position are
+     * always stored in full. Halves the largest possible value length, and
+     * cannot be combined with concurrent adds; must be called before the
+     * first add().
+     * 
+     * @param memoryBudget
+     *            bytes of distinct values to remember
+     */
+    public synchronized void enableValueDeduplication(long memoryBudget) {
+        if (this.header.isFinished()) {
+            throw new IllegalStateException(
+                    "cannot configure a finished hashFile");
+        }
+
+        if (this.header.getElementCount() > 0) {
+            throw new IllegalStateException(
+                    "enableValueDeduplication() must be called before add()");
+        }
+
+        if (this.concurrentWriter != null) {
+            throw new IllegalStateException(
+                    "cannot deduplicate values in concurrent mode");
+        }
+
+        this.deduplicator = new ValueDeduplicator2(this.fileOps
+                .getReferenceSize(), memoryBudget);
+        this.header.setFlag(Header2.FLAG_DEDUPLICATED);
+    }
+
+    /**
+     * Lets add() be called from many threads without a shared lock: each
+     * thread hashes and encodes its records into its own 1MB block, which
+     * is written to a range of the data file reserved with an atomic
+     * counter. Records added by one thread keep their order (so getMulti()
+     * returns them in order), but records from different threads are
+     * interleaved. Must be called before the first add(), and all add()
+     * calls must have returned before finish().
+     */
+    public synchronized void enableConcurrentAdds() throws IOException {
+        if (this.header.isFinished()) {
+            throw new IllegalStateException(
+                    "cannot configure a finished hashFile");
+        }
+
+        if (this.header.getElementCount() > 0) {
+            throw new IllegalStateException(
+                    "enableConcurrentAdds() must be called before add()");
+        }
+
+        if (this.concurrentWriter != null) {
+            return;
+        }
+
+        if (this.deduplicator != null) {
+            throw new IllegalStateException(
+                    "cannot deduplicate values in concurrent mode");
+        }
+
+        // the zeroed header is flushed here; records are then written
+        // positionally, and finish() closes the channel through dataFile
+        this.dataFile.close();
+
+        RandomAccessFile file = new RandomAccessFile(this.dataFilePath, "rw");
+        this.dataFile = new DataOutputStream(Channels.newOutputStream(file
+                .getChannel()));
+        this.concurrentWriter = new ConcurrentWriter2(this.fileOps, file
+                .getChannel(), this.dataFilePosition, this.hashCodeList,
+                this.bucketCounts);
+    }
+
+    /**
+     * Bulk-adds HashEntry instances from one hash file to another. To merge
+     * whole HashFiles, HashFile2Merger concatenates their data segments
+     * instead.
      * 
      * @param entries
      *            Iterable<HashEntry> entries to add
@@ -144,12 +516,119 @@ public final class HashFile2Builder {
         }
     }
 
+    /**
+     * Embeds a blocked bloom filter over all keys, built during finish(), so
+     * that most lookups of absent keys are answered without reading the hash
+     * table. Ten bits per key gives roughly a 1% false positive rate; zero
+     * (the default) disables the filter.
+     * 
+     * @param bitsPerKey
+     *            bits of filter per entry in the HashFile
+     */
+    public synchronized void setBloomFilterBitsPerKey(int bitsPerKey) {
+        if (this.header.isFinished()) {
+            throw new IllegalStateException(
+                    "cannot configure a finished hashFile");
+        }
+
+        if (bitsPerKey < 0) {
+            throw new IllegalArgumentException("bitsPerKey must be >= 0");
+        }
+
+        this.bloomFilterBitsPerKey = bitsPerKey;
+    }
+
+    /**
+     * Sets the number of bits of each key's hash code kept alongside its
+     * position in a PERFECT_HASH index (ignored for hash tables). A lookup of
+     * an absent key reads a record only if the fingerprint matches, which
+     * happens about once in 2^bits lookups; the default is 8, and zero
+     * disables fingerprints.
+     * 
+     * @param bits
+     *            fingerprint bits per entry, at most 16
+     */
+    public synchronized void setFingerprintBits(int bits) {
+        if (this.header.isFinished()) {
+            throw new IllegalStateException(
+                    "cannot configure a finished hashFile");
+        }
+
+        if (bits < 0 || bits > PerfectHash2.MAX_FINGERPRINT_BITS) {
+            throw new IllegalArgumentException("bits must be in [0, "
+                    + PerfectHash2.MAX_FINGERPRINT_BITS + "]");
+        }
+
+        this.fingerprintBits = bits;
+    }
+
+    /**
+     * Sets the number of threads finish() uses to build the index, one radix
+     * file at a time per thread; defaults to the number of processors. The
+     * resulting file does not depend on it.
+     * 
+     * @param threads
+     *            number of index building threads, 1 to build sequentially
+     */
+    public synchronized void setFinishThreads(int threads) {
+        if (this.header.isFinished()) {
+            throw new IllegalStateException(
+                    "cannot configure a finished hashFile");
+        }
+
+        this.fileOps.setFinishThreads(threads);
+    }
+
+    /**
+     * Bounds the memory finish() uses for radix files being indexed in
+     * parallel, at about three times their size on disk each; defaults to
+     * 256MB. A radix file too large for a third of the budget has its hash
+     * tables built in parts, through temp files next to the HashFile, so
+     * the heap needed does not grow with the number of entries (perfect hash
+     * partitions are still built whole).
+     * 
+     * @param bytes
+     *            approximate memory budget in bytes
+     */
+    public synchronized void setFinishMemoryBudget(long bytes) {
+        if (this.header.isFinished()) {
+            throw new IllegalStateException(
+                    "cannot configure a finished hashFile");
+        }
+
+        this.fileOps.setFinishMemoryBudget(bytes);
+    }
+
+    /**
+     * Sets how much off-heap memory the radix entries (the unsorted index)
+     * may use before they are spilled to temp files next to the HashFile;
+     * defaults to 64MB, enough for about 4 million entries. Zero always
+     * uses temp files.
+     * 
+     * @param bytes
+     *            memory budget in bytes
+     */
+    public synchronized void setRadixMemoryBudget(long bytes) {
+        if (this.header.isFinished()) {
+            throw new IllegalStateException(
+                    "cannot configure a finished hashFile");
+        }
+
+        this.radixes.setMemoryBudget(bytes);
+    }
+
     /**
      * Finishes building the HashFile.
      */
     public synchronized void finish() throws IOException {
+        if (this.concurrentWriter != null && !this.header.isFinished()) {
+            this.dataFilePosition = this.concurrentWriter.close();
+        } else if (this.blockWriter != null && !this.header.isFinished()) {
+            this.dataFilePosition = this.blockWriter.flush(this.dataFile);
+        }
+
         this.fileOps.finish(this.dataFilePosition, this.dataFilePath,
-                this.dataFile, this.radixFilePrefix, this.hashCodeList,
-                this.bucketCounts);
+                this.dataFile, this.radixes, this.bucketCounts,
+                this.bloomFilterBitsPerKey, this.fingerprintBits);
     }
 }
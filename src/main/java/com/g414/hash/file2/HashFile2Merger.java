@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.g414.hash.file2.impl.BlockFormat2;
+import com.g414.hash.file2.impl.Header2;
+
+/**
+ * Merges finished HashFiles (version 2) into one, at close to copy speed:
+ * each input's data segment is copied as is with FileChannel.transferTo(),
+ * and only the index is rebuilt, from the inputs' hash tables with positions
+ * rebased. Values are never read, and keys are only re-hashed for inputs
+ * with a perfect hash index.
+ * <p>
+ * All inputs must have the same key size, value size and hash width, and be
+ * compressed and deduplicated the same way (or not at all); the merged file
+ * is stored like them. Records keep their order, inputs in the given order,
+ * so getMulti() on the merged file returns a key's values from the first
+ * input first.
+ */
+public final class HashFile2Merger {
+    private final List<String> inputPaths;
+
+    private IndexType indexType;
+
+    private int bloomFilterBitsPerKey = 0;
+
+    public HashFile2Merger(List<String> inputPaths) {
+        if (inputPaths.isEmpty()) {
+            throw new IllegalArgumentException("no HashFiles to merge");
+        }
+
+        this.inputPaths = new ArrayList<String>(inputPaths);
+    }
+
+    /**
+     * Sets the index type of the merged file; defaults to that of the first
+     * input.
+     */
+    public void setIndexType(IndexType indexType) {
+        this.indexType = indexType;
+    }
+
+    /**
+     * Embeds a bloom filter in the merged file (see
+     * HashFile2Builder.setBloomFilterBitsPerKey()); zero, the default,
+     * disables it.
+     */
+    public void setBloomFilterBitsPerKey(int bitsPerKey) {
+        if (bitsPerKey < 0) {
+            throw new IllegalArgumentException("bitsPerKey must be >= 0");
+        }
+
+        this.bloomFilterBitsPerKey = bitsPerKey;
+    }
+
+    /**
+     * Writes the merged HashFile.
+     * 
+     * @return the number of entries in the merged file
+     */
+    public long merge(String outputPath) throws IOException {
+        Header2 first = null;
+        BlockFormat2 format = null;
+        long elements = 0L;
+        long totalLength = 0L;
+        boolean isLargeCapacity = false;
+        boolean isLargeFile = false;
+
+        for (String path : inputPaths) {
+            RandomAccessFile in = new RandomAccessFile(path, "r");
+            try {
+                Header2 header = Header2.readHeader(in);
+                if (first == null) {
+                    first = header;
+                    format = BlockFormat2.read(in, header);
+                } else if (!header.getKeySize().equals(first.getKeySize())
+                        || !header.getValueSize().equals(first.getValueSize())
+                        || header.isLongHash() != first.isLongHash()
+                        || header.isDeduplicated() != first.isDeduplicated()) {
+                    throw new IllegalArgumentException(
+                            "HashFile has incompatible record format: " + path);
+                }
+
+                elements += header.getElementCount();
+                isLargeCapacity |= header.isLargeCapacity();
+                isLargeFile |= header.isLargeFile();
+            } finally {
+                in.close();
+            }
+
+            totalLength += new File(path).length();
+        }
+
+        // 32-bit positions only if the merged data certainly fits
+        isLargeFile |= totalLength >= Integer.MAX_VALUE;
+
+        HashFile2Builder builder = new HashFile2Builder(first.isAssociative(),
+                outputPath, elements, first.getKeySize(),
+                first.getValueSize(), first.isLongHash(), isLargeCapacity,
+                isLargeFile, indexType == null ? first.getIndexType()
+                        : indexType);
+        builder.setBloomFilterBitsPerKey(bloomFilterBitsPerKey);
+        if (first.isDeduplicated()) {
+            builder.enableValueDeduplication();
+        }
+        if (format != null) {
+            builder.enableCompression(format.getCodec(), format
+                    .getBlockSize());
+        }
+
+        long count = 0L;
+        for (String path : inputPaths) {
+            count += builder.appendHashFile(path);
+        }
+
+        builder.finish();
+
+        return count;
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.g414.hash.file2.impl.Calculations2;
+
+/**
+ * A set of HashFile2 shards described by a manifest (see
+ * HashFileSetBuilder). Keys are routed to shards by the mixed high bits of
+ * their hash code, which is computed once per lookup and reused by the shard.
+ */
+public class HashFileSet {
+    /** maximum log base 2 of the number of shards */
+    public static final int MAX_SHARD_POWER = 8;
+
+    static final String FORMAT_PROPERTY = "format";
+
+    static final String FORMAT_VERSION = "HashFileSet-1";
+
+    static final String SHARD_POWER_PROPERTY = "shardPower";
+
+    static final String LONG_HASH_PROPERTY = "isLongHash";
+
+    static final String SHARD_PROPERTY_PREFIX = "shard.";
+
+    private final HashFile2[] shards;
+
+    private final int shardPower;
+
+    private final boolean isLongHash;
+
+    /**
+     * Opens the HashFileSet described by the given manifest.
+     */
+    public HashFileSet(String manifestPath) throws IOException {
+        this(manifestPath, ReadMode.SEEK);
+    }
+
+    /**
+     * Opens the HashFileSet described by the given manifest, reading each
+     * shard with the given ReadMode.
+     */
+    public HashFileSet(String manifestPath, ReadMode readMode)
+            throws IOException {
+        Properties manifest = new Properties();
+        InputStream in = new FileInputStream(manifestPath);
+        try {
+            manifest.load(in);
+        } finally {
+            in.close();
+        }
+
+        if (!FORMAT_VERSION.equals(manifest.getProperty(FORMAT_PROPERTY))) {
+            throw new IOException("Not a HashFileSet manifest: " + manifestPath);
+        }
+
+        this.shardPower = Integer.parseInt(manifest
+                .getProperty(SHARD_POWER_PROPERTY));
+        this.isLongHash = Boolean.parseBoolean(manifest
+                .getProperty(LONG_HASH_PROPERTY));
+        this.shards = new HashFile2[1 << shardPower];
+
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                String name = manifest.getProperty(SHARD_PROPERTY_PREFIX + i);
+                if (name == null) {
+                    throw new IOException("Missing shard " + i + " in "
+                            + manifestPath);
+                }
+
+                shards[i] = new HashFile2(HashFileSetBuilder.getShardPath(
+                        manifestPath, name), true, readMode);
+            }
+        } catch (IOException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+    /** returns the number of shards */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /** returns the shards, in routing order */
+    public List<HashFile2> getShards() {
+        return Arrays.asList(shards);
+    }
+
+    /** returns the total number of entries in all shards */
+    public long getCount() {
+        long count = 0L;
+        for (HashFile2 shard : shards) {
+            count += shard.getCount();
+        }
+
+        return count;
+    }
+
+    /** closes all shards */
+    public void close() {
+        for (HashFile2 shard : shards) {
+            if (shard != null) {
+                shard.close();
+            }
+        }
+    }
+
+    /**
+     * Finds the first value stored under the given key.
+     * 
+     * @return The value, or <code>null</code> if none could be found.
+     */
+    public byte[] get(byte[] key) {
+        long hashCode = Calculations2.computeHash(key, isLongHash);
+
+        return shards[getShard(hashCode)].get(key, hashCode);
+    }
+
+    /** Returns an iterable of values stored under the given key. */
+    public Iterable<byte[]> getMulti(byte[] key) {
+        long hashCode = Calculations2.computeHash(key, isLongHash);
+
+        return shards[getShard(hashCode)].getMulti(key, hashCode);
+    }
+
+    /**
+     * Looks up a batch of keys: keys are grouped by shard, and each shard
+     * does a batched lookup (see HashFile2.getAll()).
+     * 
+     * @return The values for each key, in input order (an empty list for
+     *         keys that could not be found).
+     */
+    public List<List<byte[]>> getAll(List<byte[]> keys) {
+        int count = keys.size();
+        long[] hashes = new long[count];
+        int[] shardOf = new int[count];
+        int[] shardSizes = new int[shards.length];
+
+        for (int i = 0; i < count; i++) {
+            hashes[i] = Calculations2.computeHash(keys.get(i), isLongHash);
+            shardOf[i] = getShard(hashes[i]);
+            shardSizes[shardOf[i]] += 1;
+        }
+
+        List<List<byte[]>> results = new ArrayList<List<byte[]>>(count);
+        for (int i = 0; i < count; i++) {
+            results.add(null);
+        }
+
+        for (int s = 0; s < shards.length; s++) {
+            if (shardSizes[s] == 0) {
+                continue;
+            }
+
+            List<byte[]> shardKeys = new ArrayList<byte[]>(shardSizes[s]);
+            long[] shardHashes = new long[shardSizes[s]];
+            int[] indexes = new int[shardSizes[s]];
+
+            for (int i = 0, j = 0; i < count; i++) {
+                if (shardOf[i] == s) {
+                    shardKeys.add(keys.get(i));
+                    shardHashes[j] = hashes[i];
+                    indexes[j++] = i;
+                }
+            }
+
+            List<List<byte[]>> shardResults = shards[s].getAll(shardKeys,
+                    shardHashes);
+            for (int j = 0; j < indexes.length; j++) {
+                results.set(indexes[j], shardResults.get(j));
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Returns a Spliterator over the entries of all shards, which splits
+     * first by shard and then within each shard.
+     */
+    public Spliterator<HashEntry> spliterator() {
+        List<Spliterator<HashEntry>> parts = new ArrayList<Spliterator<HashEntry>>();
+        for (HashFile2 shard : shards) {
+            parts.add(shard.spliterator());
+        }
+
+        return new ShardSpliterator(parts);
+    }
+
+    /** returns a sequential Stream of all entries, shard by shard */
+    public Stream<HashEntry> stream() {
+        return StreamSupport.stream(this.spliterator(), false);
+    }
+
+    /** returns a parallel Stream of all entries */
+    public Stream<HashEntry> parallelStream() {
+        return StreamSupport.stream(this.spliterator(), true);
+    }
+
+    private int getShard(long hashCode) {
+        return Calculations2.getShard(hashCode, isLongHash, shardPower);
+    }
+
+    /** concatenation of shard spliterators */
+    private static class ShardSpliterator implements Spliterator<HashEntry> {
+        private final List<Spliterator<HashEntry>> parts;
+
+        private int current = 0;
+
+        public ShardSpliterator(List<Spliterator<HashEntry>> parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super HashEntry> action) {
+            while (current < parts.size()) {
+                if (parts.get(current).tryAdvance(action)) {
+                    return true;
+                }
+
+                current += 1;
+            }
+
+            return false;
+        }
+
+        @Override
+        public Spliterator<HashEntry> trySplit() {
+            int remaining = parts.size() - current;
+
+            if (remaining > 1) {
+                int mid = current + remaining / 2;
+                Spliterator<HashEntry> prefix = new ShardSpliterator(
+                        new ArrayList<Spliterator<HashEntry>>(parts.subList(
+                                current, mid)));
+                current = mid;
+
+                return prefix;
+            }
+
+            return remaining == 1 ? parts.get(current).trySplit() : null;
+        }
+
+        @Override
+        public long estimateSize() {
+            long size = 0L;
+            for (int i = current; i < parts.size(); i++) {
+                size += parts.get(i).estimateSize();
+            }
+
+            return size;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE;
+        }
+    }
+}
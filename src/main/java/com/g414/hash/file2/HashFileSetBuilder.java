@@ -0,0 +1,278 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.g414.hash.file2.impl.Calculations2;
+import com.g414.hash.file2.impl.FileOperations2;
+import com.g414.hash.file2.impl.RadixStore2;
+
+/**
+ * Creates a HashFileSet: a manifest plus 2^shardPower HashFile2 shards,
+ * partitioned by the mixed high bits of each hash code. Each shard has its
+ * own builder, so add() only contends per shard, and finish() builds the
+ * shards in parallel. The builders' buffers and memory budgets are split
+ * between the shards, so memory use does not grow with their number.
+ */
+public final class HashFileSetBuilder {
+    /** smallest write buffer of a shard's data file */
+    private static final int MIN_WRITE_BUFFER_SIZE = 64 * 1024; // 64K
+
+    /** smallest write buffer of a shard's spilled radix file */
+    private static final int MIN_SPILL_BUFFER_SIZE = 4 * 1024; // 4K
+
+    /** path to the manifest */
+    private final String manifestPath;
+
+    private final int shardPower;
+
+    private final boolean isLongHash;
+
+    private final HashFile2Builder[] shards;
+
+    private final String[] shardNames;
+
+    private boolean finished = false;
+
+    /** index building threads shared by the shards being finished */
+    private int finishThreads = Runtime.getRuntime().availableProcessors();
+
+    /** finish() memory budget shared by the shards being finished */
+    private long finishMemoryBudget = FileOperations2.DEFAULT_FINISH_MEMORY_BUDGET;
+
+    /**
+     * Constructs a HashFileSetBuilder with default key/value sizes and 64-bit
+     * hashes.
+     */
+    public HashFileSetBuilder(String manifestPath, int shardPower,
+            long expectedElements) throws IOException {
+        this(false, manifestPath, shardPower, expectedElements, ByteSize.FOUR,
+                ByteSize.FOUR, true, true, true);
+    }
+
+    /**
+     * Constructs a HashFileSetBuilder; the shard files are created next to
+     * the manifest.
+     */
+    public HashFileSetBuilder(boolean isAssociative, String manifestPath,
+            int shardPower, long expectedElements, ByteSize keySize,
+            ByteSize valueSize, boolean isLongHash, boolean isLargeCapacity,
+            boolean isLargeFile) throws IOException {
+        if (shardPower < 0 || shardPower > HashFileSet.MAX_SHARD_POWER) {
+            throw new IllegalArgumentException("shardPower must be in [0, "
+                    + HashFileSet.MAX_SHARD_POWER + "]");
+        }
+
+        this.manifestPath = manifestPath;
+        this.shardPower = shardPower;
+        this.isLongHash = isLongHash;
+
+        int count = 1 << shardPower;
+        long perShard = (expectedElements + count - 1) / count;
+
+        int writeBufferSize = Math.max(MIN_WRITE_BUFFER_SIZE,
+                HashFile2Builder.MAIN_WRITE_BUFFER_SIZE >> shardPower);
+        int spillBufferSize = Math.max(MIN_SPILL_BUFFER_SIZE,
+                RadixStore2.SPILL_BUFFER_SIZE >> shardPower);
+
+        this.shards = new HashFile2Builder[count];
+        this.shardNames = new String[count];
+
+        for (int i = 0; i < count; i++) {
+            this.shardNames[i] = String.format("%s.shard.%02X", new File(
+                    manifestPath).getName(), i);
+            this.shards[i] = new HashFile2Builder(isAssociative,
+                    getShardPath(manifestPath, shardNames[i]), perShard,
+                    keySize, valueSize, isLongHash, isLargeCapacity,
+                    isLargeFile, IndexType.HASH_TABLE, writeBufferSize,
+                    spillBufferSize);
+        }
+
+        this.setRadixMemoryBudget(RadixStore2.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Embeds a bloom filter in each shard (see HashFile2Builder).
+     */
+    public void setBloomFilterBitsPerKey(int bitsPerKey) {
+        for (HashFile2Builder shard : shards) {
+            shard.setBloomFilterBitsPerKey(bitsPerKey);
+        }
+    }
+
+    /**
+     * Sets the off-heap memory all shards' radix entries may use together
+     * (see HashFile2Builder.setRadixMemoryBudget()); each shard gets an
+     * equal part. Defaults to 64MB; with less than about 1MB per shard, most
+     * radix entries are spilled to temp files, one per radix and shard.
+     */
+    public void setRadixMemoryBudget(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes must be >= 0");
+        }
+
+        for (HashFile2Builder shard : shards) {
+            shard.setRadixMemoryBudget(bytes / shards.length);
+        }
+    }
+
+    /**
+     * Sets the number of index building threads finish() uses in all, split
+     * between the shards being finished at once; defaults to the number of
+     * processors.
+     */
+    public synchronized void setFinishThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1");
+        }
+
+        this.finishThreads = threads;
+    }
+
+    /**
+     * Bounds the memory finish() uses in all (see
+     * HashFile2Builder.setFinishMemoryBudget()), split between the shards
+     * being finished at once; defaults to 256MB.
+     */
+    public synchronized void setFinishMemoryBudget(long bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("bytes must be >= 1");
+        }
+
+        this.finishMemoryBudget = bytes;
+    }
+
+    /**
+     * Adds a new entry to the appropriate shard; safe to call from many
+     * threads at once.
+     */
+    public void add(byte[] key, byte[] data) throws IOException {
+        long hashCode = Calculations2.computeHash(key, isLongHash);
+
+        shards[Calculations2.getShard(hashCode, isLongHash, shardPower)].add(
+                key, data, hashCode);
+    }
+
+    /** Bulk-adds HashEntry instances. */
+    public void addAll(Iterable<HashEntry> entries) throws IOException {
+        for (HashEntry entry : entries) {
+            add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Finishes all shards using one thread per available processor (up to
+     * the number of shards), then writes the manifest.
+     */
+    public void finish() throws IOException {
+        finish(Math.min(shards.length, Runtime.getRuntime()
+                .availableProcessors()));
+    }
+
+    /**
+     * Finishes all shards using the given number of threads, then writes the
+     * manifest. Each thread finishes one shard at a time, with its share of
+     * the finish threads and memory budget.
+     */
+    public synchronized void finish(int threads) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("HashFileSet already finished");
+        }
+
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1");
+        }
+
+        threads = Math.min(threads, shards.length);
+        for (HashFile2Builder shard : shards) {
+            shard.setFinishThreads(Math.max(1, finishThreads / threads));
+            shard.setFinishMemoryBudget(Math.max(1L, finishMemoryBudget
+                    / threads));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final HashFile2Builder shard : shards) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        shard.finish();
+
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while finishing shards", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Properties manifest = new Properties();
+        manifest.setProperty(HashFileSet.FORMAT_PROPERTY,
+                HashFileSet.FORMAT_VERSION);
+        manifest.setProperty(HashFileSet.SHARD_POWER_PROPERTY, Integer
+                .toString(shardPower));
+        manifest.setProperty(HashFileSet.LONG_HASH_PROPERTY, Boolean
+                .toString(isLongHash));
+        for (int i = 0; i < shards.length; i++) {
+            manifest.setProperty(HashFileSet.SHARD_PROPERTY_PREFIX + i,
+                    shardNames[i]);
+        }
+
+        OutputStream out = new FileOutputStream(manifestPath);
+        try {
+            manifest.store(out, "HashFileSet manifest");
+        } finally {
+            out.close();
+        }
+
+        finished = true;
+    }
+
+    /** resolves a shard name relative to the manifest's directory */
+    static String getShardPath(String manifestPath, String shardName) {
+        File parent = new File(manifestPath).getAbsoluteFile().getParentFile();
+
+        return new File(parent, shardName).getPath();
+    }
+}
@@ -0,0 +1,910 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.g414.hash.file2.impl.BlockFormat2;
+import com.g414.hash.file2.impl.Calculations2;
+import com.g414.hash.file2.impl.Header2;
+import com.g414.hash.file2.impl.MemTable2;
+import com.g414.hash.file2.impl.StoreLog2;
+
+/**
+ * Updatable key/value store over an immutable base HashFile2, in the style
+ * of a log-structured merge tree. Writes go to an append-only log and an
+ * in-memory table; full tables are flushed by a background thread to small
+ * delta HashFile2 levels (with an embedded bloom filter each), and levels are
+ * merged once there are too many of them. Deletes are recorded as tombstones
+ * until the base itself is rewritten by compact(). Lookups check the
+ * in-memory tables, then the levels newest first, then the base.
+ * <p>
+ * Each key has at most one value: put() replaces it, and only the first
+ * value of a key in the base is visible (compact() keeps the others as they
+ * were, unless the key was replaced). Everything lives in one directory,
+ * described by a manifest that is replaced atomically; after a crash, the
+ * logs not yet flushed are replayed on open.
+ */
+public class HashStore {
+    /** default memtable size that triggers a flush, 64MB */
+    public static final long DEFAULT_MEMTABLE_SIZE = 64L * 1024 * 1024;
+
+    /** default number of delta levels that triggers a merge */
+    public static final int DEFAULT_MAX_LEVELS = 4;
+
+    /** default bits per key of the delta levels' bloom filters */
+    public static final int DEFAULT_BLOOM_FILTER_BITS_PER_KEY = 10;
+
+    /** full memtables that may wait to be flushed before writers wait */
+    private static final int MAX_PENDING_FLUSHES = 2;
+
+    static final String MANIFEST_NAME = "MANIFEST";
+
+    static final String FORMAT_PROPERTY = "format";
+
+    static final String FORMAT_VERSION = "HashStore-1";
+
+    static final String BASE_PROPERTY = "base";
+
+    static final String BASE_OWNED_PROPERTY = "isBaseOwned";
+
+    static final String LEVELS_PROPERTY = "levels";
+
+    private static final Pattern FILE_NAME = Pattern
+            .compile("(base|level|log)-(\\d+)(\\.hf2)?");
+
+    private final File directory;
+
+    private final ReadMode readMode;
+
+    /**
+     * shared by lookups and writes, exclusive for replacing the memtable,
+     * levels or base
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** orders writes to the log and memtable alike */
+    private final Object writeMonitor = new Object();
+
+    /** runs flushes and merges, one at a time, in submission order */
+    private final ExecutorService background;
+
+    private final AtomicLong nextId = new AtomicLong();
+
+    private MemTable2 memTable;
+
+    private StoreLog2 log;
+
+    /** full memtables being flushed, newest first */
+    private final LinkedList<MemTable2> flushing = new LinkedList<MemTable2>();
+
+    /** delta levels, newest first */
+    private List<Level> levels = new ArrayList<Level>();
+
+    private HashFile2 base;
+
+    private String basePath;
+
+    /** whether the base was written by compact(), and may be deleted */
+    private boolean isBaseOwned;
+
+    private boolean closed = false;
+
+    /** set when a flush fails; later writes would be flushed out of order */
+    private volatile Throwable backgroundError;
+
+    /** the longest key that compact() can write to the base */
+    private int maxKeyLength = Integer.MAX_VALUE;
+
+    /** the longest value that compact() can write to the base */
+    private int maxValueLength = Integer.MAX_VALUE;
+
+    private volatile long memTableSize = DEFAULT_MEMTABLE_SIZE;
+
+    private volatile int maxLevels = DEFAULT_MAX_LEVELS;
+
+    private volatile int bloomFilterBitsPerKey = DEFAULT_BLOOM_FILTER_BITS_PER_KEY;
+
+    /**
+     * Creates a HashStore in the given directory, over the given base
+     * HashFile2 (which must not be associative), or over nothing if basePath
+     * is null. The base is never modified or deleted.
+     */
+    public static HashStore create(String directory, String basePath)
+            throws IOException {
+        return create(directory, basePath, ReadMode.SEEK);
+    }
+
+    /**
+     * Creates a HashStore as above, reading its files with the given
+     * ReadMode.
+     */
+    public static HashStore create(String directory, String basePath,
+            ReadMode readMode) throws IOException {
+        File dir = new File(directory);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+
+        if (new File(dir, MANIFEST_NAME).exists()) {
+            throw new IOException("HashStore already exists: " + directory);
+        }
+
+        if (basePath != null) {
+            HashFile2 base = new HashFile2(basePath);
+            try {
+                checkBase(base, basePath);
+            } finally {
+                base.close();
+            }
+        }
+
+        Properties manifest = new Properties();
+        manifest.setProperty(FORMAT_PROPERTY, FORMAT_VERSION);
+        manifest.setProperty(LEVELS_PROPERTY, "");
+        if (basePath != null) {
+            manifest.setProperty(BASE_PROPERTY, new File(basePath)
+                    .getAbsolutePath());
+            manifest.setProperty(BASE_OWNED_PROPERTY, "false");
+        }
+        writeManifest(dir, manifest);
+
+        return new HashStore(directory, readMode);
+    }
+
+    /**
+     * Opens the HashStore in the given directory, replaying any writes that
+     * were not flushed.
+     */
+    public HashStore(String directory) throws IOException {
+        this(directory, ReadMode.SEEK);
+    }
+
+    /**
+     * Opens the HashStore in the given directory, reading its files with the
+     * given ReadMode (POSITIONAL or MAPPED let lookups run in parallel).
+     */
+    public HashStore(String directory, ReadMode readMode) throws IOException {
+        this.directory = new File(directory);
+        this.readMode = readMode;
+
+        Properties manifest = new Properties();
+        File manifestFile = new File(this.directory, MANIFEST_NAME);
+        if (!manifestFile.exists()) {
+            throw new IOException("Not a HashStore: " + directory);
+        }
+
+        InputStream in = new FileInputStream(manifestFile);
+        try {
+            manifest.load(in);
+        } finally {
+            in.close();
+        }
+
+        if (!FORMAT_VERSION.equals(manifest.getProperty(FORMAT_PROPERTY))) {
+            throw new IOException("Not a HashStore manifest: " + manifestFile);
+        }
+
+        List<String> levelNames = new ArrayList<String>();
+        for (String name : manifest.getProperty(LEVELS_PROPERTY, "").split(
+                ",")) {
+            if (name.length() > 0) {
+                levelNames.add(name);
+            }
+        }
+
+        String base = manifest.getProperty(BASE_PROPERTY);
+        this.isBaseOwned = Boolean.parseBoolean(manifest
+                .getProperty(BASE_OWNED_PROPERTY));
+        this.basePath = base == null || !isBaseOwned ? base : new File(
+                this.directory, base).getPath();
+
+        // drop what an interrupted flush or merge left behind
+        TreeMap<Long, File> logs = new TreeMap<Long, File>();
+        long maxId = 0L;
+        for (File file : this.directory.listFiles()) {
+            Matcher matcher = FILE_NAME.matcher(file.getName());
+            if (!matcher.matches()) {
+                continue;
+            }
+
+            long id = Long.parseLong(matcher.group(2));
+            maxId = Math.max(maxId, id);
+
+            if (matcher.group(1).equals("log")) {
+                logs.put(id, file);
+            } else if (!levelNames.contains(file.getName())
+                    && !(isBaseOwned && file.getName().equals(base))) {
+                file.delete();
+            }
+        }
+        this.nextId.set(maxId + 1);
+
+        try {
+            if (this.basePath != null) {
+                this.base = new HashFile2(this.basePath, true, readMode);
+                checkBase(this.base, this.basePath);
+
+                // compact() writes the base's key and value sizes again
+                Header2 header = readHeader(this.basePath);
+                this.maxKeyLength = getMaxLength(header.getKeySize());
+                this.maxValueLength = getMaxLength(header.getValueSize());
+                if (header.isDeduplicated()) {
+                    // the lowest bit of the length marks references
+                    this.maxValueLength >>= 1;
+                }
+            }
+
+            for (String name : levelNames) {
+                this.levels.add(new Level(name, new HashFile2(new File(
+                        this.directory, name).getPath(), true, readMode)));
+            }
+
+            this.memTable = new MemTable2();
+            for (File logFile : logs.values()) {
+                StoreLog2.replay(logFile, memTable);
+                this.memTable.addLogFile(logFile);
+            }
+
+            this.log = this.newLog();
+        } catch (IOException e) {
+            this.closeFiles();
+            throw e;
+        } catch (RuntimeException e) {
+            this.closeFiles();
+            throw e;
+        }
+
+        this.background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "HashStore-"
+                        + HashStore.this.directory.getName());
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sets the estimated memtable size, in bytes, at which it is flushed to a
+     * new delta level.
+     */
+    public void setMemTableSize(long bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("memTableSize must be >= 1");
+        }
+
+        this.memTableSize = bytes;
+    }
+
+    /**
+     * Sets how many delta levels there may be before they are merged into
+     * one.
+     */
+    public void setMaxLevels(int maxLevels) {
+        if (maxLevels < 1) {
+            throw new IllegalArgumentException("maxLevels must be >= 1");
+        }
+
+        this.maxLevels = maxLevels;
+    }
+
+    /**
+     * Sets the bits per key of the bloom filter embedded in each new delta
+     * level (and base); zero disables them.
+     */
+    public void setBloomFilterBitsPerKey(int bitsPerKey) {
+        if (bitsPerKey < 0) {
+            throw new IllegalArgumentException("bitsPerKey must be >= 0");
+        }
+
+        this.bloomFilterBitsPerKey = bitsPerKey;
+    }
+
+    /**
+     * Finds the value of the given key.
+     * 
+     * @return The value, or <code>null</code> if there is none.
+     */
+    public byte[] get(byte[] key) {
+        lock.readLock().lock();
+        try {
+            this.checkOpen();
+
+            byte[] encoded = memTable.get(key);
+            for (int i = 0; encoded == null && i < flushing.size(); i++) {
+                encoded = flushing.get(i).get(key);
+            }
+
+            if (encoded == null && !levels.isEmpty()) {
+                // the delta levels all use long hashes
+                long hashCode = Calculations2.computeHash(key, true);
+                for (int i = 0; encoded == null && i < levels.size(); i++) {
+                    encoded = levels.get(i).file.get(key, hashCode);
+                }
+            }
+
+            if (encoded != null) {
+                return MemTable2.decode(encoded);
+            }
+
+            return base == null ? null : base.get(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** returns true if the given key has a value */
+    public boolean contains(byte[] key) {
+        return this.get(key) != null;
+    }
+
+    /**
+     * Sets the value of the given key. Keys and values must fit the key and
+     * value sizes of the base.
+     */
+    public void put(byte[] key, byte[] value) throws IOException {
+        if (value == null) {
+            throw new IllegalArgumentException("value cannot be null");
+        }
+
+        if (key.length > maxKeyLength) {
+            throw new IllegalArgumentException("key is too long for base: "
+                    + key.length + " > " + maxKeyLength);
+        }
+
+        if (value.length > maxValueLength) {
+            throw new IllegalArgumentException("value is too long for base: "
+                    + value.length + " > " + maxValueLength);
+        }
+
+        this.write(key, MemTable2.encode(value));
+    }
+
+    /** Removes the value of the given key, if any. */
+    public void delete(byte[] key) throws IOException {
+        this.write(key, MemTable2.encode(null));
+    }
+
+    /**
+     * Forces the log to disk. Writes are handed to the operating system as
+     * they are made, so they survive the process crashing, but not the
+     * machine.
+     */
+    public void sync() throws IOException {
+        lock.readLock().lock();
+        try {
+            this.checkOpen();
+            this.log.sync();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Flushes the memtable to a new delta level, and waits for all pending
+     * flushes (and merges) to finish.
+     */
+    public void flush() throws IOException {
+        this.rotate(true);
+
+        await(this.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Flushes the memtable, then rewrites the base with all delta levels
+     * applied, dropping deleted and replaced values; waits for it to finish.
+     * The new base is written like the old one (key/value sizes, index type,
+     * compression and deduplication), and the old base is deleted only if
+     * it was itself written by compact(). If it fails, the store is left as
+     * it was.
+     */
+    public void compact() throws IOException {
+        this.rotate(true);
+
+        await(this.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                merge(true);
+
+                return null;
+            }
+        }));
+    }
+
+    /** returns the number of delta levels */
+    public int getLevelCount() {
+        lock.readLock().lock();
+        try {
+            return levels.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the store, after waiting for pending flushes and merges. Writes
+     * still in the memtable stay in the log, and are replayed on open.
+     */
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        background.shutdown();
+        try {
+            background.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while closing HashStore",
+                    e);
+        } finally {
+            this.closeFiles();
+        }
+    }
+
+    private void write(byte[] key, byte[] encoded) throws IOException {
+        boolean full;
+
+        lock.readLock().lock();
+        try {
+            this.checkOpen();
+
+            synchronized (writeMonitor) {
+                log.append(key, encoded);
+                memTable.put(key, encoded);
+                full = memTable.getBytes() >= memTableSize;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (full) {
+            this.rotate(false);
+        }
+    }
+
+    /**
+     * Replaces the memtable (if it is full, or not empty when forced) by an
+     * empty one, and schedules its flush. Waits for the flush if too many
+     * are pending.
+     */
+    private void rotate(boolean force) throws IOException {
+        Future<Void> flush;
+        boolean backlogged;
+
+        lock.writeLock().lock();
+        try {
+            this.checkOpen();
+
+            if (memTable.isEmpty()
+                    || (!force && memTable.getBytes() < memTableSize)) {
+                return;
+            }
+
+            final MemTable2 full = memTable;
+
+            log.close();
+            memTable = new MemTable2();
+            log = this.newLog();
+            flushing.addFirst(full);
+
+            flush = this.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    try {
+                        flush(full);
+                    } catch (Throwable t) {
+                        backgroundError = t;
+                        throw t;
+                    }
+
+                    if (levels.size() > maxLevels) {
+                        // on failure, retried after the next flush
+                        merge(false);
+                    }
+
+                    return null;
+                }
+            });
+            backlogged = flushing.size() > MAX_PENDING_FLUSHES;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (backlogged) {
+            await(flush);
+        }
+    }
+
+    /** writes a full memtable to a new delta level (in the background) */
+    private void flush(MemTable2 table) throws IOException {
+        String name = "level-" + nextId.getAndIncrement() + ".hf2";
+        File file = new File(directory, name);
+
+        HashFile2Builder builder = this.newLevelBuilder(file, table.size());
+        table.writeTo(builder);
+        builder.finish();
+
+        Level level = new Level(name, new HashFile2(file.getPath(), true,
+                readMode));
+
+        lock.writeLock().lock();
+        try {
+            List<Level> updated = new ArrayList<Level>(levels);
+            updated.add(0, level);
+            this.levels = updated;
+            this.writeManifest();
+            flushing.remove(table);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        for (File logFile : table.getLogFiles()) {
+            logFile.delete();
+        }
+    }
+
+    /**
+     * Merges the delta levels into one, or into a new base; in the
+     * background. Files are read sequentially, newest first, and an entry is
+     * kept only if no newer level has its key, so memory use does not depend
+     * on the size of the files. On failure, the levels and base are left as
+     * they were.
+     */
+    private void merge(boolean includeBase) throws IOException {
+        // only the background thread changes the levels and base
+        List<Level> inputs = levels;
+        if (inputs.isEmpty() || (!includeBase && inputs.size() < 2)) {
+            return;
+        }
+
+        long expected = includeBase && base != null ? base.getCount() : 0L;
+        for (Level level : inputs) {
+            expected += level.file.getCount();
+        }
+
+        String name = (includeBase ? "base-" : "level-")
+                + nextId.getAndIncrement() + ".hf2";
+        File file = new File(directory, name);
+        HashFile2 merged;
+        try {
+            merged = this.writeMerged(file, inputs, includeBase, expected);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        } catch (RuntimeException e) {
+            file.delete();
+            throw e;
+        }
+
+        HashFile2 oldBase = base;
+        String oldBasePath = basePath;
+        boolean wasBaseOwned = isBaseOwned;
+
+        lock.writeLock().lock();
+        try {
+            if (includeBase) {
+                this.levels = new ArrayList<Level>();
+                this.base = merged;
+                this.basePath = file.getPath();
+                this.isBaseOwned = true;
+            } else {
+                this.levels = new ArrayList<Level>(Collections
+                        .singletonList(new Level(name, merged)));
+            }
+
+            this.writeManifest();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        // no lookup can be using the replaced files any more
+        for (Level level : inputs) {
+            level.file.close();
+            new File(directory, level.name).delete();
+        }
+
+        if (includeBase && oldBase != null) {
+            oldBase.close();
+            if (wasBaseOwned) {
+                new File(oldBasePath).delete();
+            }
+        }
+    }
+
+    /** writes the merge of the given levels (and base) to the given file */
+    private HashFile2 writeMerged(File file, List<Level> inputs,
+            boolean includeBase, long expected) throws IOException {
+        HashFile2Builder builder = includeBase ? this.newBaseBuilder(file,
+                expected) : this.newLevelBuilder(file, expected);
+
+        for (int i = 0; i < inputs.size(); i++) {
+            String path = new File(directory, inputs.get(i).name).getPath();
+
+            for (HashEntry entry : HashFile2.elements(path)) {
+                if (isShadowed(entry.getKey(), inputs, i)) {
+                    continue;
+                }
+
+                if (!includeBase) {
+                    builder.add(entry.getKey(), entry.getValue());
+                } else if (!MemTable2.isTombstone(entry.getValue())) {
+                    builder.add(entry.getKey(), MemTable2.decode(entry
+                            .getValue()));
+                }
+            }
+        }
+
+        if (includeBase && base != null) {
+            // records are copied as they are, so a key with several values
+            // keeps them all, in order, and get() still sees the first
+            for (HashEntry entry : HashFile2.elements(basePath)) {
+                if (!isShadowed(entry.getKey(), inputs, inputs.size())) {
+                    builder.add(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        builder.finish();
+
+        return new HashFile2(file.getPath(), true, readMode);
+    }
+
+    /** returns true if a level newer than the given one has the key */
+    private static boolean isShadowed(byte[] key, List<Level> levels,
+            int level) {
+        for (int i = 0; i < level; i++) {
+            if (levels.get(i).file.contains(key)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private HashFile2Builder newLevelBuilder(File file, long expected)
+            throws IOException {
+        HashFile2Builder builder = new HashFile2Builder(file.getPath(),
+                expected);
+        builder.setBloomFilterBitsPerKey(bloomFilterBitsPerKey);
+
+        return builder;
+    }
+
+    /** returns a builder for a new base, stored like the current one */
+    private HashFile2Builder newBaseBuilder(File file, long expected)
+            throws IOException {
+        if (basePath == null) {
+            return this.newLevelBuilder(file, expected);
+        }
+
+        Header2 header;
+        BlockFormat2 format;
+        RandomAccessFile in = new RandomAccessFile(basePath, "r");
+        try {
+            header = Header2.readHeader(in);
+            format = BlockFormat2.read(in, header);
+        } finally {
+            in.close();
+        }
+
+        HashFile2Builder builder = new HashFile2Builder(false, file.getPath(),
+                expected, header.getKeySize(), header.getValueSize(), header
+                        .isLongHash(), true, true, header.getIndexType());
+        builder.setBloomFilterBitsPerKey(bloomFilterBitsPerKey);
+        if (header.isDeduplicated()) {
+            builder.enableValueDeduplication();
+        }
+        if (format != null) {
+            builder.enableCompression(format.getCodec(), format
+                    .getBlockSize());
+        }
+
+        return builder;
+    }
+
+    /** reads the header of the given HashFile2 */
+    private static Header2 readHeader(String path) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(path, "r");
+        try {
+            return Header2.readHeader(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /** returns the longest length that can be written with the given size */
+    private static int getMaxLength(ByteSize size) {
+        switch (size) {
+        case ZERO:
+            return 0;
+        case ONE:
+            return Byte.MAX_VALUE;
+        case TWO:
+            return Character.MAX_VALUE;
+        default:
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private StoreLog2 newLog() throws IOException {
+        StoreLog2 newLog = new StoreLog2(new File(directory, "log-"
+                + nextId.getAndIncrement()));
+        memTable.addLogFile(newLog.getFile());
+
+        return newLog;
+    }
+
+    /** writes the manifest for the current levels and base */
+    private void writeManifest() throws IOException {
+        StringBuilder names = new StringBuilder();
+        for (Level level : levels) {
+            if (names.length() > 0) {
+                names.append(',');
+            }
+            names.append(level.name);
+        }
+
+        Properties manifest = new Properties();
+        manifest.setProperty(FORMAT_PROPERTY, FORMAT_VERSION);
+        manifest.setProperty(LEVELS_PROPERTY, names.toString());
+        if (basePath != null) {
+            manifest.setProperty(BASE_PROPERTY, isBaseOwned ? new File(
+                    basePath).getName() : basePath);
+            manifest.setProperty(BASE_OWNED_PROPERTY, Boolean
+                    .toString(isBaseOwned));
+        }
+
+        writeManifest(directory, manifest);
+    }
+
+    /** replaces the manifest atomically */
+    private static void writeManifest(File directory, Properties manifest)
+            throws IOException {
+        File temp = new File(directory, MANIFEST_NAME + ".tmp");
+
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            manifest.store(out, "HashStore manifest");
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        Files.move(temp.toPath(), new File(directory, MANIFEST_NAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** runs a task in the background, unless a flush has failed */
+    private Future<Void> submit(final Callable<Void> task) {
+        return background.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                if (backgroundError != null) {
+                    return null;
+                }
+
+                return task.call();
+            }
+        });
+    }
+
+    private static void checkBase(HashFile2 base, String basePath) {
+        if (base.isAssociative()) {
+            throw new IllegalArgumentException(
+                    "HashStore base cannot be associative: " + basePath);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("HashStore is closed");
+        }
+
+        if (backgroundError != null) {
+            throw new IllegalStateException(
+                    "HashStore flush failed: "
+                            + backgroundError.getMessage(), backgroundError);
+        }
+    }
+
+    private void closeFiles() {
+        try {
+            if (log != null) {
+                log.close();
+            }
+        } catch (IOException ignored) {
+        }
+
+        for (Level level : levels) {
+            level.file.close();
+        }
+
+        if (base != null) {
+            base.close();
+        }
+    }
+
+    private static void await(Future<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for HashStore",
+                    e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /** a delta level: its file name and the open file */
+    private static final class Level {
+        private final String name;
+
+        private final HashFile2 file;
+
+        public Level(String name, HashFile2 file) {
+            this.name = name;
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+/**
+ * How a HashFile2 maps keys to records; chosen when the file is built and
+ * recorded in its header.
+ */
+public enum IndexType {
+    /** per-bucket hash tables of (hash, position) with linear probing */
+    HASH_TABLE,
+
+    /**
+     * a minimal perfect hash function per radix partition, mapping each key
+     * to a single slot holding its position (and optionally a fingerprint);
+     * requires long hashes and non-associative files
+     */
+    PERFECT_HASH;
+}
@@ -0,0 +1,429 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Lookup counters and a latency histogram for a HashFile2, enabled with
+ * HashFile2.enableMetrics(). All counters are LongAdders, so they are striped
+ * across threads and recording never locks; while metrics are disabled,
+ * lookups only pay for a null check.
+ * <p>
+ * The latency histogram has log buckets, each split into 16 linear
+ * sub-buckets (as in HdrHistogram), so recorded values are within 1/16 of
+ * their true value. Counters are read individually, so a snapshot taken
+ * during lookups may be slightly inconsistent.
+ */
+public class LookupMetrics implements LookupMetricsMXBean {
+    /** log2 of the number of sub-buckets per power of two */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** number of histogram buckets, enough for any non-negative long */
+    private static final int HISTOGRAM_BUCKETS = (64 - SUB_BUCKET_BITS)
+            * SUB_BUCKETS;
+
+    private final LongAdder lookups = new LongAdder();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder probes = new LongAdder();
+
+    private final LongAdder collisions = new LongAdder();
+
+    private final LongAdder bytesRead = new LongAdder();
+
+    private final LongAdder overflowReads = new LongAdder();
+
+    private final LongAdder totalLatency = new LongAdder();
+
+    private final LongAccumulator maxLatency = new LongAccumulator(
+            new LongBinaryOperator() {
+                @Override
+                public long applyAsLong(long left, long right) {
+                    return Math.max(left, right);
+                }
+            }, 0L);
+
+    private final LongAdder[] latencies = new LongAdder[HISTOGRAM_BUCKETS];
+
+    /** the name this is registered under with JMX, if it is */
+    private ObjectName objectName;
+
+    public LookupMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a finished lookup; called by HashFile2.
+     * 
+     * @param latency
+     *            the lookup time in nanoseconds, or -1 if it was not timed
+     *            (lookups done as part of a batch)
+     */
+    public void record(boolean hit, int probeCount, int collisionCount,
+            long bytes, int overflowCount, long latency) {
+        lookups.increment();
+        if (hit) {
+            hits.increment();
+        }
+        if (probeCount > 0) {
+            probes.add(probeCount);
+        }
+        if (collisionCount > 0) {
+            collisions.add(collisionCount);
+        }
+        if (bytes > 0) {
+            bytesRead.add(bytes);
+        }
+        if (overflowCount > 0) {
+            overflowReads.add(overflowCount);
+        }
+
+        if (latency >= 0) {
+            latencies[getHistogramBucket(latency)].increment();
+            totalLatency.add(latency);
+            maxLatency.accumulate(latency);
+        }
+    }
+
+    /** returns the histogram bucket holding the given value */
+    static int getHistogramBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+                & (SUB_BUCKETS - 1);
+
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /** returns the smallest value held by the given histogram bucket */
+    static long getHistogramBucketStart(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int block = bucket / SUB_BUCKETS;
+        int subBucket = bucket % SUB_BUCKETS;
+
+        return ((long) (SUB_BUCKETS + subBucket)) << (block - 1);
+    }
+
+    /** returns the largest value held by the given histogram bucket */
+    static long getHistogramBucketEnd(int bucket) {
+        return bucket + 1 == HISTOGRAM_BUCKETS ? Long.MAX_VALUE
+                : getHistogramBucketStart(bucket + 1) - 1;
+    }
+
+    /** returns a copy of the current counters */
+    public Snapshot snapshot() {
+        long[] counts = new long[latencies.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = latencies[i].sum();
+        }
+
+        return new Snapshot(lookups.sum(), hits.sum(), probes.sum(), collisions
+                .sum(), bytesRead.sum(), overflowReads.sum(), totalLatency
+                .sum(), maxLatency.get(), counts);
+    }
+
+    @Override
+    public synchronized void reset() {
+        lookups.reset();
+        hits.reset();
+        probes.reset();
+        collisions.reset();
+        bytesRead.reset();
+        overflowReads.reset();
+        totalLatency.reset();
+        maxLatency.reset();
+        for (LongAdder latency : latencies) {
+            latency.reset();
+        }
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, as
+     * com.g414.hash.file2:type=HashFile2,name=&lt;name&gt;.
+     */
+    public synchronized ObjectName registerMBean(String name) {
+        if (this.objectName != null) {
+            throw new IllegalStateException("metrics already registered as "
+                    + this.objectName);
+        }
+
+        try {
+            ObjectName theName = new ObjectName(
+                    "com.g414.hash.file2:type=HashFile2,name="
+                            + ObjectName.quote(name));
+
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    theName);
+            this.objectName = theName;
+
+            return theName;
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Unable to register metrics: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    /** unregisters these metrics from the platform MBean server, if needed */
+    public synchronized void unregisterMBean() {
+        if (this.objectName == null) {
+            return;
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(this.objectName)) {
+                server.unregisterMBean(this.objectName);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException(
+                    "Unable to unregister metrics: " + e.getMessage(), e);
+        } finally {
+            this.objectName = null;
+        }
+    }
+
+    @Override
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return this.snapshot().getMisses();
+    }
+
+    @Override
+    public long getProbes() {
+        return probes.sum();
+    }
+
+    @Override
+    public double getMeanProbesPerLookup() {
+        return this.snapshot().getMeanProbesPerLookup();
+    }
+
+    @Override
+    public long getCollisions() {
+        return collisions.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getOverflowReads() {
+        return overflowReads.sum();
+    }
+
+    @Override
+    public long getTimedLookups() {
+        return this.snapshot().getTimedLookups();
+    }
+
+    @Override
+    public double getMeanLatency() {
+        return this.snapshot().getMeanLatency();
+    }
+
+    @Override
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+
+    @Override
+    public long getLatencyMedian() {
+        return this.snapshot().getLatencyPercentile(50.0);
+    }
+
+    @Override
+    public long getLatency99thPercentile() {
+        return this.snapshot().getLatencyPercentile(99.0);
+    }
+
+    @Override
+    public long getLatency999thPercentile() {
+        return this.snapshot().getLatencyPercentile(99.9);
+    }
+
+    /** an immutable copy of the lookup metrics; latencies are in nanos */
+    public static class Snapshot {
+        private final long lookups;
+
+        private final long hits;
+
+        private final long probes;
+
+        private final long collisions;
+
+        private final long bytesRead;
+
+        private final long overflowReads;
+
+        private final long totalLatency;
+
+        private final long maxLatency;
+
+        private final long[] latencyCounts;
+
+        private final long timedLookups;
+
+        public Snapshot(long lookups, long hits, long probes,
+                long collisions, long bytesRead, long overflowReads,
+                long totalLatency, long maxLatency, long[] latencyCounts) {
+            this.lookups = lookups;
+            this.hits = hits;
+            this.probes = probes;
+            this.collisions = collisions;
+            this.bytesRead = bytesRead;
+            this.overflowReads = overflowReads;
+            this.totalLatency = totalLatency;
+            this.maxLatency = maxLatency;
+            this.latencyCounts = latencyCounts;
+
+            long timed = 0L;
+            for (long count : latencyCounts) {
+                timed += count;
+            }
+            this.timedLookups = timed;
+        }
+
+        public long getLookups() {
+            return lookups;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return Math.max(0L, lookups - hits);
+        }
+
+        /** returns the number of hash table (or index) entries read */
+        public long getProbes() {
+            return probes;
+        }
+
+        public double getMeanProbesPerLookup() {
+            return lookups == 0 ? 0.0 : (double) probes / lookups;
+        }
+
+        /** returns the number of hash code matches whose key differed */
+        public long getCollisions() {
+            return collisions;
+        }
+
+        /** returns the number of index and record bytes read or mapped */
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        /**
+         * returns the number of records that did not fit in the first
+         * RANDOM_READ_BUFFER_LENGTH bytes read, so needed a second read
+         */
+        public long getOverflowReads() {
+            return overflowReads;
+        }
+
+        /** returns the number of lookups in the latency histogram */
+        public long getTimedLookups() {
+            return timedLookups;
+        }
+
+        public double getMeanLatency() {
+            return timedLookups == 0 ? 0.0 : (double) totalLatency
+                    / timedLookups;
+        }
+
+        public long getMaxLatency() {
+            return maxLatency;
+        }
+
+        /**
+         * Returns the latency at the given percentile (0 to 100), as the
+         * highest value equivalent to it in the histogram.
+         */
+        public long getLatencyPercentile(double percentile) {
+            if (percentile < 0.0 || percentile > 100.0) {
+                throw new IllegalArgumentException(
+                        "percentile must be between 0 and 100");
+            }
+
+            if (timedLookups == 0) {
+                return 0L;
+            }
+
+            long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0
+                    * timedLookups));
+            long seen = 0L;
+
+            for (int i = 0; i < latencyCounts.length; i++) {
+                seen += latencyCounts[i];
+                if (seen >= rank) {
+                    return Math.min(getHistogramBucketEnd(i), maxLatency);
+                }
+            }
+
+            return maxLatency;
+        }
+
+        /** returns the number of lookups in each histogram bucket */
+        public long[] getLatencyCounts() {
+            return latencyCounts.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "lookups=" + lookups + ", hits=" + hits + ", misses="
+                    + getMisses() + ", probes/lookup="
+                    + String.format("%.2f", getMeanProbesPerLookup())
+                    + ", collisions=" + collisions + ", bytesRead="
+                    + bytesRead + ", overflowReads=" + overflowReads
+                    + ", p50=" + getLatencyPercentile(50.0) + "ns, p99="
+                    + getLatencyPercentile(99.0) + "ns, max=" + maxLatency
+                    + "ns";
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+/**
+ * JMX view of the lookup metrics of a HashFile2 (see LookupMetrics).
+ * Latencies are in nanoseconds.
+ */
+public interface LookupMetricsMXBean {
+    long getLookups();
+
+    long getHits();
+
+    long getMisses();
+
+    long getProbes();
+
+    double getMeanProbesPerLookup();
+
+    long getCollisions();
+
+    long getBytesRead();
+
+    long getOverflowReads();
+
+    long getTimedLookups();
+
+    double getMeanLatency();
+
+    long getMaxLatency();
+
+    long getLatencyMedian();
+
+    long getLatency99thPercentile();
+
+    long getLatency999thPercentile();
+
+    /** sets all counters back to zero */
+    void reset();
+}
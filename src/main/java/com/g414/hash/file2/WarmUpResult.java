@@ -0,0 +1,60 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+/**
+ * The outcome of a HashFile2 warm-up: how much was read, and how fast.
+ */
+public class WarmUpResult {
+    private final WarmUpPolicy policy;
+
+    private final long bytes;
+
+    private final long elapsedNanos;
+
+    public WarmUpResult(WarmUpPolicy policy, long bytes, long elapsedNanos) {
+        this.policy = policy;
+        this.bytes = bytes;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public WarmUpPolicy getPolicy() {
+        return policy;
+    }
+
+    /** returns the number of bytes swept */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /** returns the sweep throughput */
+    public double getBytesPerSecond() {
+        return elapsedNanos == 0L ? 0.0 : bytes * 1000000000.0 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("warm-up %s: %d bytes in %.1f ms (%.1f MB/s)",
+                policy, bytes, elapsedNanos / 1000000.0,
+                getBytesPerSecond() / (1024.0 * 1024.0));
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.g414.hash.file2.LookupMetrics;
+
+/**
+ * Looks up a batch of keys in a HashFile, version 2, with reordered I/O: keys
+ * are grouped by bucket so each hash table is read once (in file order), then
+ * all candidate records are fetched in file order. Results are returned in
+ * input order, with each key's values in the same order as getMulti().
+ */
+public class BatchLookup2 {
+    private final FileOperations2 fileOps;
+
+    private final FileAccess2 access;
+
+    private final ByteBuffer hashTableOffsets;
+
+    private final BloomFilter2 filter;
+
+    public BatchLookup2(FileOperations2 fileOps, FileAccess2 access,
+            ByteBuffer hashTableOffsets, BloomFilter2 filter) {
+        if (access == null) {
+            throw new IllegalStateException(
+                    "get() not allowed when HashFile is closed()");
+        }
+
+        this.fileOps = fileOps;
+        this.access = access;
+        this.hashTableOffsets = hashTableOffsets;
+        this.filter = filter;
+    }
+
+    /**
+     * Returns the values for each key, in input order; keys that are not
+     * found get an empty list.
+     */
+    public List<List<byte[]>> getAll(List<byte[]> keys) {
+        boolean isLongHash = fileOps.getHeader().isLongHash();
+
+        // hash everything up front
+        long[] hashes = new long[keys.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = Calculations2.computeHash(keys.get(i), isLongHash);
+        }
+
+        return getAll(keys, hashes);
+    }
+
+    /**
+     * Returns the values for each key, given their already computed hash
+     * codes, in input order.
+     */
+    public List<List<byte[]>> getAll(List<byte[]> keys, long[] hashes) {
+        try {
+            return this.lookup(keys, hashes);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while finding keys: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    private List<List<byte[]>> lookup(List<byte[]> keys, long[] hashes)
+            throws IOException {
+        int count = keys.size();
+
+        Probe2[] probes = new Probe2[count];
+        List<Candidate> candidates = new ArrayList<Candidate>();
+
+        if (fileOps.getHeader().isPerfectHash()) {
+            // no hash tables to share, so just collect each key's candidates
+            for (int i = 0; i < count; i++) {
+                probes[i] = new Probe2(fileOps, access, hashTableOffsets,
+                        filter, keys.get(i), hashes[i]);
+                addCandidates(candidates, probes[i], i);
+            }
+        } else {
+            this.probeHashTables(keys, hashes, probes, candidates);
+        }
+
+        // fetch the candidate records in file order
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return a.position < b.position ? -1
+                        : (a.position == b.position ? 0 : 1);
+            }
+        });
+
+        List<byte[]> found = new ArrayList<byte[]>();
+        for (Candidate candidate : candidates) {
+            if (probes[candidate.index].readRecord(candidate.position)) {
+                candidate.value = probes[candidate.index].getValue();
+            }
+        }
+
+        // restore input order, and probe order within each key
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                if (a.index != b.index) {
+                    return a.index < b.index ? -1 : 1;
+                }
+
+                return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+            }
+        });
+
+        List<List<byte[]>> results = new ArrayList<List<byte[]>>(count);
+        LookupMetrics metrics = fileOps.getMetrics();
+        int next = 0;
+
+        for (int i = 0; i < count; i++) {
+            found.clear();
+
+            while (next < candidates.size()
+                    && candidates.get(next).index == i) {
+                byte[] value = candidates.get(next++).value;
+                if (value != null) {
+                    found.add(value);
+                }
+            }
+
+            if (metrics != null) {
+                // batched lookups share reads, so are not timed
+                if (probes[i] == null) {
+                    metrics.record(false, 0, 0, 0L, 0, -1L);
+                } else {
+                    FileOperations2.record(metrics, probes[i], !found
+                            .isEmpty(), -1L);
+                }
+            }
+
+            results.add(found.isEmpty() ? Collections.<byte[]> emptyList()
+                    : Arrays.asList(found.toArray(new byte[found.size()][])));
+        }
+
+        return results;
+    }
+
+    /**
+     * Probes the hash tables for all keys, reading each table once, in file
+     * order.
+     */
+    private void probeHashTables(List<byte[]> keys, final long[] hashes,
+            Probe2[] probes, List<Candidate> candidates) throws IOException {
+        Header2 header = fileOps.getHeader();
+        int count = keys.size();
+
+        // drop keys the filter rules out
+        final int[] slots = new int[count];
+        List<Integer> pending = new ArrayList<Integer>(count);
+
+        for (int i = 0; i < count; i++) {
+            if (filter != null && !filter.mightContain(hashes[i])) {
+                continue;
+            }
+
+            slots[i] = Calculations2.getBucket(hashes[i], header
+                    .getBucketPower());
+
+            if (fileOps.getHashTableSize(hashTableOffsets, slots[i]) > 0) {
+                pending.add(i);
+            }
+        }
+
+        // read each hash table once, in file order
+        Collections.sort(pending, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long posA = fileOps.getHashTablePosition(hashTableOffsets,
+                        slots[a]);
+                long posB = fileOps.getHashTablePosition(hashTableOffsets,
+                        slots[b]);
+
+                return posA < posB ? -1 : (posA == posB ? 0 : 1);
+            }
+        });
+
+        ByteBuffer table = null;
+        int tableSlot = -1;
+
+        for (Integer index : pending) {
+            int i = index.intValue();
+            int size = (int) fileOps.getHashTableSize(hashTableOffsets,
+                    slots[i]);
+
+            boolean read = slots[i] != tableSlot;
+            if (read) {
+                tableSlot = slots[i];
+                table = access.view(fileOps.getHashTablePosition(
+                        hashTableOffsets, tableSlot), size
+                        * header.getHashTableEntrySize());
+            }
+
+            probes[i] = new Probe2(fileOps, access, keys.get(i), hashes[i],
+                    table, size);
+            if (read) {
+                // the first key of each table pays for reading it
+                probes[i].addBytesRead((long) size
+                        * header.getHashTableEntrySize());
+            }
+
+            addCandidates(candidates, probes[i], i);
+        }
+    }
+
+    private static void addCandidates(List<Candidate> candidates,
+            Probe2 probe, int index) throws IOException {
+        int order = 0;
+        long position;
+        while ((position = probe.nextCandidate()) >= 0) {
+            candidates.add(new Candidate(index, order++, position));
+        }
+    }
+
+    /** a hash table entry whose hash code matched one of the keys */
+    private static class Candidate {
+        private final int index;
+
+        private final int order;
+
+        private final long position;
+
+        private byte[] value;
+
+        public Candidate(int index, int order, long position) {
+            this.index = index;
+            this.order = order;
+            this.position = position;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of the decompressed blocks of a compressed HashFile, version 2,
+ * keyed by file position and bounded by the total length of the cached
+ * blocks. Blocks are shared between callers and must not be modified.
+ */
+public class BlockCache2 {
+    /** default bound on the decompressed bytes cached, 32MB */
+    public static final long DEFAULT_CACHE_SIZE = 32L * 1024 * 1024;
+
+    /** estimated per-block overhead in bytes, on top of its data */
+    public static final int BLOCK_OVERHEAD = 128;
+
+    /** log base 2 of the number of independently locked segments */
+    private static final int SEGMENTS_POWER_OF_2 = 4;
+
+    private final BlockFormat2 format;
+
+    private final Segment[] segments;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    public BlockCache2(BlockFormat2 format, long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must be >= 0");
+        }
+
+        this.format = format;
+        this.segments = new Segment[1 << SEGMENTS_POWER_OF_2];
+
+        for (int i = 0; i < segments.length; i++) {
+            this.segments[i] = new Segment(maxBytes >> SEGMENTS_POWER_OF_2);
+        }
+    }
+
+    public BlockFormat2 getFormat() {
+        return format;
+    }
+
+    /** returns the block at the given file position, reading it if needed */
+    public BlockFormat2.Block get(FileAccess2 access, long blockStart)
+            throws IOException {
+        Long key = Long.valueOf(blockStart);
+        long mixed = (blockStart >>> FileOperations2.ALIGNMENT)
+                * 0x9E3779B97F4A7C15L;
+        Segment segment = segments[(int) (mixed >>> (64 - SEGMENTS_POWER_OF_2))];
+
+        BlockFormat2.Block block;
+        synchronized (segment) {
+            block = segment.blocks.get(key);
+        }
+
+        if (block != null) {
+            hitCount.incrementAndGet();
+
+            return block;
+        }
+
+        missCount.incrementAndGet();
+
+        // decompress outside the lock; concurrent misses may both read it
+        block = format.readBlock(access, blockStart);
+
+        synchronized (segment) {
+            segment.put(key, block);
+        }
+
+        return block;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /** one independently locked part of the cache */
+    private static final class Segment {
+        private final long maxBytes;
+
+        private final LinkedHashMap<Long, BlockFormat2.Block> blocks = new LinkedHashMap<Long, BlockFormat2.Block>(
+                16, 0.75f, true);
+
+        private long bytes = 0L;
+
+        public Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public void put(Long key, BlockFormat2.Block block) {
+            BlockFormat2.Block previous = blocks.put(key, block);
+            if (previous != null) {
+                bytes -= size(previous);
+            }
+            bytes += size(block);
+
+            Iterator<Map.Entry<Long, BlockFormat2.Block>> eldest = blocks
+                    .entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= size(eldest.next().getValue());
+                eldest.remove();
+            }
+        }
+
+        private static long size(BlockFormat2.Block block) {
+            return block.getData().capacity() + BLOCK_OVERHEAD;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import com.g414.hash.file2.BlockCodec;
+import com.g414.hash.file2.BlockCodecs;
+
+/**
+ * Layout of a compressed data segment in a HashFile, version 2. Records are
+ * packed into blocks of up to blockSize bytes (a record that does not fit
+ * in an empty block gets a block of its own), and each block is stored as
+ * [UNCOMPRESSED_LENGTH, COMPRESSED_LENGTH, DATA], padded to 4 bytes.
+ * <p>
+ * Records are addressed by logical positions, which the index stores just
+ * like file positions: the block's file position / 4, shifted left by
+ * log2(blockSize), plus the record's offset in the uncompressed block. Only
+ * the first record of a block can start at or beyond blockSize, and it starts
+ * at offset zero, so the offset always fits.
+ */
+public class BlockFormat2 {
+    /** length of the header of each block */
+    public static final int BLOCK_HEADER_LENGTH = 8;
+
+    /** smallest block size, 4KB */
+    public static final int MIN_BLOCK_SIZE = 4 * 1024;
+
+    /** largest block size, 16MB */
+    public static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+
+    private final BlockCodec codec;
+
+    private final int blockSize;
+
+    /** log base 2 of the block size */
+    private final int blockBits;
+
+    public BlockFormat2(BlockCodec codec, int blockSize) {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE
+                || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException(
+                    "Block size must be a power of 2 between "
+                            + MIN_BLOCK_SIZE + " and " + MAX_BLOCK_SIZE);
+        }
+
+        this.codec = codec;
+        this.blockSize = blockSize;
+        this.blockBits = Integer.numberOfTrailingZeros(blockSize);
+    }
+
+    public BlockCodec getCodec() {
+        return codec;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /** returns the logical position of a record in the block at blockStart */
+    public long toLogical(long blockStart, int offset) {
+        return ((blockStart >> FileOperations2.ALIGNMENT) << blockBits)
+                | offset;
+    }
+
+    /** returns the file position of the block holding a logical position */
+    public long getBlockStart(long logical) {
+        return (logical >>> blockBits) << FileOperations2.ALIGNMENT;
+    }
+
+    /** returns the offset of a logical position in its uncompressed block */
+    public int getOffset(long logical) {
+        return (int) (logical & (blockSize - 1));
+    }
+
+    /**
+     * returns a logical position after its block has moved by shift bytes (a
+     * multiple of 4)
+     */
+    public long rebase(long logical, long shift) {
+        return logical + ((shift >> FileOperations2.ALIGNMENT) << blockBits);
+    }
+
+    /** returns true if both formats store blocks the same way */
+    public boolean isCompatible(BlockFormat2 other) {
+        return other != null && blockSize == other.blockSize
+                && codec.getName().equals(other.codec.getName());
+    }
+
+    /**
+     * Compresses <code>length</code> bytes of records into a block, writing
+     * it with its header and padding.
+     * 
+     * @return the number of bytes written
+     */
+    public int writeBlock(byte[] data, int offset, int length, DataOutput out)
+            throws IOException {
+        byte[] compressed = new byte[codec.maxCompressedLength(length)];
+        int compressedLength = codec.compress(data, offset, length,
+                compressed);
+
+        out.writeInt(length);
+        out.writeInt(compressedLength);
+        out.write(compressed, 0, compressedLength);
+
+        int padding = (4 - (compressedLength & 3)) & 3;
+        for (int i = 0; i < padding; i++) {
+            out.write(0);
+        }
+
+        return BLOCK_HEADER_LENGTH + compressedLength + padding;
+    }
+
+    /** reads and decompresses the block at the given file position */
+    public Block readBlock(FileAccess2 access, long blockStart)
+            throws IOException {
+        ByteBuffer header = access.view(blockStart, BLOCK_HEADER_LENGTH);
+        int length = header.getInt(0);
+        int compressedLength = header.getInt(4);
+
+        if (length <= 0 || compressedLength <= 0) {
+            throw new IllegalArgumentException("invalid HashFile format");
+        }
+
+        ByteBuffer source = access.view(blockStart + BLOCK_HEADER_LENGTH,
+                compressedLength);
+        byte[] compressed;
+        int offset = 0;
+        if (source.hasArray()) {
+            compressed = source.array();
+            offset = source.arrayOffset() + source.position();
+        } else {
+            compressed = new byte[compressedLength];
+            source.get(compressed);
+        }
+
+        byte[] data = new byte[length];
+        codec.decompress(compressed, offset, compressedLength, data);
+
+        return new Block(blockStart, blockStart + BLOCK_HEADER_LENGTH
+                + ((compressedLength + 3) & ~3), ByteBuffer.wrap(data)
+                .asReadOnlyBuffer());
+    }
+
+    /** writes the contents of the compression section */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(blockSize);
+        out.writeUTF(codec.getName());
+    }
+
+    /** reads the contents of the compression section */
+    public static BlockFormat2 read(DataInput in) throws IOException {
+        int blockSize = in.readInt();
+
+        return new BlockFormat2(BlockCodecs.forName(in.readUTF()), blockSize);
+    }
+
+    /**
+     * Reads the block format of a HashFile, given its sections.
+     * 
+     * @return the format, or null if the data segment is not compressed
+     */
+    public static BlockFormat2 read(RandomAccessFile file, Header2 header,
+            Sections2 sections) throws IOException {
+        if (!header.isCompressed()) {
+            return null;
+        }
+
+        if (sections == null || !sections.has(Sections2.COMPRESSION)) {
+            throw new IOException("Compressed HashFile without block format");
+        }
+
+        file.seek(sections.getOffset(Sections2.COMPRESSION));
+
+        return read(file);
+    }
+
+    /**
+     * Reads the block format of a HashFile.
+     * 
+     * @return the format, or null if the data segment is not compressed
+     */
+    public static BlockFormat2 read(RandomAccessFile file, Header2 header)
+            throws IOException {
+        return read(file, header, header.hasSections() ? Sections2
+                .read(file) : null);
+    }
+
+    /** a decompressed block */
+    public static class Block {
+        private final long start;
+
+        private final long end;
+
+        private final ByteBuffer data;
+
+        public Block(long start, long end, ByteBuffer data) {
+            this.start = start;
+            this.end = end;
+            this.data = data;
+        }
+
+        /** returns the file position of the block */
+        public long getStart() {
+            return start;
+        }
+
+        /** returns the file position just past the block */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * returns the uncompressed records, a read-only buffer that must only
+         * be read with absolute gets (or through a duplicate)
+         */
+        public ByteBuffer getData() {
+            return data;
+        }
+    }
+}
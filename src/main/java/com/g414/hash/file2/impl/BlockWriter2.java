@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Packs records added to a HashFile, version 2, into compressed blocks (see
+ * BlockFormat2). Records are encoded into an uncompressed block, which is
+ * compressed and written out when the next record would not fit.
+ */
+public class BlockWriter2 {
+    private final FileOperations2 fileOps;
+
+    private final BlockFormat2 format;
+
+    private final BlockBuffer block;
+
+    private final DataOutputStream blockData;
+
+    /** file position of the current block */
+    private long blockStart;
+
+    public BlockWriter2(FileOperations2 fileOps, BlockFormat2 format,
+            long dataFilePosition) {
+        this.fileOps = fileOps;
+        this.format = format;
+        this.block = new BlockBuffer(format.getBlockSize());
+        this.blockData = new DataOutputStream(this.block);
+        this.blockStart = dataFilePosition;
+    }
+
+    /**
+     * Adds a record, writing out the current block first if the record does
+     * not fit in it. With a deduplicator, a value written before is stored
+     * as a reference to it.
+     * 
+     * @return the logical position of the record
+     */
+    public long add(DataOutputStream dataFile, byte[] key, byte[] value,
+            ValueDeduplicator2 deduplicator) throws IOException {
+        long earlier = deduplicator == null ? -1L : deduplicator.find(value);
+        int length = earlier >= 0 ? fileOps.getReferenceLength(key) : fileOps
+                .getRecordLength(key, value);
+
+        int offset = block.size();
+        if (offset > 0 && offset + length > format.getBlockSize()) {
+            this.flush(dataFile);
+            offset = 0;
+        }
+
+        long position = format.toLogical(blockStart, offset);
+
+        if (earlier >= 0) {
+            fileOps.writeReference(blockData, offset, key, value.length,
+                    position - earlier);
+        } else {
+            fileOps.writeKeyVaue(blockData, offset, key, value);
+
+            // the value must be addressable as an offset in the block
+            int valueOffset = offset + fileOps.getValueOffset(key);
+            if (deduplicator != null && valueOffset < format.getBlockSize()) {
+                deduplicator.add(value, format.toLogical(blockStart,
+                        valueOffset));
+            }
+        }
+
+        return position;
+    }
+
+    /**
+     * Writes out the current block, if it holds any records.
+     * 
+     * @return the file position just past the written blocks
+     */
+    public long flush(DataOutputStream dataFile) throws IOException {
+        if (block.size() > 0) {
+            blockStart += format.writeBlock(block.getBuffer(), 0, block
+                    .size(), dataFile);
+            block.reset();
+        }
+
+        return blockStart;
+    }
+
+    /**
+     * Accounts for bytes written to the data file by others; the current
+     * block must be empty.
+     */
+    public void skip(long length) {
+        if (block.size() > 0) {
+            throw new IllegalStateException("unflushed records in block");
+        }
+
+        blockStart += length;
+    }
+
+    /** a ByteArrayOutputStream whose buffer can be read without copying */
+    private static class BlockBuffer extends ByteArrayOutputStream {
+        public BlockBuffer(int size) {
+            super(size);
+        }
+
+        public byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.nio.ByteBuffer;
+
+import com.g414.hash.LongHashMethods;
+
+/**
+ * Blocked bloom filter over the hash codes of a HashFile, version 2. All of
+ * the probes for a key fall into a single 64-byte block, so a lookup touches
+ * one cache line (and at most one page). Blocks are grouped by radix, which
+ * keeps the filter for each radix file disjoint during finish().
+ */
+public class BloomFilter2 {
+    /** size of a filter block in bytes (one cache line) */
+    public static final int BLOCK_LENGTH = 64;
+
+    /** number of bits in a filter block */
+    private static final int BLOCK_BITS = BLOCK_LENGTH * 8;
+
+    /** length of the filter header: K, BLOCKS_PER_RADIX, RESERVED */
+    public static final int HEADER_LENGTH = 4 + 4 + 8;
+
+    /** maximum number of probes per key */
+    private static final int MAX_K = 16;
+
+    /** keep the whole filter within a single mappable buffer */
+    private static final int MAX_BLOCKS_PER_RADIX = (Integer.MAX_VALUE - HEADER_LENGTH)
+            / (Calculations2.RADIX_FILE_COUNT * BLOCK_LENGTH);
+
+    /** filter contents, including the header */
+    private final ByteBuffer buffer;
+
+    /** number of probes per key */
+    private final int k;
+
+    /** number of blocks belonging to each radix */
+    private final int blocksPerRadix;
+
+    /** log base 2 of the number of buckets in the HashFile */
+    private final int bucketPower;
+
+    private BloomFilter2(ByteBuffer buffer, int k, int blocksPerRadix,
+            int bucketPower) {
+        this.buffer = buffer;
+        this.k = k;
+        this.blocksPerRadix = blocksPerRadix;
+        this.bucketPower = bucketPower;
+    }
+
+    /** creates an empty (heap) filter sized for the given element count */
+    public static BloomFilter2 create(long elementCount, int bitsPerKey,
+            int bucketPower) {
+        if (bitsPerKey < 1) {
+            throw new IllegalArgumentException("bitsPerKey must be >= 1");
+        }
+
+        int k = (int) Math.max(1, Math.min(MAX_K, Math.round(bitsPerKey
+                * Math.log(2.0))));
+
+        long blocks = ((elementCount * bitsPerKey) + BLOCK_BITS - 1)
+                / BLOCK_BITS;
+        long perRadix = (blocks + Calculations2.RADIX_FILE_COUNT - 1)
+                / Calculations2.RADIX_FILE_COUNT;
+        int blocksPerRadix = (int) Math.max(1, Math.min(MAX_BLOCKS_PER_RADIX,
+                perRadix));
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH
+                + (Calculations2.RADIX_FILE_COUNT * blocksPerRadix * BLOCK_LENGTH));
+        buffer.putInt(0, k);
+        buffer.putInt(4, blocksPerRadix);
+        buffer.putLong(8, 0L);
+
+        return new BloomFilter2(buffer, k, blocksPerRadix, bucketPower);
+    }
+
+    /** wraps an existing (typically mapped) filter section */
+    public static BloomFilter2 fromBuffer(ByteBuffer buffer, int bucketPower) {
+        int k = buffer.getInt(0);
+        int blocksPerRadix = buffer.getInt(4);
+
+        long expected = HEADER_LENGTH
+                + ((long) Calculations2.RADIX_FILE_COUNT * blocksPerRadix * BLOCK_LENGTH);
+        if (k < 1 || k > MAX_K || blocksPerRadix < 1
+                || buffer.capacity() != expected) {
+            throw new IllegalArgumentException("Malformed bloom filter section");
+        }
+
+        return new BloomFilter2(buffer, k, blocksPerRadix, bucketPower);
+    }
+
+    /** adds a hash code (as computed by Calculations2.computeHash) */
+    public void put(long hashCode) {
+        long mixed = LongHashMethods.mix64(hashCode);
+        int blockOffset = getBlockOffset(hashCode, mixed);
+        int h1 = (int) mixed;
+        int h2 = (h1 >>> 9) | 1;
+
+        for (int i = 0; i < k; i++) {
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            int wordOffset = blockOffset + ((bit >>> 6) << 3);
+
+            buffer.putLong(wordOffset, buffer.getLong(wordOffset)
+                    | (1L << (bit & 63)));
+        }
+    }
+
+    /**
+     * Returns false if the hash code was definitely never added, true if it
+     * may have been.
+     */
+    public boolean mightContain(long hashCode) {
+        long mixed = LongHashMethods.mix64(hashCode);
+        int blockOffset = getBlockOffset(hashCode, mixed);
+        int h1 = (int) mixed;
+        int h2 = (h1 >>> 9) | 1;
+
+        for (int i = 0; i < k; i++) {
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            int wordOffset = blockOffset + ((bit >>> 6) << 3);
+
+            if ((buffer.getLong(wordOffset) & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /** returns the filter contents, including the header */
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    /** returns the length of the filter, including the header */
+    public int getLength() {
+        return buffer.capacity();
+    }
+
+    private int getBlockOffset(long hashCode, long mixed) {
+        int radix = Calculations2.getRadix(hashCode, bucketPower);
+        int within = (int) (((mixed >>> 32) * blocksPerRadix) >>> 32);
+
+        return HEADER_LENGTH
+                + (((radix * blocksPerRadix) + within) * BLOCK_LENGTH);
+    }
+}
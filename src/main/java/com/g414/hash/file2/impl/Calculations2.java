@@ -82,6 +82,21 @@ public class Calculations2 {
         return (int) (hashValue & ((1L << buckets) - 1L));
     }
 
+    /**
+     * returns the shard of a HashFileSet for a given hash value; the hash is
+     * Fibonacci-mixed first, since the int hash rarely sets its sign bit
+     */
+    public static int getShard(long hashValue, boolean longHash,
+            int shardPower) {
+        if (shardPower == 0) {
+            return 0;
+        }
+
+        long bits = longHash ? hashValue : (hashValue & 0xFFFFFFFFL);
+
+        return (int) ((bits * 0x9E3779B97F4A7C15L) >>> (64 - shardPower));
+    }
+
     /** returns the base slot (by radix) corresponding to a given hash value */
     public static int getBaseBucketForHash(long hashValue, int buckets) {
         return getRadix(hashValue, buckets) << (buckets - 8);
@@ -133,7 +148,7 @@ public class Calculations2 {
     public static long[] computeBucketOffsets(long[] bucketCounts) {
         long[] bucketOffsets = new long[bucketCounts.length];
 
-        int curEntry = 0;
+        long curEntry = 0;
         for (int i = 0; i < bucketCounts.length; i++) {
             bucketOffsets[i] = curEntry;
             curEntry += bucketCounts[i];
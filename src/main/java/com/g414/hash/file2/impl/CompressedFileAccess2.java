@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Read access to the records of a compressed HashFile, version 2, by logical
+ * position (see BlockFormat2), through a cache of decompressed blocks. Reads
+ * never extend past the end of a block, so viewAtMost() is truncated there.
+ */
+public class CompressedFileAccess2 extends FileAccess2 {
+    private final FileAccess2 access;
+
+    private final BlockCache2 cache;
+
+    private final BlockFormat2 format;
+
+    public CompressedFileAccess2(FileAccess2 access, BlockCache2 cache) {
+        this.access = access;
+        this.cache = cache;
+        this.format = cache.getFormat();
+    }
+
+    /** returns the length of the underlying file */
+    @Override
+    public long length() {
+        return access.length();
+    }
+
+    @Override
+    public int read(long position, ByteBuffer target) throws IOException {
+        ByteBuffer data = this.getData(position);
+        int offset = format.getOffset(position);
+
+        if (offset >= data.limit()) {
+            return -1;
+        }
+
+        int length = Math.min(target.remaining(), data.limit() - offset);
+        ByteBuffer source = data.duplicate();
+        source.limit(offset + length);
+        source.position(offset);
+        target.put(source);
+
+        return length;
+    }
+
+    /** returns a view of the cached block, without copying */
+    @Override
+    public ByteBuffer view(long position, int length) throws IOException {
+        ByteBuffer data = this.getData(position);
+        int offset = format.getOffset(position);
+
+        if (offset + length > data.limit()) {
+            throw new EOFException("Unexpected end of HashFile block at "
+                    + position);
+        }
+
+        ByteBuffer result = data.duplicate();
+        result.limit(offset + length);
+        result.position(offset);
+
+        return result.slice();
+    }
+
+    @Override
+    public ByteBuffer viewAtMost(long position, int length)
+            throws IOException {
+        int available = this.getData(position).limit()
+                - format.getOffset(position);
+
+        return this.view(position, Math.max(0, Math.min(available, length)));
+    }
+
+    /** does nothing; the underlying access belongs to the caller */
+    @Override
+    public void close() throws IOException {
+    }
+
+    private ByteBuffer getData(long position) throws IOException {
+        return cache.get(access, format.getBlockStart(position)).getData();
+    }
+}
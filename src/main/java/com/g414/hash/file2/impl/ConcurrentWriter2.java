@@ -0,0 +1,275 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes records for a HashFile, version 2, from many threads at once. Each
+ * thread hashes its keys and encodes its records into a private block; a full
+ * block reserves its range of the data file with an atomic position counter
+ * and is written there positionally. The block's radix file entries are then
+ * appended one radix at a time, holding only that radix file's lock, which
+ * also guards the counts of that radix's buckets.
+ * <p>
+ * Records of one thread stay in the order they were added; records of
+ * different threads are interleaved by block. If the file is compressed,
+ * each thread's block is packed into compressed blocks before its range is
+ * reserved.
+ */
+public class ConcurrentWriter2 {
+    /** size at which a thread's block is written out */
+    public static final int BLOCK_SIZE = 1024 * 1024; // 1MB
+
+    private final FileOperations2 fileOps;
+
+    private final Header2 header;
+
+    private final FileChannel dataChannel;
+
+    private final DataOutputStream[] hashCodeList;
+
+    private final long[] bucketCounts;
+
+    /** the next unreserved data file position */
+    private final AtomicLong position;
+
+    /** every thread's block, so close() can write out partial ones */
+    private final Queue<Block> blocks = new ConcurrentLinkedQueue<Block>();
+
+    private final ThreadLocal<Block> threadBlock = new ThreadLocal<Block>() {
+        @Override
+        protected Block initialValue() {
+            Block block = new Block();
+            blocks.add(block);
+
+            return block;
+        }
+    };
+
+    public ConcurrentWriter2(FileOperations2 fileOps, FileChannel dataChannel,
+            long dataFilePosition, DataOutputStream[] hashCodeList,
+            long[] bucketCounts) {
+        this.fileOps = fileOps;
+        this.header = fileOps.getHeader();
+        this.dataChannel = dataChannel;
+        this.position = new AtomicLong(dataFilePosition);
+        this.hashCodeList = hashCodeList;
+        this.bucketCounts = bucketCounts;
+    }
+
+    /** adds a record; safe to call from any number of threads */
+    public void add(byte[] key, byte[] value) throws IOException {
+        // hashing happens before (and outside) any lock
+        this.add(key, value, Calculations2.computeHash(key, header
+                .isLongHash()));
+    }
+
+    /** add() for a key whose hash code is already known */
+    public void add(byte[] key, byte[] value, long hashCode)
+            throws IOException {
+        if (header.isFinished()) {
+            throw new IllegalStateException(
+                    "cannot add() to a finished hashFile");
+        }
+
+        Block block = threadBlock.get();
+        synchronized (block) {
+            block.add(key, value, hashCode);
+
+            if (block.bytes.size() >= BLOCK_SIZE) {
+                this.flush(block);
+            }
+        }
+    }
+
+    /**
+     * Writes out every thread's partial block; add() must no longer be
+     * running.
+     * 
+     * @return the data file position just past the last record
+     */
+    public long close() throws IOException {
+        for (Block block : blocks) {
+            synchronized (block) {
+                this.flush(block);
+            }
+        }
+
+        // make the radix files and bucket counts visible to this thread
+        for (DataOutputStream stream : hashCodeList) {
+            synchronized (stream) {
+                stream.flush();
+            }
+        }
+
+        return position.get();
+    }
+
+    private void flush(Block block) throws IOException {
+        int length = block.bytes.size();
+        if (length == 0) {
+            return;
+        }
+
+        ByteBuffer data = ByteBuffer.wrap(block.bytes.getBuffer(), 0, length);
+
+        BlockFormat2 format = fileOps.getBlockFormat();
+        if (format != null) {
+            data = this.compress(block, format);
+            length = data.remaining();
+        }
+
+        long start = position.getAndAdd(length);
+        if (!header.isLargeFile() && start + length > Integer.MAX_VALUE) {
+            throw new IOException("HashFile is too big.");
+        }
+
+        while (data.hasRemaining()) {
+            dataChannel.write(data, start + data.position());
+        }
+
+        // group the entries by radix, so each radix file is locked once
+        int bucketPower = header.getBucketPower();
+        int[] radixStarts = new int[Calculations2.RADIX_FILE_COUNT + 1];
+        for (int i = 0; i < block.count; i++) {
+            radixStarts[Calculations2.getRadix(block.hashCodes[i],
+                    bucketPower) + 1] += 1;
+        }
+        for (int r = 0; r < Calculations2.RADIX_FILE_COUNT; r++) {
+            radixStarts[r + 1] += radixStarts[r];
+        }
+
+        int[] order = new int[block.count];
+        int[] fill = radixStarts.clone();
+        for (int i = 0; i < block.count; i++) {
+            order[fill[Calculations2.getRadix(block.hashCodes[i],
+                    bucketPower)]++] = i;
+        }
+
+        for (int r = 0; r < Calculations2.RADIX_FILE_COUNT; r++) {
+            if (radixStarts[r] == radixStarts[r + 1]) {
+                continue;
+            }
+
+            synchronized (hashCodeList[r]) {
+                for (int j = radixStarts[r]; j < radixStarts[r + 1]; j++) {
+                    int i = order[j];
+                    fileOps.writeHashEntry(hashCodeList, bucketCounts,
+                            format == null ? start + block.offsets[i] : format
+                                    .rebase(block.offsets[i], start),
+                            block.hashCodes[i]);
+                }
+            }
+        }
+
+        header.addElementCount(block.count);
+        block.clear();
+    }
+
+    /**
+     * Packs a block's records into compressed blocks, replacing their offsets
+     * by logical positions relative to the start of the packed blocks.
+     */
+    private ByteBuffer compress(Block block, BlockFormat2 format)
+            throws IOException {
+        byte[] bytes = block.bytes.getBuffer();
+        int length = block.bytes.size();
+
+        if (block.packed == null) {
+            block.packed = new RecordBuffer();
+        }
+        RecordBuffer packed = block.packed;
+        packed.reset();
+        DataOutputStream out = new DataOutputStream(packed);
+
+        int blockStart = 0;
+        for (int i = 0; i < block.count; i++) {
+            int offset = (int) block.offsets[i];
+            int recordEnd = i + 1 < block.count ? (int) block.offsets[i + 1]
+                    : length;
+
+            if (offset > blockStart
+                    && recordEnd - blockStart > format.getBlockSize()) {
+                format.writeBlock(bytes, blockStart, offset - blockStart, out);
+                blockStart = offset;
+            }
+
+            block.offsets[i] = format.toLogical(packed.size(), offset
+                    - blockStart);
+        }
+        format.writeBlock(bytes, blockStart, length - blockStart, out);
+
+        return ByteBuffer.wrap(packed.getBuffer(), 0, packed.size());
+    }
+
+    /** one thread's pending records and their radix file entries */
+    private class Block {
+        private final RecordBuffer bytes = new RecordBuffer();
+
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        /** the compressed blocks being written, if the file is compressed */
+        private RecordBuffer packed;
+
+        private long[] hashCodes = new long[1024];
+
+        private long[] offsets = new long[1024];
+
+        private int count;
+
+        public void add(byte[] key, byte[] value, long hashCode)
+                throws IOException {
+            if (count == hashCodes.length) {
+                hashCodes = Arrays.copyOf(hashCodes, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+
+            long offset = bytes.size();
+            fileOps.writeRecord(out, offset, key, value);
+
+            hashCodes[count] = hashCode;
+            offsets[count] = offset;
+            count += 1;
+        }
+
+        public void clear() {
+            bytes.reset();
+            count = 0;
+        }
+    }
+
+    /** a ByteArrayOutputStream whose buffer can be written without copying */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        public RecordBuffer() {
+            super(BLOCK_SIZE + 64 * 1024);
+        }
+
+        public byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
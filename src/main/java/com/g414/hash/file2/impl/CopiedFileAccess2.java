@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * FileAccess2 that serves one range of the file (typically the hash tables)
+ * from an in-memory copy, and everything else from another FileAccess2.
+ * Views within the copy are zero-copy.
+ */
+public class CopiedFileAccess2 extends FileAccess2 {
+    private final FileAccess2 base;
+
+    private final long start;
+
+    private final ByteBuffer copy;
+
+    /**
+     * Copies the range [start, end) of the base into a heap or direct
+     * buffer.
+     */
+    public CopiedFileAccess2(FileAccess2 base, long start, long end,
+            boolean direct) throws IOException {
+        if (end - start > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("range too large to copy: "
+                    + (end - start));
+        }
+
+        int length = (int) (end - start);
+        ByteBuffer theCopy = direct ? ByteBuffer.allocateDirect(length)
+                : ByteBuffer.allocate(length);
+        base.readFully(start, theCopy);
+        theCopy.rewind();
+
+        this.base = base;
+        this.start = start;
+        this.copy = theCopy.asReadOnlyBuffer();
+    }
+
+    @Override
+    public long length() {
+        return base.length();
+    }
+
+    /** returns true if [position, position + length) is in the copy */
+    private boolean isCopied(long position, long length) {
+        return position >= start
+                && position + length <= start + copy.capacity();
+    }
+
+    @Override
+    public int read(long position, ByteBuffer target) throws IOException {
+        if (!isCopied(position, target.remaining())) {
+            return base.read(position, target);
+        }
+
+        int length = target.remaining();
+        target.put(this.view(position, length));
+
+        return length;
+    }
+
+    @Override
+    public ByteBuffer view(long position, int length) throws IOException {
+        if (!isCopied(position, length)) {
+            return base.view(position, length);
+        }
+
+        ByteBuffer result = copy.duplicate();
+        result.position((int) (position - start));
+        result.limit((int) (position - start) + length);
+
+        return result.slice();
+    }
+
+    @Override
+    public long touch(long start, long end) throws IOException {
+        return base.touch(start, end);
+    }
+
+    @Override
+    public void close() throws IOException {
+        base.close();
+    }
+}
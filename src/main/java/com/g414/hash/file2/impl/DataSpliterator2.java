@@ -0,0 +1,210 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import com.g414.hash.file2.HashEntry;
+
+/**
+ * Spliterator over the records in the data segment of a HashFile, version
+ * 2. Records are not self-delimiting, so split points are taken from record
+ * positions sampled from the hash tables; each split covers the records
+ * between two such positions.
+ */
+public class DataSpliterator2 implements Spliterator<HashEntry> {
+    /** target number of split points sampled from the hash tables */
+    public static final int TARGET_SPLIT_POINTS = 4096;
+
+    private final Header2 header;
+
+    private final FileAccess2 access;
+
+    /** layout of the compressed data segment, or null */
+    private final BlockFormat2 format;
+
+    /** sorted record positions; the last is the end of the data segment */
+    private final long[] boundaries;
+
+    /** index of this split's first boundary */
+    private int lo;
+
+    /** index of this split's end boundary */
+    private final int hi;
+
+    /** reader for this split, created once iteration starts */
+    private RecordReader2 reader;
+
+    public DataSpliterator2(Header2 header, FileAccess2 access,
+            long[] boundaries, int lo, int hi) {
+        this(header, null, access, boundaries, lo, hi);
+    }
+
+    public DataSpliterator2(Header2 header, BlockFormat2 format,
+            FileAccess2 access, long[] boundaries, int lo, int hi) {
+        this.header = header;
+        this.format = format;
+        this.access = access;
+        this.boundaries = boundaries;
+        this.lo = lo;
+        this.hi = hi;
+    }
+
+    /** creates a spliterator over the whole data segment */
+    public static DataSpliterator2 create(FileOperations2 fileOps,
+            FileAccess2 access, ByteBuffer hashTableOffsets) {
+        try {
+            long[] boundaries = getSplitPoints(fileOps, access,
+                    hashTableOffsets, TARGET_SPLIT_POINTS);
+
+            return new DataSpliterator2(fileOps.getHeader(), fileOps
+                    .getBlockFormat(), access, boundaries, 0,
+                    boundaries.length - 1);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to create hashfile spliterator: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Samples record positions from the hash tables of evenly spaced
+     * buckets (or from the perfect hash index), returning them sorted and
+     * de-duplicated, bracketed by the start and end of the data segment. In
+     * a compressed file, the positions of the sampled records' blocks are
+     * returned instead.
+     */
+    public static long[] getSplitPoints(FileOperations2 fileOps,
+            FileAccess2 access, ByteBuffer hashTableOffsets, int target)
+            throws IOException {
+        Header2 header = fileOps.getHeader();
+        int buckets = header.getBuckets();
+        int entrySize = header.getHashTableEntrySize();
+        int hashSize = header.isLongHash() ? 8 : 4;
+        int stride = Math.max(1, buckets / Math.max(1, target));
+
+        long start = header.getTotalHeaderLength();
+        long end = fileOps.getStartOfHashTables(hashTableOffsets);
+
+        long[] points = new long[16];
+        int count = 0;
+        points[count++] = start;
+
+        if (header.isPerfectHash()) {
+            long[] sampled = fileOps.getPerfectHash().samplePositions(access,
+                    target);
+
+            points = Arrays.copyOf(points, sampled.length + 1);
+            System.arraycopy(sampled, 0, points, 1, sampled.length);
+            count += sampled.length;
+        } else {
+            for (int i = 0; i < buckets && count < target; i += stride) {
+                int size = (int) fileOps.getHashTableSize(hashTableOffsets, i);
+                if (size == 0) {
+                    continue;
+                }
+
+                // one entry per sampled bucket is plenty
+                ByteBuffer entry = access.view(fileOps.getHashTablePosition(
+                        hashTableOffsets, i), entrySize);
+                long position = (header.isLargeFile() ? entry
+                        .getLong(hashSize) : entry.getInt(hashSize)) << FileOperations2.ALIGNMENT;
+
+                if (count == points.length) {
+                    points = Arrays.copyOf(points, count * 2);
+                }
+                points[count++] = position;
+            }
+        }
+
+        BlockFormat2 format = fileOps.getBlockFormat();
+        if (format != null) {
+            for (int i = 1; i < count; i++) {
+                points[i] = format.getBlockStart(points[i]);
+            }
+        }
+
+        Arrays.sort(points, 0, count);
+
+        long[] result = new long[count + 1];
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (points[i] < end
+                    && (unique == 0 || points[i] > result[unique - 1])) {
+                result[unique++] = points[i];
+            }
+        }
+        result[unique++] = end;
+
+        return Arrays.copyOf(result, unique);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super HashEntry> action) {
+        try {
+            if (reader == null) {
+                reader = new RecordReader2(header, format, access,
+                        boundaries[lo], boundaries[hi]);
+            }
+
+            if (!reader.next()) {
+                return false;
+            }
+
+            action.accept(new HashEntry(reader.getKey(), reader.getValue()));
+
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException("Error while scanning hashfile: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Spliterator<HashEntry> trySplit() {
+        if (reader != null || hi - lo < 2) {
+            return null;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        Spliterator<HashEntry> prefix = new DataSpliterator2(header, format,
+                access, boundaries, lo, mid);
+        this.lo = mid;
+
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        long total = boundaries[boundaries.length - 1] - boundaries[0];
+        if (total <= 0) {
+            return 0L;
+        }
+
+        return (long) ((double) header.getElementCount()
+                * (boundaries[hi] - boundaries[lo]) / total);
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | IMMUTABLE;
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import com.g414.hash.file2.ReadMode;
+
+/**
+ * Random read access to the contents of a HashFile, version 2. Positions are
+ * absolute file offsets; implementations must be safe for concurrent use.
+ */
+public abstract class FileAccess2 {
+    /** length of the buffer used by touch() */
+    public static final int TOUCH_BUFFER_LENGTH = 256 * 1024; // 256KB
+
+    /** returns the total length of the file */
+    public abstract long length();
+
+    /**
+     * Reads up to <code>target.remaining()</code> bytes starting at the given
+     * file position, advancing the target's position.
+     *
+     * @return the number of bytes read, or -1 at end of file
+     */
+    public abstract int read(long position, ByteBuffer target)
+            throws IOException;
+
+    /** releases any resources held by this instance */
+    public abstract void close() throws IOException;
+
+    /**
+     * Reads exactly <code>target.remaining()</code> bytes starting at the
+     * given file position.
+     */
+    public void readFully(long position, ByteBuffer target) throws IOException {
+        while (target.hasRemaining()) {
+            int read = this.read(position, target);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of HashFile at "
+                        + position);
+            }
+
+            position += read;
+        }
+    }
+
+    /**
+     * Returns a buffer holding <code>length</code> bytes starting at the given
+     * file position, indexed from zero. Implementations backed by memory may
+     * return a view rather than a copy, so callers must not modify it.
+     */
+    public ByteBuffer view(long position, int length) throws IOException {
+        ByteBuffer result = ByteBuffer.allocate(length);
+        this.readFully(position, result);
+        result.rewind();
+
+        return result;
+    }
+
+    /**
+     * Returns a buffer holding up to <code>length</code> bytes starting at
+     * the given file position, truncated at end of file.
+     */
+    public ByteBuffer viewAtMost(long position, int length) throws IOException {
+        long available = this.length() - position;
+
+        return this.view(position, (int) Math.max(0L, Math.min(available,
+                length)));
+    }
+
+    /**
+     * Reads the given range sequentially so that it ends up in memory (e.g.
+     * the page cache), discarding the data.
+     *
+     * @return a checksum of sorts, so the reads cannot be optimized away
+     */
+    public long touch(long start, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(TOUCH_BUFFER_LENGTH);
+        long sum = 0L;
+
+        for (long pos = start; pos < end; pos += buffer.capacity()) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - pos));
+            this.readFully(pos, buffer);
+            sum += buffer.get(0);
+        }
+
+        return sum;
+    }
+
+    /** opens the appropriate FileAccess2 implementation for a read mode */
+    public static FileAccess2 open(RandomAccessFile file, ReadMode mode)
+            throws IOException {
+        switch (mode) {
+        case SEEK:
+            return new SeekFileAccess2(file);
+        case MAPPED:
+            return new MappedFileAccess2(file.getChannel());
+        case POSITIONAL:
+            return new PositionalFileAccess2(file.getChannel());
+        default:
+            throw new IllegalArgumentException("Unknown ReadMode: " + mode);
+        }
+    }
+}
@@ -17,24 +17,31 @@
  */
 package com.g414.hash.file2.impl;
 
-import java.io.BufferedInputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.g414.hash.file2.ByteSize;
 import com.g414.hash.file2.HashEntry;
+import com.g414.hash.file2.LookupMetrics;
 
 public class FileOperations2 {
+    /** log base 2 of the alignment of data file positions */
+    public static final int ALIGNMENT = 2;
+
     /** size of read buffer for iterator */
     public static final int ITERATOR_READ_BUFFER_LENGTH = 16 * 1024 * 1024; // 16MB
 
@@ -44,6 +51,12 @@ public class FileOperations2 {
     /** size of write buffer for main data file */
     public static final int SEQUENTIAL_READ_BUFFER_SIZE = 16 * 1024 * 1024; // 16MB
 
+    /** default memory budget for radixes being built in parallel */
+    public static final long DEFAULT_FINISH_MEMORY_BUDGET = 256L * 1024 * 1024; // 256MB
+
+    /** smallest part a radix file's hash tables are built in */
+    public static final long MIN_BUILD_LENGTH = 4 * 1024; // 4KB
+
     private final boolean isLargeFile;
     private final boolean isLargeCapacity;
     private final int slotSize;
@@ -54,7 +67,7 @@ public class FileOperations2 {
     /** total number of buckets */
     private final int buckets;
 
-    private final int alignment = 2;
+    private final int alignment = ALIGNMENT;
 
     private final ByteSize keySize;
 
@@ -72,6 +85,30 @@ public class FileOperations2 {
 
     private final Header2 header;
 
+    /** the perfect hash index, once loaded by a reader (if the file has one) */
+    private volatile PerfectHash2 perfectHash;
+
+    /**
+     * the largest distance of any hash table entry from its home slot, if
+     * known to a reader; lookups never look further away than this
+     */
+    private volatile int maxDisplacement = Integer.MAX_VALUE;
+
+    /** lookup metrics, or null (the default) if they are disabled */
+    private volatile LookupMetrics metrics;
+
+    /** layout of the compressed data segment, or null if not compressed */
+    private volatile BlockFormat2 blockFormat;
+
+    /** decompressed blocks, for a reader of a compressed file */
+    private volatile BlockCache2 blockCache;
+
+    /** number of threads building radix indexes during finish() */
+    private int finishThreads = Runtime.getRuntime().availableProcessors();
+
+    /** approximate memory finish() may use for radixes being built */
+    private long finishMemoryBudget = DEFAULT_FINISH_MEMORY_BUDGET;
+
     protected FileOperations2(Header2 header, int bucketPower, int buckets,
             ByteSize keySize, ByteSize valueSize, boolean isLongHash,
             boolean isLargeCapacity, boolean isLargeFile) {
@@ -101,8 +138,9 @@ public class FileOperations2 {
     }
 
     public void finish(long dataFilePosition, String dataFilePath,
-            DataOutputStream dataFile, String radixFilePrefix,
-            DataOutputStream[] hashCodeList, long[] bucketCounts)
+            DataOutputStream dataFile, RadixStore2 radixes,
+            long[] bucketCounts,
+            int bloomFilterBitsPerKey, int fingerprintBits)
             throws IOException, FileNotFoundException {
         if (header.isFinished()) {
             throw new IllegalStateException(
@@ -111,9 +149,7 @@ public class FileOperations2 {
         header.setFinished();
 
         dataFile.close();
-        for (DataOutputStream stream : hashCodeList) {
-            stream.close();
-        }
+        radixes.close();
 
         long[] bucketOffsets = Calculations2.computeBucketOffsets(bucketCounts);
         long pos = dataFilePosition;
@@ -122,22 +158,66 @@ public class FileOperations2 {
                 dataFilePath, "rw");
         dataFileRandomAccess.seek(dataFilePosition);
 
-        writeHashTable(radixFilePrefix, bucketOffsets, bucketCounts,
-                dataFileRandomAccess);
+        BloomFilter2 filter = null;
+        if (bloomFilterBitsPerKey > 0 && header.getElementCount() > 0) {
+            filter = BloomFilter2.create(header.getElementCount(),
+                    bloomFilterBitsPerKey, bucketPower);
+        }
+
+        ByteBuffer slotTable;
+        int maxDisplacement = -1;
+        if (header.isPerfectHash()) {
+            // logical positions in compressed files exceed file positions
+            long maxPosition = blockFormat == null ? pos : blockFormat
+                    .toLogical(pos, 0);
+
+            slotTable = writePerfectHash(radixes, maxPosition,
+                    dataFileRandomAccess, filter, fingerprintBits);
+        } else {
+            maxDisplacement = writeHashTable(radixes,
+                    bucketOffsets, bucketCounts, dataFileRandomAccess, filter);
+
+            slotTable = Calculations2.getBucketPositionTable(alignment,
+                    bucketOffsets, bucketCounts, pos, header.isLongHash(),
+                    header.isLargeFile(), header.isLargeCapacity());
+        }
+
+        Sections2 sections = new Sections2();
+
+        if (filter != null) {
+            long filterOffset = dataFileRandomAccess.getFilePointer();
+            dataFileRandomAccess.write(filter.array());
+            sections.add(Sections2.BLOOM_FILTER, filterOffset, filter
+                    .getLength());
+        }
 
-        ByteBuffer slotTable = Calculations2.getBucketPositionTable(alignment,
-                bucketOffsets, bucketCounts, pos, header.isLongHash(), header
-                        .isLargeFile(), header.isLargeCapacity());
+        if (maxDisplacement >= 0) {
+            long displacementOffset = dataFileRandomAccess.getFilePointer();
+            dataFileRandomAccess.writeInt(maxDisplacement);
+            sections.add(Sections2.MAX_DISPLACEMENT, displacementOffset, 4);
+            header.setFlag(Header2.FLAG_SORTED_BUCKETS);
+        }
+
+        if (blockFormat != null) {
+            long formatOffset = dataFileRandomAccess.getFilePointer();
+            blockFormat.write(dataFileRandomAccess);
+            sections.add(Sections2.COMPRESSION, formatOffset,
+                    dataFileRandomAccess.getFilePointer() - formatOffset);
+            header.setFlag(Header2.FLAG_COMPRESSED);
+        }
+
+        if (!sections.isEmpty()) {
+            sections.write(dataFileRandomAccess, dataFileRandomAccess
+                    .getFilePointer());
+            header.setFlag(Header2.FLAG_SECTIONS);
+        }
 
         dataFileRandomAccess.seek(0L);
         header.write(dataFileRandomAccess);
 
         dataFileRandomAccess.write(slotTable.array());
 
-        for (int i = 0; i < Calculations2.RADIX_FILE_COUNT; i++) {
-            String filename = String.format("%s%02X", radixFilePrefix, i);
-            (new File(filename)).delete();
-        }
+        radixes.delete();
 
         dataFileRandomAccess.close();
     }
@@ -145,8 +225,18 @@ public class FileOperations2 {
     public void writeHashEntry(DataOutputStream[] hashCodeList,
             long[] bucketCounts, long dataFilePosition, byte[] key)
             throws IOException {
-        long hashValue = Calculations2.computeHash(key, isLongHash);
+        writeHashEntry(hashCodeList, bucketCounts, dataFilePosition,
+                Calculations2.computeHash(key, isLongHash));
+    }
 
+    /**
+     * Writes the radix file entry for a record whose key has already been
+     * hashed. Only the entry's radix file and the counts of that radix's
+     * buckets are touched.
+     */
+    public void writeHashEntry(DataOutputStream[] hashCodeList,
+            long[] bucketCounts, long dataFilePosition, long hashValue)
+            throws IOException {
         int radix = Calculations2.getRadix(hashValue, bucketPower);
         int bucket = Calculations2.getBucket(hashValue, bucketPower);
 
@@ -174,11 +264,91 @@ public class FileOperations2 {
 
         this.header.incrementElementCount();
 
+        return writeRecord(dataFile, pos, key, value);
+    }
+
+    /**
+     * Writes a record whose value is the same as that of an earlier record
+     * (in a deduplicated file), as a reference to it, returning the position
+     * just past the record.
+     * 
+     * @param distance
+     *            how far before this record's position the value starts
+     */
+    public long writeReference(DataOutputStream dataFile, long pos,
+            byte[] key, int valueLength, long distance) throws IOException {
+        if (header.isFinished()) {
+            throw new IllegalStateException(
+                    "cannot add() to a finished hashFile");
+        }
+
+        if (!header.isDeduplicated()) {
+            throw new IllegalStateException(
+                    "HashFile does not deduplicate values");
+        }
+
+        this.header.incrementElementCount();
+
+        if (!isAssociative) {
+            write(dataFile, keySize, key.length);
+        }
+
+        write(dataFile, valueSize, ((long) valueLength << 1) | 1L);
+
+        if (!isAssociative) {
+            dataFile.write(key);
+        }
+
+        write(dataFile, isLargeFile ? ByteSize.EIGHT : ByteSize.FOUR,
+                distance);
+
+        int length = this.getReferenceLength(key);
+        int unpadded = this.getValueOffset(key) + this.getReferenceSize();
+        dataFile.write(new byte[length - unpadded]);
+
+        return advanceBytes(pos, length, isLargeFile);
+    }
+
+    /** returns the size of a value reference in a deduplicated file */
+    public int getReferenceSize() {
+        return positionSizeBytes;
+    }
+
+    /** returns the offset of the value (or reference) within a record */
+    public int getValueOffset(byte[] key) {
+        return isAssociative ? valueSize.getSize() : keySize.getSize()
+                + valueSize.getSize() + key.length;
+    }
+
+    /** returns the length of a reference record, including its padding */
+    public int getReferenceLength(byte[] key) {
+        return (this.getValueOffset(key) + this.getReferenceSize() + 3) & ~3;
+    }
+
+    /** returns the length of a record, including its padding */
+    public int getRecordLength(byte[] key, byte[] value) {
+        int length = valueSize.getSize() + value.length;
+        if (!isAssociative) {
+            length += keySize.getSize() + key.length;
+        }
+
+        return (length + 3) & ~3;
+    }
+
+    /**
+     * Writes a record without counting it as an element (the caller does),
+     * returning the position just past it.
+     */
+    public long writeRecord(DataOutputStream dataFile, long pos, byte[] key,
+            byte[] value) throws IOException {
         if (!isAssociative) {
             write(dataFile, keySize, key.length);
         }
 
-        write(dataFile, valueSize, value.length);
+        // deduplicated files keep a reference bit in the value length
+        long valueLength = value.length;
+        write(dataFile, valueSize, header.isDeduplicated() ? valueLength << 1
+                : valueLength);
 
         if (!isAssociative) {
             dataFile.write(key);
@@ -198,12 +368,25 @@ public class FileOperations2 {
         return advanceBytes(pos, bytesWritten, isLargeFile);
     }
 
-    public void readBucketEntries(ByteBuffer hashTableOffsets) {
-        int slots = this.buckets;
-        for (int i = 0; i < slots; i++) {
-            getHashTablePosition(hashTableOffsets, i);
-            getHashTableSize(hashTableOffsets, i);
+    /** returns the file position of the first hash table */
+    public long getStartOfHashTables(ByteBuffer hashTableOffsets) {
+        return getHashTablePosition(hashTableOffsets, 0);
+    }
+
+    /** returns the file position just past the last hash table */
+    public long getEndOfHashTables(ByteBuffer hashTableOffsets) {
+        long end = getStartOfHashTables(hashTableOffsets);
+
+        // perfect hash partitions record their length in bytes
+        int entrySize = header.isPerfectHash() ? 1 : header
+                .getHashTableEntrySize();
+
+        for (int i = 0; i < this.buckets; i++) {
+            end = Math.max(end, getHashTablePosition(hashTableOffsets, i)
+                    + getHashTableSize(hashTableOffsets, i) * entrySize);
         }
+
+        return end;
     }
 
     public long getEndOfData(RandomAccessFile in) throws IOException {
@@ -241,7 +424,7 @@ public class FileOperations2 {
                 padding = 0;
             }
 
-            input.read(new byte[padding]);
+            input.skipBytes(padding);
             pos.addAndGet(padding);
 
             return new HashEntry(key, data);
@@ -250,158 +433,244 @@ public class FileOperations2 {
         }
     }
 
-    public byte[] getFirst(RandomAccessFile hashFile,
-            ByteBuffer hashTableOffsets, byte[] key) {
-        if (hashFile == null) {
-            throw new IllegalStateException(
-                    "get() not allowed when HashFile is closed()");
-        }
-
-        if (isAssociative) {
-            throw new UnsupportedOperationException(
-                    "get() not allowed for associative hash files, use getMulti() instead");
-        }
+    public byte[] getFirst(FileAccess2 access, ByteBuffer hashTableOffsets,
+            BloomFilter2 filter, byte[] key) {
+        return getFirst(access, hashTableOffsets, filter, key, Calculations2
+                .computeHash(key, isLongHash));
+    }
 
-        long currentHashKey = Calculations2.computeHash(key, isLongHash);
-        int slot = Calculations2.getBucket(currentHashKey, bucketPower);
-        int slotOffset = slot * slotSize;
+    public byte[] getFirst(FileAccess2 access, ByteBuffer hashTableOffsets,
+            BloomFilter2 filter, byte[] key, long hashCode) {
+        checkGet(access);
 
-        long currentHashTableBasePosition = (isLargeCapacity ? hashTableOffsets
-                .getLong(slotOffset) : hashTableOffsets.getInt(slotOffset)) << alignment;
+        LookupMetrics theMetrics = this.metrics;
+        long start = theMetrics == null ? 0L : System.nanoTime();
 
-        int off = this.bucketCountSizeBytes;
+        try {
+            Probe2 probe = new Probe2(this, access, hashTableOffsets, filter,
+                    key, hashCode);
+            byte[] value = probe.next() ? probe.getValue() : null;
 
-        long currentHashTableSize = isLargeCapacity ? hashTableOffsets
-                .getLong(slotOffset + off) : hashTableOffsets.getInt(slotOffset
-                + off);
+            if (theMetrics != null) {
+                record(theMetrics, probe, value != null, System.nanoTime()
+                        - start);
+            }
 
-        if (currentHashTableSize == 0) {
-            return null;
+            return value;
+        } catch (IOException e) {
+            throw new RuntimeException("Error while finding key: "
+                    + e.getMessage(), e);
         }
+    }
 
-        int probe = (int) (Math.abs(currentHashKey) % currentHashTableSize);
+    public ByteBuffer getFirstView(FileAccess2 access,
+            ByteBuffer hashTableOffsets, BloomFilter2 filter, byte[] key) {
+        checkGet(access);
 
-        ByteBuffer tableBytes = ByteBuffer.allocate(Calculations2
-                .getHashTableEntrySize(isLongHash, isLargeFile)
-                * ((int) currentHashTableSize));
+        LookupMetrics theMetrics = this.metrics;
+        long start = theMetrics == null ? 0L : System.nanoTime();
 
-        ByteBuffer fileBytes = ByteBuffer.allocate(RANDOM_READ_BUFFER_LENGTH);
+        try {
+            Probe2 probe = new Probe2(this, access, hashTableOffsets, filter,
+                    key);
+            ByteBuffer value = probe.next() ? probe.getValueView() : null;
 
-        int longPointerSize = Calculations2.getHashTableEntrySize(isLongHash,
-                isLargeFile);
+            if (theMetrics != null) {
+                record(theMetrics, probe, value != null, System.nanoTime()
+                        - start);
+            }
+
+            return value;
+        } catch (IOException e) {
+            throw new RuntimeException("Error while finding key: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the length of the first value stored under the key, or -1 if
+     * there is none; values are never read.
+     */
+    public int getFirstValueLength(FileAccess2 access,
+            ByteBuffer hashTableOffsets, BloomFilter2 filter, byte[] key) {
+        checkGet(access);
+
+        LookupMetrics theMetrics = this.metrics;
+        long start = theMetrics == null ? 0L : System.nanoTime();
 
         try {
-            synchronized (hashFile) {
-                hashFile.seek(currentHashTableBasePosition);
-                hashFile.readFully(tableBytes.array());
+            Probe2 probe = new Probe2(this, access, hashTableOffsets, filter,
+                    key);
+            probe.setReadValues(false);
+            int length = probe.next() ? probe.getValueLength() : -1;
+
+            if (theMetrics != null) {
+                record(theMetrics, probe, length >= 0, System.nanoTime()
+                        - start);
             }
 
-            long currentFindOperationIndex = 0;
+            return length;
+        } catch (IOException e) {
+            throw new RuntimeException("Error while finding key: "
+                    + e.getMessage(), e);
+        }
+    }
 
-            while (currentFindOperationIndex < currentHashTableSize) {
-                tableBytes.rewind();
-                int probeSlot = probe * longPointerSize;
-                long probedHashCode = isLongHash ? tableBytes
-                        .getLong(probeSlot) : tableBytes.getInt(probeSlot);
-                int off2 = this.hashSizeBytes;
+    private void checkGet(FileAccess2 access) {
+        if (access == null) {
+            throw new IllegalStateException(
+                    "get() not allowed when HashFile is closed()");
+        }
 
-                long probedPosition = (isLargeFile ? tableBytes
-                        .getLong(probeSlot + off2) : tableBytes
-                        .getInt(probeSlot + off2)) << alignment;
+        if (isAssociative) {
+            throw new UnsupportedOperationException(
+                    "get() not allowed for associative hash files, use getMulti() instead");
+        }
+    }
 
-                if (probedPosition == 0) {
-                    return null;
-                }
+    public Iterable<byte[]> getMulti(final FileAccess2 access,
+            final ByteBuffer hashTableOffsets, final BloomFilter2 filter,
+            final byte[] key) {
+        return getMulti(access, hashTableOffsets, filter, key, Calculations2
+                .computeHash(key, isLongHash));
+    }
 
-                currentFindOperationIndex += 1;
-                probe += 1;
+    public Iterable<byte[]> getMulti(final FileAccess2 access,
+            final ByteBuffer hashTableOffsets, final BloomFilter2 filter,
+            final byte[] key, final long hashCode) {
+        if (access == null) {
+            throw new IllegalStateException(
+                    "get() not allowed when HashFile is closed()");
+        }
 
-                if (probe >= currentHashTableSize) {
-                    probe = 0;
-                }
+        return Iterators2.getMultiIterable(this, access, hashTableOffsets,
+                filter, key, hashCode);
+    }
 
-                if (probedHashCode != currentHashKey) {
-                    continue;
-                }
+    public Header2 getHeader() {
+        return header;
+    }
 
-                synchronized (hashFile) {
-                    hashFile.seek(probedPosition);
-                    hashFile.read(fileBytes.array());
-                }
+    /** returns the perfect hash index, or null if it has not been loaded */
+    public PerfectHash2 getPerfectHash() {
+        return perfectHash;
+    }
 
-                long keyLength = isAssociative ? 0
-                        : read(fileBytes, keySize, 0);
+    /** returns the largest displacement of any hash table entry */
+    public int getMaxDisplacement() {
+        return maxDisplacement;
+    }
 
-                if (!isAssociative && keyLength != key.length) {
-                    continue;
-                }
+    /** sets the largest displacement, as recorded in the file being read */
+    public void setMaxDisplacement(int maxDisplacement) {
+        this.maxDisplacement = maxDisplacement;
+    }
 
-                long dataLength = read(fileBytes, valueSize, keySize.getSize());
+    /**
+     * Sets the number of threads finish() builds the per-radix indexes with;
+     * with more than one, radixes are built on a fork-join pool while
+     * earlier ones are written. The file is the same either way.
+     */
+    public void setFinishThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1");
+        }
 
-                byte[] probedKey = new byte[(int) keyLength];
-                byte[] data = new byte[(int) dataLength];
+        this.finishThreads = threads;
+    }
 
-                int entrySize = valueSize.getSize()
-                        + (int) dataLength
-                        + (isAssociative ? 0 : keySize.getSize()
-                                + (int) keyLength);
+    /**
+     * Sets roughly how many bytes of radixes finish() may build at once when
+     * using several threads. A radix file whose hash tables would not fit is
+     * built in parts; a perfect hash partition is always built at once.
+     */
+    public void setFinishMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 1) {
+            throw new IllegalArgumentException("memoryBudget must be >= 1");
+        }
 
-                if (entrySize < RANDOM_READ_BUFFER_LENGTH) {
-                    fileBytes.rewind();
-                    fileBytes.get(new byte[keySize.getSize()
-                            + valueSize.getSize()]);
-                    fileBytes.get(probedKey);
+        this.finishMemoryBudget = memoryBudget;
+    }
 
-                    if (!isAssociative && !Arrays.equals(key, probedKey)) {
-                        continue;
-                    }
+    /** returns the lookup metrics, or null if they are disabled */
+    public LookupMetrics getMetrics() {
+        return metrics;
+    }
 
-                    fileBytes.get(data);
-                } else {
-                    synchronized (hashFile) {
-                        hashFile.seek(probedPosition + keySize.getSize()
-                                + valueSize.getSize());
-                        hashFile.readFully(probedKey);
+    /** sets the lookup metrics to record into, or null to disable them */
+    public void setMetrics(LookupMetrics metrics) {
+        this.metrics = metrics;
+    }
 
-                        if (!isAssociative && !Arrays.equals(key, probedKey)) {
-                            continue;
-                        }
+    /**
+     * records a finished lookup's probe counters
+     * 
+     * @param latency
+     *            the lookup time in nanoseconds, or -1 if it was not timed
+     */
+    public static void record(LookupMetrics metrics, Probe2 probe,
+            boolean hit, long latency) {
+        metrics.record(hit, probe.getExamined(), probe.getCollisions(), probe
+                .getBytesRead(), probe.getOverflowReads(), latency);
+    }
 
-                        hashFile.readFully(data);
-                    }
-                }
+    /** returns the layout of the compressed data segment, or null */
+    public BlockFormat2 getBlockFormat() {
+        return blockFormat;
+    }
+
+    /**
+     * sets the layout of the compressed data segment (the builder's choice,
+     * or as read from the file)
+     */
+    public void setBlockFormat(BlockFormat2 blockFormat) {
+        this.blockFormat = blockFormat;
+    }
+
+    /** sets the cache of decompressed blocks that lookups read through */
+    public void setBlockCache(BlockCache2 blockCache) {
+        this.blockCache = blockCache;
+    }
 
-                return data;
+    /**
+     * Returns the access to read records through: the file itself, or (for a
+     * compressed file) its cached, decompressed blocks.
+     */
+    public FileAccess2 getRecordAccess(FileAccess2 access) {
+        BlockCache2 cache = this.blockCache;
+        if (cache == null) {
+            if (blockFormat != null) {
+                throw new IllegalStateException(
+                        "block cache has not been loaded");
             }
-        } catch (IOException e) {
-            throw new RuntimeException("Error while finding key: "
-                    + e.getMessage(), e);
+
+            return access;
         }
 
-        return null;
+        return new CompressedFileAccess2(access, cache);
     }
 
-    public Iterable<byte[]> getMulti(final RandomAccessFile hashFile,
-            final ByteBuffer hashTableOffsets, final byte[] key) {
-        if (hashFile == null) {
-            throw new IllegalStateException(
-                    "get() not allowed when HashFile is closed()");
+    /** loads the perfect hash index of a file being read */
+    public void loadPerfectHash(FileAccess2 access, ByteBuffer hashTableOffsets)
+            throws IOException {
+        if (!header.isPerfectHash()) {
+            throw new IllegalStateException("HashFile has no perfect hash index");
         }
 
-        return Iterators2.getMultiIterable(alignment, hashFile,
-                hashTableOffsets, bucketPower, slotSize, keySize, valueSize,
-                isAssociative, isLongHash, isLargeCapacity, isLargeFile, key);
+        this.perfectHash = PerfectHash2.read(this, access, hashTableOffsets);
     }
 
-    private long getHashTablePosition(ByteBuffer bucketData, int slotIndex) {
+    /** returns the file position of the hash table for the given bucket */
+    public long getHashTablePosition(ByteBuffer bucketData, int slotIndex) {
         int offset = slotIndex * slotSize;
 
-        return (isLargeFile ? bucketData.getLong(offset) : bucketData
+        return (isLargeCapacity ? bucketData.getLong(offset) : bucketData
                 .getInt(offset)) << alignment;
     }
 
+    /** returns the number of entries in the hash table for the given bucket */
     public long getHashTableSize(ByteBuffer bucketData, int slotIndex) {
-        int offset = (slotIndex * slotSize) + positionSizeBytes;
+        int offset = (slotIndex * slotSize) + bucketCountSizeBytes;
 
         return isLargeCapacity ? bucketData.getLong(offset) : bucketData
                 .getInt(offset);
@@ -432,108 +701,268 @@ public class FileOperations2 {
     }
 
     /**
-     * Returns the hash list file name String corresponding to index i.
+     * Writes out a merged hash table file from all of the radix files (see
+     * HashTableBuilder2). Radix files too large to index within the finish
+     * memory budget are indexed in parts, through temp files.
+     * 
+     * @return the largest distance of any entry from its home slot
      */
-    private static String getRadixFileName(String radixFilePrefix, int i) {
-        return String.format("%s%02X", radixFilePrefix, i);
+    private int writeHashTable(final RadixStore2 radixes, long[] bucketStarts,
+            long[] bucketCounts, RandomAccessFile hashTableFile,
+            BloomFilter2 filter) throws IOException {
+        final long maxBuildLength = this.getMaxBuildLength();
+        final HashTableBuilder2 tables = new HashTableBuilder2(radixes,
+                bucketPower, isLongHash, isLargeFile, bucketStarts,
+                bucketCounts, filter, maxBuildLength);
+
+        writeRadixes(radixes, new RadixBuilder() {
+            @Override
+            public RadixIndex2 build(int radix) throws IOException {
+                return tables.build(radix);
+            }
+
+            @Override
+            public long getCost(int radix) {
+                if (!tables.isSplit(radix)) {
+                    return getBuildCost(radixes.getLength(radix));
+                }
+
+                // one part at a time, plus the buffers of its temp files
+                return getBuildCost(maxBuildLength)
+                        + (HashTableBuilder2.MAX_FANOUT + 1)
+                        * HashTableBuilder2.SCRATCH_BUFFER_SIZE;
+            }
+        }, hashTableFile, null, null);
+
+        return tables.getMaxDisplacement();
     }
 
-    /** Writes out a merged hash table file from all of the radix files */
-    private void writeHashTable(String radixFilePrefix, long[] bucketStarts,
-            long[] bucketCounts, DataOutput hashTableFile) throws IOException {
-        int longPointerSize = Calculations2.getHashTableEntrySize(isLongHash,
-                isLargeFile);
+    /**
+     * Builds the index of each radix file and appends them to the output in
+     * radix order, recording where each one was written (if positions is not
+     * null) and its length (if lengths is not null). With more than one
+     * finish thread, radixes are built on a fork-join pool and written from
+     * an ordered completion queue, as long as the radixes in flight fit in
+     * the memory budget.
+     */
+    private void writeRadixes(RadixStore2 radixes,
+            final RadixBuilder builder, RandomAccessFile out,
+            long[] positions, int[] lengths) throws IOException {
+        int radixCount = Calculations2.RADIX_FILE_COUNT;
+
+        if (finishThreads <= 1) {
+            for (int i = 0; i < radixCount; i++) {
+                writeRadix(i, builder.build(i), out, positions, lengths);
+            }
+
+            return;
+        }
 
-        for (int i = 0; i < Calculations2.RADIX_FILE_COUNT; i++) {
-            File radixFile = new File(getRadixFileName(radixFilePrefix, i));
-            long radixFileLength = radixFile.length();
-
-            /*
-             * FIXME : int number of entries implies a limit of 32 billion
-             * entries (2GB / 16bytes = 128MM, 128MM * 256 = 32BN); this is a
-             * property of ByteBuffer only being able to allocate 2GB
-             */
-            if (radixFileLength > Integer.MAX_VALUE) {
-                throw new RuntimeException("radix file too huge");
+        ForkJoinPool pool = new ForkJoinPool(finishThreads);
+        try {
+            List<ForkJoinTask<RadixIndex2>> tasks = new ArrayList<ForkJoinTask<RadixIndex2>>(
+                    radixCount);
+            long[] costs = new long[radixCount];
+            long inFlight = 0L;
+            int next = 0;
+
+            for (int i = 0; i < radixCount; i++) {
+                costs[i] = builder.getCost(i);
+
+                // wait for (and write) the oldest radixes until this one fits
+                while (next < i && inFlight + costs[i] > finishMemoryBudget) {
+                    writeRadix(next, join(tasks.get(next)), out, positions,
+                            lengths);
+                    tasks.set(next, null);
+                    inFlight -= costs[next++];
+                }
+
+                final int radix = i;
+                tasks.add(pool.submit(new Callable<RadixIndex2>() {
+                    @Override
+                    public RadixIndex2 call() throws IOException {
+                        return builder.build(radix);
+                    }
+                }));
+                inFlight += costs[i];
+            }
+
+            while (next < radixCount) {
+                writeRadix(next, join(tasks.get(next)), out, positions,
+                        lengths);
+                tasks.set(next++, null);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void writeRadix(int radix, RadixIndex2 index,
+            RandomAccessFile out, long[] positions, int[] lengths)
+            throws IOException {
+        if (positions != null) {
+            positions[radix] = out.getFilePointer();
+        }
+        if (lengths != null) {
+            lengths[radix] = (int) index.getLength();
+        }
+
+        index.writeTo(out);
+    }
+
+    /** waits for a radix build, rethrowing its failure */
+    private static RadixIndex2 join(ForkJoinTask<RadixIndex2> task)
+            throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during finish()");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new RuntimeException("Error while building radix: "
+                    + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * returns the approximate memory needed to build a radix file's index:
+     * its entries unpacked into arrays, the output, and the read buffer
+     */
+    private static long getBuildCost(long radixFileLength) {
+        return 3L * radixFileLength + getReadBufferSize(radixFileLength);
+    }
+
+    /**
+     * returns the longest radix file whose hash tables are built at once;
+     * larger ones are built in parts (see HashTableBuilder2)
+     */
+    private long getMaxBuildLength() {
+        return Math.max(MIN_BUILD_LENGTH, Math.min(Integer.MAX_VALUE,
+                finishMemoryBudget / 3));
+    }
+
+    static int getReadBufferSize(long radixFileLength) {
+        return (int) Math.max(1L, Math.min(SEQUENTIAL_READ_BUFFER_SIZE,
+                radixFileLength));
+    }
+
+    /** builds the index of one radix file */
+    private interface RadixBuilder {
+        RadixIndex2 build(int radix) throws IOException;
+
+        /** returns the approximate memory needed to build it */
+        long getCost(int radix);
+    }
+
+    /** returns the home slot of a hash code within a bucket */
+    public static int getHomeSlot(long hashCode, int bucketCount) {
+        return (int) (Math.abs(hashCode) % bucketCount);
+    }
+
+    /**
+     * Writes a perfect hash index partition for each radix file, returning
+     * the bucket table: one (position, length in bytes) slot per partition.
+     */
+    private ByteBuffer writePerfectHash(final RadixStore2 radixes,
+            long maxPosition, RandomAccessFile out,
+            final BloomFilter2 filter, final int fingerprintBits)
+            throws IOException {
+        final int positionBits = Math.max(1, 64 - Long
+                .numberOfLeadingZeros(maxPosition >> alignment));
+
+        int radixCount = Calculations2.RADIX_FILE_COUNT;
+        long[] partitionPositions = new long[radixCount];
+        int[] partitionLengths = new int[radixCount];
+
+        writeRadixes(radixes, new RadixBuilder() {
+            @Override
+            public RadixIndex2 build(int radix) throws IOException {
+                return new RadixIndex2(buildPerfectHash(radixes, radix,
+                        filter, positionBits, fingerprintBits));
             }
 
-            int entries = (int) radixFileLength / longPointerSize;
-            if (entries < 1) {
-                continue;
+            @Override
+            public long getCost(int radix) {
+                long radixFileLength = radixes.getLength(radix);
+                long entries = radixFileLength
+                        / Calculations2.getHashTableEntrySize(isLongHash,
+                                isLargeFile);
+
+                return entries * PerfectHash2.BUILD_BYTES_PER_ENTRY
+                        + getReadBufferSize(radixFileLength);
             }
+        }, out, partitionPositions, partitionLengths);
+
+        ByteBuffer slotTable = ByteBuffer.allocate(buckets * slotSize);
+
+        for (int i = 0; i < radixCount; i++) {
+            if (isLargeCapacity) {
+                slotTable.putLong(i * slotSize,
+                        partitionPositions[i] >> alignment);
+                slotTable.putLong(i * slotSize + bucketCountSizeBytes,
+                        partitionLengths[i]);
+            } else {
+                slotTable.putInt(i * slotSize,
+                        (int) (partitionPositions[i] >> alignment));
+                slotTable.putInt(i * slotSize + bucketCountSizeBytes,
+                        partitionLengths[i]);
+            }
+        }
+
+        return slotTable;
+    }
+
+    /** builds the perfect hash index partition of one radix file */
+    private ByteBuffer buildPerfectHash(RadixStore2 radixes, int radix,
+            BloomFilter2 filter, int positionBits, int fingerprintBits)
+            throws IOException {
+        int longPointerSize = Calculations2.getHashTableEntrySize(isLongHash,
+                isLargeFile);
+
+        long radixFileLength = radixes.getLength(radix);
 
-            final DataInputStream radixFileLongs = new DataInputStream(
-                    new BufferedInputStream(new FileInputStream(radixFile),
-                            SEQUENTIAL_READ_BUFFER_SIZE));
-
-            ByteBuffer hashTableBytes = ByteBuffer
-                    .allocate((int) radixFileLength);
-
-            for (int j = 0; j < entries; j++) {
-                long hashCode = isLongHash ? radixFileLongs.readLong()
-                        : radixFileLongs.readInt();
-                long position = isLargeFile ? radixFileLongs.readLong()
-                        : radixFileLongs.readInt();
-
-                int slot = Calculations2.getBucket(hashCode, bucketPower);
-                int baseSlot = Calculations2.getBaseBucketForHash(hashCode,
-                        bucketPower);
-
-                int bucketStartIndex = (int) bucketStarts[slot];
-                int baseBucketStart = (int) bucketStarts[baseSlot];
-                int relativeBucketStartOffset = (int) (bucketStartIndex - baseBucketStart);
-                int bucketCount = (int) bucketCounts[slot];
-
-                int hashProbe = (int) (Math.abs(hashCode) % bucketCount);
-                int slotIndexPos = relativeBucketStartOffset + hashProbe;
-
-                boolean finished = false;
-                int trials = 0;
-                while (!finished && trials < bucketCount) {
-                    trials += 1;
-                    hashTableBytes.rewind();
-
-                    int probedHashCodeIndex = (slotIndexPos * longPointerSize);
-                    int probedPositionIndex = probedHashCodeIndex
-                            + hashSizeBytes;
-
-                    long probedPosition = isLargeCapacity ? hashTableBytes
-                            .getLong(probedPositionIndex) : hashTableBytes
-                            .getInt(probedPositionIndex);
-
-                    if (probedPosition == 0) {
-                        if (isLongHash) {
-                            hashTableBytes.putLong(probedHashCodeIndex,
-                                    hashCode);
-                        } else {
-                            hashTableBytes.putInt(probedHashCodeIndex,
-                                    (int) hashCode);
-                        }
-
-                        if (isLargeFile) {
-                            hashTableBytes.putLong(probedPositionIndex,
-                                    position);
-                        } else {
-                            hashTableBytes.putInt(probedPositionIndex,
-                                    (int) position);
-                        }
-                        finished = true;
-                    } else {
-                        if (bucketCount == 1) {
-                            throw new RuntimeException(
-                                    "shouldn't happen: collision in bucket of size 1!");
-                        }
-
-                        slotIndexPos += 1;
-                        if (slotIndexPos >= (relativeBucketStartOffset + bucketCount)) {
-                            slotIndexPos = relativeBucketStartOffset;
-                        }
+        // each partition is built in memory, with int offsets
+        if (radixFileLength / longPointerSize > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException(
+                    "too many entries for a perfect hash partition: "
+                            + radixFileLength / longPointerSize);
+        }
+
+        int entries = (int) (radixFileLength / longPointerSize);
+        long[] hashes = new long[entries];
+        long[] positions = new long[entries];
+
+        if (entries > 0) {
+            DataInputStream radixFileLongs = new DataInputStream(radixes
+                    .openInput(radix, getReadBufferSize(radixFileLength)));
+            try {
+                for (int j = 0; j < entries; j++) {
+                    hashes[j] = radixFileLongs.readLong();
+                    positions[j] = isLargeFile ? radixFileLongs.readLong()
+                            : radixFileLongs.readInt();
+
+                    if (filter != null) {
+                        filter.put(hashes[j]);
                     }
                 }
+            } finally {
+                radixFileLongs.close();
             }
-
-            hashTableFile.write(hashTableBytes.array());
         }
+
+        return PerfectHash2.buildPartition(hashes, positions, entries,
+                positionBits, fingerprintBits);
     }
 
     /**
@@ -0,0 +1,397 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Builds the hash tables of each radix file of a HashFile, version 2, while
+ * finishing it. Each bucket is sorted by home slot (then hash code and file
+ * position), so an entry lies within a small distance of its home slot, and
+ * entries for the same key stay in file order.
+ * <p>
+ * A radix file is indexed in memory if it is no longer than maxBuildLength.
+ * Otherwise its buckets are split into up to MAX_FANOUT ranges of about equal
+ * size, its entries are scattered to a temp file per range, and each range is
+ * indexed in turn (splitting again if needed) into a temp file holding the
+ * radix's index. Heap use thus depends on maxBuildLength (and the largest
+ * bucket), not on the size of the radix file; the output is the same.
+ */
+public class HashTableBuilder2 {
+    /** most bucket ranges a radix file (or range) is split into at once */
+    public static final int MAX_FANOUT = 64;
+
+    /** size of the buffers of the temp files of split radix files */
+    public static final int SCRATCH_BUFFER_SIZE = 256 * 1024; // 256K
+
+    private final RadixStore2 radixes;
+
+    private final int bucketPower;
+
+    private final boolean isLongHash;
+
+    private final boolean isLargeFile;
+
+    private final int entrySize;
+
+    private final long[] bucketStarts;
+
+    private final long[] bucketCounts;
+
+    private final BloomFilter2 filter;
+
+    private final long maxBuildLength;
+
+    /** largest displacement of each radix's entries from their home slots */
+    private final int[] displacements = new int[Calculations2.RADIX_FILE_COUNT];
+
+    public HashTableBuilder2(RadixStore2 radixes, int bucketPower,
+            boolean isLongHash, boolean isLargeFile, long[] bucketStarts,
+            long[] bucketCounts, BloomFilter2 filter, long maxBuildLength) {
+        this.radixes = radixes;
+        this.bucketPower = bucketPower;
+        this.isLongHash = isLongHash;
+        this.isLargeFile = isLargeFile;
+        this.entrySize = Calculations2.getHashTableEntrySize(isLongHash,
+                isLargeFile);
+        this.bucketStarts = bucketStarts;
+        this.bucketCounts = bucketCounts;
+        this.filter = filter;
+        this.maxBuildLength = maxBuildLength;
+    }
+
+    /** returns true if the given radix file is too large to index at once */
+    public boolean isSplit(int radix) {
+        return radixes.getLength(radix) > maxBuildLength;
+    }
+
+    /** returns the largest displacement of any entry built so far */
+    public int getMaxDisplacement() {
+        int maxDisplacement = 0;
+        for (int displacement : displacements) {
+            maxDisplacement = Math.max(maxDisplacement, displacement);
+        }
+
+        return maxDisplacement;
+    }
+
+    /**
+     * Builds the hash tables of one radix file's buckets. The bloom filter
+     * blocks of different radixes are disjoint, so radixes may be built
+     * concurrently.
+     */
+    public RadixIndex2 build(int radix) throws IOException {
+        long radixFileLength = radixes.getLength(radix);
+        if (radixFileLength < entrySize) {
+            return new RadixIndex2(ByteBuffer.allocate(0));
+        }
+
+        int slots = 1 << (bucketPower - Calculations2.RADIX_FILE_COUNT_POWER_OF_2);
+        int baseSlot = radix * slots;
+
+        DataInputStream input = new DataInputStream(radixes.openInput(radix,
+                FileOperations2.getReadBufferSize(radixFileLength)));
+        try {
+            if (!this.isSplit(radix)
+                    || !hasManyBuckets(baseSlot, baseSlot + slots)) {
+                return new RadixIndex2(this.buildRange(input, baseSlot,
+                        baseSlot + slots, filter, radix));
+            }
+
+            File file = radixes.getScratchFile(radix, "index");
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file),
+                            SCRATCH_BUFFER_SIZE));
+            try {
+                this.splitRange(input, baseSlot, baseSlot + slots, filter,
+                        radix, out, "");
+            } finally {
+                out.close();
+            }
+
+            return new RadixIndex2(file, radixFileLength);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Scatters the entries of buckets [fromSlot, toSlot) to a temp file per
+     * range of buckets, then indexes the ranges in order into out.
+     */
+    private void splitRange(DataInputStream input, int fromSlot, int toSlot,
+            BloomFilter2 filter, int radix, DataOutputStream out, String path)
+            throws IOException {
+        long count = getStart(toSlot) - getStart(fromSlot);
+        long target = Math.max(maxBuildLength / entrySize, (count
+                + MAX_FANOUT - 1)
+                / MAX_FANOUT);
+
+        // contiguous ranges of about target entries (or a single bucket)
+        int[] bounds = new int[MAX_FANOUT + 1];
+        int[] rangeOf = new int[toSlot - fromSlot];
+        int ranges = 0;
+        long inRange = 0L;
+
+        bounds[0] = fromSlot;
+        for (int slot = fromSlot; slot < toSlot; slot++) {
+            if (inRange > 0 && inRange + bucketCounts[slot] > target
+                    && ranges + 1 < MAX_FANOUT) {
+                bounds[++ranges] = slot;
+                inRange = 0L;
+            }
+
+            rangeOf[slot - fromSlot] = ranges;
+            inRange += bucketCounts[slot];
+        }
+        bounds[++ranges] = toSlot;
+
+        File[] files = new File[ranges];
+        DataOutputStream[] outputs = new DataOutputStream[ranges];
+        try {
+            for (int i = 0; i < ranges; i++) {
+                files[i] = radixes.getScratchFile(radix, "split" + path + "."
+                        + i);
+                outputs[i] = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(files[i]), SCRATCH_BUFFER_SIZE));
+            }
+
+            for (long j = 0; j < count; j++) {
+                long hashCode = isLongHash ? input.readLong() : input
+                        .readInt();
+                long position = isLargeFile ? input.readLong() : input
+                        .readInt();
+
+                if (filter != null) {
+                    filter.put(hashCode);
+                }
+
+                DataOutputStream output = outputs[rangeOf[Calculations2
+                        .getBucket(hashCode, bucketPower)
+                        - fromSlot]];
+                this.writeEntry(output, hashCode, position);
+            }
+        } finally {
+            for (DataOutputStream output : outputs) {
+                if (output != null) {
+                    output.close();
+                }
+            }
+        }
+
+        for (int i = 0; i < ranges; i++) {
+            DataInputStream rangeInput = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(files[i]),
+                            SCRATCH_BUFFER_SIZE));
+            try {
+                long length = (getStart(bounds[i + 1]) - getStart(bounds[i]))
+                        * entrySize;
+
+                if (length <= maxBuildLength
+                        || !hasManyBuckets(bounds[i], bounds[i + 1])) {
+                    out.write(this.buildRange(rangeInput, bounds[i],
+                            bounds[i + 1], null, radix).array());
+                } else {
+                    this.splitRange(rangeInput, bounds[i], bounds[i + 1],
+                            null, radix, out, path + "." + i);
+                }
+            } finally {
+                rangeInput.close();
+                files[i].delete();
+            }
+        }
+    }
+
+    /** indexes the entries of buckets [fromSlot, toSlot) in memory */
+    private ByteBuffer buildRange(DataInputStream input, int fromSlot,
+            int toSlot, BloomFilter2 filter, int radix) throws IOException {
+        long baseBucketStart = getStart(fromSlot);
+        long count = getStart(toSlot) - baseBucketStart;
+
+        if (count * entrySize > Integer.MAX_VALUE) {
+            throw new IllegalStateException("bucket " + fromSlot
+                    + " has too many entries to index: " + count);
+        }
+
+        // group the entries by bucket, in file order
+        int entries = (int) count;
+        long[] hashCodes = new long[entries];
+        long[] positions = new long[entries];
+        int[] fill = new int[toSlot - fromSlot];
+
+        for (int j = 0; j < entries; j++) {
+            long hashCode = isLongHash ? input.readLong() : input.readInt();
+            long position = isLargeFile ? input.readLong() : input.readInt();
+
+            if (filter != null) {
+                filter.put(hashCode);
+            }
+
+            int slot = Calculations2.getBucket(hashCode, bucketPower);
+            int index = (int) (bucketStarts[slot] - baseBucketStart)
+                    + fill[slot - fromSlot]++;
+
+            hashCodes[index] = hashCode;
+            positions[index] = position;
+        }
+
+        int maxDisplacement = 0;
+        for (int slot = fromSlot; slot < toSlot; slot++) {
+            maxDisplacement = Math.max(maxDisplacement, sortBucket(hashCodes,
+                    positions, (int) (bucketStarts[slot] - baseBucketStart),
+                    (int) bucketCounts[slot]));
+        }
+
+        synchronized (displacements) {
+            displacements[radix] = Math.max(displacements[radix],
+                    maxDisplacement);
+        }
+
+        ByteBuffer hashTableBytes = ByteBuffer.allocate(entries * entrySize);
+
+        for (int j = 0; j < entries; j++) {
+            if (isLongHash) {
+                hashTableBytes.putLong(hashCodes[j]);
+            } else {
+                hashTableBytes.putInt((int) hashCodes[j]);
+            }
+
+            if (isLargeFile) {
+                hashTableBytes.putLong(positions[j]);
+            } else {
+                hashTableBytes.putInt((int) positions[j]);
+            }
+        }
+
+        return hashTableBytes;
+    }
+
+    private void writeEntry(DataOutputStream out, long hashCode, long position)
+            throws IOException {
+        if (isLongHash) {
+            out.writeLong(hashCode);
+        } else {
+            out.writeInt((int) hashCode);
+        }
+
+        if (isLargeFile) {
+            out.writeLong(position);
+        } else {
+            out.writeInt((int) position);
+        }
+    }
+
+    /**
+     * returns true if more than one bucket in [fromSlot, toSlot) has entries,
+     * so that the range can be split
+     */
+    private boolean hasManyBuckets(int fromSlot, int toSlot) {
+        int nonEmpty = 0;
+        for (int slot = fromSlot; slot < toSlot && nonEmpty < 2; slot++) {
+            nonEmpty += bucketCounts[slot] > 0 ? 1 : 0;
+        }
+
+        return nonEmpty > 1;
+    }
+
+    /** returns the offset of a bucket's first entry, or the total at the end */
+    private long getStart(int slot) {
+        if (slot < bucketStarts.length) {
+            return bucketStarts[slot];
+        }
+
+        int last = bucketStarts.length - 1;
+
+        return bucketStarts[last] + bucketCounts[last];
+    }
+
+    /**
+     * Sorts the entries of one bucket by home slot, hash code and position
+     * (a counting sort by home, then an insertion sort of each home's few
+     * entries).
+     * 
+     * @return the largest distance of any entry from its home slot
+     */
+    private static int sortBucket(long[] hashCodes, long[] positions,
+            int start, int count) {
+        if (count < 2) {
+            return 0;
+        }
+
+        int[] homeStart = new int[count + 1];
+        for (int j = start; j < start + count; j++) {
+            int home = FileOperations2.getHomeSlot(hashCodes[j], count);
+            homeStart[home + 1] += 1;
+        }
+        for (int k = 0; k < count; k++) {
+            homeStart[k + 1] += homeStart[k];
+        }
+
+        long[] sortedHashCodes = new long[count];
+        long[] sortedPositions = new long[count];
+        int[] fill = Arrays.copyOf(homeStart, count);
+
+        for (int j = start; j < start + count; j++) {
+            int index = fill[FileOperations2
+                    .getHomeSlot(hashCodes[j], count)]++;
+            sortedHashCodes[index] = hashCodes[j];
+            sortedPositions[index] = positions[j];
+        }
+
+        int maxDisplacement = 0;
+        for (int home = 0; home < count; home++) {
+            int from = homeStart[home];
+            int to = homeStart[home + 1];
+
+            for (int j = from + 1; j < to; j++) {
+                long hashCode = sortedHashCodes[j];
+                long position = sortedPositions[j];
+
+                int k = j - 1;
+                while (k >= from
+                        && (sortedHashCodes[k] > hashCode || (sortedHashCodes[k] == hashCode && sortedPositions[k] > position))) {
+                    sortedHashCodes[k + 1] = sortedHashCodes[k];
+                    sortedPositions[k + 1] = sortedPositions[k];
+                    k -= 1;
+                }
+
+                sortedHashCodes[k + 1] = hashCode;
+                sortedPositions[k + 1] = position;
+            }
+
+            if (to > from) {
+                maxDisplacement = Math.max(maxDisplacement, Math.max(Math
+                        .abs(from - home), Math.abs(to - 1 - home)));
+            }
+        }
+
+        System.arraycopy(sortedHashCodes, 0, hashCodes, start, count);
+        System.arraycopy(sortedPositions, 0, positions, start, count);
+
+        return maxDisplacement;
+    }
+}
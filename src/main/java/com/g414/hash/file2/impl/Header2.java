@@ -25,6 +25,7 @@ import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.g414.hash.file2.ByteSize;
+import com.g414.hash.file2.IndexType;
 
 /**
  * Encapsulates information about a HashFile, version 2.
@@ -36,6 +37,49 @@ public class Header2 {
     /** File format version identifier */
     public static final int VERSION = 0x02020202;
 
+    /**
+     * File format version identifier for files with a perfect hash index;
+     * distinct so that older readers reject them
+     */
+    public static final int VERSION_PERFECT_HASH = 0x02020203;
+
+    /**
+     * File format version identifiers for files with flags older readers
+     * must not ignore ({@link #REQUIRED_FLAGS}), with a hash table or perfect
+     * hash index; distinct so that older readers reject them
+     */
+    public static final int VERSION_EXTENDED = 0x02020204;
+
+    public static final int VERSION_EXTENDED_PERFECT_HASH = 0x02020205;
+
+    /** flag indicating that the file ends with a section directory */
+    public static final int FLAG_SECTIONS = 0x0001;
+
+    /**
+     * flag indicating that each hash table is sorted by home slot, then hash
+     * code and position, so lookups can search near the home slot instead of
+     * probing linearly (older readers still find everything by probing)
+     */
+    public static final int FLAG_SORTED_BUCKETS = 0x0002;
+
+    /**
+     * flag indicating that records are stored in compressed blocks, and that
+     * the index holds their logical positions, see {@link BlockFormat2}
+     */
+    public static final int FLAG_COMPRESSED = 0x0004;
+
+    /**
+     * flag indicating that records may store a reference to an identical
+     * value stored with an earlier record instead of the value itself; the
+     * value length field of each record holds the length times two, plus one
+     * for a reference
+     */
+    public static final int FLAG_DEDUPLICATED = 0x0008;
+
+    /** flags that change how records are stored */
+    public static final int REQUIRED_FLAGS = FLAG_COMPRESSED
+            | FLAG_DEDUPLICATED;
+
     /** the number of buckets */
     private final int buckets;
 
@@ -64,10 +108,22 @@ public class Header2 {
 
     private final boolean isAssociative;
 
+    private final IndexType indexType;
+
     private volatile boolean isFinished;
 
+    /** format flags; readers that predate a flag simply ignore it */
+    private volatile int flags;
+
     public Header2(byte bucketPower, ByteSize keySize, ByteSize valueSize,
             boolean isLongHash, boolean isLargeCapacity, boolean isLargeFile) {
+        this(bucketPower, keySize, valueSize, isLongHash, isLargeCapacity,
+                isLargeFile, IndexType.HASH_TABLE);
+    }
+
+    public Header2(byte bucketPower, ByteSize keySize, ByteSize valueSize,
+            boolean isLongHash, boolean isLargeCapacity, boolean isLargeFile,
+            IndexType indexType) {
         this.keySize = keySize;
         this.valueSize = valueSize;
 
@@ -80,6 +136,13 @@ public class Header2 {
         this.isLongHash = isLongHash;
         this.isLargeCapacity = isLargeCapacity;
         this.isLargeFile = isLargeFile;
+        this.indexType = indexType;
+
+        if (indexType == IndexType.PERFECT_HASH
+                && (this.isAssociative || !isLongHash)) {
+            throw new IllegalArgumentException(
+                    "Perfect hash indexes require keys and long hash");
+        }
 
         this.bucketPower = bucketPower;
         this.buckets = 1 << this.bucketPower;
@@ -115,6 +178,30 @@ public class Header2 {
         this.isFinished = true;
     }
 
+    public int getFlags() {
+        return this.flags;
+    }
+
+    public void setFlag(int flag) {
+        this.flags |= flag;
+    }
+
+    public boolean hasSections() {
+        return (this.flags & FLAG_SECTIONS) != 0;
+    }
+
+    public boolean hasSortedBuckets() {
+        return (this.flags & FLAG_SORTED_BUCKETS) != 0;
+    }
+
+    public boolean isCompressed() {
+        return (this.flags & FLAG_COMPRESSED) != 0;
+    }
+
+    public boolean isDeduplicated() {
+        return (this.flags & FLAG_DEDUPLICATED) != 0;
+    }
+
     public void incrementElementCount() {
         if (this.isFinished) {
             throw new IllegalStateException("Cannot add to finished HashFile!");
@@ -123,6 +210,15 @@ public class Header2 {
         this.elementCount.getAndIncrement();
     }
 
+    /** adds a whole block of entries to the element count */
+    public void addElementCount(long count) {
+        if (this.isFinished) {
+            throw new IllegalStateException("Cannot add to finished HashFile!");
+        }
+
+        this.elementCount.getAndAdd(count);
+    }
+
     public long getElementCount() {
         return elementCount.get();
     }
@@ -155,6 +251,14 @@ public class Header2 {
         return isLongHash;
     }
 
+    public IndexType getIndexType() {
+        return indexType;
+    }
+
+    public boolean isPerfectHash() {
+        return indexType == IndexType.PERFECT_HASH;
+    }
+
     public int getBucketPower() {
         return bucketPower;
     }
@@ -179,26 +283,37 @@ public class Header2 {
     public static int getBucketTableOffset() {
         /*
          * HEADER: MAGIC, VERSION, BUCKET_POWER, KEY_SIZE, VALUE_SIZE,
-         * LONG_HASH, LONG_POS, LONG_SIZE, COUNT, NEGATIVE_ONE, NEGATIVE_ONE
+         * LONG_HASH, LONG_POS, LONG_SIZE, FLAGS, COUNT, NEGATIVE_ONE,
+         * NEGATIVE_ONE
          */
         return MAGIC.length() + 4 + 1 + 1 + 1 + 1 + 1 + 1 + 2 + 8 + 8 + 8;
     }
 
     public void write(ByteBuffer buffer) throws IOException {
         buffer.put(MAGIC.getBytes());
-        buffer.putInt(VERSION);
+        buffer.putInt(getVersion());
         buffer.put((byte) this.bucketPower);
         buffer.put((byte) this.keySize.getSize());
         buffer.put((byte) this.valueSize.getSize());
         buffer.put((byte) (isLongHash ? 8 : 4));
         buffer.put((byte) (isLargeCapacity ? 8 : 4));
         buffer.put((byte) (isLargeFile ? 8 : 4));
-        buffer.putChar((char) 0);
+        buffer.putChar((char) this.flags);
         buffer.putLong(this.elementCount.get());
         buffer.putLong(0xFFFFFFFFFFFFFFFFL);
         buffer.putLong(0xFFFFFFFFFFFFFFFFL);
     }
 
+    /** returns the format version identifier to write */
+    public int getVersion() {
+        if ((this.flags & REQUIRED_FLAGS) != 0) {
+            return isPerfectHash() ? VERSION_EXTENDED_PERFECT_HASH
+                    : VERSION_EXTENDED;
+        }
+
+        return isPerfectHash() ? VERSION_PERFECT_HASH : VERSION;
+    }
+
     public void write(RandomAccessFile file) throws IOException {
         ByteBuffer outBuffer = ByteBuffer.allocate(getBucketTableOffset());
         this.write(outBuffer);
@@ -221,7 +336,10 @@ public class Header2 {
         int version = (int) buffer.getInt();
 
         String magic = new String(inMagic);
-        if (!MAGIC.equals(magic) || version != VERSION) {
+        if (!MAGIC.equals(magic)
+                || (version != VERSION && version != VERSION_PERFECT_HASH
+                        && version != VERSION_EXTENDED
+                        && version != VERSION_EXTENDED_PERFECT_HASH)) {
             throw new IOException("Incompatible HashFile file version");
         }
 
@@ -233,7 +351,7 @@ public class Header2 {
         boolean isLongHash = buffer.get() == 8;
         boolean isLargeCapacity = buffer.get() == 8;
         boolean isLargeFile = buffer.get() == 8;
-        buffer.getChar(); // unused
+        int flags = buffer.getChar();
 
         long count = buffer.getLong();
 
@@ -246,8 +364,17 @@ public class Header2 {
         }
 
         Header2 header = new Header2((byte) bucketPower, keySize, valueSize,
-                isLongHash, isLargeCapacity, isLargeFile);
+                isLongHash, isLargeCapacity, isLargeFile,
+                (version == VERSION_PERFECT_HASH
+                        || version == VERSION_EXTENDED_PERFECT_HASH)
+                        ? IndexType.PERFECT_HASH : IndexType.HASH_TABLE);
         header.elementCount.set(count);
+        header.flags = flags;
+
+        if (header.getVersion() != version) {
+            throw new IOException("Malformed HashFile header flags: "
+                    + flags);
+        }
         header.setFinished();
 
         return header;
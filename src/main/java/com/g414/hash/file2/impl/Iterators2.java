@@ -18,16 +18,17 @@
 package com.g414.hash.file2.impl;
 
 import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
-import com.g414.hash.file2.ByteSize;
 import com.g414.hash.file2.HashEntry;
 
 /**
@@ -68,20 +69,26 @@ public class Iterators2 {
                     RandomAccessFile in = new RandomAccessFile(hashFilePath,
                             "r");
 
-                    final DataInputStream input = new DataInputStream(
-                            new BufferedInputStream(new FileInputStream(
-                                    hashFilePath),
-                                    FileOperations2.ITERATOR_READ_BUFFER_LENGTH));
-
                     final Header2 header = Header2.readHeader(in);
                     final FileOperations2 fileOps = FileOperations2
                             .fromHeader(header);
 
                     final long startPos = header.getTotalHeaderLength();
                     final long eod = fileOps.getEndOfData(in);
+                    BlockFormat2 format = BlockFormat2.read(in, header);
 
                     in.close();
 
+                    if (format != null || header.isDeduplicated()) {
+                        return getReaderIterator(hashFilePath, header,
+                                format, startPos, eod);
+                    }
+
+                    final DataInputStream input = new DataInputStream(
+                            new BufferedInputStream(new FileInputStream(
+                                    hashFilePath),
+                                    FileOperations2.ITERATOR_READ_BUFFER_LENGTH));
+
                     input.skipBytes((int) startPos);
 
                     return new Iterator<HashEntry>() {
@@ -128,168 +135,126 @@ public class Iterators2 {
         };
     }
 
-    public static Iterable<byte[]> getMultiIterable(final int alignment,
-            final RandomAccessFile hashFile, final ByteBuffer hashTableOffsets,
-            int bucketPower, final int slotSize, final ByteSize keySize,
-            final ByteSize valueSize, final boolean isAssociative,
-            final boolean isLongHash, final boolean isLargeCapacity,
-            final boolean isLargeFile, final byte[] key) {
-        final long currentHashKey = Calculations2.computeHash(key, isLongHash);
-        int slot = Calculations2.getBucket(currentHashKey, bucketPower);
-        int slotOffset = slot * slotSize;
+    /**
+     * Iterates over the records of a compressed or deduplicated HashFile,
+     * which cannot be read as a plain stream.
+     */
+    private static Iterator<HashEntry> getReaderIterator(String hashFilePath,
+            Header2 header, BlockFormat2 format, long start, long end)
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(hashFilePath, "r");
+        try {
+            return new ReaderIterator(file, new RecordReader2(header, format,
+                    new PositionalFileAccess2(file.getChannel()), start, end));
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
 
-        final long currentHashTableBasePosition = (isLargeCapacity ? hashTableOffsets
-                .getLong(slotOffset)
-                : hashTableOffsets.getInt(slotOffset)) << alignment;
+    /**
+     * Iterator over a RecordReader2; the file is closed when the iteration is
+     * exhausted or fails, or by close() to stop early.
+     */
+    private static class ReaderIterator implements Iterator<HashEntry>,
+            Closeable {
+        private final RandomAccessFile file;
 
-        int off = isLargeCapacity ? 8 : 4;
+        private final RecordReader2 reader;
 
-        final long currentHashTableSize = isLargeCapacity ? hashTableOffsets
-                .getLong(slotOffset + off) : hashTableOffsets.getInt(slotOffset
-                + off);
+        /** whether the reader is at a record not yet returned, if known */
+        private Boolean ready = null;
 
-        if (currentHashTableSize == 0) {
-            return Iterators2.getEmptyIterable();
+        public ReaderIterator(RandomAccessFile file, RecordReader2 reader) {
+            this.file = file;
+            this.reader = reader;
         }
 
-        final int initialProbe = (int) (Math.abs(currentHashKey) % currentHashTableSize);
+        @Override
+        public synchronized boolean hasNext() {
+            if (ready == null) {
+                try {
+                    ready = reader.next();
+                } catch (IOException e) {
+                    closeQuietly();
+                    throw new RuntimeException(
+                            "Error while iterating hashfile: "
+                                    + e.getMessage(), e);
+                }
 
-        int bufferSize = Calculations2.getHashTableEntrySize(isLongHash,
-                isLargeFile)
-                * ((int) currentHashTableSize);
+                if (!ready) {
+                    closeQuietly();
+                }
+            }
 
-        final ByteBuffer tableBytes = ByteBuffer.allocate(bufferSize);
+            return ready;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException(
+                    "HashFile does not support remove()");
+        }
+
+        @Override
+        public synchronized HashEntry next() {
+            if (!hasNext()) {
+                throw new IllegalStateException(
+                        "next() called past end of iterator");
+            }
 
-        final ByteBuffer fileBytes = ByteBuffer
-                .allocate(FileOperations2.RANDOM_READ_BUFFER_LENGTH);
+            ready = null;
+            try {
+                return new HashEntry(reader.getKey(), reader.getValue());
+            } catch (IOException e) {
+                closeQuietly();
+                throw new RuntimeException("Error while iterating hashfile: "
+                        + e.getMessage(), e);
+            }
+        }
 
-        final int longPointerSize = Calculations2.getHashTableEntrySize(
-                isLongHash, isLargeFile);
+        @Override
+        public synchronized void close() throws IOException {
+            ready = Boolean.FALSE;
+            file.close();
+        }
 
+        private void closeQuietly() {
+            ready = Boolean.FALSE;
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public static Iterable<byte[]> getMultiIterable(
+            final FileOperations2 fileOps, final FileAccess2 access,
+            final ByteBuffer hashTableOffsets, final BloomFilter2 filter,
+            final byte[] key, final long hashCode) {
         return new Iterable<byte[]>() {
             @Override
             public Iterator<byte[]> iterator() {
-                return new Iterator<byte[]>() {
-                    int probe = initialProbe;
-                    boolean wrapped = false;
-                    boolean first = true;
+                final Probe2 probe;
+                try {
+                    probe = new Probe2(fileOps, access, hashTableOffsets,
+                            filter, key, hashCode);
+                } catch (IOException e) {
+                    throw new RuntimeException("Error while finding key: "
+                            + e.getMessage(), e);
+                }
 
+                return new Iterator<byte[]>() {
                     byte[] next = advance();
 
-                    private void readFully() throws IOException {
-                        synchronized (hashFile) {
-                            hashFile.seek(currentHashTableBasePosition);
-                            hashFile.readFully(tableBytes.array());
-                        }
-                    }
-
                     private byte[] advance() {
                         try {
-                            if (first) {
-                                readFully();
-                                first = false;
-                            }
-
-                            long currentFindOperationIndex = 0;
-
-                            while (currentFindOperationIndex < currentHashTableSize) {
-                                if (wrapped && probe >= initialProbe) {
-                                    return null;
-                                }
-
-                                int probeSlot = probe * longPointerSize;
-                                long probedHashCode = isLongHash ? tableBytes
-                                        .getLong(probeSlot) : tableBytes
-                                        .getInt(probeSlot);
-                                int off2 = isLongHash ? 8 : 4;
-                                long probedPosition = (isLargeFile ? tableBytes
-                                        .getLong(probeSlot + off2) : tableBytes
-                                        .getInt(probeSlot + off2)) << alignment;
-
-                                currentFindOperationIndex += 1;
-                                probe += 1;
-
-                                if (probe >= currentHashTableSize) {
-                                    if (!wrapped) {
-                                        probe = 0;
-                                        wrapped = true;
-                                    } else {
-                                        return null;
-                                    }
-                                }
-
-                                if (probedPosition == 0) {
-                                    continue;
-                                }
-
-                                if (probedHashCode != currentHashKey) {
-                                    continue;
-                                }
-
-                                synchronized (hashFile) {
-                                    hashFile.seek(probedPosition);
-                                    hashFile.read(fileBytes.array());
-                                }
-
-                                long keyLength = !isAssociative ? FileOperations2
-                                        .read(fileBytes, keySize, 0)
-                                        : 0;
-
-                                if (!isAssociative && keyLength != key.length) {
-                                    continue;
-                                }
-
-                                long dataLength = FileOperations2
-                                        .read(fileBytes, valueSize, keySize
-                                                .getSize());
-
-                                byte[] probedKey = new byte[(int) keyLength];
-                                byte[] data = new byte[(int) dataLength];
-
-                                int entrySize = valueSize.getSize()
-                                        + (int) dataLength
-                                        + (isAssociative ? 0 : keySize
-                                                .getSize()
-                                                + (int) keyLength);
-
-                                if (entrySize < FileOperations2.RANDOM_READ_BUFFER_LENGTH) {
-                                    fileBytes.rewind();
-                                    fileBytes.get(new byte[keySize.getSize()
-                                            + valueSize.getSize()]);
-                                    fileBytes.get(probedKey);
-
-                                    if (!isAssociative
-                                            && !Arrays.equals(key, probedKey)) {
-                                        continue;
-                                    }
-
-                                    fileBytes.get(data);
-                                } else {
-                                    synchronized (hashFile) {
-                                        hashFile.seek(probedPosition
-                                                + keySize.getSize()
-                                                + valueSize.getSize());
-                                        hashFile.readFully(probedKey);
-
-                                        if (!isAssociative
-                                                && !Arrays.equals(key,
-                                                        probedKey)) {
-                                            continue;
-                                        }
-
-                                        hashFile.readFully(data);
-                                    }
-                                }
-
-                                return data;
-                            }
+                            return probe.next() ? probe.getValue() : null;
                         } catch (IOException e) {
                             throw new RuntimeException(
                                     "Error while finding key: "
                                             + e.getMessage(), e);
                         }
-
-                        return null;
                     }
 
                     @Override
@@ -319,4 +284,62 @@ public class Iterators2 {
             }
         };
     }
+
+    public static Iterable<List<byte[]>> getBatchedIterable(
+            final BatchLookup2 lookup, final Iterable<byte[]> keys,
+            final int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be >= 1");
+        }
+
+        return new Iterable<List<byte[]>>() {
+            @Override
+            public Iterator<List<byte[]>> iterator() {
+                final Iterator<byte[]> keyIter = keys.iterator();
+
+                return new Iterator<List<byte[]>>() {
+                    List<List<byte[]>> batch = null;
+                    int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        if (batch != null && next < batch.size()) {
+                            return true;
+                        }
+
+                        List<byte[]> batchKeys = new ArrayList<byte[]>();
+                        while (batchKeys.size() < batchSize
+                                && keyIter.hasNext()) {
+                            batchKeys.add(keyIter.next());
+                        }
+
+                        if (batchKeys.isEmpty()) {
+                            return false;
+                        }
+
+                        batch = lookup.getAll(batchKeys);
+                        next = 0;
+
+                        return true;
+                    }
+
+                    @Override
+                    public List<byte[]> next() {
+                        if (!hasNext()) {
+                            throw new IllegalStateException(
+                                    "next() called past end of iterator");
+                        }
+
+                        return batch.get(next++);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException(
+                                "remove() not supported");
+                    }
+                };
+            }
+        };
+    }
 }
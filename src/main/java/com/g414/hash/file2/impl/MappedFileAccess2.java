@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * FileAccess2 that memory-maps the whole file as an array of segments (a
+ * single MappedByteBuffer is limited to 2GB). Reads are plain memory copies
+ * with no locking, and views within a segment are zero-copy; only data that
+ * straddles a segment boundary is copied.
+ */
+public class MappedFileAccess2 extends FileAccess2 {
+    /** default (maximum) length of each mapped segment */
+    public static final int DEFAULT_SEGMENT_LENGTH = 1 << 30; // 1GB
+
+    /** stride used when touching pages */
+    private static final int PAGE_SIZE = 4096;
+
+    private final MappedByteBuffer[] segments;
+
+    private final int segmentLength;
+
+    private final long length;
+
+    public MappedFileAccess2(FileChannel channel) throws IOException {
+        this(channel, DEFAULT_SEGMENT_LENGTH);
+    }
+
+    public MappedFileAccess2(FileChannel channel, int segmentLength)
+            throws IOException {
+        if (segmentLength < 1) {
+            throw new IllegalArgumentException("segmentLength must be >= 1");
+        }
+
+        this.length = channel.size();
+        this.segmentLength = segmentLength;
+
+        int count = (int) ((this.length + segmentLength - 1) / segmentLength);
+        this.segments = new MappedByteBuffer[count];
+
+        for (int i = 0; i < count; i++) {
+            long start = (long) i * segmentLength;
+            long size = Math.min(segmentLength, this.length - start);
+
+            this.segments[i] = channel.map(MapMode.READ_ONLY, start, size);
+        }
+    }
+
+    @Override
+    public long length() {
+        return this.length;
+    }
+
+    /** returns the mapped segments, in file order */
+    public MappedByteBuffer[] getSegments() {
+        return this.segments;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer target) throws IOException {
+        if (position >= this.length) {
+            return target.hasRemaining() ? -1 : 0;
+        }
+
+        int total = (int) Math.min(target.remaining(), this.length - position);
+        int remaining = total;
+
+        while (remaining > 0) {
+            int segment = (int) (position / segmentLength);
+            int offset = (int) (position % segmentLength);
+            int count = Math.min(remaining, segmentLength - offset);
+
+            ByteBuffer source = this.segments[segment].duplicate();
+            source.position(offset);
+            source.limit(offset + count);
+            target.put(source);
+
+            position += count;
+            remaining -= count;
+        }
+
+        return total;
+    }
+
+    @Override
+    public ByteBuffer view(long position, int length) throws IOException {
+        if (length == 0) {
+            return ByteBuffer.allocate(0);
+        }
+
+        int segment = (int) (position / segmentLength);
+        int offset = (int) (position % segmentLength);
+
+        if (length <= segmentLength - offset && position + length <= this.length) {
+            ByteBuffer result = this.segments[segment].duplicate();
+            result.position(offset);
+            result.limit(offset + length);
+
+            return result.slice();
+        }
+
+        return super.view(position, length);
+    }
+
+    /**
+     * Faults in the given range by touching a byte of each page; unlike
+     * MappedByteBuffer.load(), this lets a sweep be split across threads.
+     */
+    @Override
+    public long touch(long start, long end) throws IOException {
+        long sum = 0L;
+        end = Math.min(end, this.length);
+
+        while (start < end) {
+            int segment = (int) (start / segmentLength);
+            int offset = (int) (start % segmentLength);
+            MappedByteBuffer buffer = this.segments[segment];
+            int limit = (int) Math.min(buffer.capacity(), offset
+                    + (end - start));
+
+            for (int i = offset; i < limit; i += PAGE_SIZE) {
+                sum += buffer.get(i);
+            }
+
+            start += limit - offset;
+        }
+
+        return sum;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // mappings are released when the buffers are garbage collected
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.g414.hash.ByteArrayKey;
+import com.g414.hash.file2.HashFile2Builder;
+
+/**
+ * In-memory table of the latest writes to a HashStore, backed by one or more
+ * append-only logs. Values are kept encoded as in the store's delta files: a
+ * marker byte (VALUE or TOMBSTONE) followed by the value, if any.
+ */
+public class MemTable2 {
+    /** marker of a deleted key */
+    public static final byte TOMBSTONE = 0;
+
+    /** marker of a key with a value */
+    public static final byte VALUE = 1;
+
+    /** estimated per-entry overhead in bytes, on top of the key and value */
+    public static final int ENTRY_OVERHEAD = 96;
+
+    private final ConcurrentHashMap<ByteArrayKey, byte[]> entries = new ConcurrentHashMap<ByteArrayKey, byte[]>();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    /** the logs holding this table's writes, oldest first */
+    private final List<File> logFiles = new ArrayList<File>();
+
+    /** returns the encoded value for the key, or null if it is not here */
+    public byte[] get(byte[] key) {
+        return entries.get(new ByteArrayKey(key));
+    }
+
+    /** stores an encoded value (see encode()) under the key */
+    public void put(byte[] key, byte[] encoded) {
+        byte[] previous = entries.put(new ByteArrayKey(key.clone()), encoded);
+
+        bytes.addAndGet(previous == null ? key.length + encoded.length
+                + ENTRY_OVERHEAD : encoded.length - previous.length);
+    }
+
+    /** returns the number of keys, including deleted ones */
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /** returns the estimated memory used by the entries */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public synchronized void addLogFile(File logFile) {
+        logFiles.add(logFile);
+    }
+
+    public synchronized List<File> getLogFiles() {
+        return new ArrayList<File>(logFiles);
+    }
+
+    /** adds every entry, still encoded, to the builder */
+    public void writeTo(HashFile2Builder builder) throws IOException {
+        for (Map.Entry<ByteArrayKey, byte[]> entry : entries.entrySet()) {
+            builder.add(entry.getKey().getBytes(), entry.getValue());
+        }
+    }
+
+    /** encodes a value, or a deletion if it is null */
+    public static byte[] encode(byte[] value) {
+        if (value == null) {
+            return new byte[] { TOMBSTONE };
+        }
+
+        byte[] encoded = new byte[value.length + 1];
+        encoded[0] = VALUE;
+        System.arraycopy(value, 0, encoded, 1, value.length);
+
+        return encoded;
+    }
+
+    /** decodes a value, returning null for a deletion */
+    public static byte[] decode(byte[] encoded) {
+        if (isTombstone(encoded)) {
+            return null;
+        }
+
+        return Arrays.copyOfRange(encoded, 1, encoded.length);
+    }
+
+    public static boolean isTombstone(byte[] encoded) {
+        return encoded[0] == TOMBSTONE;
+    }
+}
@@ -0,0 +1,630 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Minimal perfect hash index of a HashFile, version 2, in the style of PTHash.
+ * Keys are partitioned by radix. Within a partition of n keys, each key falls
+ * into one of b pilot buckets (skewed, so 60% of the keys share 30% of the
+ * buckets), and each bucket stores the first pilot value that sends all of its
+ * keys to free slots of a table of m = n / 0.99 slots. Slots at or past n are
+ * remapped onto the free slots below n, so slot i holds the position of
+ * exactly one record, plus an optional fingerprint of its hash code that
+ * rejects most absent keys without reading the data segment.
+ * <p>
+ * Records whose hash code repeats one already in the table (duplicate keys,
+ * or 64-bit collisions) go to a small per-partition overflow list instead.
+ * <p>
+ * Each partition is stored as: N, M, B, PILOT_BITS, POSITION_BITS,
+ * FINGERPRINT_BITS, RESERVED, OVERFLOW_COUNT, then the pilots, the remap table
+ * (M - N ints), the fingerprints, the positions (all bit-packed, most
+ * significant bit first, with 8 bytes of slack so any value can be read with
+ * a single 8-byte read), and the overflow (hash, position) pairs. Its offset
+ * and byte length are kept in the bucket table, which has one slot per radix.
+ * The partition headers, remap tables and overflow lists are loaded when the
+ * file is opened; pilots, fingerprints and positions are read on demand.
+ */
+public class PerfectHash2 {
+    /** length of a partition header */
+    public static final int PARTITION_HEADER_LENGTH = 4 + 4 + 4 + 1 + 1 + 1 + 1
+            + 4;
+
+    /** ratio of keys to table slots before remapping */
+    public static final double LOAD_FACTOR = 0.99;
+
+    /** pilot buckets per key, times log2(n) */
+    public static final double BUCKET_FACTOR = 5.0;
+
+    /** default number of fingerprint bits per key */
+    public static final int DEFAULT_FINGERPRINT_BITS = 8;
+
+    /** maximum number of fingerprint bits per key */
+    public static final int MAX_FINGERPRINT_BITS = 16;
+
+    /**
+     * approximate bytes of heap per entry while building a partition: the
+     * hashes, positions and their sorted copy (24), the key, bucket, member
+     * and slot indexes (16), slot hash codes (8), overflow (8), and the bucket
+     * arrays and bit-packed output (about 24 at most)
+     */
+    public static final int BUILD_BYTES_PER_ENTRY = 80;
+
+    /** widest value that can be read with a single 8-byte read */
+    private static final int MAX_VALUE_BITS = 57;
+
+    /** give up on a partition if a bucket needs a pilot this large */
+    private static final long MAX_PILOT = 1L << 24;
+
+    /** keys with (mixed hash >>> 32) below this go to the dense buckets */
+    private static final long DENSE_THRESHOLD = (long) (0.6 * (1L << 32));
+
+    private static final long BUCKET_SEED = 0x5851F42D4C957F2DL;
+
+    private static final long SLOT_SEED = 0x14057B7EF767814FL;
+
+    private static final long PILOT_SEED = 0x9E3779B97F4A7C15L;
+
+    private final Partition[] partitions;
+
+    private final int bucketPower;
+
+    private PerfectHash2(Partition[] partitions, int bucketPower) {
+        this.partitions = partitions;
+        this.bucketPower = bucketPower;
+    }
+
+    /** loads the partition metadata of a perfect hash index */
+    public static PerfectHash2 read(FileOperations2 fileOps,
+            FileAccess2 access, ByteBuffer hashTableOffsets)
+            throws IOException {
+        Header2 header = fileOps.getHeader();
+        Partition[] partitions = new Partition[header.getBuckets()];
+
+        for (int i = 0; i < partitions.length; i++) {
+            long position = fileOps.getHashTablePosition(hashTableOffsets, i);
+            long length = fileOps.getHashTableSize(hashTableOffsets, i);
+
+            partitions[i] = length == 0 ? Partition.EMPTY : Partition.read(
+                    access, position);
+        }
+
+        return new PerfectHash2(partitions, header.getBucketPower());
+    }
+
+    /**
+     * Returns the position of the record that the key with the given hash
+     * code would have to be, or -1 if there is none (or the fingerprint rules
+     * it out, in which case there are no overflow records for it either).
+     */
+    public long getPosition(FileAccess2 access, long hashCode)
+            throws IOException {
+        Partition partition = this.partitions[Calculations2.getRadix(
+                hashCode, bucketPower)];
+        if (partition.n == 0) {
+            return -1L;
+        }
+
+        int slot = partition.getSlot(access, hashCode);
+
+        if (partition.fingerprintBits > 0
+                && readBits(access, partition.fingerprintsPosition,
+                        (long) slot * partition.fingerprintBits,
+                        partition.fingerprintBits) != getFingerprint(
+                        hashCode, partition.fingerprintBits)) {
+            return -1L;
+        }
+
+        return readBits(access, partition.positionsPosition, (long) slot
+                * partition.positionBits, partition.positionBits) << FileOperations2.ALIGNMENT;
+    }
+
+    /**
+     * Returns the positions of the overflow records with the given hash code,
+     * in file order, or null if there are none.
+     */
+    public long[] getOverflowPositions(long hashCode) {
+        Partition partition = this.partitions[Calculations2.getRadix(
+                hashCode, bucketPower)];
+
+        return partition.getOverflowPositions(hashCode);
+    }
+
+    /**
+     * Returns up to about <code>target</code> record positions, read from
+     * evenly spaced slots of each partition (in no particular order).
+     */
+    public long[] samplePositions(FileAccess2 access, int target)
+            throws IOException {
+        int perPartition = Math.max(1, target / partitions.length);
+
+        long[] result = new long[partitions.length * perPartition];
+        int count = 0;
+
+        for (Partition partition : partitions) {
+            int stride = Math.max(1, partition.n / perPartition);
+
+            for (int slot = 0; slot < partition.n && count < result.length; slot += stride) {
+                result[count++] = readBits(access, partition.positionsPosition,
+                        (long) slot * partition.positionBits,
+                        partition.positionBits) << FileOperations2.ALIGNMENT;
+            }
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Builds the index of one partition, given the hash codes and (aligned)
+     * record positions of its entries in file order.
+     * 
+     * @return the partition, ready to be written to the file (empty if there
+     *         are no entries)
+     */
+    public static ByteBuffer buildPartition(long[] hashes, long[] positions,
+            int count, int positionBits, int fingerprintBits) {
+        if (positionBits > MAX_VALUE_BITS) {
+            throw new IllegalArgumentException("HashFile is too big.");
+        }
+
+        if (fingerprintBits < 0 || fingerprintBits > MAX_FINGERPRINT_BITS) {
+            throw new IllegalArgumentException("fingerprintBits must be in [0, "
+                    + MAX_FINGERPRINT_BITS + "]");
+        }
+
+        if (count == 0) {
+            return ByteBuffer.allocate(0);
+        }
+
+        // find repeated hash codes with a sorted copy, marking each one at
+        // its first index there
+        long[] sorted = Arrays.copyOf(hashes, count);
+        Arrays.sort(sorted);
+
+        BitSet repeated = new BitSet();
+        int run = 0;
+        for (int i = 1; i < count; i++) {
+            if (sorted[i] != sorted[i - 1]) {
+                run = i;
+            } else {
+                repeated.set(run);
+            }
+        }
+
+        // the first record for each hash code goes in the table; the others
+        // are kept as (first sorted index, file index), to sort by hash code
+        int[] keys = new int[count];
+        long[] overflow = new long[repeated.isEmpty() ? 0 : count];
+        int n = 0;
+        int overflowCount = 0;
+
+        BitSet seen = new BitSet();
+        for (int i = 0; i < count; i++) {
+            int first = repeated.isEmpty() ? -1 : getFirstIndex(sorted,
+                    hashes[i]);
+
+            if (first >= 0 && repeated.get(first) && seen.get(first)) {
+                overflow[overflowCount++] = ((long) first << 32) | i;
+            } else {
+                if (first >= 0) {
+                    seen.set(first);
+                }
+                keys[n++] = i;
+            }
+        }
+
+        // an odd table size, so that every bit of a pilot's hash affects the
+        // slot: modulo a power of two, XOR with the pilot never separates
+        // keys whose low bits agree
+        int m = (int) Math.max(n, Math.ceil(n / LOAD_FACTOR)) | 1;
+        int b = getBucketCount(n);
+        int dense = getDenseBucketCount(b);
+
+        // group the keys by pilot bucket
+        int[] bucketOf = new int[n];
+        int[] bucketStart = new int[b + 1];
+        for (int i = 0; i < n; i++) {
+            bucketOf[i] = getPilotBucket(mix(hashes[keys[i]] ^ BUCKET_SEED),
+                    b, dense);
+            bucketStart[bucketOf[i] + 1] += 1;
+        }
+
+        int maxBucketSize = 0;
+        for (int i = 0; i < b; i++) {
+            maxBucketSize = Math.max(maxBucketSize, bucketStart[i + 1]);
+            bucketStart[i + 1] += bucketStart[i];
+        }
+
+        int[] members = new int[n];
+        int[] fill = Arrays.copyOf(bucketStart, b);
+        for (int i = 0; i < n; i++) {
+            members[fill[bucketOf[i]]++] = i;
+        }
+
+        // place the largest buckets first
+        int[] bySize = new int[maxBucketSize + 2];
+        for (int i = 0; i < b; i++) {
+            bySize[bucketStart[i + 1] - bucketStart[i]] += 1;
+        }
+
+        int[] order = new int[b];
+        int next = 0;
+        int[] sizeStart = new int[maxBucketSize + 1];
+        for (int size = maxBucketSize; size >= 0; size--) {
+            sizeStart[size] = next;
+            next += bySize[size];
+        }
+        for (int i = 0; i < b; i++) {
+            order[sizeStart[bucketStart[i + 1] - bucketStart[i]]++] = i;
+        }
+
+        long[] slotHashes = new long[n];
+        for (int i = 0; i < n; i++) {
+            slotHashes[i] = mix(hashes[keys[i]] ^ SLOT_SEED);
+        }
+
+        BitSet taken = new BitSet(m);
+        long[] pilots = new long[b];
+        int[] slotOf = new int[n];
+        int[] candidate = new int[maxBucketSize];
+        long maxPilot = 0L;
+
+        for (int bucket : order) {
+            int start = bucketStart[bucket];
+            int size = bucketStart[bucket + 1] - start;
+            if (size == 0) {
+                break;
+            }
+
+            long pilot = 0L;
+            while (!tryPilot(pilot, slotHashes, members, start, size, m,
+                    taken, candidate)) {
+                pilot += 1;
+
+                if (pilot >= MAX_PILOT) {
+                    throw new IllegalStateException(
+                            "Unable to build perfect hash: no pilot for bucket "
+                                    + bucket);
+                }
+            }
+
+            for (int j = 0; j < size; j++) {
+                taken.set(candidate[j]);
+                slotOf[members[start + j]] = candidate[j];
+            }
+
+            pilots[bucket] = pilot;
+            maxPilot = Math.max(maxPilot, pilot);
+        }
+
+        // remap slots past n onto the free slots below n
+        int[] remap = new int[m - n];
+        int free = taken.nextClearBit(0);
+        for (int slot = taken.nextSetBit(n); slot >= 0; slot = taken
+                .nextSetBit(slot + 1)) {
+            remap[slot - n] = free;
+            free = taken.nextClearBit(free + 1);
+        }
+
+        int pilotBits = 64 - Long.numberOfLeadingZeros(maxPilot);
+
+        long[] pilotWords = newBitArray(b, pilotBits);
+        for (int i = 0; i < b; i++) {
+            putBits(pilotWords, (long) i * pilotBits, pilotBits, pilots[i]);
+        }
+
+        long[] fingerprintWords = newBitArray(n, fingerprintBits);
+        long[] positionWords = newBitArray(n, positionBits);
+        for (int i = 0; i < n; i++) {
+            int slot = slotOf[i] < n ? slotOf[i] : remap[slotOf[i] - n];
+
+            putBits(fingerprintWords, (long) slot * fingerprintBits,
+                    fingerprintBits, getFingerprint(hashes[keys[i]],
+                            fingerprintBits));
+            putBits(positionWords, (long) slot * positionBits, positionBits,
+                    positions[keys[i]]);
+        }
+
+        long length = PARTITION_HEADER_LENGTH + 8L * pilotWords.length + 4L
+                * remap.length + 8L * fingerprintWords.length + 8L
+                * positionWords.length + 16L * overflowCount;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Perfect hash partition too large");
+        }
+
+        ByteBuffer out = ByteBuffer.allocate((int) length);
+        out.putInt(n);
+        out.putInt(m);
+        out.putInt(b);
+        out.put((byte) pilotBits);
+        out.put((byte) positionBits);
+        out.put((byte) fingerprintBits);
+        out.put((byte) 0);
+        out.putInt(overflowCount);
+
+        for (long word : pilotWords) {
+            out.putLong(word);
+        }
+        for (int slot : remap) {
+            out.putInt(slot);
+        }
+        for (long word : fingerprintWords) {
+            out.putLong(word);
+        }
+        for (long word : positionWords) {
+            out.putLong(word);
+        }
+
+        // overflow records sorted by hash code, then file order
+        Arrays.sort(overflow, 0, overflowCount);
+        for (int i = 0; i < overflowCount; i++) {
+            int index = (int) overflow[i];
+            out.putLong(hashes[index]);
+            out.putLong(positions[index]);
+        }
+
+        out.rewind();
+
+        return out;
+    }
+
+    /** returns the first index of a hash code in a sorted array holding it */
+    private static int getFirstIndex(long[] sorted, long hashCode) {
+        int low = 0;
+        int high = sorted.length - 1;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < hashCode) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    /** returns true (and the slots) if the pilot places a whole bucket */
+    private static boolean tryPilot(long pilot, long[] slotHashes,
+            int[] members, int start, int size, int m, BitSet taken,
+            int[] candidate) {
+        long pilotHash = mix(pilot + PILOT_SEED);
+
+        for (int j = 0; j < size; j++) {
+            int slot = getSlot(slotHashes[members[start + j]] ^ pilotHash, m);
+
+            if (taken.get(slot)) {
+                return false;
+            }
+
+            for (int k = 0; k < j; k++) {
+                if (candidate[k] == slot) {
+                    return false;
+                }
+            }
+
+            candidate[j] = slot;
+        }
+
+        return true;
+    }
+
+    /** returns the number of pilot buckets for a partition of n keys */
+    private static int getBucketCount(int n) {
+        if (n <= 1) {
+            return n;
+        }
+
+        double log2 = Math.max(1.0, Math.log(n) / Math.log(2.0));
+
+        return (int) Math.max(1, Math.ceil(BUCKET_FACTOR * n / log2));
+    }
+
+    /** returns the number of dense pilot buckets, out of b */
+    private static int getDenseBucketCount(int b) {
+        return b < 2 ? b : Math.max(1, Math.min(b - 1, (int) (0.3 * b)));
+    }
+
+    /** maps a mixed hash code to its pilot bucket */
+    private static int getPilotBucket(long mixed, int b, int dense) {
+        if (b < 2) {
+            return 0;
+        }
+
+        long low = mixed & 0xFFFFFFFFL;
+        if ((mixed >>> 32) < DENSE_THRESHOLD) {
+            return (int) ((low * dense) >>> 32);
+        }
+
+        return dense + (int) ((low * (b - dense)) >>> 32);
+    }
+
+    /**
+     * maps a mixed hash code onto [0, m); this has to depend on all the bits,
+     * since xor-ing in the pilot leaves any high bits that keys share alone
+     */
+    private static int getSlot(long mixed, int m) {
+        return (int) ((mixed >>> 1) % m);
+    }
+
+    private static long getFingerprint(long hashCode, int bits) {
+        return bits == 0 ? 0L : hashCode >>> (64 - bits);
+    }
+
+    /** murmur3's 64-bit finalizer */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+
+        return value;
+    }
+
+    /** allocates a bit array of count values, plus a word of slack */
+    private static long[] newBitArray(int count, int bits) {
+        return new long[(int) (((long) count * bits + 63L) >>> 6) + 1];
+    }
+
+    private static void putBits(long[] words, long bitOffset, int bits,
+            long value) {
+        if (bits == 0) {
+            return;
+        }
+
+        int word = (int) (bitOffset >>> 6);
+        int end = (int) (bitOffset & 63L) + bits;
+
+        if (end <= 64) {
+            words[word] |= value << (64 - end);
+        } else {
+            words[word] |= value >>> (end - 64);
+            words[word + 1] |= value << (128 - end);
+        }
+    }
+
+    private static long readBits(FileAccess2 access, long position,
+            long bitOffset, int bits) throws IOException {
+        if (bits == 0) {
+            return 0L;
+        }
+
+        long word = access.view(position + (bitOffset >>> 3), 8).getLong(0);
+
+        return (word << (int) (bitOffset & 7L)) >>> (64 - bits);
+    }
+
+    /** metadata of one partition */
+    private static class Partition {
+        private static final Partition EMPTY = new Partition();
+
+        private int n;
+
+        private int m;
+
+        private int b;
+
+        private int dense;
+
+        private int pilotBits;
+
+        private int positionBits;
+
+        private int fingerprintBits;
+
+        private long pilotsPosition;
+
+        private long fingerprintsPosition;
+
+        private long positionsPosition;
+
+        private int[] remap;
+
+        private long[] overflowHashes;
+
+        private long[] overflowPositions;
+
+        private static Partition read(FileAccess2 access, long position)
+                throws IOException {
+            ByteBuffer header = access.view(position, PARTITION_HEADER_LENGTH);
+
+            Partition partition = new Partition();
+            partition.n = header.getInt(0);
+            partition.m = header.getInt(4);
+            partition.b = header.getInt(8);
+            partition.dense = getDenseBucketCount(partition.b);
+            partition.pilotBits = header.get(12);
+            partition.positionBits = header.get(13);
+            partition.fingerprintBits = header.get(14);
+            int overflowCount = header.getInt(16);
+
+            long pos = position + PARTITION_HEADER_LENGTH;
+            partition.pilotsPosition = pos;
+            pos += 8L * newBitArray(partition.b, partition.pilotBits).length;
+
+            partition.remap = new int[partition.m - partition.n];
+            if (partition.remap.length > 0) {
+                access.view(pos, 4 * partition.remap.length).asIntBuffer()
+                        .get(partition.remap);
+            }
+            pos += 4L * partition.remap.length;
+
+            partition.fingerprintsPosition = pos;
+            pos += 8L * newBitArray(partition.n, partition.fingerprintBits).length;
+
+            partition.positionsPosition = pos;
+            pos += 8L * newBitArray(partition.n, partition.positionBits).length;
+
+            partition.overflowHashes = new long[overflowCount];
+            partition.overflowPositions = new long[overflowCount];
+            if (overflowCount > 0) {
+                ByteBuffer overflow = access.view(pos, 16 * overflowCount);
+                for (int i = 0; i < overflowCount; i++) {
+                    partition.overflowHashes[i] = overflow.getLong(16 * i);
+                    partition.overflowPositions[i] = overflow
+                            .getLong(16 * i + 8) << FileOperations2.ALIGNMENT;
+                }
+            }
+
+            return partition;
+        }
+
+        /** returns the (remapped) slot for a hash code */
+        private int getSlot(FileAccess2 access, long hashCode)
+                throws IOException {
+            int bucket = getPilotBucket(mix(hashCode ^ BUCKET_SEED), b, dense);
+            long pilot = readBits(access, pilotsPosition, (long) bucket
+                    * pilotBits, pilotBits);
+
+            int slot = PerfectHash2.getSlot(mix(hashCode ^ SLOT_SEED)
+                    ^ mix(pilot + PILOT_SEED), m);
+
+            return slot < n ? slot : remap[slot - n];
+        }
+
+        private long[] getOverflowPositions(long hashCode) {
+            if (overflowHashes == null || overflowHashes.length == 0) {
+                return null;
+            }
+
+            int index = Arrays.binarySearch(overflowHashes, hashCode);
+            if (index < 0) {
+                return null;
+            }
+
+            // binarySearch() finds any match; back up to the first one
+            while (index > 0 && overflowHashes[index - 1] == hashCode) {
+                index -= 1;
+            }
+
+            int end = index;
+            while (end < overflowHashes.length
+                    && overflowHashes[end] == hashCode) {
+                end += 1;
+            }
+
+            return Arrays.copyOfRange(overflowPositions, index, end);
+        }
+    }
+}
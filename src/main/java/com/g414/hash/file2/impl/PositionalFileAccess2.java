@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * FileAccess2 using positional reads (pread) on a FileChannel: concurrent
+ * lookups share neither a file pointer nor a monitor. Reads into heap buffers
+ * are staged through a per-thread direct buffer, so the JDK does not need to
+ * allocate a temporary one.
+ * <p>
+ * Note that interrupting a thread blocked in a read closes the channel, per
+ * the InterruptibleChannel contract.
+ */
+public class PositionalFileAccess2 extends FileAccess2 {
+    /** length of each thread's staging buffer */
+    public static final int STAGING_BUFFER_LENGTH = 64 * 1024; // 64KB
+
+    private final FileChannel channel;
+
+    private final long length;
+
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(STAGING_BUFFER_LENGTH);
+        }
+    };
+
+    public PositionalFileAccess2(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.length = channel.size();
+    }
+
+    @Override
+    public long length() {
+        return this.length;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer target) throws IOException {
+        if (target.isDirect()) {
+            return this.channel.read(target, position);
+        }
+
+        // larger reads are staged in chunks; readFully() loops as needed
+        ByteBuffer buffer = this.buffers.get();
+        buffer.clear();
+        buffer.limit(Math.min(buffer.capacity(), target.remaining()));
+
+        int read = this.channel.read(buffer, position);
+        if (read > 0) {
+            buffer.flip();
+            target.put(buffer);
+        }
+
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
@@ -0,0 +1,529 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.g414.hash.file2.ByteSize;
+
+/**
+ * A single lookup in a HashFile, version 2: walks the hash table of the key's
+ * bucket with linear probing (or, with a perfect hash index, visits the key's
+ * slot and any overflow records), and stops at each record whose hash code
+ * and key match. Used by get(), getMulti() and friends; not thread-safe, so
+ * each lookup gets its own instance.
+ */
+public class Probe2 {
+    private final FileAccess2 access;
+
+    /** access to records, by logical position if the file is compressed */
+    private final FileAccess2 recordAccess;
+
+    private final byte[] key;
+
+    private final long hashCode;
+
+    private final ByteSize keySize;
+
+    private final ByteSize valueSize;
+
+    private final boolean isAssociative;
+
+    private final boolean isLongHash;
+
+    private final boolean isLargeFile;
+
+    /** whether records may refer to an earlier record's value */
+    private final boolean isDeduplicated;
+
+    private final int entrySize;
+
+    /** the bucket's hash table (null if the bucket is empty) */
+    private ByteBuffer table;
+
+    /** number of entries in the bucket's hash table */
+    private int tableSize;
+
+    /** index of the next hash table entry to examine */
+    private int probe;
+
+    /** number of hash table entries examined so far */
+    private int probed;
+
+    /** number of hash table entries read so far (including the last one) */
+    private int examined;
+
+    /** number of records whose hash code matched but key did not */
+    private int collisions;
+
+    /** number of hash table and record bytes read so far */
+    private long bytesRead;
+
+    /** number of records that needed a second read */
+    private int overflowReads;
+
+    /** whether each hash table is sorted by home slot */
+    private final boolean isSorted;
+
+    /** the largest distance of any entry from its home slot */
+    private final int maxDisplacement;
+
+    /** whether a sorted table has been searched yet */
+    private boolean searched;
+
+    /** the perfect hash index, if the file has one */
+    private PerfectHash2 perfectHash;
+
+    /**
+     * overflow record positions for the key (perfect hash index only), null
+     * until the key's slot has been visited
+     */
+    private long[] overflow;
+
+    /** index of the next overflow position to return */
+    private int overflowIndex;
+
+    /** whether values will be needed, so should be read along with keys */
+    private boolean readValues = true;
+
+    /** the most recently matched record (possibly without its value) */
+    private ByteBuffer record;
+
+    /** file position of the most recently matched record */
+    private long recordPosition = -1L;
+
+    /** offset of the value within the matched record */
+    private int valueOffset;
+
+    /** length of the value within the matched record */
+    private int valueLength;
+
+    /**
+     * whether the matched record holds a reference to its value rather than
+     * the value, until it is resolved
+     */
+    private boolean isReference;
+
+    public Probe2(FileOperations2 fileOps, FileAccess2 access,
+            ByteBuffer hashTableOffsets, BloomFilter2 filter, byte[] key)
+            throws IOException {
+        this(fileOps, access, hashTableOffsets, filter, key, Calculations2
+                .computeHash(key, fileOps.getHeader().isLongHash()));
+    }
+
+    /** creates a probe for a key whose hash code is already known */
+    public Probe2(FileOperations2 fileOps, FileAccess2 access,
+            ByteBuffer hashTableOffsets, BloomFilter2 filter, byte[] key,
+            long hashCode) throws IOException {
+        this(fileOps, access, key, hashCode, null, 0);
+
+        if (filter != null && !filter.mightContain(this.hashCode)) {
+            return;
+        }
+
+        if (fileOps.getHeader().isPerfectHash()) {
+            this.perfectHash = fileOps.getPerfectHash();
+            if (this.perfectHash == null) {
+                throw new IllegalStateException(
+                        "perfect hash index has not been loaded");
+            }
+
+            return;
+        }
+
+        int slot = Calculations2.getBucket(this.hashCode, fileOps.getHeader()
+                .getBucketPower());
+
+        int size = (int) fileOps.getHashTableSize(hashTableOffsets, slot);
+        if (size == 0) {
+            return;
+        }
+
+        this.setTable(access.view(fileOps.getHashTablePosition(
+                hashTableOffsets, slot), size * this.entrySize), size);
+        this.bytesRead += size * this.entrySize;
+    }
+
+    /**
+     * Creates a probe over a hash table that has already been read, which
+     * may be shared with other probes (it is only read with absolute gets).
+     */
+    public Probe2(FileOperations2 fileOps, FileAccess2 access, byte[] key,
+            long hashCode, ByteBuffer table, int tableSize) {
+        Header2 header = fileOps.getHeader();
+
+        this.access = access;
+        this.recordAccess = fileOps.getRecordAccess(access);
+        this.key = key;
+        this.hashCode = hashCode;
+        this.keySize = header.getKeySize();
+        this.valueSize = header.getValueSize();
+        this.isAssociative = header.isAssociative();
+        this.isLongHash = header.isLongHash();
+        this.isLargeFile = header.isLargeFile();
+        this.isDeduplicated = header.isDeduplicated();
+        this.entrySize = header.getHashTableEntrySize();
+        this.isSorted = header.hasSortedBuckets();
+        this.maxDisplacement = fileOps.getMaxDisplacement();
+
+        this.setTable(table, tableSize);
+    }
+
+    private void setTable(ByteBuffer table, int tableSize) {
+        this.table = table;
+        this.tableSize = table == null ? 0 : tableSize;
+        this.probe = this.tableSize == 0 ? 0 : (int) (Math
+                .abs(this.hashCode) % this.tableSize);
+    }
+
+    /** returns the number of hash table entries read so far */
+    public int getExamined() {
+        return this.examined;
+    }
+
+    /** returns the number of hash code matches whose key differed */
+    public int getCollisions() {
+        return this.collisions;
+    }
+
+    /** returns the number of hash table and record bytes read so far */
+    public long getBytesRead() {
+        return this.bytesRead;
+    }
+
+    /** counts bytes read on this probe's behalf, such as a shared table */
+    void addBytesRead(long bytes) {
+        this.bytesRead += bytes;
+    }
+
+    /**
+     * returns the number of records that did not fit in the first read, so
+     * were read again
+     */
+    public int getOverflowReads() {
+        return this.overflowReads;
+    }
+
+    /** returns the hash code of the key being looked up */
+    public long getHashCode() {
+        return hashCode;
+    }
+
+    /**
+     * Advances to the next record matching the key.
+     *
+     * @return true if a matching record was found, false if there are no more
+     */
+    public boolean next() throws IOException {
+        long position;
+        while ((position = this.nextCandidate()) >= 0) {
+            if (this.readRecord(position)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Advances to the next hash table entry whose hash code matches, without
+     * reading its record.
+     *
+     * @return the record position of the entry, or -1 if there are no more
+     */
+    public long nextCandidate() throws IOException {
+        if (this.perfectHash != null) {
+            return this.nextPerfectHashCandidate();
+        }
+
+        if (this.isSorted) {
+            return this.nextSortedCandidate();
+        }
+
+        int hashSizeBytes = isLongHash ? 8 : 4;
+
+        while (this.probed < this.tableSize) {
+            int probeSlot = this.probe * this.entrySize;
+
+            long probedHashCode = isLongHash ? table.getLong(probeSlot) : table
+                    .getInt(probeSlot);
+            long probedPosition = (isLargeFile ? table.getLong(probeSlot
+                    + hashSizeBytes) : table.getInt(probeSlot + hashSizeBytes)) << FileOperations2.ALIGNMENT;
+            this.examined += 1;
+
+            if (probedPosition == 0) {
+                this.probed = this.tableSize;
+                break;
+            }
+
+            this.probed += 1;
+            this.probe += 1;
+
+            if (this.probe >= this.tableSize) {
+                this.probe = 0;
+            }
+
+            if (probedHashCode == this.hashCode) {
+                return probedPosition;
+            }
+        }
+
+        this.record = null;
+        this.recordPosition = -1L;
+
+        return -1L;
+    }
+
+    /**
+     * Returns the positions of the entries matching the hash code in a
+     * sorted table: they are contiguous, and no further than the maximum
+     * displacement from the key's home slot, so the first one is found by a
+     * binary search of that window.
+     */
+    private long nextSortedCandidate() {
+        if (!this.searched) {
+            this.searched = true;
+            this.probe = this.tableSize == 0 ? 0 : this.findFirstSorted();
+        }
+
+        if (this.probe < this.tableSize) {
+            int probeSlot = this.probe * this.entrySize;
+            this.examined += 1;
+
+            if (this.getHashCode(probeSlot) == this.hashCode) {
+                this.probe += 1;
+
+                return this.getPosition(probeSlot);
+            }
+
+            this.probe = this.tableSize;
+        }
+
+        this.record = null;
+        this.recordPosition = -1L;
+
+        return -1L;
+    }
+
+    /**
+     * returns the index of the first entry in a sorted table that is not
+     * before the key's (home slot, hash code)
+     */
+    private int findFirstSorted() {
+        int home = FileOperations2.getHomeSlot(this.hashCode, this.tableSize);
+
+        int low = (int) Math.max(0L, (long) home - maxDisplacement);
+        int high = (int) Math.min(this.tableSize, (long) home
+                + maxDisplacement + 1L);
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            long probedHashCode = this.getHashCode(middle * this.entrySize);
+            int probedHome = FileOperations2.getHomeSlot(probedHashCode,
+                    this.tableSize);
+            this.examined += 1;
+
+            if (probedHome < home
+                    || (probedHome == home && probedHashCode < this.hashCode)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    private long getHashCode(int probeSlot) {
+        return isLongHash ? table.getLong(probeSlot) : table.getInt(probeSlot);
+    }
+
+    private long getPosition(int probeSlot) {
+        int offset = probeSlot + (isLongHash ? 8 : 4);
+
+        return (isLargeFile ? table.getLong(offset) : table.getInt(offset)) << FileOperations2.ALIGNMENT;
+    }
+
+    /**
+     * Returns the position held by the key's slot, then those of the overflow
+     * records with the same hash code.
+     */
+    private long nextPerfectHashCandidate() throws IOException {
+        if (this.overflow == null) {
+            long position = this.perfectHash.getPosition(access, hashCode);
+            this.examined += 1;
+            if (position < 0) {
+                // not even the fingerprint matched, so no overflow either
+                this.perfectHash = null;
+                return this.nextCandidate();
+            }
+
+            long[] positions = this.perfectHash.getOverflowPositions(hashCode);
+            this.overflow = positions == null ? new long[0] : positions;
+
+            return position;
+        }
+
+        if (this.overflowIndex < this.overflow.length) {
+            return this.overflow[this.overflowIndex++];
+        }
+
+        this.perfectHash = null;
+
+        return this.nextCandidate();
+    }
+
+    /** returns the file position of the matched record */
+    public long getRecordPosition() {
+        return this.recordPosition;
+    }
+
+    /** returns the length of the matched record's value */
+    public int getValueLength() {
+        return this.valueLength;
+    }
+
+    /** returns a copy of the matched record's value */
+    public byte[] getValue() throws IOException {
+        byte[] data = new byte[this.valueLength];
+
+        ByteBuffer source = this.getRecord().duplicate();
+        source.position(this.valueOffset);
+        source.get(data);
+
+        return data;
+    }
+
+    /**
+     * Returns a read-only view of the matched record's value. In MAPPED mode
+     * this is a slice of the mapping, so no bytes are copied.
+     */
+    public ByteBuffer getValueView() throws IOException {
+        ByteBuffer view = this.getRecord().duplicate();
+        view.limit(this.valueOffset + this.valueLength);
+        view.position(this.valueOffset);
+
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Sets whether values will be needed; if not, only record headers and
+     * keys are read.
+     */
+    public void setReadValues(boolean readValues) {
+        this.readValues = readValues;
+    }
+
+    /** returns the whole matched record, reading the rest of it if needed */
+    private ByteBuffer getRecord() throws IOException {
+        if (this.isReference) {
+            this.resolveReference();
+        }
+
+        int recordLength = this.valueOffset + this.valueLength;
+
+        if (recordLength > this.record.limit()) {
+            this.record = recordAccess.view(this.recordPosition,
+                    recordLength);
+            this.bytesRead += recordLength;
+            this.overflowReads += 1;
+        }
+
+        return this.record;
+    }
+
+    /**
+     * Replaces the matched record by its value, stored with an earlier
+     * record, reading the reference first if needed.
+     */
+    private void resolveReference() throws IOException {
+        int referenceSize = isLargeFile ? 8 : 4;
+        int referenceEnd = this.valueOffset + referenceSize;
+
+        if (referenceEnd > this.record.limit()) {
+            this.record = recordAccess.view(this.recordPosition, referenceEnd);
+            this.bytesRead += referenceEnd;
+            this.overflowReads += 1;
+        }
+
+        long distance = isLargeFile ? this.record.getLong(this.valueOffset)
+                : this.record.getInt(this.valueOffset);
+
+        this.record = recordAccess.view(this.recordPosition - distance,
+                this.valueLength);
+        this.bytesRead += this.valueLength;
+        this.overflowReads += 1;
+        this.valueOffset = 0;
+        this.isReference = false;
+    }
+
+    /**
+     * Reads the record at the given position, checking whether its key
+     * matches without copying it. On a match the record becomes the current
+     * one for getValue() and friends.
+     */
+    public boolean readRecord(long position) throws IOException {
+        int headerLength = keySize.getSize() + valueSize.getSize();
+
+        ByteBuffer candidate = recordAccess.viewAtMost(position,
+                this.readValues ? FileOperations2.RANDOM_READ_BUFFER_LENGTH
+                        : headerLength + key.length);
+        this.bytesRead += candidate.limit();
+
+        int keyLength = isAssociative ? 0 : (int) FileOperations2.read(
+                candidate, keySize, 0);
+
+        if (!isAssociative && keyLength != key.length) {
+            this.collisions += 1;
+            return false;
+        }
+
+        int dataLength = (int) FileOperations2.read(candidate, valueSize,
+                keySize.getSize());
+
+        boolean reference = false;
+        if (isDeduplicated) {
+            reference = (dataLength & 1) != 0;
+            dataLength >>>= 1;
+        }
+
+        // the value is only read (by getRecord()) if it is asked for
+        if (headerLength + keyLength > candidate.limit()) {
+            candidate = recordAccess.view(position, headerLength
+                    + keyLength);
+            this.bytesRead += headerLength + keyLength;
+            this.overflowReads += 1;
+        }
+
+        for (int i = 0; i < keyLength; i++) {
+            if (candidate.get(headerLength + i) != key[i]) {
+                this.collisions += 1;
+                return false;
+            }
+        }
+
+        this.record = candidate;
+        this.recordPosition = position;
+        this.valueOffset = headerLength + keyLength;
+        this.valueLength = dataLength;
+        this.isReference = reference;
+
+        return true;
+    }
+}
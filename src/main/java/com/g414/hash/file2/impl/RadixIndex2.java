@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The index built for one radix file of a HashFile, version 2, while
+ * finishing it: in memory, or in a temp file if it was too large for that.
+ */
+public class RadixIndex2 {
+    private final ByteBuffer bytes;
+
+    private final File file;
+
+    private final long length;
+
+    public RadixIndex2(ByteBuffer bytes) {
+        this.bytes = bytes;
+        this.file = null;
+        this.length = bytes.capacity();
+    }
+
+    public RadixIndex2(File file, long length) {
+        this.bytes = null;
+        this.file = file;
+        this.length = length;
+    }
+
+    /** returns the length of the index in bytes */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Appends the index to the output at its file pointer, deleting the temp
+     * file if there is one.
+     */
+    public void writeTo(RandomAccessFile out) throws IOException {
+        if (bytes != null) {
+            out.write(bytes.array());
+            return;
+        }
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel source = in.getChannel();
+            long start = out.getFilePointer();
+            long copied = 0L;
+
+            while (copied < length) {
+                long count = source.transferTo(copied, length - copied, out
+                        .getChannel().position(start + copied));
+                if (count == 0L && copied >= source.size()) {
+                    throw new EOFException("Radix index is truncated: "
+                            + file);
+                }
+                copied += count;
+            }
+
+            out.seek(start + length);
+        } finally {
+            in.close();
+            file.delete();
+        }
+    }
+}
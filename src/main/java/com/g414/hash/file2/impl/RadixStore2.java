@@ -0,0 +1,329 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The radix file entries of a HashFile being built. Entries are kept in
+ * off-heap chunks while all radixes together fit in the memory budget; a
+ * radix that needs more memory beyond that is spilled to its temp file
+ * (prefix + two hex digits), and written there from then on. Small builds
+ * therefore never touch the disk for their index, and pay only for the
+ * memory they use.
+ * <p>
+ * Each radix's stream may be written by one thread at a time (callers lock
+ * the stream itself in concurrent mode); different radixes may be written
+ * concurrently.
+ */
+public class RadixStore2 {
+    /** default memory budget for in-memory radix entries */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024; // 64MB
+
+    /** default size of write buffer for each spilled radix file */
+    public static final int SPILL_BUFFER_SIZE = 512 * 1024; // 512K
+
+    /** size of the first chunk of each radix; later ones double */
+    private static final int MIN_CHUNK_SIZE = 4 * 1024; // 4K
+
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024; // 1MB
+
+    private final String radixFilePrefix;
+
+    private final RadixOutput[] outputs;
+
+    private final DataOutputStream[] streams;
+
+    /** bytes of chunks allocated across all radixes */
+    private final AtomicLong memoryUsed = new AtomicLong();
+
+    private volatile long memoryBudget;
+
+    /** size of the write buffer of each spilled radix file */
+    private final int spillBufferSize;
+
+    public RadixStore2(String radixFilePrefix, int radixCount,
+            long memoryBudget, int spillBufferSize) {
+        if (spillBufferSize < 1) {
+            throw new IllegalArgumentException("spillBufferSize must be >= 1");
+        }
+
+        this.radixFilePrefix = radixFilePrefix;
+        this.memoryBudget = memoryBudget;
+        this.spillBufferSize = spillBufferSize;
+
+        this.outputs = new RadixOutput[radixCount];
+        this.streams = new DataOutputStream[radixCount];
+        for (int i = 0; i < radixCount; i++) {
+            outputs[i] = new RadixOutput(i);
+            streams[i] = new DataOutputStream(outputs[i]);
+        }
+    }
+
+    /** returns the stream to write each radix's entries to */
+    public DataOutputStream[] getStreams() {
+        return streams;
+    }
+
+    /**
+     * Sets the memory budget; radixes already in memory stay there until
+     * they next need a chunk.
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("memoryBudget must be >= 0");
+        }
+
+        this.memoryBudget = memoryBudget;
+    }
+
+    /** returns the number of bytes of off-heap chunks in use */
+    public long getMemoryUsed() {
+        return memoryUsed.get();
+    }
+
+    /** returns true if the given radix has been spilled to its temp file */
+    public boolean isSpilled(int radix) {
+        return outputs[radix].spill != null;
+    }
+
+    /** returns the number of bytes written for the given radix */
+    public long getLength(int radix) {
+        return outputs[radix].length;
+    }
+
+    /** flushes and closes all streams; call before reading them back */
+    public void close() throws IOException {
+        for (DataOutputStream stream : streams) {
+            stream.close();
+        }
+    }
+
+    /** reads back the entries of the given radix, once closed */
+    public InputStream openInput(int radix, int bufferSize)
+            throws IOException {
+        RadixOutput output = outputs[radix];
+        if (output.spill != null) {
+            return new BufferedInputStream(new FileInputStream(
+                    getRadixFile(radix)), bufferSize);
+        }
+
+        return new ChunkInput(output.chunks);
+    }
+
+    /** releases the memory and deletes any temp files */
+    public void delete() {
+        for (RadixOutput output : outputs) {
+            if (output.spill != null) {
+                getRadixFile(output.radix).delete();
+            }
+
+            output.release();
+        }
+    }
+
+    /**
+     * returns a temp file for the given radix, named after its spill file
+     * with the given suffix
+     */
+    public File getScratchFile(int radix, String suffix) {
+        File file = new File(String.format("%s%02X.%s", radixFilePrefix,
+                radix, suffix));
+        file.deleteOnExit();
+
+        return file;
+    }
+
+    private File getRadixFile(int radix) {
+        return new File(String.format("%s%02X", radixFilePrefix, radix));
+    }
+
+    /** in-memory chunks of one radix, or its temp file once spilled */
+    private class RadixOutput extends OutputStream {
+        private final int radix;
+
+        private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+        private ByteBuffer current;
+
+        private long allocated;
+
+        private long length;
+
+        private OutputStream spill;
+
+        public RadixOutput(int radix) {
+            this.radix = radix;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            length += 1;
+
+            if (spill == null && (current == null || !current.hasRemaining())) {
+                this.addChunk();
+            }
+
+            if (spill != null) {
+                spill.write(b);
+            } else {
+                current.put((byte) b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            length += len;
+
+            while (len > 0) {
+                if (spill != null) {
+                    spill.write(b, off, len);
+                    return;
+                }
+
+                if (current == null || !current.hasRemaining()) {
+                    this.addChunk();
+                    continue;
+                }
+
+                int count = Math.min(len, current.remaining());
+                current.put(b, off, count);
+                off += count;
+                len -= count;
+            }
+        }
+
+        /** adds a chunk, or spills the radix if the budget is used up */
+        private void addChunk() throws IOException {
+            int size = (int) Math.min(MAX_CHUNK_SIZE, Math.max(
+                    MIN_CHUNK_SIZE, allocated));
+
+            if (memoryUsed.addAndGet(size) > memoryBudget) {
+                memoryUsed.addAndGet(-size);
+                this.spill();
+                return;
+            }
+
+            current = ByteBuffer.allocateDirect(size);
+            chunks.add(current);
+            allocated += size;
+        }
+
+        private void spill() throws IOException {
+            File file = getRadixFile(radix);
+            file.deleteOnExit();
+
+            spill = new BufferedOutputStream(new FileOutputStream(file),
+                    spillBufferSize);
+
+            byte[] copy = new byte[MIN_CHUNK_SIZE];
+            for (ByteBuffer chunk : chunks) {
+                ByteBuffer written = chunk.duplicate();
+                written.flip();
+
+                while (written.hasRemaining()) {
+                    int count = Math.min(copy.length, written.remaining());
+                    written.get(copy, 0, count);
+                    spill.write(copy, 0, count);
+                }
+            }
+
+            this.release();
+        }
+
+        private void release() {
+            chunks.clear();
+            current = null;
+            memoryUsed.addAndGet(-allocated);
+            allocated = 0L;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (spill != null) {
+                spill.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (spill != null) {
+                spill.close();
+            }
+        }
+    }
+
+    /** reads the written part of each chunk in turn */
+    private static class ChunkInput extends InputStream {
+        private final List<ByteBuffer> chunks;
+
+        private ByteBuffer current;
+
+        private int next;
+
+        public ChunkInput(List<ByteBuffer> chunks) {
+            this.chunks = chunks;
+        }
+
+        private boolean advance() {
+            while (current == null || !current.hasRemaining()) {
+                if (next >= chunks.size()) {
+                    return false;
+                }
+
+                current = chunks.get(next++).duplicate();
+                current.flip();
+            }
+
+            return true;
+        }
+
+        @Override
+        public int read() {
+            return this.advance() ? current.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (!this.advance()) {
+                return -1;
+            }
+
+            int count = Math.min(len, current.remaining());
+            current.get(b, off, count);
+
+            return count;
+        }
+    }
+}
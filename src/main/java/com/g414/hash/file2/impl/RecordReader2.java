@@ -0,0 +1,314 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.g414.hash.file2.ByteSize;
+
+/**
+ * Sequential reader over a range of records in the data segment of a
+ * HashFile, version 2. Records are read through a reusable buffer; the range
+ * must start at a record boundary. In a compressed file the range must start
+ * at a block boundary, and blocks are decompressed one at a time (bypassing
+ * the block cache); record positions are then logical positions.
+ */
+public class RecordReader2 {
+    /** default length of the read buffer */
+    public static final int DEFAULT_BUFFER_LENGTH = 256 * 1024; // 256KB
+
+    /** size of the block cache for deduplicated values, if compressed */
+    public static final long VALUE_CACHE_SIZE = 4L * 1024 * 1024; // 4MB
+
+    private final FileAccess2 access;
+
+    /** layout of the compressed data segment, or null */
+    private final BlockFormat2 format;
+
+    private final ByteSize keySize;
+
+    private final ByteSize valueSize;
+
+    private final boolean isAssociative;
+
+    private final int headerLength;
+
+    /** whether records may refer to an earlier record's value */
+    private final boolean isDeduplicated;
+
+    private final int referenceSize;
+
+    /** access to referenced values, created when first needed */
+    private FileAccess2 valueAccess;
+
+    private final long end;
+
+    private ByteBuffer buffer;
+
+    /** reusable read-only views of the current key and value */
+    private ByteBuffer keyView;
+
+    private ByteBuffer valueView;
+
+    /** whether values are needed, or only keys */
+    private boolean readValues = true;
+
+    /** file position of buffer[0] */
+    private long bufferStart;
+
+    /** file position of the next record */
+    private long next;
+
+    /** file position of the current record */
+    private long position = -1L;
+
+    /** file position of the next block, if compressed */
+    private long nextBlock;
+
+    /** offset of the current record in the buffer */
+    private int offset;
+
+    private int keyLength;
+
+    private int valueLength;
+
+    /** whether the current record refers to an earlier record's value */
+    private boolean isReference;
+
+    public RecordReader2(Header2 header, FileAccess2 access, long start,
+            long end) {
+        this(header, access, start, end, DEFAULT_BUFFER_LENGTH);
+    }
+
+    public RecordReader2(Header2 header, FileAccess2 access, long start,
+            long end, int bufferLength) {
+        this(header, null, access, start, end, bufferLength);
+    }
+
+    public RecordReader2(Header2 header, BlockFormat2 format,
+            FileAccess2 access, long start, long end) {
+        this(header, format, access, start, end, DEFAULT_BUFFER_LENGTH);
+    }
+
+    public RecordReader2(Header2 header, BlockFormat2 format,
+            FileAccess2 access, long start, long end, int bufferLength) {
+        this.access = access;
+        this.format = format;
+        this.keySize = header.getKeySize();
+        this.valueSize = header.getValueSize();
+        this.isAssociative = header.isAssociative();
+        this.headerLength = keySize.getSize() + valueSize.getSize();
+        this.isDeduplicated = header.isDeduplicated();
+        this.referenceSize = header.isLargeFile() ? 8 : 4;
+        this.end = end;
+        this.next = start;
+        this.nextBlock = start;
+
+        this.setBuffer(ByteBuffer.allocate(format == null ? bufferLength : 0));
+        this.buffer.limit(0);
+        this.bufferStart = start;
+    }
+
+    /**
+     * Sets whether values will be needed; if not, only record headers and
+     * keys are read into the buffer, and large values are skipped.
+     */
+    public void setReadValues(boolean readValues) {
+        this.readValues = readValues;
+    }
+
+    /**
+     * Advances to the next record in the range.
+     *
+     * @return false if there are no more records
+     */
+    public boolean next() throws IOException {
+        if (format != null) {
+            if (!this.nextRecordInBlock()) {
+                return false;
+            }
+        } else if (this.next >= this.end) {
+            return false;
+        }
+
+        this.position = this.next;
+        this.ensure(headerLength);
+
+        this.keyLength = isAssociative ? 0 : (int) FileOperations2.read(
+                buffer, keySize, offset);
+        this.valueLength = (int) FileOperations2.read(buffer, valueSize,
+                offset + keySize.getSize());
+
+        this.isReference = false;
+        if (isDeduplicated) {
+            this.isReference = (valueLength & 1) != 0;
+            this.valueLength >>>= 1;
+        }
+
+        int recordLength = headerLength + keyLength
+                + (isReference ? referenceSize : valueLength);
+        this.ensure(readValues || isReference ? recordLength : headerLength
+                + keyLength);
+
+        this.next = this.position + ((recordLength + 3) & ~3);
+
+        return true;
+    }
+
+    /**
+     * returns the file (or, if compressed, logical) position of the current
+     * record
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    public int getValueLength() {
+        return valueLength;
+    }
+
+    /** returns a copy of the current record's key */
+    public byte[] getKey() {
+        byte[] key = new byte[keyLength];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset + headerLength);
+        source.get(key);
+
+        return key;
+    }
+
+    /** returns a copy of the current record's value */
+    public byte[] getValue() throws IOException {
+        byte[] value = new byte[valueLength];
+        this.getValueView().get(value);
+
+        return value;
+    }
+
+    /**
+     * Returns a view of the current record's key, between its position and
+     * limit. The same (read-only) buffer is reused for every record.
+     */
+    public ByteBuffer getKeyView() {
+        int start = offset + headerLength;
+        keyView.limit(start + keyLength);
+        keyView.position(start);
+
+        return keyView;
+    }
+
+    /**
+     * Returns a view of the current record's value, between its position and
+     * limit. The same (read-only) buffer is reused for every record, except
+     * for values stored with an earlier record.
+     */
+    public ByteBuffer getValueView() throws IOException {
+        if (isReference) {
+            return this.getReferencedValue();
+        }
+
+        int start = offset + headerLength + keyLength;
+        valueView.limit(start + valueLength);
+        valueView.position(start);
+
+        return valueView;
+    }
+
+    /** reads the value the current record refers to */
+    private ByteBuffer getReferencedValue() throws IOException {
+        int start = offset + headerLength + keyLength;
+        long distance = referenceSize == 8 ? buffer.getLong(start) : buffer
+                .getInt(start);
+
+        if (valueAccess == null) {
+            valueAccess = format == null ? access : new CompressedFileAccess2(
+                    access, new BlockCache2(format, VALUE_CACHE_SIZE));
+        }
+
+        return valueAccess.view(position - distance, valueLength)
+                .asReadOnlyBuffer();
+    }
+
+    private void setBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.keyView = buffer.asReadOnlyBuffer();
+        this.valueView = buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Makes sure length bytes from the current record position are in the
+     * buffer, refilling (and if necessary growing) it.
+     */
+    private void ensure(int length) throws IOException {
+        this.offset = (int) (this.position - this.bufferStart);
+
+        if (this.offset + length <= buffer.limit()) {
+            return;
+        }
+
+        if (format != null) {
+            // the whole block is in the buffer already
+            throw new IllegalArgumentException("invalid HashFile format");
+        }
+
+        if (length > buffer.capacity()) {
+            this.setBuffer(ByteBuffer.allocate(Math.max(length, buffer
+                    .capacity() * 2)));
+        }
+
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), access.length()
+                - this.position));
+        access.readFully(this.position, buffer);
+        buffer.flip();
+
+        this.bufferStart = this.position;
+        this.offset = 0;
+
+        if (length > buffer.limit()) {
+            throw new IllegalArgumentException("invalid HashFile format");
+        }
+    }
+
+    /**
+     * Decompresses the next block once the current one is used up.
+     *
+     * @return false if there are no more blocks in the range
+     */
+    private boolean nextRecordInBlock() throws IOException {
+        while (this.next - this.bufferStart >= buffer.limit()) {
+            if (this.nextBlock >= this.end) {
+                return false;
+            }
+
+            BlockFormat2.Block block = format.readBlock(access, nextBlock);
+            this.setBuffer(block.getData());
+
+            this.bufferStart = format.toLogical(nextBlock, 0);
+            this.next = this.bufferStart;
+            this.nextBlock = block.getEnd();
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Directory of optional sections appended after the hash tables of a HashFile,
+ * version 2. The directory is followed by a fixed-size trailer at the very end
+ * of the file, so readers can locate it without knowing the section sizes.
+ * Its presence is indicated by {@link Header2#FLAG_SECTIONS}.
+ */
+public class Sections2 {
+    /** trailer magic value ("HFSX") */
+    public static final int TRAILER_MAGIC = 0x48465358;
+
+    /** length of the trailer: DIRECTORY_OFFSET, MAGIC */
+    public static final int TRAILER_LENGTH = 8 + 4;
+
+    /** section type: blocked bloom filter over all hash codes */
+    public static final int BLOOM_FILTER = 1;
+
+    /**
+     * section type: the largest distance of any hash table entry from its
+     * home slot (an int), see {@link Header2#FLAG_SORTED_BUCKETS}
+     */
+    public static final int MAX_DISPLACEMENT = 2;
+
+    /**
+     * section type: the block size and codec name of a compressed data
+     * segment, see {@link Header2#FLAG_COMPRESSED}
+     */
+    public static final int COMPRESSION = 3;
+
+    /** section offsets and lengths, keyed by type */
+    private final Map<Integer, long[]> sections = new LinkedHashMap<Integer, long[]>();
+
+    public void add(int type, long offset, long length) {
+        if (this.sections.containsKey(type)) {
+            throw new IllegalArgumentException("Duplicate section: " + type);
+        }
+
+        this.sections.put(type, new long[] { offset, length });
+    }
+
+    public boolean isEmpty() {
+        return this.sections.isEmpty();
+    }
+
+    public boolean has(int type) {
+        return this.sections.containsKey(type);
+    }
+
+    public long getOffset(int type) {
+        return get(type)[0];
+    }
+
+    public long getLength(int type) {
+        return get(type)[1];
+    }
+
+    /**
+     * Writes the section directory and trailer at the current position of
+     * the output, which must be <code>directoryOffset</code>.
+     */
+    public void write(DataOutput out, long directoryOffset) throws IOException {
+        out.writeInt(this.sections.size());
+
+        for (Map.Entry<Integer, long[]> entry : this.sections.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeLong(entry.getValue()[0]);
+            out.writeLong(entry.getValue()[1]);
+        }
+
+        out.writeLong(directoryOffset);
+        out.writeInt(TRAILER_MAGIC);
+    }
+
+    public static Sections2 read(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        if (length < TRAILER_LENGTH) {
+            throw new IOException("HashFile too short to contain sections");
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+        file.seek(length - TRAILER_LENGTH);
+        file.readFully(trailer.array());
+
+        long directoryOffset = trailer.getLong(0);
+        if (trailer.getInt(8) != TRAILER_MAGIC || directoryOffset < 0
+                || directoryOffset > length - TRAILER_LENGTH - 4) {
+            throw new IOException("Malformed section trailer in HashFile");
+        }
+
+        file.seek(directoryOffset);
+        int count = file.readInt();
+
+        Sections2 result = new Sections2();
+        for (int i = 0; i < count; i++) {
+            int type = file.readInt();
+            long offset = file.readLong();
+            long sectionLength = file.readLong();
+
+            result.add(type, offset, sectionLength);
+        }
+
+        return result;
+    }
+
+    private long[] get(int type) {
+        long[] section = this.sections.get(type);
+        if (section == null) {
+            throw new IllegalArgumentException("No such section: " + type);
+        }
+
+        return section;
+    }
+}
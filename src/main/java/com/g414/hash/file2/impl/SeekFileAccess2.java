@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * FileAccess2 using seek + read on a shared RandomAccessFile. Reads are
+ * serialized on the file, since they share its file pointer.
+ */
+public class SeekFileAccess2 extends FileAccess2 {
+    private final RandomAccessFile file;
+
+    private final long length;
+
+    public SeekFileAccess2(RandomAccessFile file) throws IOException {
+        this.file = file;
+        this.length = file.length();
+    }
+
+    @Override
+    public long length() {
+        return this.length;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer target) throws IOException {
+        if (!target.hasArray()) {
+            ByteBuffer copy = ByteBuffer.allocate(target.remaining());
+            int read = this.read(position, copy);
+            if (read > 0) {
+                copy.flip();
+                target.put(copy);
+            }
+
+            return read;
+        }
+
+        int read;
+        synchronized (this.file) {
+            this.file.seek(position);
+            read = this.file.read(target.array(), target.arrayOffset()
+                    + target.position(), target.remaining());
+        }
+
+        if (read > 0) {
+            target.position(target.position() + read);
+        }
+
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.file.close();
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the writes to a HashStore's memtable. Each record is
+ * [keyLength][valueLength][key][encoded value][crc32], and is handed to the
+ * operating system as soon as it is written; sync() forces it to disk.
+ * Replay stops at the first truncated or corrupt record, which is where a
+ * crash interrupted the log.
+ */
+public class StoreLog2 {
+    private final File file;
+
+    private final FileOutputStream stream;
+
+    private final DataOutputStream out;
+
+    private final CRC32 crc = new CRC32();
+
+    public StoreLog2(File file) throws IOException {
+        this.file = file;
+        this.stream = new FileOutputStream(file, true);
+        this.out = new DataOutputStream(new BufferedOutputStream(stream));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** appends a write; encoded is the value as stored in the memtable */
+    public synchronized void append(byte[] key, byte[] encoded)
+            throws IOException {
+        crc.reset();
+        crc.update(key);
+        crc.update(encoded);
+
+        out.writeInt(key.length);
+        out.writeInt(encoded.length);
+        out.write(key);
+        out.write(encoded);
+        out.writeInt((int) crc.getValue());
+        out.flush();
+    }
+
+    /** forces the log to disk */
+    public synchronized void sync() throws IOException {
+        out.flush();
+        stream.getFD().sync();
+    }
+
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Applies the writes in a log to the memtable, in order.
+     * 
+     * @return the number of writes applied
+     */
+    public static long replay(File file, MemTable2 memTable)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        CRC32 crc = new CRC32();
+        long remaining = file.length();
+        long count = 0L;
+
+        try {
+            while (remaining >= 12) {
+                int keyLength = in.readInt();
+                int valueLength = in.readInt();
+                long length = 12L + keyLength + valueLength;
+
+                if (keyLength < 0 || valueLength < 1 || length > remaining) {
+                    break;
+                }
+
+                byte[] key = new byte[keyLength];
+                byte[] encoded = new byte[valueLength];
+                in.readFully(key);
+                in.readFully(encoded);
+
+                crc.reset();
+                crc.update(key);
+                crc.update(encoded);
+                if (in.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+
+                memTable.put(key, encoded);
+                remaining -= length;
+                count += 1;
+            }
+        } catch (EOFException e) {
+            // a truncated record ends the log
+        } finally {
+            in.close();
+        }
+
+        return count;
+    }
+}
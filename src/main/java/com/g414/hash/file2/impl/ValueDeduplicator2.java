@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.g414.hash.LongHash;
+import com.g414.hash.impl.MurmurHash;
+
+/**
+ * Remembers the distinct values written to a HashFile, version 2, by 64-bit
+ * fingerprint, so that repeated values can be stored once (see
+ * {@link Header2#FLAG_DEDUPLICATED}). A fingerprint match is verified by
+ * comparing the values, so the remembered values are kept in memory, up to a
+ * budget; values first seen once it is used up are never deduplicated.
+ */
+public class ValueDeduplicator2 {
+    /** default bound on the memory used for remembered values, 64MB */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+    /** estimated per-value overhead in bytes, on top of the value */
+    public static final int ENTRY_OVERHEAD = 96;
+
+    private final LongHash hash = new MurmurHash();
+
+    /** values no longer than this are cheaper to store than to refer to */
+    private final int minLength;
+
+    private final long memoryBudget;
+
+    private final Map<Long, Entry> values = new HashMap<Long, Entry>();
+
+    private long memoryUsed = 0L;
+
+    private long duplicateCount = 0L;
+
+    public ValueDeduplicator2(int referenceSize, long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("memoryBudget must be >= 0");
+        }
+
+        this.minLength = referenceSize + 1;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Returns the position of an identical value written earlier, or -1 if
+     * there is none (or the value is too short to be worth deduplicating).
+     */
+    public long find(byte[] value) {
+        if (value.length < minLength) {
+            return -1L;
+        }
+
+        Entry entry = values.get(hash.getLongHashCode(value));
+        if (entry == null || !Arrays.equals(entry.value, value)) {
+            return -1L;
+        }
+
+        duplicateCount += 1;
+
+        return entry.position;
+    }
+
+    /**
+     * Remembers a value just written at the given position, unless it is too
+     * short, another value has the same fingerprint, or the budget is used
+     * up.
+     */
+    public void add(byte[] value, long position) {
+        if (value.length < minLength
+                || memoryUsed + value.length + ENTRY_OVERHEAD > memoryBudget) {
+            return;
+        }
+
+        Long fingerprint = hash.getLongHashCode(value);
+        if (!values.containsKey(fingerprint)) {
+            values.put(fingerprint, new Entry(value.clone(), position));
+            memoryUsed += value.length + ENTRY_OVERHEAD;
+        }
+    }
+
+    /** returns the number of values stored as references */
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    /** a remembered value and the position it was written at */
+    private static final class Entry {
+        private final byte[] value;
+
+        private final long position;
+
+        public Entry(byte[] value, long position) {
+            this.value = value;
+            this.position = position;
+        }
+    }
+}
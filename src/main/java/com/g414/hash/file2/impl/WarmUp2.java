@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parallel sequential sweep over a range of a HashFile: the range is split
+ * into chunks which worker threads claim in file order and touch via
+ * FileAccess2.touch().
+ */
+public class WarmUp2 {
+    /** length of the chunks claimed by each worker */
+    public static final long CHUNK_LENGTH = 16L * 1024 * 1024; // 16MB
+
+    /**
+     * Touches [start, end) of the given file using the given number of
+     * threads.
+     *
+     * @return the number of bytes swept
+     */
+    public static long sweep(final FileAccess2 access, final long start,
+            final long end, int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1");
+        }
+
+        if (end <= start) {
+            return 0L;
+        }
+
+        final AtomicLong next = new AtomicLong(start);
+        Callable<Long> worker = new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                long sum = 0L;
+                long chunk;
+                while ((chunk = next.getAndAdd(CHUNK_LENGTH)) < end) {
+                    sum += access.touch(chunk, Math.min(end, chunk
+                            + CHUNK_LENGTH));
+                }
+
+                return sum;
+            }
+        };
+
+        if (threads == 1) {
+            try {
+                worker.call();
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+
+            return end - start;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(worker));
+            }
+
+            for (Future<Long> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted during warm-up", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return end - start;
+    }
+}
@@ -0,0 +1,309 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.sketch;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.g414.hash.LongHash;
+import com.g414.hash.LongHashMethods;
+
+/**
+ * Count-Min sketch using a pluggable LongHash method. Row indexes are derived
+ * from a single order-zero long hash code by double hashing, and counters are
+ * longs held in an AtomicLongArray, so concurrent increments are safe without
+ * a global lock.
+ *
+ * With conservative update, a counter is only raised as far as the current
+ * estimate requires, which greatly reduces overestimation for skewed data.
+ * Concurrent conservative updates of the same key are serialized on one of a
+ * fixed set of striped locks (chosen by hash code) so that estimates never
+ * fall below the true count.
+ *
+ * @see http://dimacs.rutgers.edu/~graham/pubs/papers/cm-full.pdf
+ */
+public class CountMinSketch {
+    /** log base 2 of the number of lock stripes for conservative update */
+    private static final int LOCK_STRIPES_POWER_OF_2 = 6;
+
+    /** number of lock stripes used for conservative update */
+    private static final int LOCK_STRIPES = (1 << LOCK_STRIPES_POWER_OF_2);
+
+    /** LongHash implementation */
+    private final LongHash hash;
+
+    /** number of rows */
+    private final int depth;
+
+    /** number of counters per row */
+    private final int width;
+
+    /** whether to use conservative update */
+    private final boolean conservative;
+
+    /** counters, row-major */
+    private final AtomicLongArray counters;
+
+    /** sum of all counts added */
+    private final AtomicLong totalCount = new AtomicLong();
+
+    /** locks for conservative update */
+    private final Object[] locks;
+
+    /**
+     * Construct a new Count-Min sketch using the specified Hash
+     * implementation, number of rows, counters per row and update mode.
+     *
+     * @param hash
+     * @param depth
+     * @param width
+     * @param conservative
+     */
+    public CountMinSketch(LongHash hash, int depth, int width,
+            boolean conservative) {
+        if (depth < 1 || width < 1) {
+            throw new IllegalArgumentException(
+                    "depth and width must be >= 1");
+        }
+
+        if ((long) depth * (long) width > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Count-Min sketch too large");
+        }
+
+        this.hash = hash;
+        this.depth = depth;
+        this.width = width;
+        this.conservative = conservative;
+        this.counters = new AtomicLongArray(depth * width);
+
+        this.locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Construct a new Count-Min sketch using the specified CountMinState.
+     *
+     * @param state
+     */
+    public CountMinSketch(CountMinState state) {
+        this(instantiateHash(state.getHashName()), state.getDepth(), state
+                .getWidth(), state.isConservative());
+
+        long[] values = state.getCounters();
+        for (int i = 0; i < values.length; i++) {
+            this.counters.set(i, values[i]);
+        }
+
+        this.totalCount.set(state.getTotalCount());
+    }
+
+    /**
+     * Returns the number of counters per row needed so that estimates exceed
+     * true counts by at most <code>epsilon</code> times the total count.
+     */
+    public static int getWidthForError(double epsilon) {
+        return (int) Math.ceil(Math.E / epsilon);
+    }
+
+    /**
+     * Returns the number of rows needed so that the error bound holds with
+     * probability at least <code>1 - delta</code>.
+     */
+    public static int getDepthForConfidence(double delta) {
+        return (int) Math.ceil(Math.log(1.0 / delta));
+    }
+
+    /**
+     * Increments the count for the given object by one, returning the new
+     * estimate.
+     *
+     * @param object
+     */
+    public long add(String object) {
+        return this.addHash(hash.getLongHashCode(object), 1L);
+    }
+
+    /**
+     * Increments the count for the given object by one, returning the new
+     * estimate.
+     *
+     * @param data
+     */
+    public long add(byte[] data) {
+        return this.addHash(hash.getLongHashCode(data), 1L);
+    }
+
+    /**
+     * Increments the count for the given object, returning the new estimate.
+     *
+     * @param data
+     * @param count
+     */
+    public long add(byte[] data, long count) {
+        return this.addHash(hash.getLongHashCode(data), count);
+    }
+
+    /**
+     * Increments the count for a precomputed order-zero long hash code (from
+     * the same LongHash implementation), returning the new estimate.
+     *
+     * @param hashCode
+     * @param count
+     */
+    public long addHash(long hashCode, long count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count must be >= 0");
+        }
+
+        long mixed = LongHashMethods.mix64(hashCode);
+        this.totalCount.addAndGet(count);
+
+        if (!this.conservative) {
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                long value = this.counters.addAndGet(index(mixed, row), count);
+                estimate = Math.min(estimate, value);
+            }
+
+            return estimate;
+        }
+
+        synchronized (this.locks[(int) (mixed >>> (64 - LOCK_STRIPES_POWER_OF_2))]) {
+            long target = this.estimateMixed(mixed) + count;
+
+            for (int row = 0; row < depth; row++) {
+                int index = index(mixed, row);
+                long current = this.counters.get(index);
+
+                while (current < target
+                        && !this.counters.compareAndSet(index, current, target)) {
+                    current = this.counters.get(index);
+                }
+            }
+
+            return target;
+        }
+    }
+
+    /**
+     * Returns the estimated count for the given object (never less than the
+     * true count).
+     *
+     * @param object
+     */
+    public long estimate(String object) {
+        return this.estimateHash(hash.getLongHashCode(object));
+    }
+
+    /**
+     * Returns the estimated count for the given object (never less than the
+     * true count).
+     *
+     * @param data
+     */
+    public long estimate(byte[] data) {
+        return this.estimateHash(hash.getLongHashCode(data));
+    }
+
+    /**
+     * Returns the estimated count for a precomputed order-zero long hash code.
+     *
+     * @param hashCode
+     */
+    public long estimateHash(long hashCode) {
+        return this.estimateMixed(LongHashMethods.mix64(hashCode));
+    }
+
+    /** returns the sum of all counts added to this sketch */
+    public long getTotalCount() {
+        return this.totalCount.get();
+    }
+
+    /** returns the number of rows */
+    public int getDepth() {
+        return depth;
+    }
+
+    /** returns the number of counters per row */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Adds the counters of the specified sketch into this sketch.
+     *
+     * @param other
+     */
+    public void putAll(CountMinSketch other) {
+        if ((this.depth != other.depth) || (this.width != other.width)
+                || (this.conservative != other.conservative)
+                || (!this.hash.getName().equals(other.hash.getName()))) {
+            throw new IllegalArgumentException("Incompatible Count-Min sketches");
+        }
+
+        for (int i = 0; i < this.counters.length(); i++) {
+            this.counters.addAndGet(i, other.counters.get(i));
+        }
+
+        this.totalCount.addAndGet(other.totalCount.get());
+    }
+
+    /**
+     * Returns the internal sketch state (for serialization, presumably). NOTE:
+     * concurrent writes during this call may leave the state slightly
+     * inconsistent with the total count.
+     */
+    public CountMinState getState() {
+        long[] values = new long[this.counters.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = this.counters.get(i);
+        }
+
+        return new CountMinState(this.hash.getName(), this.depth, this.width,
+                this.conservative, values, this.totalCount.get());
+    }
+
+    private long estimateMixed(long mixed) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, this.counters.get(index(mixed, row)));
+        }
+
+        return estimate;
+    }
+
+    /** computes the counter index for the given row by double hashing */
+    private int index(long mixed, int row) {
+        int h1 = (int) mixed;
+        int h2 = (int) (mixed >>> 32);
+        int combined = (h1 + row * h2) & Integer.MAX_VALUE;
+
+        return (row * width) + (combined % width);
+    }
+
+    private static LongHash instantiateHash(String hashName) {
+        try {
+            return (LongHash) Class.forName(hashName).newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException(
+                    "Error while instantiating hash: (" + hashName + ")");
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.sketch;
+
+import java.io.Serializable;
+
+/**
+ * Serializable Count-Min sketch state. This class should never change or else
+ * previously-serialized classes will bust.
+ */
+public class CountMinState implements Serializable {
+    /** serial version uid */
+    private static final long serialVersionUID = 1000001L;
+
+    /** name of hash used to create this sketch state */
+    private final String hashName;
+
+    /** number of rows */
+    private final int depth;
+
+    /** number of counters per row */
+    private final int width;
+
+    /** whether the sketch uses conservative update */
+    private final boolean conservative;
+
+    /** counters, row-major */
+    private final long[] counters;
+
+    /** sum of all counts added */
+    private final long totalCount;
+
+    /**
+     * Construct a new sketch state object using the specified hash name,
+     * dimensions, update mode and counters.
+     *
+     * @param hashName
+     * @param depth
+     * @param width
+     * @param conservative
+     * @param counters
+     * @param totalCount
+     */
+    public CountMinState(String hashName, int depth, int width,
+            boolean conservative, long[] counters, long totalCount) {
+        if ((long) depth * (long) width != counters.length) {
+            throw new IllegalArgumentException(
+                    "Counter count does not match dimensions");
+        }
+
+        this.hashName = hashName;
+        this.depth = depth;
+        this.width = width;
+        this.conservative = conservative;
+        this.counters = counters;
+        this.totalCount = totalCount;
+    }
+
+    /** @return String hash name */
+    public String getHashName() {
+        return hashName;
+    }
+
+    /** @return int number of rows */
+    public int getDepth() {
+        return depth;
+    }
+
+    /** @return int number of counters per row */
+    public int getWidth() {
+        return width;
+    }
+
+    /** @return true if conservative update, false otherwise */
+    public boolean isConservative() {
+        return conservative;
+    }
+
+    /** @return long[] counters, row-major */
+    public long[] getCounters() {
+        return counters;
+    }
+
+    /** @return long sum of all counts added */
+    public long getTotalCount() {
+        return totalCount;
+    }
+}
@@ -0,0 +1,434 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.sketch;
+
+import java.util.Arrays;
+
+import com.g414.hash.LongHash;
+import com.g414.hash.LongHashMethods;
+
+/**
+ * HyperLogLog cardinality sketch using a pluggable LongHash method. Along the
+ * lines of HLL++, small cardinalities are tracked in a sparse list with 25 bits
+ * of index precision, and the sketch converts to dense byte registers once the
+ * sparse list would outgrow them. Dense estimates use Ertl's improved
+ * estimator, which needs no empirical bias tables.
+ *
+ * NOTE: not thread-safe; external synchronization must be provided for
+ * concurrent use.
+ *
+ * @see http://research.google.com/pubs/pub40671.html
+ * @see http://arxiv.org/abs/1702.01284
+ */
+public class HyperLogLog {
+    /** minimum supported precision */
+    public static final int MIN_PRECISION = 4;
+
+    /** maximum supported precision */
+    public static final int MAX_PRECISION = 18;
+
+    /** default precision (16K registers, ~0.8% standard error) */
+    public static final int DEFAULT_PRECISION = 14;
+
+    /** index precision of the sparse representation */
+    private static final int SPARSE_PRECISION = 25;
+
+    /** number of bits used for rho in a sparse entry */
+    private static final int SPARSE_RHO_BITS = 6;
+
+    /** mask for rho in a sparse entry */
+    private static final int SPARSE_RHO_MASK = (1 << SPARSE_RHO_BITS) - 1;
+
+    /** LongHash implementation */
+    private final LongHash hash;
+
+    /** log base 2 of number of registers */
+    private final int precision;
+
+    /** number of registers */
+    private final int m;
+
+    /** maximum number of sparse entries before converting to dense */
+    private final int sparseThreshold;
+
+    /** sorted, unique-by-index sparse entries (null when dense) */
+    private int[] sparse;
+
+    /** number of valid sparse entries */
+    private int sparseSize;
+
+    /** unsorted insertion buffer for the sparse representation */
+    private int[] pending;
+
+    /** number of valid pending entries */
+    private int pendingSize;
+
+    /** dense registers (null when sparse) */
+    private byte[] registers;
+
+    /**
+     * Construct a new HyperLogLog sketch using the specified Hash
+     * implementation and the default precision.
+     *
+     * @param hash
+     */
+    public HyperLogLog(LongHash hash) {
+        this(hash, DEFAULT_PRECISION);
+    }
+
+    /**
+     * Construct a new HyperLogLog sketch using the specified Hash
+     * implementation and precision (log base 2 of the number of registers).
+     *
+     * @param hash
+     * @param precision
+     */
+    public HyperLogLog(LongHash hash, int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("Precision must be between "
+                    + MIN_PRECISION + " and " + MAX_PRECISION);
+        }
+
+        this.hash = hash;
+        this.precision = precision;
+        this.m = 1 << precision;
+        this.sparseThreshold = this.m / 4;
+
+        this.sparse = new int[0];
+        this.sparseSize = 0;
+        this.pending = new int[Math.max(4, this.sparseThreshold / 4)];
+        this.pendingSize = 0;
+    }
+
+    /**
+     * Construct a new HyperLogLog sketch using the specified state.
+     *
+     * @param state
+     */
+    public HyperLogLog(HyperLogLogState state) {
+        this(instantiateHash(state.getHashName()), state.getPrecision());
+
+        if (state.isSparse()) {
+            this.sparse = state.getSparse().clone();
+            this.sparseSize = this.sparse.length;
+        } else {
+            if (state.getRegisters().length != this.m) {
+                throw new IllegalArgumentException(
+                        "Register count does not match precision");
+            }
+
+            this.registers = state.getRegisters().clone();
+            this.sparse = null;
+            this.pending = null;
+        }
+    }
+
+    /**
+     * Insert an object into the sketch.
+     *
+     * @param object
+     */
+    public void put(String object) {
+        this.putHash(hash.getLongHashCode(object));
+    }
+
+    /**
+     * Insert an object into the sketch.
+     *
+     * @param data
+     */
+    public void put(byte[] data) {
+        this.putHash(hash.getLongHashCode(data));
+    }
+
+    /**
+     * Insert a precomputed order-zero long hash code (from the same LongHash
+     * implementation) into the sketch.
+     *
+     * @param hashCode
+     */
+    public void putHash(long hashCode) {
+        long mixed = LongHashMethods.mix64(hashCode);
+
+        if (this.registers == null && this.pendingSize == this.pending.length) {
+            this.flushPending();
+        }
+
+        if (this.registers != null) {
+            int index = (int) (mixed >>> (64 - precision));
+            int rho = Math.min(Long.numberOfLeadingZeros(mixed << precision),
+                    64 - precision) + 1;
+
+            if (this.registers[index] < rho) {
+                this.registers[index] = (byte) rho;
+            }
+
+            return;
+        }
+
+        this.pending[this.pendingSize++] = encodeSparse(mixed);
+    }
+
+    /**
+     * Returns the estimated number of distinct objects inserted into the
+     * sketch.
+     */
+    public long cardinality() {
+        this.flushPending();
+
+        if (this.registers == null) {
+            double mPrime = (double) (1 << SPARSE_PRECISION);
+            double empty = mPrime - this.sparseSize;
+
+            return Math.round(mPrime * Math.log(mPrime / empty));
+        }
+
+        int q = 64 - precision;
+        int[] histogram = new int[q + 2];
+        for (byte register : this.registers) {
+            histogram[register] += 1;
+        }
+
+        double z = m * tau(1.0 - ((double) histogram[q + 1]) / m);
+        for (int k = q; k >= 1; k--) {
+            z = 0.5 * (z + histogram[k]);
+        }
+        z += m * sigma(((double) histogram[0]) / m);
+
+        double alphaInf = 0.5 / Math.log(2.0);
+
+        return Math.round(alphaInf * m * ((double) m) / z);
+    }
+
+    /**
+     * Adds the contents of the specified sketch into this sketch.
+     *
+     * @param other
+     */
+    public void putAll(HyperLogLog other) {
+        if ((this.precision != other.precision)
+                || (!this.hash.getName().equals(other.hash.getName()))) {
+            throw new IllegalArgumentException("Incompatible HyperLogLogs");
+        }
+
+        other.flushPending();
+
+        if (this.registers == null && other.registers == null) {
+            this.flushPending();
+            this.mergeSparse(other.sparse, other.sparseSize);
+            return;
+        }
+
+        this.convertToDense();
+
+        if (other.registers == null) {
+            for (int i = 0; i < other.sparseSize; i++) {
+                this.putSparseIntoDense(other.sparse[i]);
+            }
+        } else {
+            for (int i = 0; i < m; i++) {
+                if (this.registers[i] < other.registers[i]) {
+                    this.registers[i] = other.registers[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the contents of the specified sketch state into this sketch.
+     *
+     * @param state
+     */
+    public void putAll(HyperLogLogState state) {
+        this.putAll(new HyperLogLog(state));
+    }
+
+    /** returns the precision (log base 2 of the number of registers) */
+    public int getPrecision() {
+        return precision;
+    }
+
+    /** returns true if the sketch is still using the sparse representation */
+    public boolean isSparse() {
+        return this.registers == null;
+    }
+
+    /**
+     * Returns the internal sketch state (for serialization, presumably). The
+     * returned state is a copy, so later insertions do not affect it.
+     */
+    public HyperLogLogState getState() {
+        this.flushPending();
+
+        if (this.registers == null) {
+            return new HyperLogLogState(this.hash.getName(), this.precision,
+                    Arrays.copyOf(this.sparse, this.sparseSize), null);
+        }
+
+        return new HyperLogLogState(this.hash.getName(), this.precision,
+                null, this.registers.clone());
+    }
+
+    /** encodes a mixed hash value as a sparse entry of (index', rho') */
+    private static int encodeSparse(long mixed) {
+        int index = (int) (mixed >>> (64 - SPARSE_PRECISION));
+        int rho = Math.min(Long.numberOfLeadingZeros(mixed << SPARSE_PRECISION),
+                64 - SPARSE_PRECISION) + 1;
+
+        return (index << SPARSE_RHO_BITS) | rho;
+    }
+
+    /** folds a sparse entry into the dense registers */
+    private void putSparseIntoDense(int entry) {
+        int sparseIndex = entry >>> SPARSE_RHO_BITS;
+        int sparseRho = entry & SPARSE_RHO_MASK;
+
+        int extraBits = SPARSE_PRECISION - precision;
+        int index = sparseIndex >>> extraBits;
+        int low = sparseIndex & ((1 << extraBits) - 1);
+
+        int rho = (low != 0) ? Integer.numberOfLeadingZeros(low)
+                - (32 - extraBits) + 1 : extraBits + sparseRho;
+
+        if (this.registers[index] < rho) {
+            this.registers[index] = (byte) rho;
+        }
+    }
+
+    /** sorts pending entries into the sparse list */
+    private void flushPending() {
+        if (this.registers != null || this.pendingSize == 0) {
+            return;
+        }
+
+        int[] toMerge = this.pending;
+        int toMergeSize = this.pendingSize;
+        this.pending = new int[this.pending.length];
+        this.pendingSize = 0;
+
+        Arrays.sort(toMerge, 0, toMergeSize);
+        this.mergeSparse(toMerge, toMergeSize);
+    }
+
+    /**
+     * Merges sorted entries into the sparse list, keeping the largest rho per
+     * index, converting to dense if the result is too large.
+     */
+    private void mergeSparse(int[] entries, int entryCount) {
+        int[] merged = new int[this.sparseSize + entryCount];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+
+        while (i < this.sparseSize || j < entryCount) {
+            int next;
+            if (j >= entryCount
+                    || (i < this.sparseSize && this.sparse[i] <= entries[j])) {
+                next = this.sparse[i++];
+            } else {
+                next = entries[j++];
+            }
+
+            if (n > 0
+                    && (merged[n - 1] >>> SPARSE_RHO_BITS) == (next >>> SPARSE_RHO_BITS)) {
+                merged[n - 1] = Math.max(merged[n - 1], next);
+            } else {
+                merged[n++] = next;
+            }
+        }
+
+        this.sparse = merged;
+        this.sparseSize = n;
+
+        if (this.sparseSize > this.sparseThreshold) {
+            this.convertToDense();
+        }
+    }
+
+    /** converts the sketch to the dense representation */
+    private void convertToDense() {
+        if (this.registers != null) {
+            return;
+        }
+
+        this.flushPending();
+
+        if (this.registers != null) {
+            return;
+        }
+
+        this.registers = new byte[m];
+        for (int i = 0; i < this.sparseSize; i++) {
+            this.putSparseIntoDense(this.sparse[i]);
+        }
+
+        this.sparse = null;
+        this.sparseSize = 0;
+        this.pending = null;
+        this.pendingSize = 0;
+    }
+
+    /** sigma function from Ertl's improved raw estimator */
+    private static double sigma(double x) {
+        if (x == 1.0) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        double y = 1.0;
+        double z = x;
+        double zPrev;
+
+        do {
+            x *= x;
+            zPrev = z;
+            z += x * y;
+            y += y;
+        } while (z != zPrev);
+
+        return z;
+    }
+
+    /** tau function from Ertl's improved raw estimator */
+    private static double tau(double x) {
+        if (x == 0.0 || x == 1.0) {
+            return 0.0;
+        }
+
+        double y = 1.0;
+        double z = 1.0 - x;
+        double zPrev;
+
+        do {
+            x = Math.sqrt(x);
+            zPrev = z;
+            y *= 0.5;
+            z -= Math.pow(1.0 - x, 2.0) * y;
+        } while (z != zPrev);
+
+        return z / 3.0;
+    }
+
+    private static LongHash instantiateHash(String hashName) {
+        try {
+            return (LongHash) Class.forName(hashName).newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException(
+                    "Error while instantiating hash: (" + hashName + ")");
+        }
+    }
+}
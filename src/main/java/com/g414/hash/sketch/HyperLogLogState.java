@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.sketch;
+
+import java.io.Serializable;
+
+/**
+ * Serializable HyperLogLog state. This class should never change or else
+ * previously-serialized classes will bust.
+ */
+public class HyperLogLogState implements Serializable {
+    /** serial version uid */
+    private static final long serialVersionUID = 1000001L;
+
+    /** name of hash used to create this sketch state */
+    private final String hashName;
+
+    /** log base 2 of the number of registers */
+    private final int precision;
+
+    /** sorted sparse entries, or null if the sketch is dense */
+    private final int[] sparse;
+
+    /** dense registers, or null if the sketch is sparse */
+    private final byte[] registers;
+
+    /**
+     * Construct a new sketch state object using the specified hash name,
+     * precision and either sparse entries or dense registers.
+     *
+     * @param hashName
+     * @param precision
+     * @param sparse
+     * @param registers
+     */
+    public HyperLogLogState(String hashName, int precision, int[] sparse,
+            byte[] registers) {
+        if ((sparse == null) == (registers == null)) {
+            throw new IllegalArgumentException(
+                    "Exactly one of sparse or registers must be specified");
+        }
+
+        this.hashName = hashName;
+        this.precision = precision;
+        this.sparse = sparse;
+        this.registers = registers;
+    }
+
+    /** @return String hash name */
+    public String getHashName() {
+        return hashName;
+    }
+
+    /** @return int precision (log base 2 of register count) */
+    public int getPrecision() {
+        return precision;
+    }
+
+    /** @return true if the state uses the sparse representation */
+    public boolean isSparse() {
+        return sparse != null;
+    }
+
+    /** @return sorted sparse entries, or null if dense */
+    public int[] getSparse() {
+        return sparse;
+    }
+
+    /** @return dense registers, or null if sparse */
+    public byte[] getRegisters() {
+        return registers;
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.sketch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.g414.hash.ByteArrayKey;
+
+/**
+ * Tracks the top-K heavy hitters of a stream using a CountMinSketch for the
+ * counts and a small candidate table for the keys. Increments go straight to
+ * the (thread-safe) sketch; the candidate table is only locked when a key's
+ * estimate exceeds the smallest tracked count, which for skewed traffic is
+ * rare once the table has filled up.
+ */
+public class TopKTracker {
+    /** the underlying sketch */
+    private final CountMinSketch sketch;
+
+    /** number of heavy hitters to track */
+    private final int k;
+
+    /** tracked candidates and their last observed estimates */
+    private final Map<ByteArrayKey, Long> candidates;
+
+    /** smallest tracked estimate, once the candidate table is full */
+    private volatile long threshold = 0L;
+
+    /**
+     * Construct a new TopKTracker using the specified sketch and number of
+     * heavy hitters to track.
+     *
+     * @param sketch
+     * @param k
+     */
+    public TopKTracker(CountMinSketch sketch, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be >= 1");
+        }
+
+        this.sketch = sketch;
+        this.k = k;
+        this.candidates = new HashMap<ByteArrayKey, Long>(k * 2);
+    }
+
+    /**
+     * Increments the count for the given key by one, returning the new
+     * estimate.
+     *
+     * @param key
+     */
+    public long add(byte[] key) {
+        return this.add(key, 1L);
+    }
+
+    /**
+     * Increments the count for the given key, returning the new estimate.
+     *
+     * @param key
+     * @param count
+     */
+    public long add(byte[] key, long count) {
+        long estimate = this.sketch.add(key, count);
+
+        if (estimate <= this.threshold) {
+            return estimate;
+        }
+
+        synchronized (this.candidates) {
+            ByteArrayKey wrapped = new ByteArrayKey(key);
+            Long existing = this.candidates.get(wrapped);
+
+            if (existing != null) {
+                this.candidates.put(wrapped, Math.max(existing, estimate));
+            } else if (this.candidates.size() < this.k) {
+                this.candidates.put(wrapped.copy(), estimate);
+            } else {
+                ByteArrayKey minKey = null;
+                long minCount = Long.MAX_VALUE;
+
+                for (Map.Entry<ByteArrayKey, Long> entry : this.candidates
+                        .entrySet()) {
+                    if (entry.getValue() < minCount) {
+                        minKey = entry.getKey();
+                        minCount = entry.getValue();
+                    }
+                }
+
+                if (estimate > minCount) {
+                    this.candidates.remove(minKey);
+                    this.candidates.put(wrapped.copy(), estimate);
+                }
+            }
+
+            if (this.candidates.size() >= this.k) {
+                long min = Long.MAX_VALUE;
+                for (Long value : this.candidates.values()) {
+                    min = Math.min(min, value);
+                }
+
+                this.threshold = min;
+            }
+        }
+
+        return estimate;
+    }
+
+    /**
+     * Returns the current heavy hitters, in descending order of estimated
+     * count.
+     */
+    public List<HeavyHitter> getTopK() {
+        List<HeavyHitter> result = new ArrayList<HeavyHitter>();
+
+        synchronized (this.candidates) {
+            for (Map.Entry<ByteArrayKey, Long> entry : this.candidates
+                    .entrySet()) {
+                result.add(new HeavyHitter(entry.getKey().getBytes().clone(),
+                        entry.getValue()));
+            }
+        }
+
+        Collections.sort(result, new Comparator<HeavyHitter>() {
+            @Override
+            public int compare(HeavyHitter a, HeavyHitter b) {
+                return (a.count < b.count) ? 1 : ((a.count > b.count) ? -1 : 0);
+            }
+        });
+
+        return result;
+    }
+
+    /** returns the underlying sketch */
+    public CountMinSketch getSketch() {
+        return sketch;
+    }
+
+    /** A tracked key with its estimated count. */
+    public static final class HeavyHitter {
+        private final byte[] key;
+        private final long count;
+
+        public HeavyHitter(byte[] key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+
+        /** returns the key */
+        public byte[] getKey() {
+            return key;
+        }
+
+        /** returns the estimated count */
+        public long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.cache;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.g414.hash.file.HashFile;
+import com.g414.hash.file.HashFileBuilder;
+import com.g414.hash.file2.HashFile2;
+import com.g414.hash.file2.HashFile2Builder;
+
+@Test
+public class HotKeyCacheTest {
+    public void testHashFiles() throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+        HashFile2Builder builder2 = new HashFile2Builder(tmp.getAbsolutePath(),
+                1000);
+        for (int i = 0; i < 1000; i++) {
+            builder2.add(("key" + i).getBytes(), ("value" + i).getBytes());
+        }
+        builder2.finish();
+
+        File tmp1 = File.createTempFile("hhhhhh", "ff");
+        tmp1.deleteOnExit();
+        HashFileBuilder builder = new HashFileBuilder(tmp1.getAbsolutePath(),
+                1000);
+        for (int i = 0; i < 1000; i++) {
+            builder.add(("key" + i).getBytes(), ("value" + i).getBytes());
+        }
+        builder.finish();
+
+        HotKeyCache[] caches = {
+                HotKeyCache.of(new HashFile2(tmp.getAbsolutePath()), 1 << 20),
+                HotKeyCache.of(new HashFile(tmp1.getAbsolutePath()), 1 << 20) };
+
+        for (HotKeyCache cache : caches) {
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 1000; i++) {
+                    Assert.assertEquals(cache.get(("key" + i).getBytes()),
+                            ("value" + i).getBytes());
+                    Assert.assertNull(cache.get(("miss" + i).getBytes()));
+                }
+            }
+
+            Assert.assertEquals(cache.getMissCount(), 2000L);
+            Assert.assertEquals(cache.getHitCount(), 2000L);
+            Assert.assertEquals(cache.getNegativeHitCount(), 2000L);
+            Assert.assertEquals(cache.getEvictionCount(), 0L);
+            Assert.assertEquals(cache.getEntryCount(), 2000L);
+        }
+    }
+
+    public void testBoundAndScanResistance() {
+        final AtomicInteger loads = new AtomicInteger();
+        ValueLoader loader = new ValueLoader() {
+            @Override
+            public byte[] load(byte[] key) {
+                loads.incrementAndGet();
+                return new byte[100];
+            }
+        };
+
+        long maxBytes = 200 * 1024;
+        HotKeyCache cache = new HotKeyCache(loader, maxBytes, false);
+
+        // establish a hot set (seen twice, so protected)
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 200; i++) {
+                cache.get(("hot" + i).getBytes());
+            }
+        }
+        Assert.assertEquals(loads.get(), 200);
+
+        // a long scan of one-off keys
+        for (int i = 0; i < 100000; i++) {
+            cache.get(("scan" + i).getBytes());
+        }
+        Assert.assertTrue(cache.getWeightedSize() <= maxBytes);
+        Assert.assertTrue(cache.getEvictionCount() > 0L);
+
+        loads.set(0);
+        for (int i = 0; i < 200; i++) {
+            cache.get(("hot" + i).getBytes());
+        }
+        Assert.assertTrue(loads.get() < 20, "reloaded: " + loads.get());
+    }
+
+    public void testNoNegatives() {
+        HotKeyCache cache = new HotKeyCache(new ValueLoader() {
+            @Override
+            public byte[] load(byte[] key) {
+                return null;
+            }
+        }, 1 << 20, false);
+
+        Assert.assertNull(cache.get("a".getBytes()));
+        Assert.assertNull(cache.get("a".getBytes()));
+        Assert.assertEquals(cache.getMissCount(), 2L);
+        Assert.assertEquals(cache.getEntryCount(), 0L);
+    }
+}
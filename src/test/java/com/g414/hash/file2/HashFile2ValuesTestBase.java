@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.testng.Assert;
+
+/**
+ * Base class for tests of files whose values are encoded on disk; each file
+ * maps "key" + i to getValue(i), and "key0" to "again" as well.
+ */
+public abstract class HashFile2ValuesTestBase {
+    protected abstract byte[] getValue(int i);
+
+    protected void assertContents(HashFile2 hf, int entries) throws Exception {
+        List<byte[]> keys = new ArrayList<byte[]>();
+
+        // values are compared as strings, which is much faster
+        for (int i = 0; i < entries; i++) {
+            byte[] key = ("key" + i).getBytes();
+            String value = new String(getValue(i));
+            keys.add(key);
+
+            Assert.assertEquals(new String(hf.get(key)), value);
+            Assert.assertEquals(hf.valueLength(key), value.length());
+            Assert.assertTrue(hf.contains(key));
+            Assert.assertNull(hf.get(("miss" + i).getBytes()));
+
+            ByteBuffer view = hf.getView(key);
+            byte[] viewed = new byte[view.remaining()];
+            view.get(viewed);
+            Assert.assertEquals(new String(viewed), value);
+        }
+
+        Iterator<byte[]> values = hf.getMulti("key0".getBytes()).iterator();
+        Assert.assertEquals(new String(values.next()), new String(getValue(0)));
+        Assert.assertEquals(new String(values.next()), "again");
+        Assert.assertFalse(values.hasNext());
+
+        List<List<byte[]>> results = hf.getAll(keys);
+        for (int i = 0; i < entries; i++) {
+            Assert.assertEquals(new String(results.get(i).get(0)),
+                    new String(getValue(i)));
+        }
+    }
+
+    protected File createFile(IndexType indexType, boolean compressed,
+            boolean deduplicated, int entries) throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(false, tmp
+                .getAbsolutePath(), entries, ByteSize.FOUR, ByteSize.FOUR,
+                true, true, true, indexType);
+        if (compressed) {
+            hashWrite.enableCompression(BlockCodecs.DEFLATE, 4096);
+        }
+        if (deduplicated) {
+            hashWrite.enableValueDeduplication();
+        }
+
+        for (int i = 0; i < entries; i++) {
+            hashWrite.add(("key" + i).getBytes(), getValue(i));
+        }
+        hashWrite.add("key0".getBytes(), "again".getBytes());
+        hashWrite.finish();
+
+        return tmp;
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestAsyncHashFile2 {
+    public void testGetAsync() throws Exception {
+        File tmp = createFile(10000);
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath(), true,
+                ReadMode.POSITIONAL);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            AsyncHashFile2 async = new AsyncHashFile2(hf, executor, 4);
+
+            List<CompletableFuture<byte[]>> hits = new ArrayList<CompletableFuture<byte[]>>();
+            List<CompletableFuture<byte[]>> misses = new ArrayList<CompletableFuture<byte[]>>();
+            for (int i = 0; i < 10000; i++) {
+                hits.add(async.getAsync(("key" + i).getBytes()));
+                misses.add(async.getAsync(("miss" + i).getBytes()));
+            }
+
+            for (int i = 0; i < 10000; i++) {
+                Assert.assertEquals(hits.get(i).get(), ("value" + i)
+                        .getBytes());
+                Assert.assertNull(misses.get(i).get());
+            }
+
+            List<byte[]> multi = async.getMultiAsync("key0".getBytes()).get();
+            Assert.assertEquals(multi.size(), 2);
+            Assert.assertEquals(multi.get(0), "value0".getBytes());
+            Assert.assertEquals(multi.get(1), "again".getBytes());
+
+            // tasks finish just after completing their futures
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            Assert.assertEquals(async.getInFlight(), 0);
+        } finally {
+            executor.shutdown();
+            hf.close();
+        }
+    }
+
+    public void testCoalescing() throws Exception {
+        File tmp = createFile(100);
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+
+        final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+        Executor manual = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+
+        AsyncHashFile2 async = new AsyncHashFile2(hf, manual, 1);
+
+        List<CompletableFuture<byte[]>> results = new ArrayList<CompletableFuture<byte[]>>();
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 100; i++) {
+                results.add(async.getAsync(("key" + i).getBytes()));
+            }
+        }
+
+        // only one task may be in flight; everything else is queued by bucket
+        Assert.assertEquals(tasks.size(), 1);
+        Assert.assertEquals(async.getInFlight(), 1);
+
+        int executed = 0;
+        while (!tasks.isEmpty()) {
+            tasks.removeFirst().run();
+            executed += 1;
+        }
+
+        Assert.assertTrue(executed < results.size() / 2, "tasks: " + executed);
+        for (int i = 0; i < results.size(); i++) {
+            Assert.assertEquals(results.get(i).get(), ("value" + (i % 100))
+                    .getBytes());
+        }
+
+        hf.close();
+    }
+
+    public void testClosedFile() throws Exception {
+        File tmp = createFile(100);
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+        hf.close();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            new AsyncHashFile2(hf, executor).getAsync("key1".getBytes()).get();
+            Assert.fail("lookup on a closed file should fail");
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof IllegalStateException);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testError() throws Exception {
+        File tmp = createFile(100);
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath()) {
+            @Override
+            List<List<byte[]>> getAll(List<byte[]> keys, long[] hashCodes) {
+                throw new OutOfMemoryError("lookup failed");
+            }
+        };
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            new AsyncHashFile2(hf, executor).getAsync("key1".getBytes()).get(
+                    10, TimeUnit.SECONDS);
+            Assert.fail("lookup should fail");
+        } catch (ExecutionException expected) {
+            Assert.assertTrue(expected.getCause() instanceof OutOfMemoryError);
+        } finally {
+            executor.shutdown();
+            hf.close();
+        }
+    }
+
+    private static File createFile(int entries) throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(tmp
+                .getAbsolutePath(), entries);
+        for (int i = 0; i < entries; i++) {
+            hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+        }
+        hashWrite.add("key0".getBytes(), "again".getBytes());
+        hashWrite.finish();
+
+        return tmp;
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestHashFile2BatchLookup {
+    public void testGetAll() throws Exception {
+        for (boolean large : new boolean[] { false, true }) {
+            File tmp = File.createTempFile("hhhhhh", "ff");
+            tmp.deleteOnExit();
+
+            HashFile2Builder hashWrite = new HashFile2Builder(false, tmp
+                    .getAbsolutePath(), 10000, ByteSize.FOUR, ByteSize.FOUR,
+                    large, large, large);
+            hashWrite.setBloomFilterBitsPerKey(large ? 10 : 0);
+
+            for (int i = 0; i < 10000; i++) {
+                hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+                if (i % 10 == 0) {
+                    hashWrite.add(("key" + i).getBytes(), ("other" + i)
+                            .getBytes());
+                }
+            }
+            hashWrite.finish();
+
+            // random keys, hits, misses and duplicates
+            Random random = new Random(large ? 1L : 2L);
+            List<byte[]> keys = new ArrayList<byte[]>();
+            for (int i = 0; i < 5000; i++) {
+                int k = random.nextInt(12000);
+                keys.add(((k < 10000 ? "key" : "miss") + k).getBytes());
+            }
+            keys.add(keys.get(0));
+
+            for (ReadMode mode : ReadMode.values()) {
+                HashFile2 hf = new HashFile2(tmp.getAbsolutePath(), true, mode);
+
+                List<List<byte[]>> results = hf.getAll(keys);
+                Assert.assertEquals(results.size(), keys.size());
+                for (int i = 0; i < keys.size(); i++) {
+                    assertValues(results.get(i), hf.getMulti(keys.get(i)));
+                }
+
+                Iterator<List<byte[]>> streamed = hf.getAll(keys, 333)
+                        .iterator();
+                for (int i = 0; i < keys.size(); i++) {
+                    assertValues(streamed.next(), hf.getMulti(keys.get(i)));
+                }
+                Assert.assertFalse(streamed.hasNext());
+
+                Assert.assertTrue(hf.getAll(new ArrayList<byte[]>()).isEmpty());
+
+                hf.close();
+            }
+        }
+    }
+
+    private static void assertValues(List<byte[]> actual,
+            Iterable<byte[]> expected) {
+        Iterator<byte[]> iter = expected.iterator();
+        for (byte[] value : actual) {
+            Assert.assertEquals(value, iter.next());
+        }
+        Assert.assertFalse(iter.hasNext());
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.util.Iterator;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.g414.hash.file2.impl.BloomFilter2;
+import com.g414.hash.file2.impl.Calculations2;
+
+@Test
+public class TestHashFile2BloomFilter {
+    public void testFalsePositiveRate() {
+        int entries = 100000;
+        BloomFilter2 filter = BloomFilter2.create(entries, 10, 12);
+
+        for (int i = 0; i < entries; i++) {
+            filter.put(Calculations2.computeHash(("key" + i).getBytes(), true));
+        }
+
+        for (int i = 0; i < entries; i++) {
+            Assert.assertTrue(filter.mightContain(Calculations2.computeHash(
+                    ("key" + i).getBytes(), true)));
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < entries; i++) {
+            if (filter.mightContain(Calculations2.computeHash(("miss" + i)
+                    .getBytes(), true))) {
+                falsePositives += 1;
+            }
+        }
+
+        System.out.println("bloom filter false positives: " + falsePositives);
+        Assert.assertTrue(falsePositives < entries * 0.02);
+    }
+
+    public void testHashFileWithFilter() throws Exception {
+        for (boolean longHash : new boolean[] { false, true }) {
+            File tmp = File.createTempFile("hhhhhh", "ff");
+            tmp.deleteOnExit();
+
+            HashFile2Builder hashWrite = new HashFile2Builder(false, tmp
+                    .getAbsolutePath(), 10000, ByteSize.FOUR, ByteSize.FOUR,
+                    longHash, longHash, longHash);
+            hashWrite.setBloomFilterBitsPerKey(10);
+
+            for (int i = 0; i < 10000; i++) {
+                hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+            }
+            hashWrite.add("key0".getBytes(), "again".getBytes());
+            hashWrite.finish();
+
+            HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+            Assert.assertTrue(hf.hasBloomFilter());
+            Assert.assertEquals(hf.getCount(), 10001L);
+
+            for (int i = 0; i < 10000; i++) {
+                Assert.assertEquals(hf.get(("key" + i).getBytes()),
+                        ("value" + i).getBytes());
+                Assert.assertNull(hf.get(("miss" + i).getBytes()));
+                Assert.assertFalse(hf.getMulti(("miss" + i).getBytes())
+                        .iterator().hasNext());
+            }
+
+            Iterator<byte[]> multi = hf.getMulti("key0".getBytes()).iterator();
+            Assert.assertEquals(multi.next(), "value0".getBytes());
+            Assert.assertEquals(multi.next(), "again".getBytes());
+            Assert.assertFalse(multi.hasNext());
+
+            int count = 0;
+            for (HashEntry entry : HashFile2.elements(tmp.getAbsolutePath())) {
+                Assert.assertNotNull(entry.getValue());
+                count += 1;
+            }
+            Assert.assertEquals(count, 10001);
+
+            hf.close();
+        }
+    }
+
+    public void testEmptyHashFileWithFilter() throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(
+                tmp.getAbsolutePath(), 10);
+        hashWrite.setBloomFilterBitsPerKey(10);
+        hashWrite.finish();
+
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+        Assert.assertFalse(hf.hasBloomFilter());
+        Assert.assertNull(hf.get("missing".getBytes()));
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestHashFile2Compression extends HashFile2ValuesTestBase {
+    public void testCompressed() throws Exception {
+        for (IndexType indexType : IndexType.values()) {
+            File plain = createFile(indexType, false, false, 20000);
+            File compressed = createFile(indexType, true, false, 20000);
+
+            Assert.assertTrue(compressed.length() * 3 < plain.length(),
+                    compressed.length() + " vs " + plain.length());
+
+            for (ReadMode mode : ReadMode.values()) {
+                HashFile2 hf = new HashFile2(compressed.getAbsolutePath(),
+                        true, mode);
+                Assert.assertTrue(hf.isCompressed());
+                Assert.assertEquals(hf.getCount(), 20001);
+                assertContents(hf, 20000);
+
+                // every lookup decompresses a block
+                hf.setBlockCacheSize(0L);
+                assertContents(hf, 2000);
+
+                hf.close();
+            }
+
+            HashFile2 hf = new HashFile2(plain.getAbsolutePath());
+            Assert.assertFalse(hf.isCompressed());
+            hf.close();
+        }
+    }
+
+    public void testScans() throws Exception {
+        File tmp = createFile(IndexType.HASH_TABLE, true, false, 20000);
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+
+        final AtomicInteger visited = new AtomicInteger();
+        Assert.assertEquals(hf.scan(new EntryVisitor() {
+            @Override
+            public boolean visit(ByteBuffer key, ByteBuffer value) {
+                byte[] keyBytes = new byte[key.remaining()];
+                key.get(keyBytes);
+                byte[] valueBytes = new byte[value.remaining()];
+                value.get(valueBytes);
+
+                // records come back in insertion order
+                int i = visited.getAndIncrement();
+                if (i < 20000) {
+                    Assert.assertEquals(new String(keyBytes), "key" + i);
+                    Assert.assertEquals(valueBytes, getValue(i));
+                }
+
+                return true;
+            }
+        }), 20001);
+
+        Assert.assertEquals(hf.parallelStream().count(), 20001);
+        Assert.assertTrue(hf.spliterator().trySplit() != null);
+
+        int count = 0;
+        for (HashEntry entry : HashFile2.elements(tmp.getAbsolutePath())) {
+            if (count < 20000) {
+                Assert.assertEquals(new String(entry.getKey()), "key" + count);
+                Assert.assertEquals(entry.getValue(), getValue(count));
+            }
+            count += 1;
+        }
+        Assert.assertEquals(count, 20001);
+
+        hf.close();
+    }
+
+    public void testIteratorClose() throws Exception {
+        File tmp = createFile(IndexType.HASH_TABLE, true, false, 1000);
+
+        Iterator<HashEntry> iter = HashFile2.elements(tmp.getAbsolutePath())
+                .iterator();
+        Assert.assertEquals(new String(iter.next().getKey()), "key0");
+
+        // stopping early releases the file
+        ((Closeable) iter).close();
+        Assert.assertFalse(iter.hasNext());
+    }
+
+    public void testConcurrentAdds() throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        final HashFile2Builder hashWrite = new HashFile2Builder(tmp
+                .getAbsolutePath(), 40000);
+        hashWrite.enableCompression(BlockCodecs.DEFLATE, 8192);
+        hashWrite.enableConcurrentAdds();
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = thread; i < 40000; i += threads.length) {
+                            hashWrite.add(("key" + i).getBytes(), getValue(i));
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        hashWrite.finish();
+
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+        Assert.assertEquals(hf.getCount(), 40000);
+        for (int i = 0; i < 40000; i++) {
+            Assert.assertEquals(hf.get(("key" + i).getBytes()), getValue(i));
+        }
+        Assert.assertEquals(hf.stream().count(), 40000);
+        hf.close();
+    }
+
+    public void testMerge() throws Exception {
+        List<String> inputs = Arrays.asList(createFile(IndexType.HASH_TABLE,
+                true, false, 5000).getAbsolutePath(), createFile(
+                IndexType.PERFECT_HASH, true, false, 3000).getAbsolutePath());
+
+        File merged = File.createTempFile("hhhhhh", "ff");
+        merged.deleteOnExit();
+        Assert.assertEquals(new HashFile2Merger(inputs).merge(merged
+                .getAbsolutePath()), 8002);
+
+        HashFile2 hf = new HashFile2(merged.getAbsolutePath());
+        Assert.assertTrue(hf.isCompressed());
+        for (int i = 0; i < 5000; i++) {
+            // values come back in input order
+            List<byte[]> expected = new ArrayList<byte[]>();
+            for (int input = 0; input < (i < 3000 ? 2 : 1); input++) {
+                expected.add(getValue(i));
+                if (i == 0) {
+                    expected.add("again".getBytes());
+                }
+            }
+
+            Iterator<byte[]> values = hf.getMulti(("key" + i).getBytes())
+                    .iterator();
+            for (byte[] value : expected) {
+                Assert.assertEquals(values.next(), value);
+            }
+            Assert.assertFalse(values.hasNext());
+        }
+        hf.close();
+
+        try {
+            new HashFile2Merger(Arrays.asList(inputs.get(0), createFile(
+                    IndexType.HASH_TABLE, false, false, 10).getAbsolutePath()))
+                    .merge(merged.getAbsolutePath());
+            Assert.fail("compressed and plain files should not merge");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testCustomCodec() throws Exception {
+        BlockCodecs.register(new BlockCodec() {
+            @Override
+            public String getName() {
+                return "identity";
+            }
+
+            @Override
+            public int maxCompressedLength(int length) {
+                return length;
+            }
+
+            @Override
+            public int compress(byte[] src, int offset, int length, byte[] dst) {
+                System.arraycopy(src, offset, dst, 0, length);
+                return length;
+            }
+
+            @Override
+            public void decompress(byte[] src, int offset, int length,
+                    byte[] dst) {
+                System.arraycopy(src, offset, dst, 0, length);
+            }
+        });
+
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(tmp
+                .getAbsolutePath(), 1000);
+        hashWrite.enableCompression(BlockCodecs.forName("identity"), 4096);
+        for (int i = 0; i < 1000; i++) {
+            hashWrite.add(("key" + i).getBytes(), getValue(i));
+        }
+        hashWrite.finish();
+
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(hf.get(("key" + i).getBytes()), getValue(i));
+        }
+        hf.close();
+    }
+
+    public void testInvalid() throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder small = new HashFile2Builder(false, tmp
+                .getAbsolutePath(), 10, ByteSize.FOUR, ByteSize.FOUR, true,
+                false, false);
+        try {
+            small.enableCompression();
+            Assert.fail("compression needs large file positions");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        HashFile2Builder hashWrite = new HashFile2Builder(tmp
+                .getAbsolutePath(), 10);
+        try {
+            hashWrite.enableCompression(BlockCodecs.DEFLATE, 5000);
+            Assert.fail("block size must be a power of 2");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        hashWrite.add("key".getBytes(), "value".getBytes());
+        try {
+            hashWrite.enableCompression();
+            Assert.fail("compression must be enabled before add()");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /** JSON-ish values, with one larger than a block every 1000 */
+    @Override
+    protected byte[] getValue(int i) {
+        StringBuilder value = new StringBuilder("{\"id\":" + i
+                + ",\"name\":\"user" + i + "\",\"tags\":[");
+        int tags = i % 1000 == 999 ? 1000 : 5;
+        for (int j = 0; j < tags; j++) {
+            value.append("\"tag").append(j).append("\",");
+        }
+
+        return value.append("\"end\"]}").toString().getBytes();
+    }
+}
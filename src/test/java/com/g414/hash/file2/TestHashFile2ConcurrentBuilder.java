@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestHashFile2ConcurrentBuilder {
+    public void testConcurrentAdds() throws Exception {
+        for (boolean large : new boolean[] { false, true }) {
+            File tmp = File.createTempFile("hhhhhh", "ff");
+            tmp.deleteOnExit();
+
+            final HashFile2Builder hashWrite = new HashFile2Builder(false,
+                    tmp.getAbsolutePath(), 160000, ByteSize.FOUR,
+                    ByteSize.FOUR, large, large, large);
+            hashWrite.setBloomFilterBitsPerKey(10);
+            hashWrite.enableConcurrentAdds();
+
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; t++) {
+                final int thread = t;
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = thread; i < 160000; i += 8) {
+                                hashWrite.add(("key" + i).getBytes(),
+                                        ("value" + i).getBytes());
+                                if (i % 100 == 0) {
+                                    hashWrite.add(("key" + i).getBytes(),
+                                            ("again" + i).getBytes());
+                                }
+                            }
+
+                            // larger than a whole block
+                            hashWrite.add(("big" + thread).getBytes(),
+                                    new byte[2 * 1024 * 1024 + thread]);
+                        } catch (Throwable e) {
+                            failure.set(e);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertNull(failure.get());
+
+            hashWrite.finish();
+
+            try {
+                hashWrite.add("late".getBytes(), "value".getBytes());
+                Assert.fail("add() after finish() should fail");
+            } catch (IllegalStateException expected) {
+            }
+
+            HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+            Assert.assertEquals(hf.getCount(), 160000 + 1600 + 8);
+
+            for (int i = 0; i < 160000; i++) {
+                Iterator<byte[]> values = hf.getMulti(("key" + i).getBytes())
+                        .iterator();
+                Assert.assertEquals(values.next(), ("value" + i).getBytes());
+                if (i % 100 == 0) {
+                    Assert.assertEquals(values.next(), ("again" + i)
+                            .getBytes());
+                }
+                Assert.assertFalse(values.hasNext());
+            }
+
+            for (int t = 0; t < threads.length; t++) {
+                Assert.assertEquals(hf.valueLength(("big" + t).getBytes()),
+                        2 * 1024 * 1024 + t);
+            }
+
+            long scanned = 0;
+            for (HashEntry entry : HashFile2.elements(tmp.getAbsolutePath())) {
+                Assert.assertNotNull(entry.getKey());
+                scanned += 1;
+            }
+            Assert.assertEquals(scanned, hf.getCount());
+
+            hf.close();
+        }
+    }
+
+    public void testEnableAfterAdd() throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(tmp
+                .getAbsolutePath(), 10);
+        hashWrite.add("key".getBytes(), "value".getBytes());
+
+        try {
+            hashWrite.enableConcurrentAdds();
+            Assert.fail("enableConcurrentAdds() after add() should fail");
+        } catch (IllegalStateException expected) {
+        }
+
+        hashWrite.finish();
+    }
+}
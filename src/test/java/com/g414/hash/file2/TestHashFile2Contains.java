@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestHashFile2Contains {
+    public void testContainsAndValueLength() throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(false, tmp
+                .getAbsolutePath(), 1000, ByteSize.FOUR, ByteSize.FOUR, false,
+                false, false);
+        for (int i = 0; i < 1000; i++) {
+            hashWrite.add(("key" + i).getBytes(), value(i));
+        }
+        hashWrite.finish();
+
+        for (ReadMode mode : ReadMode.values()) {
+            HashFile2 hf = new HashFile2(tmp.getAbsolutePath(), true, mode);
+
+            for (int i = 0; i < 1000; i++) {
+                byte[] key = ("key" + i).getBytes();
+                Assert.assertTrue(hf.contains(key));
+                Assert.assertEquals(hf.valueLength(key), value(i).length);
+                Assert.assertEquals(hf.get(key), value(i));
+
+                byte[] miss = ("miss" + i).getBytes();
+                Assert.assertFalse(hf.contains(miss));
+                Assert.assertEquals(hf.valueLength(miss), -1);
+            }
+
+            hf.close();
+        }
+    }
+
+    public void testAssociative() throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(true, tmp
+                .getAbsolutePath(), 100, ByteSize.ZERO, ByteSize.FOUR, true,
+                true, true);
+        for (int i = 0; i < 100; i++) {
+            hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+        }
+        hashWrite.finish();
+
+        // records hold no keys, so any hash match would count as a hit
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+        try {
+            hf.contains("key0".getBytes());
+            Assert.fail("contains() on an associative file");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            hf.valueLength("key0".getBytes());
+            Assert.fail("valueLength() on an associative file");
+        } catch (UnsupportedOperationException expected) {
+        }
+        hf.close();
+    }
+
+    /** values of varying length, some much larger than a read buffer */
+    private static byte[] value(int i) {
+        byte[] value = new byte[(i % 7 == 0) ? 5000 + i : i % 50];
+        Arrays.fill(value, (byte) i);
+
+        return value;
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestHashFile2Deduplication extends HashFile2ValuesTestBase {
+    public void testDeduplicated() throws Exception {
+        for (IndexType indexType : IndexType.values()) {
+            for (boolean compressed : new boolean[] { false, true }) {
+                File plain = createFile(indexType, compressed, false, 10000);
+                File deduplicated = createFile(indexType, compressed, true,
+                        10000);
+
+                // compression already squeezes out most of the repetition
+                long expected = compressed ? plain.length() : plain.length() / 4;
+                Assert.assertTrue(deduplicated.length() < expected,
+                        deduplicated.length() + " vs " + plain.length());
+
+                for (ReadMode mode : ReadMode.values()) {
+                    HashFile2 hf = new HashFile2(deduplicated
+                            .getAbsolutePath(), true, mode);
+                    Assert.assertTrue(hf.isDeduplicated());
+                    Assert.assertEquals(hf.isCompressed(), compressed);
+                    Assert.assertEquals(hf.getCount(), 10001);
+                    assertContents(hf, 10000);
+                    hf.close();
+                }
+
+                HashFile2 hf = new HashFile2(plain.getAbsolutePath());
+                Assert.assertFalse(hf.isDeduplicated());
+                hf.close();
+            }
+        }
+    }
+
+    public void testAssociative() throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(true, tmp
+                .getAbsolutePath(), 5000, ByteSize.ZERO, ByteSize.FOUR, true,
+                true, true);
+        hashWrite.enableValueDeduplication();
+        for (int i = 0; i < 5000; i++) {
+            hashWrite.add(("key" + (i % 1000)).getBytes(), getValue(i));
+        }
+        hashWrite.finish();
+
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+        Assert.assertTrue(hf.isDeduplicated());
+        for (int i = 0; i < 1000; i++) {
+            int count = 0;
+            for (byte[] value : hf.getMulti(("key" + i).getBytes())) {
+                Assert.assertEquals(new String(value), new String(
+                        getValue(i + count * 1000)));
+                count += 1;
+            }
+            Assert.assertEquals(count, 5);
+        }
+        Assert.assertEquals(hf.stream().count(), 5000);
+        hf.close();
+    }
+
+    public void testSmallFile() throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        // 4-byte positions and one-byte value lengths
+        HashFile2Builder hashWrite = new HashFile2Builder(false, tmp
+                .getAbsolutePath(), 1000, ByteSize.ONE, ByteSize.ONE, false,
+                false, false);
+        hashWrite.enableValueDeduplication();
+        for (int i = 0; i < 1000; i++) {
+            hashWrite.add(("k" + i).getBytes(), ("small value " + (i % 10))
+                    .getBytes());
+        }
+        hashWrite.finish();
+
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(new String(hf.get(("k" + i).getBytes())),
+                    "small value " + (i % 10));
+        }
+        hf.close();
+
+        HashFile2Builder tooLong = new HashFile2Builder(false, tmp
+                .getAbsolutePath(), 1, ByteSize.ONE, ByteSize.ONE, false,
+                false, false);
+        tooLong.enableValueDeduplication();
+        try {
+            // the reference bit halves the largest value length
+            tooLong.add("k".getBytes(), new byte[100]);
+            Assert.fail("value should be too long");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testScans() throws Exception {
+        for (boolean compressed : new boolean[] { false, true }) {
+            File tmp = createFile(IndexType.HASH_TABLE, compressed, true,
+                    10000);
+            HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+
+            final AtomicInteger visited = new AtomicInteger();
+            Assert.assertEquals(hf.scan(new EntryVisitor() {
+                @Override
+                public boolean visit(ByteBuffer key, ByteBuffer value) {
+                    byte[] keyBytes = new byte[key.remaining()];
+                    key.get(keyBytes);
+                    byte[] valueBytes = new byte[value.remaining()];
+                    value.get(valueBytes);
+
+                    // records come back in insertion order
+                    int i = visited.getAndIncrement();
+                    if (i < 10000) {
+                        Assert.assertEquals(new String(keyBytes), "key" + i);
+                        Assert.assertEquals(new String(valueBytes),
+                                new String(getValue(i)));
+                    }
+
+                    return true;
+                }
+            }), 10001);
+
+            Assert.assertEquals(hf.parallelStream().count(), 10001);
+
+            int count = 0;
+            for (HashEntry entry : HashFile2.elements(tmp.getAbsolutePath())) {
+                if (count < 10000) {
+                    Assert.assertEquals(new String(entry.getKey()), "key"
+                            + count);
+                    Assert.assertEquals(new String(entry.getValue()),
+                            new String(getValue(count)));
+                }
+                count += 1;
+            }
+            Assert.assertEquals(count, 10001);
+
+            hf.close();
+        }
+    }
+
+    public void testMemoryBudget() throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        // nothing is remembered, so nothing is deduplicated
+        HashFile2Builder hashWrite = new HashFile2Builder(tmp
+                .getAbsolutePath(), 1000);
+        hashWrite.enableValueDeduplication(0L);
+        for (int i = 0; i < 1000; i++) {
+            hashWrite.add(("key" + i).getBytes(), getValue(i));
+        }
+        hashWrite.finish();
+
+        File plain = createFile(IndexType.HASH_TABLE, false, false, 1000);
+        Assert.assertTrue(tmp.length() > plain.length() - 100);
+
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+        Assert.assertTrue(hf.isDeduplicated());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(hf.get(("key" + i).getBytes()), getValue(i));
+        }
+        hf.close();
+    }
+
+    public void testMerge() throws Exception {
+        List<String> inputs = Arrays.asList(createFile(IndexType.HASH_TABLE,
+                false, true, 5000).getAbsolutePath(), createFile(
+                IndexType.PERFECT_HASH, false, true, 3000).getAbsolutePath());
+
+        File merged = File.createTempFile("hhhhhh", "ff");
+        merged.deleteOnExit();
+        Assert.assertEquals(new HashFile2Merger(inputs).merge(merged
+                .getAbsolutePath()), 8002);
+
+        HashFile2 hf = new HashFile2(merged.getAbsolutePath());
+        Assert.assertTrue(hf.isDeduplicated());
+        for (int i = 0; i < 5000; i++) {
+            // values come back in input order
+            List<byte[]> expected = new ArrayList<byte[]>();
+            for (int input = 0; input < (i < 3000 ? 2 : 1); input++) {
+                expected.add(getValue(i));
+                if (i == 0) {
+                    expected.add("again".getBytes());
+                }
+            }
+
+            Iterator<byte[]> values = hf.getMulti(("key" + i).getBytes())
+                    .iterator();
+            for (byte[] value : expected) {
+                Assert.assertEquals(new String(values.next()), new String(
+                        value));
+            }
+            Assert.assertFalse(values.hasNext());
+        }
+        hf.close();
+
+        try {
+            new HashFile2Merger(Arrays.asList(inputs.get(0), createFile(
+                    IndexType.HASH_TABLE, false, false, 10).getAbsolutePath()))
+                    .merge(merged.getAbsolutePath());
+            Assert.fail("deduplicated and plain files should not merge");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testInvalid() throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder concurrent = new HashFile2Builder(tmp
+                .getAbsolutePath(), 10);
+        concurrent.enableConcurrentAdds();
+        try {
+            concurrent.enableValueDeduplication();
+            Assert.fail("concurrent adds cannot be deduplicated");
+        } catch (IllegalStateException expected) {
+        }
+
+        HashFile2Builder deduplicated = new HashFile2Builder(tmp
+                .getAbsolutePath(), 10);
+        deduplicated.enableValueDeduplication();
+        try {
+            deduplicated.enableConcurrentAdds();
+            Assert.fail("concurrent adds cannot be deduplicated");
+        } catch (IllegalStateException expected) {
+        }
+
+        HashFile2Builder hashWrite = new HashFile2Builder(tmp
+                .getAbsolutePath(), 10);
+        hashWrite.add("key".getBytes(), "value".getBytes());
+        try {
+            hashWrite.enableValueDeduplication();
+            Assert.fail("deduplication must be enabled before add()");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /** values drawn from 50 distinct payloads, each 200-odd bytes */
+    @Override
+    protected byte[] getValue(int i) {
+        StringBuilder value = new StringBuilder("{\"type\":" + (i % 50)
+                + ",\"tags\":[");
+        for (int j = 0; j < 20; j++) {
+            value.append("\"tag").append(j).append("\",");
+        }
+
+        return value.append("\"end\"]}").toString().getBytes();
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestHashFile2Merger {
+    public void testMerge() throws Exception {
+        List<String> inputs = new ArrayList<String>();
+        inputs.add(createFile(0, 5000, IndexType.HASH_TABLE, "a"));
+        inputs.add(createFile(4000, 9000, IndexType.PERFECT_HASH, "b"));
+        inputs.add(createFile(8000, 12000, IndexType.HASH_TABLE, "c"));
+
+        for (IndexType indexType : IndexType.values()) {
+            File merged = File.createTempFile("hhhhhh", "ff");
+            merged.deleteOnExit();
+
+            HashFile2Merger merger = new HashFile2Merger(inputs);
+            merger.setIndexType(indexType);
+            merger.setBloomFilterBitsPerKey(10);
+            Assert.assertEquals(merger.merge(merged.getAbsolutePath()), 14000);
+
+            HashFile2 hf = new HashFile2(merged.getAbsolutePath());
+            Assert.assertEquals(hf.getCount(), 14000);
+            Assert.assertEquals(hf.getIndexType(), indexType);
+            Assert.assertTrue(hf.hasBloomFilter());
+
+            for (int i = 0; i < 12000; i++) {
+                // values come back in input order
+                List<String> expected = new ArrayList<String>();
+                if (i < 5000) {
+                    expected.add("a" + i);
+                }
+                if (i >= 4000 && i < 9000) {
+                    expected.add("b" + i);
+                }
+                if (i >= 8000) {
+                    expected.add("c" + i);
+                }
+
+                Iterator<byte[]> values = hf.getMulti(("key" + i).getBytes())
+                        .iterator();
+                for (String value : expected) {
+                    Assert.assertEquals(new String(values.next()), value);
+                }
+                Assert.assertFalse(values.hasNext());
+                Assert.assertNull(hf.get(("miss" + i).getBytes()));
+            }
+
+            hf.close();
+        }
+    }
+
+    public void testIncompatible() throws Exception {
+        File other = File.createTempFile("hhhhhh", "ff");
+        other.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(false, other
+                .getAbsolutePath(), 10, ByteSize.TWO, ByteSize.FOUR, true,
+                true, true);
+        hashWrite.add("key".getBytes(), "value".getBytes());
+        hashWrite.finish();
+
+        File merged = File.createTempFile("hhhhhh", "ff");
+        merged.deleteOnExit();
+
+        try {
+            new HashFile2Merger(Arrays.asList(createFile(0, 10,
+                    IndexType.HASH_TABLE, "a"), other.getAbsolutePath()))
+                    .merge(merged.getAbsolutePath());
+            Assert.fail("incompatible inputs should not merge");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static String createFile(int from, int to, IndexType indexType,
+            String prefix) throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(false, tmp
+                .getAbsolutePath(), to - from, ByteSize.FOUR, ByteSize.FOUR,
+                true, true, true, indexType);
+        for (int i = from; i < to; i++) {
+            hashWrite.add(("key" + i).getBytes(), (prefix + i).getBytes());
+        }
+        hashWrite.finish();
+
+        return tmp.getAbsolutePath();
+    }
+}
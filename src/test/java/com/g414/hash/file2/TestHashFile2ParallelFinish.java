@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.g414.hash.file2.impl.FileOperations2;
+
+@Test
+public class TestHashFile2ParallelFinish {
+    public void testSameAsSequential() throws Exception {
+        for (IndexType indexType : IndexType.values()) {
+            for (boolean large : new boolean[] { false, true }) {
+                if (indexType == IndexType.PERFECT_HASH && !large) {
+                    continue;
+                }
+
+                byte[] sequential = build(indexType, large, 1, 1L);
+                Assert.assertEquals(build(indexType, large, 4,
+                        FileOperations2.DEFAULT_FINISH_MEMORY_BUDGET), sequential);
+
+                // one radix in flight at a time
+                Assert.assertEquals(build(indexType, large, 4, 1L),
+                        sequential);
+            }
+        }
+    }
+
+    public void testLookups() throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(tmp
+                .getAbsolutePath(), 50000);
+        hashWrite.setFinishThreads(8);
+        hashWrite.setFinishMemoryBudget(64 * 1024);
+        for (int i = 0; i < 50000; i++) {
+            hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+        }
+        hashWrite.finish();
+
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+        for (int i = 0; i < 50000; i++) {
+            Assert.assertEquals(hf.get(("key" + i).getBytes()), ("value" + i)
+                    .getBytes());
+        }
+        hf.close();
+
+        try {
+            hashWrite.setFinishThreads(2);
+            Assert.fail("configuring a finished file should fail");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private static byte[] build(IndexType indexType, boolean large,
+            int threads, long budget) throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(false, tmp
+                .getAbsolutePath(), 20000, ByteSize.FOUR, ByteSize.FOUR,
+                large, large, large, indexType);
+        hashWrite.setBloomFilterBitsPerKey(10);
+        hashWrite.setFinishThreads(threads);
+        hashWrite.setFinishMemoryBudget(budget);
+
+        for (int i = 0; i < 20000; i++) {
+            hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+            if (i % 7 == 0) {
+                hashWrite.add(("key" + i).getBytes(), ("other" + i)
+                        .getBytes());
+            }
+        }
+        hashWrite.finish();
+
+        byte[] contents = Files.readAllBytes(tmp.toPath());
+        tmp.delete();
+
+        return contents;
+    }
+}
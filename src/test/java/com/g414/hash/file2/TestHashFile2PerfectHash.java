@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.g414.hash.file2.impl.PerfectHash2;
+
+@Test
+public class TestHashFile2PerfectHash {
+    public void testLookups() throws Exception {
+        for (boolean large : new boolean[] { false, true }) {
+            for (int fingerprintBits : new int[] { 0, 8, 16 }) {
+                File tmp = createFile(20000, large, fingerprintBits,
+                        IndexType.PERFECT_HASH);
+
+                for (ReadMode mode : ReadMode.values()) {
+                    HashFile2 hf = new HashFile2(tmp.getAbsolutePath(), true,
+                            mode);
+                    Assert.assertEquals(hf.getIndexType(),
+                            IndexType.PERFECT_HASH);
+                    verify(hf, 20000);
+                    hf.close();
+                }
+
+                HashFile2 heap = new HashFile2(tmp.getAbsolutePath(), true,
+                        ReadMode.POSITIONAL, IndexStorage.HEAP);
+                verify(heap, 20000);
+                heap.close();
+            }
+        }
+    }
+
+    public void testSmallerThanHashTables() throws Exception {
+        File hashTables = createFile(20000, true, 8, IndexType.HASH_TABLE);
+        File perfectHash = createFile(20000, true, 8, IndexType.PERFECT_HASH);
+
+        // 16 bytes per entry versus roughly 6 (pilots, fingerprint, position)
+        Assert.assertTrue(perfectHash.length() < hashTables.length() - 20000 * 9,
+                perfectHash.length() + " vs " + hashTables.length());
+    }
+
+    public void testEmptyAndTiny() throws Exception {
+        for (int entries : new int[] { 0, 1, 3 }) {
+            File tmp = createFile(entries, false, 8, IndexType.PERFECT_HASH);
+
+            HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+            Assert.assertEquals(hf.getCount(), entries + 1L);
+            verify(hf, entries);
+            hf.close();
+        }
+    }
+
+    public void testPartitionSizes() throws Exception {
+        // includes sizes whose table would be a power of two (16, 32, ...)
+        Random random = new Random(40L);
+        for (int n = 1; n <= 300; n++) {
+            long[] hashes = new long[n];
+            long[] positions = new long[n];
+            for (int i = 0; i < n; i++) {
+                // keys of one partition share their low (radix) bits
+                hashes[i] = (random.nextLong() >>> 1) & ~0xFFL | 0x19L;
+                positions[i] = i + 1;
+            }
+
+            Assert.assertTrue(PerfectHash2.buildPartition(hashes, positions,
+                    n, 20, 8).capacity() > 0);
+        }
+    }
+
+    public void testRequiresKeysAndLongHash() throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        try {
+            new HashFile2Builder(true, tmp.getAbsolutePath(), 10,
+                    ByteSize.ZERO, ByteSize.FOUR, true, true, true,
+                    IndexType.PERFECT_HASH);
+            Assert.fail("associative perfect hash files should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        try {
+            new HashFile2Builder(false, tmp.getAbsolutePath(), 10,
+                    ByteSize.FOUR, ByteSize.FOUR, false, false, false,
+                    IndexType.PERFECT_HASH);
+            Assert.fail("int hash perfect hash files should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static File createFile(int entries, boolean large,
+            int fingerprintBits, IndexType indexType) throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(false, tmp
+                .getAbsolutePath(), entries, ByteSize.FOUR, ByteSize.FOUR,
+                true, large, large, indexType);
+        hashWrite.setFingerprintBits(fingerprintBits);
+
+        for (int i = 0; i < entries; i++) {
+            hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+        }
+        hashWrite.add("key0".getBytes(), "again".getBytes());
+        hashWrite.finish();
+
+        return tmp;
+    }
+
+    private static void verify(HashFile2 hf, int entries) {
+        List<byte[]> keys = new ArrayList<byte[]>();
+
+        for (int i = 0; i < entries; i++) {
+            byte[] key = ("key" + i).getBytes();
+            byte[] expected = ("value" + i).getBytes();
+
+            Assert.assertEquals(hf.get(key), expected);
+            Assert.assertEquals(hf.valueLength(key), expected.length);
+            Assert.assertNull(hf.get(("miss" + i).getBytes()));
+            Assert.assertFalse(hf.contains(("miss" + i).getBytes()));
+
+            keys.add(key);
+            keys.add(("miss" + i).getBytes());
+        }
+
+        Iterator<byte[]> multi = hf.getMulti("key0".getBytes()).iterator();
+        if (entries > 0) {
+            Assert.assertEquals(multi.next(), "value0".getBytes());
+        }
+        Assert.assertEquals(multi.next(), "again".getBytes());
+        Assert.assertFalse(multi.hasNext());
+
+        List<List<byte[]>> all = hf.getAll(keys);
+        for (int i = 0; i < keys.size(); i++) {
+            Iterator<byte[]> expected = hf.getMulti(keys.get(i)).iterator();
+            for (byte[] value : all.get(i)) {
+                Assert.assertEquals(value, expected.next());
+            }
+            Assert.assertFalse(expected.hasNext());
+        }
+
+        Assert.assertEquals(hf.parallelStream().count(), entries + 1L);
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestHashFile2RadixBuffering {
+    public void testSmallBuildUsesNoTempFiles() throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(tmp
+                .getAbsolutePath(), 1000);
+        for (int i = 0; i < 1000; i++) {
+            hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+        }
+
+        Assert.assertEquals(countRadixFiles(tmp), 0);
+        hashWrite.finish();
+
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(hf.get(("key" + i).getBytes()), ("value" + i)
+                    .getBytes());
+        }
+        hf.close();
+    }
+
+    public void testSpillMatchesInMemory() throws Exception {
+        for (boolean concurrent : new boolean[] { false, true }) {
+            byte[] inMemory = build(Long.MAX_VALUE, concurrent,
+                    false);
+            Assert.assertEquals(build(64 * 1024, concurrent, true), inMemory);
+            Assert.assertEquals(build(0, concurrent, true), inMemory);
+        }
+    }
+
+    private static byte[] build(long budget, boolean concurrent,
+            boolean expectSpill) throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(tmp
+                .getAbsolutePath(), 100000);
+        hashWrite.setRadixMemoryBudget(budget);
+        hashWrite.setBloomFilterBitsPerKey(8);
+        if (concurrent) {
+            // a single writer thread, so the data file stays comparable
+            hashWrite.enableConcurrentAdds();
+        }
+
+        for (int i = 0; i < 100000; i++) {
+            hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+        }
+
+        Assert.assertEquals(countRadixFiles(tmp) > 0, expectSpill);
+        hashWrite.finish();
+        Assert.assertEquals(countRadixFiles(tmp), 0);
+
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+        for (int i = 0; i < 100000; i += 7) {
+            Assert.assertEquals(hf.get(("key" + i).getBytes()), ("value" + i)
+                    .getBytes());
+        }
+        hf.close();
+
+        byte[] contents = Files.readAllBytes(tmp.toPath());
+        tmp.delete();
+
+        return contents;
+    }
+
+    private static int countRadixFiles(File hashFile) {
+        String[] names = hashFile.getParentFile().list();
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(hashFile.getName() + ".list.")) {
+                count += 1;
+            }
+        }
+
+        return count;
+    }
+}
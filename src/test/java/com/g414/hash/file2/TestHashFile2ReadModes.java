@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.g414.hash.file2.impl.FileAccess2;
+import com.g414.hash.file2.impl.FileOperations2;
+import com.g414.hash.file2.impl.Header2;
+import com.g414.hash.file2.impl.MappedFileAccess2;
+import com.g414.hash.file2.impl.Probe2;
+
+@Test
+public class TestHashFile2ReadModes {
+    public void testReadModes() throws Exception {
+        for (boolean large : new boolean[] { false, true }) {
+            File tmp = createFile(10000, large);
+
+            for (ReadMode mode : ReadMode.values()) {
+                HashFile2 hf = new HashFile2(tmp.getAbsolutePath(), true, mode);
+                Assert.assertEquals(hf.getReadMode(), mode);
+                verify(hf, 10000);
+                hf.close();
+
+                try {
+                    hf.get("key0".getBytes());
+                    Assert.fail("get() after close() should fail");
+                } catch (IllegalStateException expected) {
+                }
+            }
+        }
+    }
+
+    public void testValueViews() throws Exception {
+        File tmp = createFile(1000, false);
+
+        for (ReadMode mode : ReadMode.values()) {
+            HashFile2 hf = new HashFile2(tmp.getAbsolutePath(), true, mode);
+
+            for (int i = 0; i < 1000; i++) {
+                byte[] expected = ("value" + i).getBytes();
+
+                ByteBuffer view = hf.getView(("key" + i).getBytes());
+                Assert.assertTrue(view.isReadOnly());
+                Assert.assertEquals(view.remaining(), expected.length);
+                Assert.assertEquals(view, ByteBuffer.wrap(expected));
+
+                final ByteBuffer[] seen = new ByteBuffer[1];
+                Assert.assertTrue(hf.get(("key" + i).getBytes(),
+                        new ValueConsumer() {
+                            @Override
+                            public void accept(ByteBuffer value) {
+                                seen[0] = value;
+                            }
+                        }));
+                Assert.assertEquals(seen[0], ByteBuffer.wrap(expected));
+
+                Assert.assertNull(hf.getView(("miss" + i).getBytes()));
+                Assert.assertFalse(hf.get(("miss" + i).getBytes(),
+                        new ValueConsumer() {
+                            @Override
+                            public void accept(ByteBuffer value) {
+                                Assert.fail("unexpected value");
+                            }
+                        }));
+            }
+
+            hf.close();
+        }
+    }
+
+    public void testConcurrentLookups() throws Exception {
+        final File tmp = createFile(10000, false);
+
+        for (ReadMode mode : ReadMode.values()) {
+            final HashFile2 hf = new HashFile2(tmp.getAbsolutePath(), true,
+                    mode);
+            final AtomicInteger failures = new AtomicInteger();
+
+            Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; t++) {
+                final int offset = t;
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int i = offset; i < 10000; i += 3) {
+                            byte[] found = hf.get(("key" + i).getBytes());
+                            if (!Arrays.equals(found, ("value" + i).getBytes())) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            Assert.assertEquals(failures.get(), 0, mode.toString());
+            hf.close();
+        }
+    }
+
+    public void testMappedSegmentBoundaries() throws Exception {
+        File tmp = createFile(5000, true);
+
+        RandomAccessFile file = new RandomAccessFile(tmp, "r");
+        try {
+            Header2 header = Header2.readHeader(file);
+            FileOperations2 fileOps = FileOperations2.fromHeader(header);
+            ByteBuffer hashTableOffsets = file.getChannel().map(
+                    MapMode.READ_ONLY, Header2.getBucketTableOffset(),
+                    header.getBucketTableLength());
+
+            // tiny segments force records and tables across boundaries
+            FileAccess2 access = new MappedFileAccess2(file.getChannel(), 4096);
+
+            for (int i = 0; i < 5000; i++) {
+                byte[] key = ("key" + i).getBytes();
+                Assert.assertEquals(fileOps.getFirst(access, hashTableOffsets,
+                        null, key), ("value" + i).getBytes());
+
+                Probe2 probe = new Probe2(fileOps, access, hashTableOffsets,
+                        null, ("miss" + i).getBytes());
+                Assert.assertFalse(probe.next());
+            }
+
+            ByteBuffer target = ByteBuffer.allocate(10000);
+            access.readFully(4000, target);
+
+            byte[] expected = new byte[10000];
+            file.seek(4000);
+            file.readFully(expected);
+            Assert.assertEquals(target.array(), expected);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static File createFile(int entries, boolean large)
+            throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(false, tmp
+                .getAbsolutePath(), entries, ByteSize.FOUR, ByteSize.FOUR,
+                large, large, large);
+
+        for (int i = 0; i < entries; i++) {
+            hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+        }
+        hashWrite.add("key0".getBytes(), "again".getBytes());
+        hashWrite.finish();
+
+        return tmp;
+    }
+
+    private static void verify(HashFile2 hf, int entries) {
+        for (int i = 0; i < entries; i++) {
+            Assert.assertEquals(hf.get(("key" + i).getBytes()), ("value" + i)
+                    .getBytes());
+            Assert.assertNull(hf.get(("miss" + i).getBytes()));
+        }
+
+        Iterator<byte[]> multi = hf.getMulti("key0".getBytes()).iterator();
+        Assert.assertEquals(multi.next(), "value0".getBytes());
+        Assert.assertEquals(multi.next(), "again".getBytes());
+        Assert.assertFalse(multi.hasNext());
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestHashFile2Scan {
+    public void testParallelStream() throws Exception {
+        for (boolean large : new boolean[] { false, true }) {
+            File tmp = createFile(50000, large);
+
+            List<HashEntry> expected = new ArrayList<HashEntry>();
+            for (HashEntry entry : HashFile2.elements(tmp.getAbsolutePath())) {
+                expected.add(entry);
+            }
+            Assert.assertEquals(expected.size(), 50000);
+
+            for (ReadMode mode : ReadMode.values()) {
+                HashFile2 hf = new HashFile2(tmp.getAbsolutePath(), true, mode);
+
+                // sequential stream matches elements() exactly, in order
+                List<HashEntry> sequential = hf.stream().collect(
+                        Collectors.<HashEntry> toList());
+                assertSameEntries(sequential, expected);
+
+                // ordered parallel collection is also in file order
+                List<HashEntry> parallel = hf.parallelStream().collect(
+                        Collectors.<HashEntry> toList());
+                assertSameEntries(parallel, expected);
+
+                Assert.assertEquals(hf.parallelStream().unordered().count(),
+                        50000L);
+
+                hf.close();
+            }
+        }
+    }
+
+    public void testSplitting() throws Exception {
+        File tmp = createFile(50000, false);
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath(), true,
+                ReadMode.MAPPED);
+
+        List<Spliterator<HashEntry>> splits = new ArrayList<Spliterator<HashEntry>>();
+        splits.add(hf.spliterator());
+        for (int round = 0; round < 6; round++) {
+            List<Spliterator<HashEntry>> next = new ArrayList<Spliterator<HashEntry>>();
+            for (Spliterator<HashEntry> split : splits) {
+                Spliterator<HashEntry> prefix = split.trySplit();
+                if (prefix != null) {
+                    next.add(prefix);
+                }
+                next.add(split);
+            }
+            splits = next;
+        }
+        Assert.assertTrue(splits.size() > 32, "splits: " + splits.size());
+
+        final AtomicLong count = new AtomicLong();
+        final Map<String, String> seen = new HashMap<String, String>();
+        for (Spliterator<HashEntry> split : splits) {
+            split.forEachRemaining(new Consumer<HashEntry>() {
+                @Override
+                public void accept(HashEntry entry) {
+                    count.incrementAndGet();
+                    seen.put(new String(entry.getKey()), new String(entry
+                            .getValue()));
+                }
+            });
+        }
+
+        Assert.assertEquals(count.get(), 50000L);
+        for (int i = 0; i < 50000; i++) {
+            Assert.assertEquals(seen.get("key" + i), "value" + i);
+        }
+
+        hf.close();
+    }
+
+    public void testScan() throws Exception {
+        File tmp = createFile(50000, true);
+
+        final List<HashEntry> expected = new ArrayList<HashEntry>();
+        for (HashEntry entry : HashFile2.elements(tmp.getAbsolutePath())) {
+            expected.add(entry);
+        }
+
+        for (ReadMode mode : ReadMode.values()) {
+            HashFile2 hf = new HashFile2(tmp.getAbsolutePath(), true, mode);
+
+            final AtomicLong index = new AtomicLong();
+            long visited = hf.scan(new EntryVisitor() {
+                @Override
+                public boolean visit(ByteBuffer key, ByteBuffer value) {
+                    HashEntry entry = expected.get((int) index
+                            .getAndIncrement());
+                    Assert.assertTrue(key.isReadOnly());
+                    Assert.assertEquals(key, ByteBuffer.wrap(entry.getKey()));
+                    Assert.assertEquals(value, ByteBuffer.wrap(entry
+                            .getValue()));
+
+                    return true;
+                }
+            });
+            Assert.assertEquals(visited, 50000L);
+
+            index.set(0);
+            visited = hf.scan(new EntryVisitor() {
+                @Override
+                public boolean visit(ByteBuffer key, ByteBuffer value) {
+                    HashEntry entry = expected.get((int) index
+                            .getAndIncrement());
+                    Assert.assertEquals(key, ByteBuffer.wrap(entry.getKey()));
+                    Assert.assertNull(value);
+
+                    return true;
+                }
+            }, true);
+            Assert.assertEquals(visited, 50000L);
+
+            visited = hf.scan(new EntryVisitor() {
+                @Override
+                public boolean visit(ByteBuffer key, ByteBuffer value) {
+                    return false;
+                }
+            });
+            Assert.assertEquals(visited, 1L);
+
+            hf.close();
+        }
+    }
+
+    public void testEmptyFile() throws Exception {
+        File tmp = createFile(0, false);
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+        Assert.assertEquals(hf.parallelStream().count(), 0L);
+        hf.close();
+    }
+
+    private static void assertSameEntries(List<HashEntry> actual,
+            List<HashEntry> expected) {
+        Assert.assertEquals(actual.size(), expected.size());
+        for (int i = 0; i < actual.size(); i++) {
+            Assert.assertTrue(Arrays.equals(actual.get(i).getKey(), expected
+                    .get(i).getKey()));
+            Assert.assertTrue(Arrays.equals(actual.get(i).getValue(),
+                    expected.get(i).getValue()));
+        }
+    }
+
+    private static File createFile(int entries, boolean large)
+            throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(false, tmp
+                .getAbsolutePath(), entries, ByteSize.FOUR, ByteSize.FOUR,
+                large, large, large);
+        for (int i = 0; i < entries; i++) {
+            hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+        }
+        hashWrite.finish();
+
+        return tmp;
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Iterator;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.g414.hash.file2.impl.FileAccess2;
+import com.g414.hash.file2.impl.FileOperations2;
+import com.g414.hash.file2.impl.Header2;
+import com.g414.hash.file2.impl.Probe2;
+import com.g414.hash.file2.impl.Sections2;
+
+@Test
+public class TestHashFile2SortedBuckets {
+    public void testLookups() throws Exception {
+        for (boolean large : new boolean[] { false, true }) {
+            File tmp = createFile(50000, large);
+
+            HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+            for (int i = 0; i < 50000; i++) {
+                Iterator<byte[]> values = hf.getMulti(("key" + i).getBytes())
+                        .iterator();
+                Assert.assertEquals(values.next(), ("value" + i).getBytes());
+                if (i % 10 == 0) {
+                    Assert.assertEquals(values.next(), ("other" + i)
+                            .getBytes());
+                }
+                Assert.assertFalse(values.hasNext());
+
+                Assert.assertNull(hf.get(("miss" + i).getBytes()));
+            }
+            hf.close();
+        }
+    }
+
+    public void testProbeLengths() throws Exception {
+        File tmp = createFile(50000, true);
+
+        RandomAccessFile file = new RandomAccessFile(tmp, "r");
+        try {
+            Header2 header = Header2.readHeader(file);
+            Assert.assertTrue(header.hasSortedBuckets());
+
+            FileOperations2 fileOps = FileOperations2.fromHeader(header);
+            ByteBuffer hashTableOffsets = file.getChannel().map(
+                    MapMode.READ_ONLY, Header2.getBucketTableOffset(),
+                    header.getBucketTableLength());
+            FileAccess2 access = FileAccess2.open(file, ReadMode.POSITIONAL);
+
+            Sections2 sections = Sections2.read(file);
+            file.seek(sections.getOffset(Sections2.MAX_DISPLACEMENT));
+            int maxDisplacement = file.readInt();
+            fileOps.setMaxDisplacement(maxDisplacement);
+
+            int maxBucket = 0;
+            for (int i = 0; i < header.getBuckets(); i++) {
+                maxBucket = Math.max(maxBucket, (int) fileOps
+                        .getHashTableSize(hashTableOffsets, i));
+            }
+
+            long total = 0L;
+            int worst = 0;
+            for (int i = 0; i < 50000; i++) {
+                Probe2 probe = new Probe2(fileOps, access, hashTableOffsets,
+                        null, ("miss" + i).getBytes());
+                Assert.assertFalse(probe.next());
+
+                total += probe.getExamined();
+                worst = Math.max(worst, probe.getExamined());
+            }
+
+            // misses used to scan whole (full) buckets
+            int window = 2 * maxDisplacement + 1;
+            int searchBound = 32 - Integer.numberOfLeadingZeros(window) + 1;
+            Assert.assertTrue(worst <= searchBound, worst + " > "
+                    + searchBound);
+            Assert.assertTrue(worst < maxBucket / 8, worst + " vs "
+                    + maxBucket);
+            Assert.assertTrue(total / 50000.0 < 8.0, "mean "
+                    + (total / 50000.0));
+
+            // hits examine the search window plus the matching entries
+            for (int i = 0; i < 50000; i++) {
+                Probe2 probe = new Probe2(fileOps, access, hashTableOffsets,
+                        null, ("key" + i).getBytes());
+                Assert.assertTrue(probe.next());
+                Assert.assertTrue(probe.getExamined() <= searchBound + 1);
+            }
+
+            access.close();
+        } finally {
+            file.close();
+        }
+    }
+
+    private static File createFile(int entries, boolean large)
+            throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(false, tmp
+                .getAbsolutePath(), entries, ByteSize.FOUR, ByteSize.FOUR,
+                large, large, large);
+
+        for (int i = 0; i < entries; i++) {
+            hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+        }
+        for (int i = 0; i < entries; i += 10) {
+            hashWrite.add(("key" + i).getBytes(), ("other" + i).getBytes());
+        }
+        hashWrite.finish();
+
+        return tmp;
+    }
+}
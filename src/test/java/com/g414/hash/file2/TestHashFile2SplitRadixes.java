@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.g414.hash.file2.impl.FileOperations2;
+
+@Test
+public class TestHashFile2SplitRadixes {
+    /** a budget whose radix files are indexed in 4KB parts */
+    private static final long SMALL_BUDGET = 3 * FileOperations2.MIN_BUILD_LENGTH;
+
+    public void testSameAsWhole() throws Exception {
+        for (boolean large : new boolean[] { false, true }) {
+            byte[] whole = Files.readAllBytes(build(large, 1,
+                    FileOperations2.DEFAULT_FINISH_MEMORY_BUDGET).toPath());
+
+            File split = build(large, 1, SMALL_BUDGET);
+            Assert.assertTrue(Arrays.equals(Files.readAllBytes(split
+                    .toPath()), whole));
+            Assert.assertTrue(Arrays.equals(Files.readAllBytes(build(large,
+                    4, SMALL_BUDGET).toPath()), whole));
+
+            HashFile2 hf = new HashFile2(split.getAbsolutePath());
+            for (int i = 0; i < 200000; i++) {
+                Assert.assertEquals(new String(hf.get(("key" + i).getBytes())),
+                        "value" + i);
+            }
+            Assert.assertNull(hf.get("miss".getBytes()));
+            hf.close();
+        }
+    }
+
+    public void testLargeBucket() throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        // one key's entries all land in a bucket larger than a part
+        HashFile2Builder hashWrite = new HashFile2Builder(tmp
+                .getAbsolutePath(), 20000);
+        hashWrite.setFinishMemoryBudget(SMALL_BUDGET);
+        for (int i = 0; i < 20000; i++) {
+            hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+            hashWrite.add("hot".getBytes(), ("hot" + i).getBytes());
+        }
+        hashWrite.finish();
+
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+        int count = 0;
+        for (byte[] value : hf.getMulti("hot".getBytes())) {
+            Assert.assertEquals(new String(value), "hot" + count++);
+        }
+        Assert.assertEquals(count, 20000);
+        for (int i = 0; i < 20000; i++) {
+            Assert.assertEquals(new String(hf.get(("key" + i).getBytes())),
+                    "value" + i);
+        }
+        hf.close();
+
+        // no temp files are left behind
+        for (File file : tmp.getAbsoluteFile().getParentFile().listFiles()) {
+            Assert.assertFalse(file.getName().startsWith(tmp.getName())
+                    && file.getName().length() > tmp.getName().length(), file
+                    .getName());
+        }
+    }
+
+    private static File build(boolean large, int threads, long budget)
+            throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(false, tmp
+                .getAbsolutePath(), 200000, ByteSize.FOUR, ByteSize.FOUR,
+                large, large, large);
+        hashWrite.setBloomFilterBitsPerKey(10);
+        hashWrite.setFinishThreads(threads);
+        hashWrite.setFinishMemoryBudget(budget);
+
+        for (int i = 0; i < 200000; i++) {
+            hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+        }
+        hashWrite.finish();
+
+        return tmp;
+    }
+}
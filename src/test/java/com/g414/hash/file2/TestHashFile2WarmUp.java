@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestHashFile2WarmUp {
+    public void testWarmUpAndIndexStorage() throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(false, tmp
+                .getAbsolutePath(), 20000, ByteSize.FOUR, ByteSize.FOUR, true,
+                true, true);
+        hashWrite.setBloomFilterBitsPerKey(8);
+        for (int i = 0; i < 20000; i++) {
+            hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+        }
+        hashWrite.finish();
+
+        for (ReadMode mode : ReadMode.values()) {
+            for (IndexStorage storage : IndexStorage.values()) {
+                HashFile2 hf = new HashFile2(tmp.getAbsolutePath(), true, mode,
+                        storage);
+                Assert.assertEquals(hf.getIndexStorage(), storage);
+
+                WarmUpResult none = hf.warmUp(WarmUpPolicy.NONE, 1);
+                Assert.assertEquals(none.getBytes(), 0L);
+
+                WarmUpResult all = hf.warmUp(WarmUpPolicy.ALL, 4);
+                Assert.assertEquals(all.getBytes(), tmp.length());
+                Assert.assertTrue(all.getBytesPerSecond() > 0.0);
+                System.out.println(mode + " " + storage + " " + all);
+
+                WarmUpResult bucketTable = hf.warmUp(
+                        WarmUpPolicy.BUCKET_TABLE, 1);
+                WarmUpResult index = hf.warmUp(WarmUpPolicy.INDEX, 2);
+
+                if (storage == IndexStorage.FILE) {
+                    Assert.assertTrue(bucketTable.getBytes() > 0L);
+                    Assert.assertTrue(index.getBytes() > bucketTable.getBytes());
+                } else {
+                    // already in memory
+                    Assert.assertEquals(index.getBytes(), 0L);
+                }
+
+                for (int i = 0; i < 20000; i++) {
+                    Assert.assertEquals(hf.get(("key" + i).getBytes()),
+                            ("value" + i).getBytes());
+                    Assert.assertNull(hf.get(("miss" + i).getBytes()));
+                }
+
+                hf.close();
+
+                try {
+                    hf.warmUp(WarmUpPolicy.ALL, 1);
+                    Assert.fail("warmUp() after close() should fail");
+                } catch (IllegalStateException expected) {
+                }
+            }
+        }
+    }
+}
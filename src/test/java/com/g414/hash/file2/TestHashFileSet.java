@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestHashFileSet {
+    public void testBuildAndLookup() throws Exception {
+        for (boolean longHash : new boolean[] { false, true }) {
+            File tmp = File.createTempFile("hhhhhh", "ff");
+            tmp.deleteOnExit();
+
+            final HashFileSetBuilder builder = new HashFileSetBuilder(false,
+                    tmp.getAbsolutePath(), 3, 40000, ByteSize.FOUR,
+                    ByteSize.FOUR, longHash, longHash, longHash);
+
+            // concurrent adds from several threads
+            final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final int offset = t;
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = offset; i < 40000; i += 4) {
+                                builder.add(("key" + i).getBytes(),
+                                        ("value" + i).getBytes());
+                            }
+                        } catch (Exception e) {
+                            failure.set(e);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertNull(failure.get());
+
+            builder.add("key0".getBytes(), "again".getBytes());
+            builder.finish();
+
+            for (int i = 0; i < 8; i++) {
+                Assert.assertTrue(new File(tmp.getAbsolutePath()
+                        + String.format(".shard.%02X", i)).exists());
+            }
+
+            HashFileSet set = new HashFileSet(tmp.getAbsolutePath(),
+                    ReadMode.POSITIONAL);
+            Assert.assertEquals(set.getShardCount(), 8);
+            Assert.assertEquals(set.getCount(), 40001L);
+
+            for (HashFile2 shard : set.getShards()) {
+                Assert.assertTrue(shard.getCount() > 40000 / 16,
+                        "unbalanced shard: " + shard.getCount());
+            }
+
+            List<byte[]> keys = new ArrayList<byte[]>();
+            for (int i = 0; i < 40000; i++) {
+                Assert.assertEquals(set.get(("key" + i).getBytes()),
+                        ("value" + i).getBytes());
+                Assert.assertNull(set.get(("miss" + i).getBytes()));
+
+                if (i % 10 == 0) {
+                    keys.add(("key" + i).getBytes());
+                    keys.add(("miss" + i).getBytes());
+                }
+            }
+
+            List<byte[]> multi = new ArrayList<byte[]>();
+            for (byte[] value : set.getMulti("key0".getBytes())) {
+                multi.add(value);
+            }
+            Assert.assertEquals(multi.size(), 2);
+
+            List<List<byte[]>> all = set.getAll(keys);
+            for (int i = 0; i < keys.size(); i++) {
+                List<byte[]> expected = new ArrayList<byte[]>();
+                for (byte[] value : set.getMulti(keys.get(i))) {
+                    expected.add(value);
+                }
+
+                Assert.assertEquals(all.get(i).size(), expected.size());
+                for (int j = 0; j < expected.size(); j++) {
+                    Assert.assertEquals(all.get(i).get(j), expected.get(j));
+                }
+            }
+
+            Map<String, Integer> seen = new HashMap<String, Integer>();
+            for (Object entry : set.parallelStream().toArray()) {
+                String key = new String(((HashEntry) entry).getKey());
+                Integer count = seen.get(key);
+                seen.put(key, count == null ? 1 : count + 1);
+            }
+            Assert.assertEquals(seen.size(), 40000);
+            Assert.assertEquals(seen.get("key0"), Integer.valueOf(2));
+            Assert.assertEquals(set.stream().count(), 40001L);
+
+            set.close();
+        }
+    }
+
+    public void testManyShards() throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        // buffers and budgets are split, so this fits the test heap
+        HashFileSetBuilder builder = new HashFileSetBuilder(tmp
+                .getAbsolutePath(), 7, 200000);
+        builder.setRadixMemoryBudget(128L * 1024 * 1024);
+        builder.setFinishThreads(2);
+        builder.setFinishMemoryBudget(64L * 1024 * 1024);
+        for (int i = 0; i < 200000; i++) {
+            builder.add(("key" + i).getBytes(), ("value" + i).getBytes());
+        }
+        builder.finish(4);
+
+        HashFileSet set = new HashFileSet(tmp.getAbsolutePath(),
+                ReadMode.POSITIONAL);
+        Assert.assertEquals(set.getShardCount(), 128);
+        Assert.assertEquals(set.getCount(), 200000L);
+        for (int i = 0; i < 200000; i++) {
+            Assert.assertEquals(new String(set.get(("key" + i).getBytes())),
+                    "value" + i);
+        }
+        set.close();
+
+        try {
+            builder.setFinishThreads(0);
+            Assert.fail("threads must be >= 1");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
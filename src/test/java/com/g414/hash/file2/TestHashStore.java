@@ -0,0 +1,460 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TestHashStore {
+    public void testUpdates() throws Exception {
+        File base = createBase(1000);
+        File dir = createDirectory();
+
+        HashStore store = HashStore.create(dir.getPath(), base.getPath());
+        for (int i = 0; i < 1000; i += 2) {
+            store.put(("key" + i).getBytes(), ("new" + i).getBytes());
+        }
+        for (int i = 1; i < 1000; i += 4) {
+            store.delete(("key" + i).getBytes());
+        }
+        for (int i = 1000; i < 1500; i++) {
+            store.put(("key" + i).getBytes(), ("new" + i).getBytes());
+        }
+        assertContents(store);
+
+        store.flush();
+        Assert.assertEquals(store.getLevelCount(), 1);
+        assertContents(store);
+
+        // later writes shadow the flushed level
+        store.put("key0".getBytes(), "newer".getBytes());
+        store.delete("key2".getBytes());
+        store.put("key1".getBytes(), "back".getBytes());
+        Assert.assertEquals(new String(store.get("key0".getBytes())), "newer");
+        Assert.assertNull(store.get("key2".getBytes()));
+        Assert.assertEquals(new String(store.get("key1".getBytes())), "back");
+        store.flush();
+        Assert.assertEquals(store.getLevelCount(), 2);
+        Assert.assertEquals(new String(store.get("key0".getBytes())), "newer");
+        Assert.assertNull(store.get("key2".getBytes()));
+        Assert.assertEquals(new String(store.get("key1".getBytes())), "back");
+
+        store.compact();
+        Assert.assertEquals(store.getLevelCount(), 0);
+        Assert.assertEquals(new String(store.get("key0".getBytes())), "newer");
+        Assert.assertNull(store.get("key2".getBytes()));
+        Assert.assertEquals(new String(store.get("key1".getBytes())), "back");
+        for (int i = 3; i < 1500; i++) {
+            assertValue(store, i);
+        }
+        store.close();
+
+        // the original base is left alone
+        HashFile2 hf = new HashFile2(base.getPath());
+        Assert.assertEquals(new String(hf.get("key0".getBytes())), "value0");
+        hf.close();
+
+        store = new HashStore(dir.getPath());
+        Assert.assertEquals(new String(store.get("key0".getBytes())), "newer");
+        for (int i = 3; i < 1500; i++) {
+            assertValue(store, i);
+        }
+
+        // compacting again replaces the store's own base
+        store.put("key3".getBytes(), "again".getBytes());
+        store.compact();
+        Assert.assertEquals(new String(store.get("key3".getBytes())), "again");
+        store.close();
+
+        int bases = 0;
+        for (String name : dir.list()) {
+            bases += name.startsWith("base-") ? 1 : 0;
+        }
+        Assert.assertEquals(bases, 1);
+    }
+
+    public void testEmptyBase() throws Exception {
+        File dir = createDirectory();
+
+        HashStore store = HashStore.create(dir.getPath(), null);
+        Assert.assertNull(store.get("key0".getBytes()));
+        store.put("key0".getBytes(), "value0".getBytes());
+        store.compact();
+        store.delete("key0".getBytes());
+        Assert.assertNull(store.get("key0".getBytes()));
+        store.put("key1".getBytes(), new byte[0]);
+        Assert.assertEquals(store.get("key1".getBytes()).length, 0);
+        store.flush();
+        Assert.assertNull(store.get("key0".getBytes()));
+        Assert.assertEquals(store.get("key1".getBytes()).length, 0);
+        store.close();
+    }
+
+    public void testMergeLevels() throws Exception {
+        File base = createBase(1000);
+        File dir = createDirectory();
+
+        HashStore store = HashStore.create(dir.getPath(), base.getPath());
+        store.setMemTableSize(4096);
+        store.setMaxLevels(3);
+
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 1000; i++) {
+                if ((i + round) % 7 == 0) {
+                    store.delete(("key" + i).getBytes());
+                } else {
+                    store.put(("key" + i).getBytes(), ("r" + round + "." + i)
+                            .getBytes());
+                }
+            }
+        }
+        store.flush();
+        Assert.assertTrue(store.getLevelCount() <= 3, "levels: "
+                + store.getLevelCount());
+
+        for (int i = 0; i < 1000; i++) {
+            byte[] value = store.get(("key" + i).getBytes());
+            if ((i + 4) % 7 == 0) {
+                Assert.assertNull(value);
+            } else {
+                Assert.assertEquals(new String(value), "r4." + i);
+            }
+        }
+        store.close();
+    }
+
+    public void testRecovery() throws Exception {
+        File base = createBase(100);
+        File dir = createDirectory();
+
+        HashStore store = HashStore.create(dir.getPath(), base.getPath());
+        store.put("key1".getBytes(), "flushed".getBytes());
+        store.flush();
+        store.put("key2".getBytes(), "logged".getBytes());
+        store.delete("key3".getBytes());
+        store.sync();
+        store.close();
+
+        // a write torn by a crash is dropped
+        File log = null;
+        for (File file : dir.listFiles()) {
+            if (file.getName().startsWith("log-") && file.length() > 0) {
+                log = file;
+            }
+        }
+        FileOutputStream out = new FileOutputStream(log, true);
+        out.write(new byte[] { 0, 0, 0, 4, 0, 0, 0, 9, 'k' });
+        out.close();
+
+        // so are files no manifest refers to
+        File orphan = new File(dir, "level-999.hf2");
+        Files.copy(base.toPath(), orphan.toPath());
+
+        store = new HashStore(dir.getPath());
+        Assert.assertEquals(store.getLevelCount(), 1);
+        Assert.assertFalse(orphan.exists());
+        Assert.assertEquals(new String(store.get("key1".getBytes())),
+                "flushed");
+        Assert.assertEquals(new String(store.get("key2".getBytes())),
+                "logged");
+        Assert.assertNull(store.get("key3".getBytes()));
+        Assert.assertEquals(new String(store.get("key4".getBytes())),
+                "value4");
+
+        store.put("key4".getBytes(), "after".getBytes());
+        store.flush();
+        store.close();
+
+        store = new HashStore(dir.getPath());
+        Assert.assertEquals(store.getLevelCount(), 2);
+        Assert.assertEquals(new String(store.get("key2".getBytes())),
+                "logged");
+        Assert.assertEquals(new String(store.get("key4".getBytes())), "after");
+        store.close();
+    }
+
+    public void testConcurrentAccess() throws Exception {
+        File base = createBase(1000);
+        File dir = createDirectory();
+
+        final HashStore store = HashStore.create(dir.getPath(), base
+                .getPath(), ReadMode.POSITIONAL);
+        store.setMemTableSize(8192);
+        store.setMaxLevels(2);
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = thread; i < 4000; i += threads.length) {
+                            byte[] key = ("key" + i).getBytes();
+                            store.put(key, ("new" + i).getBytes());
+                            Assert.assertEquals(new String(store.get(key)),
+                                    "new" + i);
+
+                            // untouched keys stay readable throughout
+                            int other = (i * 7) % 1000;
+                            byte[] value = store.get(("key" + other)
+                                    .getBytes());
+                            Assert.assertNotNull(value);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        store.flush();
+        for (int i = 0; i < 4000; i++) {
+            Assert.assertEquals(new String(store.get(("key" + i).getBytes())),
+                    "new" + i);
+        }
+        store.close();
+    }
+
+    public void testNarrowBase() throws Exception {
+        for (boolean deduplicated : new boolean[] { false, true }) {
+            File base = File.createTempFile("hhhhhh", "ff");
+            base.deleteOnExit();
+
+            HashFile2Builder hashWrite = new HashFile2Builder(false, base
+                    .getPath(), 100, ByteSize.ONE, ByteSize.ONE, false, false,
+                    false);
+            if (deduplicated) {
+                hashWrite.enableValueDeduplication();
+            }
+            for (int i = 0; i < 100; i++) {
+                hashWrite.add(("key" + i).getBytes(), ("value" + i)
+                        .getBytes());
+            }
+            hashWrite.finish();
+
+            File dir = createDirectory();
+            HashStore store = HashStore.create(dir.getPath(), base.getPath());
+
+            // compact() could not write these to the base
+            int maxValueLength = deduplicated ? 63 : 127;
+            try {
+                store.put("big".getBytes(), new byte[200]);
+                Assert.fail("value too long");
+            } catch (IllegalArgumentException expected) {
+            }
+            try {
+                store.put("big".getBytes(), new byte[maxValueLength + 1]);
+                Assert.fail("value too long");
+            } catch (IllegalArgumentException expected) {
+            }
+            try {
+                store.put(new byte[128], "value".getBytes());
+                Assert.fail("key too long");
+            } catch (IllegalArgumentException expected) {
+            }
+
+            store.put("big".getBytes(), new byte[maxValueLength]);
+            store.compact();
+            Assert.assertEquals(store.get("big".getBytes()).length,
+                    maxValueLength);
+            Assert.assertEquals(new String(store.get("key50".getBytes())),
+                    "value50");
+            store.close();
+        }
+    }
+
+    public void testFailedCompaction() throws Exception {
+        File base = createBase(100);
+        File dir = createDirectory();
+
+        HashStore store = HashStore.create(dir.getPath(), base.getPath());
+        store.put("key1".getBytes(), "new".getBytes());
+
+        // the open base stays readable, but cannot be rewritten
+        Assert.assertTrue(base.delete());
+        try {
+            store.compact();
+            Assert.fail("base is gone");
+        } catch (IOException expected) {
+        }
+
+        Assert.assertEquals(store.getLevelCount(), 1);
+        Assert.assertEquals(new String(store.get("key1".getBytes())), "new");
+        Assert.assertEquals(new String(store.get("key2".getBytes())),
+                "value2");
+
+        store.put("key3".getBytes(), "after".getBytes());
+        store.flush();
+        Assert.assertEquals(store.getLevelCount(), 2);
+        Assert.assertEquals(new String(store.get("key3".getBytes())), "after");
+        store.close();
+
+        for (String name : dir.list()) {
+            Assert.assertFalse(name.startsWith("base-"), name);
+        }
+    }
+
+    public void testDuplicateBaseKeys() throws Exception {
+        File base = File.createTempFile("hhhhhh", "ff");
+        base.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(base
+                .getAbsolutePath(), 103);
+        for (int i = 0; i < 100; i++) {
+            hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+        }
+        hashWrite.add("key1".getBytes(), "later".getBytes());
+        hashWrite.add("key1".getBytes(), "latest".getBytes());
+        hashWrite.add("key2".getBytes(), "later".getBytes());
+        hashWrite.finish();
+
+        File dir = createDirectory();
+        HashStore store = HashStore.create(dir.getPath(), base.getPath());
+        store.put("key3".getBytes(), "new".getBytes());
+        store.compact();
+        Assert.assertEquals(new String(store.get("key1".getBytes())),
+                "value1");
+        store.close();
+
+        // the base's records are kept as they were, except the replaced key
+        File compacted = null;
+        for (File file : dir.listFiles()) {
+            if (file.getName().startsWith("base-")) {
+                compacted = file;
+            }
+        }
+
+        HashFile2 hf = new HashFile2(compacted.getPath());
+        Assert.assertEquals(hf.getCount(), 103);
+        Assert.assertEquals(new String(hf.get("key1".getBytes())), "value1");
+        for (int i = 0; i < 100; i++) {
+            List<String> expected = new ArrayList<String>();
+            expected.add(i == 3 ? "new" : "value" + i);
+            if (i == 1) {
+                expected.add("later");
+                expected.add("latest");
+            } else if (i == 2) {
+                expected.add("later");
+            }
+
+            List<String> values = new ArrayList<String>();
+            for (byte[] value : hf.getMulti(("key" + i).getBytes())) {
+                values.add(new String(value));
+            }
+            Assert.assertEquals(values, expected);
+        }
+        hf.close();
+    }
+
+    public void testInvalid() throws Exception {
+        File dir = createDirectory();
+
+        try {
+            new HashStore(dir.getPath());
+            Assert.fail("no manifest");
+        } catch (IOException expected) {
+        }
+
+        File associative = File.createTempFile("hhhhhh", "ff");
+        associative.deleteOnExit();
+        HashFile2Builder hashWrite = new HashFile2Builder(true, associative
+                .getPath(), 1, ByteSize.ZERO, ByteSize.FOUR, true, true, true);
+        hashWrite.add("key".getBytes(), "value".getBytes());
+        hashWrite.finish();
+
+        try {
+            HashStore.create(dir.getPath(), associative.getPath());
+            Assert.fail("associative base");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        HashStore store = HashStore.create(dir.getPath(), null);
+        try {
+            HashStore.create(dir.getPath(), null);
+            Assert.fail("store already exists");
+        } catch (IOException expected) {
+        }
+
+        try {
+            store.put("key".getBytes(), null);
+            Assert.fail("null value");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        store.close();
+        try {
+            store.get("key".getBytes());
+            Assert.fail("closed store");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /** checks the state after testUpdates()' first round of writes */
+    private static void assertContents(HashStore store) {
+        for (int i = 0; i < 1500; i++) {
+            assertValue(store, i);
+        }
+        Assert.assertNull(store.get("miss".getBytes()));
+    }
+
+    private static void assertValue(HashStore store, int i) {
+        byte[] value = store.get(("key" + i).getBytes());
+
+        if (i >= 1000 || i % 2 == 0) {
+            Assert.assertEquals(new String(value), "new" + i);
+        } else if (i % 4 == 1) {
+            Assert.assertNull(value);
+        } else {
+            Assert.assertEquals(new String(value), "value" + i);
+        }
+    }
+
+    private static File createDirectory() throws IOException {
+        File dir = Files.createTempDirectory("hashstore").toFile();
+        dir.deleteOnExit();
+
+        return dir;
+    }
+
+    private static File createBase(int entries) throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(tmp
+                .getAbsolutePath(), entries);
+        for (int i = 0; i < entries; i++) {
+            hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+        }
+        hashWrite.finish();
+
+        return tmp;
+    }
+}
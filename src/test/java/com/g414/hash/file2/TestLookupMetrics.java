@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.file2;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.g414.hash.file2.impl.Calculations2;
+
+@Test
+public class TestLookupMetrics {
+    public void testCounters() throws Exception {
+        File tmp = createFile(1000);
+
+        for (ReadMode mode : ReadMode.values()) {
+            HashFile2 hf = new HashFile2(tmp.getAbsolutePath(), true, mode);
+            Assert.assertNull(hf.getMetrics());
+
+            LookupMetrics metrics = hf.enableMetrics();
+            Assert.assertSame(hf.enableMetrics(), metrics);
+
+            for (int i = 0; i < 1000; i++) {
+                Assert.assertNotNull(hf.get(("key" + i).getBytes()));
+                Assert.assertNull(hf.get(("miss" + i).getBytes()));
+            }
+            Assert.assertTrue(hf.contains("key1".getBytes()));
+            Assert.assertNotNull(hf.getView("big".getBytes()));
+
+            LookupMetrics.Snapshot snapshot = metrics.snapshot();
+            Assert.assertEquals(snapshot.getLookups(), 2002);
+            Assert.assertEquals(snapshot.getHits(), 1002);
+            Assert.assertEquals(snapshot.getMisses(), 1000);
+            Assert.assertEquals(snapshot.getTimedLookups(), 2002);
+            Assert.assertTrue(snapshot.getMeanProbesPerLookup() >= 1.0);
+            Assert.assertTrue(snapshot.getBytesRead() > 100000);
+            Assert.assertEquals(snapshot.getOverflowReads(), 1);
+            Assert.assertTrue(snapshot.getMaxLatency() > 0);
+            Assert.assertTrue(snapshot.getLatencyPercentile(50.0) <= snapshot
+                    .getLatencyPercentile(99.0));
+            Assert.assertTrue(snapshot.getLatencyPercentile(100.0) <= snapshot
+                    .getMaxLatency());
+
+            // batched lookups are counted, but not timed
+            List<byte[]> keys = new ArrayList<byte[]>();
+            keys.add("key1".getBytes());
+            keys.add("miss1".getBytes());
+            hf.getAll(keys);
+
+            snapshot = metrics.snapshot();
+            Assert.assertEquals(snapshot.getLookups(), 2004);
+            Assert.assertEquals(snapshot.getHits(), 1003);
+            Assert.assertEquals(snapshot.getTimedLookups(), 2002);
+
+            metrics.reset();
+            Assert.assertEquals(metrics.getLookups(), 0);
+            Assert.assertEquals(metrics.snapshot().getTimedLookups(), 0);
+
+            hf.disableMetrics();
+            Assert.assertNull(hf.getMetrics());
+            hf.get("key1".getBytes());
+            Assert.assertEquals(metrics.getLookups(), 0);
+
+            hf.close();
+        }
+    }
+
+    public void testCollisions() throws Exception {
+        // find two keys with the same 32-bit hash code
+        Map<Long, String> seen = new HashMap<Long, String>();
+        String first = null;
+        String second = null;
+        for (int i = 0; first == null; i++) {
+            String key = "k" + i;
+            String previous = seen.put(Calculations2.computeHash(key
+                    .getBytes(), false), key);
+            if (previous != null) {
+                first = previous;
+                second = key;
+            }
+        }
+
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(false, tmp
+                .getAbsolutePath(), 2, ByteSize.FOUR, ByteSize.FOUR, false,
+                false, false);
+        hashWrite.add(first.getBytes(), "1".getBytes());
+        hashWrite.add(second.getBytes(), "2".getBytes());
+        hashWrite.finish();
+
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+        LookupMetrics metrics = hf.enableMetrics();
+
+        Assert.assertEquals(hf.get(second.getBytes()), "2".getBytes());
+        Assert.assertEquals(metrics.getCollisions(), 1);
+        Assert.assertTrue(metrics.getProbes() >= 2);
+
+        hf.close();
+    }
+
+    public void testHistogramBuckets() {
+        long previous = -1;
+        for (long value : new long[] { 0, 1, 15, 16, 17, 31, 32, 33, 1000,
+                123456789L, Long.MAX_VALUE }) {
+            int bucket = LookupMetrics.getHistogramBucket(value);
+            Assert.assertTrue(LookupMetrics.getHistogramBucketStart(bucket) <= value);
+            Assert.assertTrue(LookupMetrics.getHistogramBucketEnd(bucket) >= value);
+            Assert.assertTrue(bucket >= previous);
+            previous = bucket;
+
+            // buckets are no wider than 1/16 of their values
+            long width = LookupMetrics.getHistogramBucketEnd(bucket)
+                    - LookupMetrics.getHistogramBucketStart(bucket) + 1;
+            Assert.assertTrue(width <= Math.max(1L, value / 16 + 1), ""
+                    + value);
+        }
+
+        LookupMetrics metrics = new LookupMetrics();
+        for (int i = 1; i <= 1000; i++) {
+            metrics.record(true, 1, 0, 0L, 0, i * 1000L);
+        }
+
+        LookupMetrics.Snapshot snapshot = metrics.snapshot();
+        long median = snapshot.getLatencyPercentile(50.0);
+        Assert.assertTrue(median >= 500000 && median <= 500000 * 17 / 16,
+                "" + median);
+        Assert.assertEquals(snapshot.getLatencyPercentile(100.0), 1000000L);
+        Assert.assertEquals(snapshot.getMeanLatency(), 500500.0);
+    }
+
+    public void testMBean() throws Exception {
+        File tmp = createFile(10);
+        HashFile2 hf = new HashFile2(tmp.getAbsolutePath());
+
+        LookupMetrics metrics = hf.enableMetrics();
+        ObjectName name = metrics.registerMBean(tmp.getName());
+
+        hf.get("key1".getBytes());
+        hf.get("miss1".getBytes());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Assert.assertEquals(server.getAttribute(name, "Lookups"), 2L);
+        Assert.assertEquals(server.getAttribute(name, "Misses"), 1L);
+
+        hf.close();
+        Assert.assertFalse(server.isRegistered(name));
+    }
+
+    private static File createFile(int entries) throws Exception {
+        File tmp = File.createTempFile("hhhhhh", "ff");
+        tmp.deleteOnExit();
+
+        HashFile2Builder hashWrite = new HashFile2Builder(tmp
+                .getAbsolutePath(), entries);
+        for (int i = 0; i < entries; i++) {
+            hashWrite.add(("key" + i).getBytes(), ("value" + i).getBytes());
+        }
+        hashWrite.add("big".getBytes(), new byte[100000]);
+        hashWrite.finish();
+
+        return tmp;
+    }
+}
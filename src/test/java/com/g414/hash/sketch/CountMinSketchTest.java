@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.sketch;
+
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.g414.hash.impl.MurmurHash;
+
+@Test
+public class CountMinSketchTest {
+    public void testErrorBound() {
+        for (boolean conservative : new boolean[] { false, true }) {
+            double epsilon = 0.001;
+            CountMinSketch sketch = new CountMinSketch(new MurmurHash(),
+                    CountMinSketch.getDepthForConfidence(0.01), CountMinSketch
+                            .getWidthForError(epsilon), conservative);
+
+            int domain = 10000;
+            long[] actual = new long[domain];
+            Random random = new Random(0L);
+
+            for (int i = 0; i < 200000; i++) {
+                int key = (int) Math.abs(random.nextGaussian() * domain / 8)
+                        % domain;
+                actual[key] += 1;
+                sketch.add("key__" + key);
+            }
+
+            Assert.assertEquals(sketch.getTotalCount(), 200000L);
+
+            int violations = 0;
+            for (int key = 0; key < domain; key++) {
+                long estimate = sketch.estimate("key__" + key);
+                Assert.assertTrue(estimate >= actual[key]);
+
+                if (estimate - actual[key] > epsilon * sketch.getTotalCount()) {
+                    violations += 1;
+                }
+            }
+
+            Assert.assertTrue(violations <= domain / 100, "violations: "
+                    + violations);
+        }
+    }
+
+    public void testConcurrentIncrements() throws Exception {
+        for (final boolean conservative : new boolean[] { false, true }) {
+            final CountMinSketch sketch = new CountMinSketch(new MurmurHash(),
+                    4, 1024, conservative);
+            Thread[] threads = new Thread[8];
+
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread() {
+                    public void run() {
+                        for (int i = 0; i < 20000; i++) {
+                            sketch.add(("hot__" + (i % 10)).getBytes());
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            Assert.assertEquals(sketch.getTotalCount(), 160000L);
+            for (int i = 0; i < 10; i++) {
+                Assert.assertTrue(sketch.estimate(("hot__" + i).getBytes()) >= 16000L);
+            }
+        }
+    }
+
+    public void testMergeAndState() {
+        CountMinSketch a = new CountMinSketch(new MurmurHash(), 3, 500, false);
+        CountMinSketch b = new CountMinSketch(new MurmurHash(), 3, 500, false);
+
+        a.add("x".getBytes(), 5);
+        b.add("x".getBytes(), 7);
+        b.add("y".getBytes(), 3);
+
+        CountMinSketch c = new CountMinSketch(a.getState());
+        c.putAll(b);
+
+        Assert.assertTrue(c.estimate("x") >= 12L);
+        Assert.assertTrue(c.estimate("y") >= 3L);
+        Assert.assertEquals(c.getTotalCount(), 15L);
+
+        try {
+            c.putAll(new CountMinSketch(new MurmurHash(), 3, 500, true));
+            throw new RuntimeException("unexpected success");
+        } catch (IllegalArgumentException expected) {
+            // good - expected
+        }
+    }
+}
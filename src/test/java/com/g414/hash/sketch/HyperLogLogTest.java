@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.sketch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.g414.hash.impl.JenkinsHash;
+import com.g414.hash.impl.MurmurHash;
+
+@Test
+public class HyperLogLogTest {
+    public void testEmpty() {
+        HyperLogLog hll = new HyperLogLog(new MurmurHash());
+        Assert.assertEquals(hll.cardinality(), 0L);
+        Assert.assertTrue(hll.isSparse());
+    }
+
+    public void testAccuracy() {
+        long[] cardinalities = { 1L, 10L, 100L, 1000L, 10000L, 100000L,
+                1000000L };
+
+        for (int precision : new int[] { 10, 14 }) {
+            for (long n : cardinalities) {
+                HyperLogLog hll = new HyperLogLog(new MurmurHash(), precision);
+                for (long i = 0; i < n; i++) {
+                    hll.put("key__" + i);
+                    hll.put("key__" + (i / 2));
+                }
+
+                long estimate = hll.cardinality();
+                double error = Math.abs(estimate - n) / (double) n;
+                double allowed = 4.0 * 1.04 / Math.sqrt(1 << precision);
+
+                System.out.println("hll p=" + precision + " n=" + n
+                        + " estimate=" + estimate + " error=" + error);
+
+                Assert.assertTrue(error <= allowed, "n=" + n + " estimate="
+                        + estimate);
+            }
+        }
+    }
+
+    public void testSparseToDense() {
+        HyperLogLog hll = new HyperLogLog(new MurmurHash(), 12);
+        for (int i = 0; i < 100; i++) {
+            hll.put("item__" + i);
+        }
+        Assert.assertTrue(hll.isSparse());
+
+        for (int i = 0; i < 100000; i++) {
+            hll.put("item__" + i);
+        }
+        Assert.assertFalse(hll.isSparse());
+    }
+
+    public void testMerge() {
+        HyperLogLog sparse = new HyperLogLog(new MurmurHash());
+        HyperLogLog dense = new HyperLogLog(new MurmurHash());
+        HyperLogLog all = new HyperLogLog(new MurmurHash());
+
+        for (int i = 0; i < 500; i++) {
+            sparse.put("a__" + i);
+            all.put("a__" + i);
+        }
+
+        for (int i = 0; i < 200000; i++) {
+            dense.put("b__" + i);
+            all.put("b__" + i);
+        }
+
+        HyperLogLog sparseCopy = new HyperLogLog(sparse.getState());
+        sparseCopy.putAll(sparse);
+        Assert.assertEquals(sparseCopy.cardinality(), sparse.cardinality());
+
+        sparse.putAll(dense);
+        Assert.assertEquals(sparse.cardinality(), all.cardinality());
+
+        HyperLogLog dense2 = new HyperLogLog(dense.getState());
+        dense2.putAll(new HyperLogLog(new MurmurHash()));
+        Assert.assertEquals(dense2.cardinality(), dense.cardinality());
+
+        try {
+            dense.putAll(new HyperLogLog(new JenkinsHash()));
+            throw new RuntimeException("unexpected success");
+        } catch (IllegalArgumentException expected) {
+            // good - expected
+        }
+    }
+
+    public void testPersist() throws Exception {
+        HyperLogLog hll = new HyperLogLog(new MurmurHash(), 11);
+        for (int i = 0; i < 50000; i++) {
+            hll.put(("x__" + i).getBytes());
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(hll.getState());
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                bytes.toByteArray()));
+        HyperLogLogState state = (HyperLogLogState) in.readObject();
+        in.close();
+
+        HyperLogLog hll2 = new HyperLogLog(state);
+        Assert.assertEquals(hll2.getPrecision(), 11);
+        Assert.assertEquals(hll2.cardinality(), hll.cardinality());
+    }
+}
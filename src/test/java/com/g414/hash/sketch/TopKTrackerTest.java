@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.g414.hash.sketch;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.g414.hash.impl.MurmurHash;
+
+@Test
+public class TopKTrackerTest {
+    public void testZipfianHeavyHitters() {
+        TopKTracker tracker = new TopKTracker(new CountMinSketch(
+                new MurmurHash(), 4, 4096, true), 10);
+
+        Random random = new Random(1234L);
+        for (int i = 0; i < 200000; i++) {
+            // roughly zipfian: key n is chosen with probability ~ 1/n
+            int key = (int) Math.floor(Math.exp(random.nextDouble()
+                    * Math.log(100000)));
+            tracker.add(("key__" + key).getBytes());
+        }
+
+        List<TopKTracker.HeavyHitter> top = tracker.getTopK();
+        Assert.assertEquals(top.size(), 10);
+
+        Set<String> found = new HashSet<String>();
+        for (TopKTracker.HeavyHitter hitter : top) {
+            found.add(new String(hitter.getKey()));
+        }
+
+        for (int key = 1; key <= 5; key++) {
+            Assert.assertTrue(found.contains("key__" + key), "missing key__"
+                    + key + " in " + found);
+        }
+
+        for (int i = 1; i < top.size(); i++) {
+            Assert.assertTrue(top.get(i - 1).getCount() >= top.get(i)
+                    .getCount());
+        }
+    }
+}